@@ -0,0 +1,176 @@
+package net.sf.saxon.xom;
+
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.ParentNode;
+
+/**
+ * An immutable pre-order numbering of all nodes (including attributes) of a
+ * XOM tree, together with the position of each node among its siblings.
+ * Allows to compare the document order of two nodes, and to determine the
+ * sibling position of a node, in constant time.
+ * <P>
+ * Attributes are numbered after their owner element and before the children
+ * of that element, in the order of
+ * {@link Element#getAttribute(int)}, consistent with
+ * {@link NodeWrapper#compareOrder(net.sf.saxon.om.NodeInfo)}.
+ * <P>
+ * The index is a snapshot: nodes added to the tree after the index has been
+ * built are unknown to it, and nodes that have been moved retain their old
+ * numbers. It is the responsibility of the owning {@link DocumentWrapper} to
+ * discard the index when the tree may have been modified.
+ *
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/05/14 06:35:53 $
+ */
+final class DocumentOrderIndex {
+
+	/** Open addressing hash table keyed by node identity; null means free */
+	private final Node[] nodes;
+
+	/** The pre-order number of nodes[i] */
+	private final int[] orders;
+
+	/** The position of nodes[i] among its siblings (or attributes) */
+	private final int[] positions;
+
+	/** The number of nodes in the index */
+	private final int size;
+
+	/**
+	 * Builds the numbering for the tree rooted at the given node (typically a
+	 * document or an element).
+	 *
+	 * @param root
+	 *            the root of the (sub)tree to number
+	 */
+	public DocumentOrderIndex(Node root) {
+		int count = countNodes(root);
+		int capacity = 16;
+		while (capacity < 2 * count) capacity <<= 1; // load factor <= 0.5
+		this.nodes = new Node[capacity];
+		this.orders = new int[capacity];
+		this.positions = new int[capacity];
+		this.size = count;
+		number(root);
+	}
+
+	/**
+	 * Returns the pre-order number of the given node, or -1 if the node is
+	 * not contained in the index.
+	 */
+	public int getOrder(Node node) {
+		int i = find(node);
+		return i < 0 ? -1 : orders[i];
+	}
+
+	/**
+	 * Returns the position of the given node among its siblings (or among the
+	 * attributes of its owner element, if the node is an attribute), or -1 if
+	 * the node is not contained in the index.
+	 */
+	public int getSiblingPosition(Node node) {
+		int i = find(node);
+		return i < 0 ? -1 : positions[i];
+	}
+
+	/** Returns the number of nodes contained in the index. */
+	public int size() {
+		return size;
+	}
+
+	private int find(Node node) {
+		int mask = nodes.length - 1;
+		int i = hash(node) & mask;
+		Node key;
+		while ((key = nodes[i]) != null) {
+			if (key == node) return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void put(Node node, int order, int position) {
+		int mask = nodes.length - 1;
+		int i = hash(node) & mask;
+		while (nodes[i] != null) {
+			i = (i + 1) & mask;
+		}
+		nodes[i] = node;
+		orders[i] = order;
+		positions[i] = position;
+	}
+
+	private static int hash(Node node) {
+		int h = System.identityHashCode(node);
+		return h ^ (h >>> 16); // spread bits as identity hashes may be clustered
+	}
+
+	/** Returns the number of nodes in the given tree, including attributes. */
+	private static int countNodes(Node root) {
+		return walk(root, null);
+	}
+
+	/** Assigns pre-order numbers and sibling positions to all nodes. */
+	private void number(Node root) {
+		walk(root, this);
+	}
+
+	/**
+	 * Walks the tree rooted at root in pre-order, without recursion (to avoid
+	 * stack overflows on deep trees) and without ParentNode.indexOf() (to
+	 * avoid quadratic cost on wide trees); stores each node into the given
+	 * index, if not null. Returns the number of nodes visited.
+	 */
+	private static int walk(Node root, DocumentOrderIndex index) {
+		Node[] parents = new Node[16];
+		int[] positions = new int[16];
+		int depth = 0;
+		int order = 0;
+		Node node = root;
+		ParentNode rootParent = root.getParent();
+		int position = rootParent == null ? 0 : rootParent.indexOf(root);
+		while (true) {
+			// visit node
+			if (index != null) index.put(node, order, position);
+			order++;
+			if (node instanceof Element) {
+				Element elem = (Element) node;
+				int atts = elem.getAttributeCount();
+				if (index != null) {
+					for (int i = 0; i < atts; i++) {
+						index.put(elem.getAttribute(i), order + i, i);
+					}
+				}
+				order += atts;
+			}
+
+			// advance to next node in pre-order
+			if (node.getChildCount() > 0) { // descend
+				if (depth == parents.length) {
+					Node[] tmpParents = new Node[2 * depth];
+					System.arraycopy(parents, 0, tmpParents, 0, depth);
+					parents = tmpParents;
+					int[] tmpPositions = new int[2 * depth];
+					System.arraycopy(positions, 0, tmpPositions, 0, depth);
+					positions = tmpPositions;
+				}
+				parents[depth] = node;
+				positions[depth] = position;
+				depth++;
+				node = node.getChild(0);
+				position = 0;
+			} else { // next sibling, or next sibling of nearest ancestor
+				while (depth > 0 && position + 1 >= parents[depth-1].getChildCount()) {
+					depth--;
+					position = positions[depth];
+				}
+				if (depth == 0) return order;
+				position++;
+				node = parents[depth-1].getChild(position);
+			}
+		}
+	}
+
+}
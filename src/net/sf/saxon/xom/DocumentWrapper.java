@@ -19,6 +19,11 @@ import java.util.Collections;
  * <P>
  * This class is used not only for a document, but also for the root
  * of a document-less tree fragment.
+ * <P>
+ * A wrapper may be shared by concurrent query executions. Its indexes are
+ * built under its monitor and published via volatile fields. The counter
+ * that decides when to build the document order index is updated without
+ * locking; a lost update merely delays building the index a little.
  *
  * @author Michael H. Kay
  * @author Wolfgang Hoschek (ported net.sf.saxon.jdom to XOM)
@@ -32,7 +37,30 @@ public class DocumentWrapper extends NodeWrapper implements DocumentInfo {
 
 	protected int documentNumber;
 
-    private HashMap idIndex;
+    /** Maps ID values to elements; built lazily */
+    private volatile HashMap idIndex;
+
+    /** May the tree have been modified since idIndex has been built? */
+    private volatile boolean mayBeModified = false;
+
+    /** Pre-order numbering of the tree; null if not (yet) built */
+    private volatile DocumentOrderIndex orderIndex;
+
+    /** Number of ancestors walked by document order comparisons made without orderIndex */
+    private volatile int orderWork = 0;
+
+    /** The orderWork beyond which orderIndex is built */
+    private int maxOrderWork = MIN_ORDER_WORK;
+
+    private static final int MIN_ORDER_WORK = 20000;
+
+    private static final int MIN_ORDER_STEPS = 16;
+
+    /** Is the tree declared immutable, and may hence be indexed structurally? */
+    private volatile boolean nameIndexEnabled = false;
+
+    /** Element name index; null if not (yet) built */
+    private volatile ElementNameIndex nameIndex;
 
 	/**
 	 * Create a Saxon wrapper for a XOM root node
@@ -116,6 +144,105 @@ public class DocumentWrapper extends NodeWrapper implements DocumentInfo {
 		return documentNumber;
 	}
 
+    /**
+	 * Notify this wrapper that the underlying XOM tree may have been modified
+	 * since derived indexes (such as the ID index) have been built. This is
+	 * called whenever a wrapper is reused across query executions. The
+	 * ID index is not discarded; rather it is verified and rebuilt lazily, at
+	 * most once after each notification, so that a wrapper can be cached for
+	 * as long as the document lives. The document order index is discarded,
+	 * and rebuilt only once document order comparisons have become expensive
+	 * again.
+	 * <p>
+	 * This has no effect while the tree is declared immutable via
+	 * {@link #setNameIndexEnabled(boolean)}; all indexes then remain valid.
+	 */
+
+	public void setMayBeModified() {
+		if (nameIndexEnabled) return; // declared immutable
+		mayBeModified = true;
+		orderIndex = null;
+		orderWork = 0;
+	}
+
+	/**
+	 * Enables or disables the element name index of this tree. If enabled,
+	 * the index is built lazily on the first descendant axis step that
+	 * tests for an element name, and retained for subsequent queries, making
+	 * steps such as <code>//item</code> proportional to the number of
+	 * matching elements rather than to the size of the subtree.
+	 * <p>
+	 * Enabling the index declares that the tree will not be modified while
+	 * it is enabled; the indexes are then no longer discarded or verified on
+	 * {@link #setMayBeModified()}. Disabling it declares that the tree may be
+	 * modified from now on; it discards the element name index and the
+	 * document order index, and the ID index is verified on its next use.
+	 *
+	 * @param enabled
+	 *            whether or not to use an element name index
+	 */
+	public void setNameIndexEnabled(boolean enabled) {
+		synchronized (this) {
+			nameIndexEnabled = enabled;
+			if (!enabled) {
+				mayBeModified = true;
+				nameIndex = null;
+				orderIndex = null;
+				orderWork = 0;
+			}
+		}
+	}
+
+	/**
+	 * Returns the element name index of this tree, building it if
+	 * necessary; or null if the index is not enabled.
+	 */
+	ElementNameIndex getNameIndex() {
+		ElementNameIndex index = nameIndex;
+		if (index != null || !nameIndexEnabled) return index;
+
+		synchronized (this) {
+			if (nameIndex == null && nameIndexEnabled) {
+				DocumentOrderIndex orders = orderIndex;
+				if (orders == null) orders = new DocumentOrderIndex(node);
+				index = new ElementNameIndex(node, orders, getNamePool());
+				orderIndex = orders;
+				nameIndex = index;
+			}
+			return nameIndex;
+		}
+	}
+
+	/**
+	 * Returns the pre-order numbering of this tree, or null if it has not
+	 * been built yet.
+	 */
+	DocumentOrderIndex getOrderIndex() {
+		return orderIndex;
+	}
+
+	/**
+	 * Notifies this wrapper that a document order comparison has walked the
+	 * given number of ancestors, and builds the pre-order numbering of this
+	 * tree once such walks have become more expensive than building it. Once
+	 * built, the numbering stays valid until the next call to
+	 * {@link #setMayBeModified()}.
+	 */
+	void addOrderWork(int steps) {
+		if (steps < MIN_ORDER_STEPS) return; // cheaper than an index lookup
+		orderWork += steps; // unsynchronized; see class comment
+		if (orderWork < maxOrderWork || orderIndex != null) return;
+		
+		synchronized (this) {
+			if (orderIndex == null) {
+				DocumentOrderIndex index = new DocumentOrderIndex(node);
+				// a rebuild is worthwhile only if it pays off for a tree of this size
+				maxOrderWork = Math.max(MIN_ORDER_WORK, index.size());
+				orderIndex = index;
+			}
+		}
+	}
+
     /**
 	 * Get the element with a given ID, if any
 	 *
@@ -127,38 +254,66 @@ public class DocumentWrapper extends NodeWrapper implements DocumentInfo {
 	 */
 
 	public NodeInfo selectID(String id) {
-		if (idIndex == null) {
-			Element elem;
+		HashMap index = idIndex;
+		if (index != null) {
+			Element elem = (Element) index.get(id);
+			if (elem != null && isValidID(elem, id)) return wrap(elem);
+			if (!mayBeModified) return null; // a genuine miss
+		}
+		
+		// build or rebuild the index; the tree may have changed since it was built
+		synchronized (this) {
+			mayBeModified = false;
 			switch (nodeKind) {
 				case Type.DOCUMENT :
-					elem = ((Document) node).getRootElement();
+					index = new HashMap(50);
+					buildIDIndex(((Document) node).getRootElement(), index);
 					break;
 				case Type.ELEMENT :
-					elem = (Element) node;
+					index = new HashMap(50);
+					buildIDIndex((Element) node, index);
 					break;
 				default:
 					return null;
 			}
-			idIndex = new HashMap(50);
-			buildIDIndex(elem);
+			idIndex = index;
 		}
-		return (NodeInfo) idIndex.get(id);
+		Element elem = (Element) index.get(id);
+		return elem == null ? null : wrap(elem);
 	}
 
+	/**
+	 * Returns whether the given indexed element still carries the given ID and
+	 * still belongs to this tree.
+	 */
+	private boolean isValidID(Element elem, String id) {
+		boolean found = false;
+		for (int i=elem.getAttributeCount(); --i >= 0 && !found; ) {
+			Attribute att = elem.getAttribute(i);
+			found = att.getType() == Attribute.Type.ID && id.equals(att.getValue());
+		}
+		if (!found) return false;
+		
+		Node root = elem;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		return root == node;
+	}
 
-	private void buildIDIndex(Element elem) {
+	private static void buildIDIndex(Element elem, HashMap index) {
 		// walk the tree in reverse document order, to satisfy the XPath 1.0 rule
 		// that says if an ID appears twice, the first one wins
 		for (int i=elem.getChildCount(); --i >= 0 ; ) {
 			Node child = elem.getChild(i);
 			if (child instanceof Element) {
-				buildIDIndex((Element)child);
+				buildIDIndex((Element)child, index);
 			}
 		}
 		for (int i=elem.getAttributeCount(); --i >= 0 ; ) {
 			Attribute att = elem.getAttribute(i);
 			if (att.getType() == Attribute.Type.ID) {
-				idIndex.put(att.getValue(), wrap(elem));
+				index.put(att.getValue(), elem);
 			}
 		}
 	}
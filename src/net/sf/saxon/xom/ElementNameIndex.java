@@ -0,0 +1,170 @@
+package net.sf.saxon.xom;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.sf.saxon.om.NamePool;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.ParentNode;
+
+/**
+ * An immutable structural index of a XOM tree, mapping element name
+ * fingerprints to the list of all elements of that name, in document order.
+ * Allows to answer descendant axis name tests (e.g. <code>//item</code>)
+ * by a binary search over the elements of the given name, rather than by a
+ * scan over the entire subtree of the context node.
+ * <P>
+ * The index is a snapshot, only correct as long as the tree is not modified.
+ *
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/05/14 06:35:53 $
+ */
+final class ElementNameIndex {
+
+	/** Map from Integer fingerprint to Postings */
+	private final Map postings;
+
+	/** The document order numbering the postings refer to */
+	private final DocumentOrderIndex orderIndex;
+
+	private static final Postings EMPTY = new Postings(new Element[0], new int[0]);
+
+	/**
+	 * Builds the index for the tree rooted at the given node.
+	 *
+	 * @param root
+	 *            the root of the (sub)tree to index
+	 * @param orderIndex
+	 *            the document order numbering of the same tree
+	 * @param pool
+	 *            the name pool to obtain fingerprints from
+	 */
+	public ElementNameIndex(Node root, DocumentOrderIndex orderIndex, NamePool pool) {
+		this.orderIndex = orderIndex;
+		HashMap lists = new HashMap();
+		collect(root, lists, pool);
+
+		// convert to compact arrays
+		this.postings = new HashMap(lists.size());
+		Iterator iter = lists.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry entry = (Map.Entry) iter.next();
+			ArrayList list = (ArrayList) entry.getValue();
+			Element[] elements = new Element[list.size()];
+			list.toArray(elements);
+			int[] orders = new int[elements.length];
+			for (int i = 0; i < elements.length; i++) {
+				orders[i] = orderIndex.getOrder(elements[i]);
+			}
+			this.postings.put(entry.getKey(), new Postings(elements, orders));
+		}
+	}
+
+	/** Returns the document order numbering this index refers to. */
+	public DocumentOrderIndex getOrderIndex() {
+		return orderIndex;
+	}
+
+	/**
+	 * Returns all elements with the given fingerprint, in document order.
+	 */
+	public Postings getPostings(int fingerprint) {
+		Postings result = (Postings) postings.get(new Integer(fingerprint));
+		return result == null ? EMPTY : result;
+	}
+
+	/**
+	 * Returns the pre-order number of the first node that follows the subtree
+	 * of the given node, or Integer.MAX_VALUE if there is no such node (or if
+	 * it is not contained in the index).
+	 */
+	public int getSubtreeEnd(Node node) {
+		ParentNode parent;
+		while ((parent = node.getParent()) != null) {
+			int i = parent.indexOf(node) + 1; // O(1) in XOM >= 1.2
+			if (i < parent.getChildCount()) {
+				int order = orderIndex.getOrder(parent.getChild(i));
+				return order < 0 ? Integer.MAX_VALUE : order;
+			}
+			node = parent;
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	private static void collect(Node root, HashMap lists, NamePool pool) {
+		// iterative pre-order walk, avoids stack overflow on deep trees
+		Node node = root;
+		while (node != null) {
+			if (node instanceof Element) {
+				Element elem = (Element) node;
+				Integer key = new Integer(pool.allocate("",
+					elem.getNamespaceURI(), elem.getLocalName()) & 0xfffff);
+				ArrayList list = (ArrayList) lists.get(key);
+				if (list == null) {
+					list = new ArrayList();
+					lists.put(key, list);
+				}
+				list.add(elem);
+			}
+
+			// advance to next node in pre-order
+			if (node.getChildCount() > 0) {
+				node = node.getChild(0);
+			} else {
+				while (node != root) {
+					ParentNode parent = node.getParent();
+					int i = parent.indexOf(node) + 1; // O(1) in XOM >= 1.2
+					if (i < parent.getChildCount()) {
+						node = parent.getChild(i);
+						break;
+					}
+					node = parent;
+				}
+				if (node == root) node = null;
+			}
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The elements of a given name, in document order, along with their
+	 * pre-order numbers.
+	 */
+	static final class Postings {
+
+		final Element[] elements;
+		final int[] orders;
+
+		Postings(Element[] elements, int[] orders) {
+			this.elements = elements;
+			this.orders = orders;
+		}
+
+		/**
+		 * Returns the index of the first element whose pre-order number is
+		 * greater or equal to the given number (binary search).
+		 */
+		int lowerBound(int order) {
+			int low = 0;
+			int high = orders.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (orders[mid] < order) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+}
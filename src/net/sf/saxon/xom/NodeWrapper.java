@@ -305,20 +305,36 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 
 	public int compareOrder(NodeInfo other) {
 		if (other instanceof NodeWrapper) {
-			return compareOrderFast(node,((NodeWrapper) other).node);
+			Node otherNode = ((NodeWrapper) other).node;
+			if (node == otherNode) return 0;
+			
+			// use the pre-order numbering once comparisons have become expensive
+			DocumentOrderIndex orderIndex = docWrapper.getOrderIndex();
+			if (orderIndex != null) {
+				int order1 = orderIndex.getOrder(node);
+				int order2 = orderIndex.getOrder(otherNode);
+				if (order1 >= 0 && order2 >= 0) { // both nodes are known to the index
+					return order1 < order2 ? -1 : +1;
+				}
+			}
+			return compareOrderFast(node, otherNode, docWrapper);
 		} else {
 			// it must be a namespace node
 			return -other.compareOrder(this);
 		}
 	}
 
-    private static int compareOrderFast(Node first, Node second) {
+    private static int compareOrderFast(Node first, Node second, DocumentWrapper docWrapper) {
 		/*
-		 * Unfortunately we do not have a sequence number for each node at hand;
-		 * this would allow to turn the comparison into a simple sequence number
-		 * subtraction. Walking the entire tree and batch-generating sequence
-		 * numbers on the fly is no good option either. However, this rewritten
-		 * implementation turns out to be more than fast enough.
+		 * We do not have a sequence number for each node at hand unless the
+		 * DocumentWrapper has built its DocumentOrderIndex. Walking the entire
+		 * tree and batch-generating sequence numbers on the fly is no good
+		 * option for a handful of comparisons, and ParentNode.indexOf() is
+		 * O(1) in XOM >= 1.2. Hence, this rewritten implementation turns out
+		 * to be more than fast enough, except for the ancestor walks on deep
+		 * trees. Their cost is reported to the DocumentWrapper, which builds
+		 * the index once it has become worthwhile (e.g. when sorting large
+		 * node sets of a deep tree).
 		 */
 
 		// assert first != null && second != null
@@ -372,6 +388,7 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 			p2 = p2.getParent();
 			if (p2 == first) return -1;
 		}
+		docWrapper.addOrderWork(depth1 + depth2);
 
 		// move up one branch of the tree so we have two nodes on the same level
 		p1 = first;
@@ -557,10 +574,16 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
         if (index != -1) return index;
 		switch (nodeKind) {
 			case Type.ATTRIBUTE: {
+				DocumentOrderIndex orderIndex = docWrapper.getOrderIndex();
+				int i = orderIndex == null ? -1 : orderIndex.getSiblingPosition(node);
+				if (i >= 0) {
+					index = i;
+					return i;
+				}
 				Attribute att = (Attribute) node;
 				Element p = (Element) att.getParent();
 				if (p == null) return 0;
-				for (int i=p.getAttributeCount(); --i >= 0;) {
+				for (i=p.getAttributeCount(); --i >= 0;) {
 					if (p.getAttribute(i) == att) {
 						index = i;
 						return i;
@@ -631,6 +654,8 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 
 		case Axis.DESCENDANT:
 			if (hasChildNodes()) {
+				AxisIterator iter = iterateIndexedDescendants(false, nodeTest);
+				if (iter != null) return iter;
 				return new DescendantAxisIterator(this, false, false, nodeTest);
 			} else {
 				return EmptyIterator.getInstance();
@@ -638,6 +663,8 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 
 		case Axis.DESCENDANT_OR_SELF:
 			if (hasChildNodes()) {
+				AxisIterator iter = iterateIndexedDescendants(true, nodeTest);
+				if (iter != null) return iter;
 				return new DescendantAxisIterator(this, true, false, nodeTest);
 			} else {
 				return Navigator.filteredSingleton(this, nodeTest);
@@ -780,6 +807,30 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 		return docWrapper.getDocumentNumber();
 	}
 
+	/**
+	 * Returns an iterator over the descendant elements matching the given
+	 * element name test, answered from the element name index of the
+	 * document; or null if there is no such index or the test is not an
+	 * element name test.
+	 */
+	private AxisIterator iterateIndexedDescendants(boolean includeSelf, NodeTest nodeTest) {
+		if (!(nodeTest instanceof NameTest)) return null;
+		if (nodeTest.getPrimitiveType() != Type.ELEMENT) return null;
+		ElementNameIndex nameIndex = docWrapper.getNameIndex();
+		if (nameIndex == null) return null;
+
+		int start = nameIndex.getOrderIndex().getOrder(node);
+		if (start < 0) return null; // node is unknown to the index
+		if (!includeSelf) start++;
+		int end = nameIndex.getSubtreeEnd(node);
+		ElementNameIndex.Postings postings = 
+			nameIndex.getPostings(((NameTest) nodeTest).getFingerprint());
+		int from = postings.lowerBound(start);
+		int to = postings.lowerBound(end);
+		if (from >= to) return EmptyIterator.getInstance();
+		return new IndexedDescendantAxisIterator(postings.elements, from, to);
+	}
+
 	/**
 	 * Copy this node to a given outputter (deep copy)
 	 */
@@ -1591,6 +1642,74 @@ public class NodeWrapper implements NodeInfo, VirtualNode, SiblingCountingNode {
 		}
 	}
 
+	/**
+	 * Iterates over a range of the elements of a given name, as found by the
+	 * element name index; the elements are in document order.
+	 */
+    private final class IndexedDescendantAxisIterator implements AxisIterator {
+
+		private Element[] elements;
+		private int from;
+		private int to;
+		private int cursor;
+
+		private NodeInfo current;
+		private int position;
+
+		public IndexedDescendantAxisIterator(Element[] elements, int from, int to) {
+			this.elements = elements;
+			this.from = from;
+			this.to = to;
+			this.cursor = from;
+			this.position = 0;
+		}
+
+        public boolean moveNext() {
+            return (next() != null);
+        }
+
+		public Item next() {
+			if (cursor < to) {
+				current = makeWrapper(elements[cursor++], docWrapper);
+				position++;
+			} else {
+				current = null;
+			}
+			return current;
+		}
+
+		public Item current() {
+			return current;
+		}
+
+		public int position() {
+			return position;
+		}
+
+        public void close() {
+        }
+
+         public AxisIterator iterateAxis(byte axis, NodeTest test) {
+             return current.iterateAxis(axis, test);
+         }
+
+         public Value atomize() throws XPathException {
+             return current.atomize();
+         }
+
+         public CharSequence getStringValue() {
+             return current.getStringValue();
+         }
+
+		public SequenceIterator getAnother() {
+			return new IndexedDescendantAxisIterator(elements, from, to);
+		}
+
+ 		public int getProperties() {
+			return 0;
+		}
+	}
+
 	/**
 	 * Efficiently takes care of preceding axis and Saxon internal preceding-or-ancestor axis.
 	 * Uses simple and effective O(1) backtracking via indexOf().
@@ -77,8 +77,22 @@ final class ArrayByteList {
 	 */
 	private transient int position = 0;
 
+	/**
+	 * The list's own array while <code>elements</code> is temporarily shared
+	 * with the backing array of a heap ByteBuffer (see
+	 * {@link #ensureRemaining(InputStream, int)}); null otherwise. A shared
+	 * list is only ever read from; <code>clear()</code> and
+	 * <code>ensureRemaining()</code> release the shared array again, so the
+	 * list never writes into the caller's buffer.
+	 */
+	private transient byte[] ownElements;
+
 	private static final boolean DEBUG = false;
 
+	// lead bytes of symbol dictionary references; both are illegal in UTF-8
+	private static final byte DICTIONARY_REFERENCE1 = (byte) 0xFE;
+	private static final byte DICTIONARY_REFERENCE2 = (byte) 0xFF;
+
 	
 	/**
 	 * Constructs an empty list.
@@ -178,6 +192,10 @@ final class ArrayByteList {
 	 * <code>size()</code> will yield zero.
 	 */
 	public void clear() {
+		if (ownElements != null) { // release shared array
+			elements = ownElements;
+			ownElements = null;
+		}
 		size = 0;
 		position = 0;
 	}
@@ -202,6 +220,11 @@ final class ArrayByteList {
 	 * read. If there are currenty less bytes remaining, this method reads from
 	 * the given input stream until there exactly holds
 	 * <code>remaining() == need</code>.
+	 * <p>
+	 * If nothing remains and the stream is a view onto a heap ByteBuffer, the
+	 * receiver shares the buffer's backing array instead of copying
+	 * <code>need</code> bytes from it (zero-copy); the buffer is advanced
+	 * exactly as if the bytes had been read.
 	 * 
 	 * @param input
 	 *            the stream to read from
@@ -217,6 +240,30 @@ final class ArrayByteList {
 		need -= remaining;
 		if (need <= 0) return true;
 		
+		if (remaining == 0 && input instanceof ByteBufferInputStream) {
+			ByteBufferInputStream buffer = (ByteBufferInputStream) input;
+			int offset = buffer.share(need);
+			if (offset >= 0) { // read straight from the buffer's backing array
+				if (ownElements == null) ownElements = elements;
+				elements = buffer.array();
+				position = offset;
+				size = offset + need;
+				return true;
+			}
+		}
+		
+		if (ownElements != null) { // copy remainder into own array, never into shared one
+			byte[] tmp = ownElements;
+			if (tmp.length < remaining + need) {
+				tmp = new byte[Math.max(2*tmp.length, remaining + need)];
+			}
+			System.arraycopy(elements, position, tmp, 0, remaining);
+			elements = tmp;
+			ownElements = null;
+			size = remaining;
+			position = 0;
+		}
+		
 		int free = elements.length - size;
 		if (free < need) { // not enough room available
 			if (free + position >= need) { // compaction yields enough room
@@ -305,6 +352,10 @@ final class ArrayByteList {
 	public int size() {
 		return size;
 	}
+	
+	public void setSize(int size) {	// ugly hack
+		this.size = size;
+	}
 
 	/** Small helper method eliminating redundancy. */
 	private byte[] subArray(int from, int length, int capacity) {
@@ -378,6 +429,13 @@ final class ArrayByteList {
 				((b1 & 0xff) << 8) | ((b0 & 0xff) << 0)));
 	}
 		
+	/** Reads and returns the 8 byte big endian value at the current position offset. */
+	public long getLong() {
+		long hi = getInt();
+		long lo = getInt();
+		return (hi << 32) | (lo & 0xFFFFFFFFL);
+	}
+		
 	/** Reads and returns the 2 byte big endian value at the current position offset. */
 	public short getShort() {
 		if (DEBUG && position + 2 > size) throwIndex(position);
@@ -396,6 +454,12 @@ final class ArrayByteList {
 		elements[index+3] = (byte) (v >> 0);
 	}
 	
+	/** Writes the given value at the given index in 8 byte big endian.  */
+	public void setLong(int index, long v) { 
+		setInt(index, (int) (v >> 32));
+		setInt(index + 4, (int) v);
+	}
+	
 	/** Appends the given value in 4 byte big endian. */
 	public void addInt(int v) {
 		if (size + 4 > elements.length) ensureCapacity(size + 4);
@@ -406,6 +470,12 @@ final class ArrayByteList {
 		size += 4;
 	}
 	
+	/** Appends the given value in 8 byte big endian. */
+	public void addLong(long v) {
+		addInt((int) (v >> 32));
+		addInt((int) v);
+	}
+	
 	/** Appends the given value in 2 byte big endian. */
 	public void addShort(short v) { 
 		if (size + 2 > elements.length) ensureCapacity(size + 2);
@@ -413,6 +483,40 @@ final class ArrayByteList {
 		elements[size+1] = (byte) (v >> 0);
 		size += 2;
 	}
+	
+	/** Appends the given non-negative value in 1-5 byte variable length encoding. */
+	public void addVarInt(int v) {
+		if (size + 5 > elements.length) ensureCapacity(size + 5);
+		while ((v & ~0x7F) != 0) {
+			elements[size++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		elements[size++] = (byte) v;
+	}
+	
+	/** Reads and returns the variable length encoded value at the current position offset. */
+	public int getVarInt() {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (DEBUG && position >= size) throwIndex(position);
+			b = elements[position++];
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+	
+	/** Returns the number of bytes of the variable length encoding of the given value. */
+	public static int getVarIntLength(int v) {
+		int len = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			len++;
+		}
+		return len;
+	}
 			
 	/**
 	 * Removes the elements in the range <code>[from..to)</code>. Shifts any
@@ -461,6 +565,7 @@ final class ArrayByteList {
 		byte[] e = elements; elements = dst.elements; dst.elements = e;
 		int s = size; size = dst.size; dst.size = s;
 		int p = position; position = dst.position; dst.position = p;
+		e = ownElements; ownElements = dst.ownElements; dst.ownElements = e;
 	}
 	
 	/**
@@ -593,6 +698,22 @@ final class ArrayByteList {
 		return dst;
 	}
 	
+	/**
+	 * Appends a reference to the symbol dictionary entry with the given index
+	 * (0 <= index < 65536). The reference starts with a byte that never
+	 * occurs as the first byte of a UTF-8 encoded character, and hence can be
+	 * told apart from a zero terminated UTF-8 encoded string.
+	 */
+	public void addDictionaryReference(int index) {
+		if (index < 256) {
+			add(DICTIONARY_REFERENCE1);
+			add((byte) index);
+		} else {
+			add(DICTIONARY_REFERENCE2);
+			addShort((short) index);
+		}
+	}
+	
 	/** Appends the UTF-8 encoding of the given string, followed by a zero byte terminator. */
 	public void addUTF8String(String prefix, String localName) {
 		// assert: array capacity is large enough, so there's no need to expand
@@ -745,6 +866,50 @@ final class ArrayByteList {
 		return dst;
 	}
 	
+	/**
+	 * Reads and returns the next "count" strings, each of which is either a
+	 * zero terminated UTF-8 encoded string, or a reference into the given
+	 * symbol dictionary, starting at the current position offset.
+	 * 
+	 * @see #addDictionaryReference(int)
+	 */
+	public String[] getUTF8Strings(int count, String[] dictionary) {
+		final String[] dst = new String[count];
+		final ArrayCharList buffer = new ArrayCharList(32);
+		final byte[] elems = elements;
+		int off = position;
+		
+		for (int k = 0; k < count; k++) {
+			int b = elems[off];
+			if (b == DICTIONARY_REFERENCE1) { // one byte dictionary index
+				dst[k] = dictionary[elems[off+1] & 0xFF];
+				off += 2;
+				continue;
+			}
+			if (b == DICTIONARY_REFERENCE2) { // two byte dictionary index
+				dst[k] = dictionary[((elems[off+1] & 0xFF) << 8) | (elems[off+2] & 0xFF)];
+				off += 3;
+				continue;
+			}
+			
+			int start = off;
+			while ((b = elems[off]) > 0) { // scan to see if string is pure 7 bit ASCII
+				off++; 
+			}
+			if (b == 0) { // fast path: pure 7 bit ASCII (safe)
+				dst[k] = new String(elems, 0, start, off-start); // intentional and safe!
+			} else { // slow path: arbitrary UTF-8
+				dst[k] = getUTF8String(start, off, buffer);
+				off = position;
+			}
+			off++; // read past zero byte string terminator
+		}
+		
+		position = off;
+		if (DEBUG && position > size) throwIndex(position);
+		return dst;
+	}
+	
 	private String getUTF8String(int i, int asciiEnd, ArrayCharList buffer) {
 		buffer.clear();
 		final byte[] src = elements;
@@ -48,6 +48,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -55,6 +57,9 @@ import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import nu.xom.Attribute;
 import nu.xom.Comment;
 import nu.xom.DocType;
@@ -71,6 +76,8 @@ import nu.xom.WellformednessException;
 import nu.xom.XMLException;
 import nux.xom.io.StreamingSerializer;
 
+import org.xml.sax.ContentHandler;
+
 /**
  * Serializes (encodes) and deserializes (decodes) XOM XML documents to and from
  * an efficient and compact custom binary XML data format (termed <i>bnux </i>
@@ -163,6 +170,13 @@ import nux.xom.io.StreamingSerializer;
  * to 1 (little ZLIB compression; reduced performance) to 9 (strongest ZLIB
  * compression; worst performance) allows one to configure the CPU/memory
  * consumption trade-off.
+ * <p>
+ * Alternatively, pages can be compressed by a pluggable {@link PageCompressor}
+ * (see {@link #setPageCompressor(PageCompressor)}), for example the pure Java
+ * {@link LZPageCompressor}, which compresses less but is several times faster
+ * than ZLIB, and thus offers a middle ground between no compression and ZLIB
+ * compression. {@link PageCompressionStatistics} helps to compare the
+ * compression ratio and CPU time of the available options on real data.
  * 
  * <h4>Reliability</h4>
  * 
@@ -293,8 +307,7 @@ import nux.xom.io.StreamingSerializer;
 public class BinaryXMLCodec {
 	
 	/*
-	 * TODO: add a StAX interface on top of bnux?
-	 * e.g. createXMLStreamReader(byte[]), similar for XMLStreamWriter
+	 * TODO: add a StAX XMLStreamWriter on top of bnux?
 	 * TODO: add coalescing of adjacent Text nodes on deserialization?
 	 */
 	
@@ -319,6 +332,12 @@ public class BinaryXMLCodec {
 	// for deserialization: are pages ZLIB compressed?
 	private boolean isCompressed;	
 
+	// for deserialization: symbols of the dictionary of the current document, or null
+	private String[] dictionarySymbols;
+	
+	// for deserialization: are pages compressed by a PageCompressor?
+	private boolean isPageCompressed;
+
 	// for deserialization and serialization: page buffer
 	private ArrayByteList page; // multi-byte integers are ALWAYS in big-endian
 	
@@ -333,6 +352,9 @@ public class BinaryXMLCodec {
 	// for serialization: indexes into symbolTable/entries
 	private ArrayIntList indexData; 
 	
+	// for serialization: scratch space for compressing the body of a page
+	private ArrayByteList compressedPage;
+	
 	// for serialization: has first page of current document already been written?
 	private boolean isFirstPage = true;
 
@@ -341,6 +363,9 @@ public class BinaryXMLCodec {
 	private Deflater compressor;   // ZLIB
 	private int compressionLevel = -1; // initialize to "undefined"
 	
+	// for deserialization: inflates and decodes pages ahead in parallel; null if disabled
+	private ParallelPageDecoder pageDecoder;
+	
 	// for deserialization: avoids reverification of PCDATA
 	private Text[] textCache;
 	
@@ -352,9 +377,61 @@ public class BinaryXMLCodec {
 	// avoids reverification of qname and URI, as well as indexOf() calls, and saves string memory
 	private NodeBuilder nodeBuilder;	
 	
+	// for deserialization: build lazily materialized trees?
+	private boolean isLazyDeserializationEnabled = false;
+	
 	// for streaming serialization
 	private OutputStream out;
 	
+	// for serialization: write a trailing page directory for random access?
+	private boolean isPageDirectoryEnabled = false;
+	
+	// for serialization: record the byte length of each element subtree?
+	private boolean isSubtreeSizesEnabled = false;
+	
+	// for serialization and deserialization: does the current document record subtree sizes?
+	private boolean hasSubtreeSizes;
+	
+	// for serialization with subtree sizes: per element start tag of the current page:
+	// offset of the size, end offset of the subtree, enclosing element, size of nested sizes
+	private ArrayIntList subtrees;
+	
+	// for serialization with page directory: encoded directory entries, or null
+	private ArrayByteList pageDirectory;
+	
+	// for serialization with page directory: open ancestors of the current token
+	private ArrayList openElements;
+	
+	// for serialization with page directory: 
+	// number of pages, elements and children of the root element written so far
+	private int numPages;
+	private long numElements;
+	private long numRecords;
+	
+	// for serialization with page directory: 
+	// position of each page's entry within pageDirectory, and number of bytes of each page
+	private ArrayIntList pageEntries;
+	private ArrayIntList pageSizes;
+	
+	// for serialization: compresses and writes pages in the background; null if disabled
+	private PipelinedPageWriter pageWriter;
+	
+	// for serialization: byte offset of the first page (i.e. size of document header)
+	private int firstPageOffset;
+	
+	// for serialization and deserialization: shared symbol dictionary, or null
+	private BinaryXMLDictionary dictionary;
+	
+	// for serialization and deserialization: pluggable page compression, or null
+	private PageCompressor pageCompressor;
+	
+	// for serialization and deserialization: accumulates compression stats, or null
+	private PageCompressionStatistics statistics;
+	
+	// for deserialization: built-in page compressors that are always available
+	private static final PageCompressor ZLIB_PAGE_COMPRESSOR = new ZLIBPageCompressor();
+	private static final PageCompressor LZ_PAGE_COMPRESSOR = new LZPageCompressor();
+	
 	/**
 	 * For serialization: (approximate) maximum number of bytes per page.
 	 * <p>
@@ -384,21 +461,34 @@ public class BinaryXMLCodec {
 	
 	// low 3 bits for node token types
 	// high 4 bits typically hold number of bytes of the next two indexes
-	private static final int TEXT = 0;
-	private static final int ATTRIBUTE = 1;
-	private static final int BEGIN_ELEMENT = 2;
-	private static final int END_ELEMENT = 3;
-	private static final int COMMENT = 4;
-	private static final int NAMESPACE_DECLARATION = 5;	
-	private static final int PROCESSING_INSTRUCTION = 6;
-	private static final int DOC_TYPE = 7;
-	
-	private static final int BNUX_MAGIC = createMagicNumber(); // for sanity checks
-	private static final byte VERSION = 7; // version of bnux data format
-	private static final int DOCUMENT_HEADER_SIZE = 4 + 1; // in bytes
+	static final int TEXT = 0;
+	static final int ATTRIBUTE = 1;
+	static final int BEGIN_ELEMENT = 2;
+	static final int END_ELEMENT = 3;
+	static final int COMMENT = 4;
+	static final int NAMESPACE_DECLARATION = 5;	
+	static final int PROCESSING_INSTRUCTION = 6;
+	static final int DOC_TYPE = 7;
+	
+	static final int BNUX_MAGIC = createMagicNumber(); // for sanity checks
+	private static final byte VERSION = 8; // version of bnux data format
+	private static final byte VERSION_WITHOUT_FLAGS = 7; // written if no flags are set
+	
+	// the feature flags byte following the version byte flags optional features;
+	// documents without any use VERSION_WITHOUT_FLAGS and have no flags byte
+	static final int SUBTREE_SIZES = 0x01; // start tags are followed by subtree size
+	static final int PAGE_DIRECTORY = 0x02; // has trailing page directory
+	static final int DICTIONARY = 0x04; // header is followed by 4 byte dictionary ID
+	static final int PAGE_COMPRESSOR = 0x08; // pages are compressed by a PageCompressor
+	private static final int KNOWN_FLAGS = 0x0F; // all others are reserved
+	
+	// not part of the flags byte, but of the version byte's sign
+	static final int ZLIB_COMPRESSED = 0x100; // pages are compressed by ZLIB
+	
+	private static final int DOCUMENT_HEADER_SIZE = 4 + 1 + 1; // in bytes
 	private static final int PAGE_HEADER_SIZE = 4 + 4 + 4 + 4 + 4; // in bytes
 	
-	private static final boolean IS_EXTENDED_XOM = hasXOMExtensions();
+	static final boolean IS_EXTENDED_XOM = hasXOMExtensions();
 
 	/**
 	 * Marker for non-existant systemID or publicID in DocType. XML and the
@@ -406,22 +496,28 @@ public class BinaryXMLCodec {
 	 * practice. Thus we can use it as an unambigous marker identifying a
 	 * serialized null value.
 	 */
-	private static final String DOCTYPE_NULL_ID = " ";
+	static final String DOCTYPE_NULL_ID = " ";
 		
 	private static final boolean DEBUG = false; // VM does dead code elimination
 	
 	/** Reinitializes instance variables to virgin state. */
-	private void reset() {
+	final void reset() {
 		// deserialization state:
 		internedNames = null; 
+		if (pageDecoder != null) pageDecoder.reset(false, false, null, null, null);
+		dictionarySymbols = null;
 		nodeBuilder = null;
 		factory = null;
 		
 		// serialization state:
+		if (pageWriter != null) pageWriter.close();
 		symbolTable = null;
+		pageDirectory = null;
+		openElements = null;
 		page = null;
 		nodeTokens = null;
 		indexData = null;
+		compressedPage = null;
 		isFirstPage = true;
 		out = null;
 
@@ -445,6 +541,190 @@ public class BinaryXMLCodec {
 	public BinaryXMLCodec() {
 	}
 	
+	/**
+	 * Sets whether or not subsequent deserializations decode pages in
+	 * parallel; Default is <code>false</code>.
+	 * <p>
+	 * If enabled, the pages following the current page are read ahead from the
+	 * input, and a shared pool of background threads (one per CPU) ZLIB
+	 * inflates them and decodes their symbol tables, while the calling thread
+	 * concurrently builds the XOM tree from the tokens of the current page.
+	 * The resulting document is exactly the same as without parallel decoding.
+	 * Since no more than a few pages per CPU are read ahead, memory
+	 * consumption remains bounded, even for arbitrarily large documents.
+	 * <p>
+	 * This pays off for large multi-page documents, in particular compressed
+	 * ones, on multi-core machines. It yields no benefit for small single-page
+	 * documents, which are always decoded by the calling thread.
+	 * 
+	 * @param enable
+	 *            whether or not to decode pages in parallel
+	 */
+	public void setParallelDecodingEnabled(boolean enable) {
+		this.pageDecoder = enable ? new ParallelPageDecoder() : null;
+	}
+	
+	/**
+	 * Sets whether or not subsequent serializations compress and write pages
+	 * in a pipelined manner; Default is <code>false</code>.
+	 * <p>
+	 * If enabled, each page is handed over to a background thread as soon as
+	 * it has been tokenized and encoded, and that thread performs the (CPU
+	 * intensive) ZLIB compression and the (blocking) write onto the
+	 * underlying output stream, while the calling thread concurrently goes on
+	 * tokenizing the next page. The hand-over queue is bounded to a couple of
+	 * pages, so memory consumption remains bounded, and a slow output stream
+	 * eventually slows down the caller. The output is exactly the same as
+	 * without pipelining.
+	 * <p>
+	 * This pays off for large multi-page documents written with a ZLIB
+	 * compression level greater than zero, or onto slow output streams. A
+	 * background thread is only started once a document exceeds a single
+	 * page, and it terminates at the end of the document; small documents
+	 * are always written by the calling thread. Any I/O error encountered in
+	 * the background is rethrown to the calling thread on one of its
+	 * subsequent write or flush calls.
+	 * 
+	 * @param enable
+	 *            whether or not to compress and write pages in the background
+	 */
+	public void setPipelinedSerializationEnabled(boolean enable) {
+		this.pageWriter = enable ? new PipelinedPageWriter(this) : null;
+	}
+	
+	/**
+	 * Sets whether or not subsequent deserializations build lazily
+	 * materialized XOM trees; Default is <code>false</code>.
+	 * <p>
+	 * If enabled, <code>deserialize</code> reads and decodes all pages of the
+	 * document as usual, but creates only the root element (plus the nodes
+	 * preceding or following it). The children of an element are created
+	 * from the retained page tokens on the first call of any method that
+	 * accesses or modifies the children of the element, and child elements
+	 * are again lazy. Other than that, the resulting document behaves
+	 * exactly like one built eagerly; XPath, XQuery, serialization and
+	 * copying work as usual. The page tokens and symbol tables are released
+	 * once all elements have been materialized.
+	 * <p>
+	 * This pays off for selective queries over large documents, for example
+	 * documents cached via {@link nux.xom.pool.DocumentMap}, because elements
+	 * never visited are never created. Note that materializing an element
+	 * scans its subtree once, so a full traversal of a deep document costs
+	 * more than eager deserialization. Since even reading methods modify the
+	 * tree, a lazy document must not be accessed by multiple threads
+	 * concurrently, not even for read-only queries.
+	 * <p>
+	 * Deserializations via a custom {@link NodeFactory} are never lazy.
+	 * 
+	 * @param enable
+	 *            whether or not to materialize elements lazily
+	 */
+	public void setLazyDeserializationEnabled(boolean enable) {
+		this.isLazyDeserializationEnabled = enable;
+	}
+	
+	/**
+	 * Sets whether or not subsequent serializations append a trailing page
+	 * directory to each bnux document; Default is <code>false</code>.
+	 * <p>
+	 * The page directory records the byte offset of each page, along with the
+	 * element nesting depth, the qualified names of the open ancestor elements
+	 * and the number of elements and records (children of the root element)
+	 * preceding the page. It enables
+	 * {@link BinaryXMLRandomAccessFile} to decode a given record or element
+	 * by reading only the few pages covering it, rather than the entire
+	 * document. The directory adds about 50 bytes per 64 KB page, and is
+	 * transparently skipped by the normal <code>deserialize</code> methods.
+	 * 
+	 * @param enable
+	 *            whether or not to write a page directory
+	 */
+	public void setPageDirectoryEnabled(boolean enable) {
+		this.isPageDirectoryEnabled = enable;
+	}
+	
+	/**
+	 * Sets whether or not subsequent serializations record the size of each
+	 * element subtree; Default is <code>false</code>.
+	 * <p>
+	 * If enabled, the start tag of each element is followed by the number of
+	 * bytes taken by its attributes, namespace declarations, content and end
+	 * tag, provided the element ends on the same page. This enables
+	 * deserialization with a {@link SubtreeFilter} such as a
+	 * {@link nux.xom.xquery.StreamingPathFilter} to jump over unwanted
+	 * subtrees at the byte level, without decoding names and text, and
+	 * without even decoding the symbols of pages that lie entirely within an
+	 * unwanted subtree. The sizes add about 1-2 bytes per element, and are
+	 * transparently ignored by all other forms of deserialization.
+	 * 
+	 * @param enable
+	 *            whether or not to record subtree sizes
+	 */
+	public void setSubtreeSizesEnabled(boolean enable) {
+		this.isSubtreeSizesEnabled = enable;
+	}
+	
+	/**
+	 * Sets the symbol dictionary to be used by subsequent serializations and
+	 * deserializations; Default is <code>null</code>, meaning no dictionary.
+	 * <p>
+	 * If a dictionary is set, the symbol table of each serialized page refers
+	 * to the names held by the dictionary via compact indexes, rather than
+	 * repeating them on each page of each document, and the document header
+	 * records the dictionary's ID. This reduces size and decoding time of
+	 * streams of small documents sharing a common vocabulary. Deserializing a
+	 * document written with a dictionary requires a dictionary with the same
+	 * ID; documents written without a dictionary can always be deserialized,
+	 * whether or not a dictionary is set.
+	 * 
+	 * @param dictionary
+	 *            the dictionary to use, or <code>null</code> to use none
+	 * @see BinaryXMLDictionary
+	 */
+	public void setDictionary(BinaryXMLDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+	
+	/**
+	 * Sets the page compressor to be used by subsequent serializations;
+	 * Default is <code>null</code>, meaning ZLIB compression as selected by
+	 * the <code>zlibCompressionLevel</code>.
+	 * <p>
+	 * If a page compressor is set, it compresses each page instead of ZLIB,
+	 * and the <code>zlibCompressionLevel</code> argument of serialization
+	 * methods is ignored. Each page records the ID of its compressor, and
+	 * pages that don't get any smaller are stored uncompressed. On
+	 * deserialization, the built-in {@link ZLIBPageCompressor} and
+	 * {@link LZPageCompressor} are always available, as is the page
+	 * compressor set here, if any; deserializing pages compressed by any other
+	 * page compressor fails.
+	 * 
+	 * @param compressor
+	 *            the page compressor to use, or <code>null</code> for ZLIB
+	 *            compression as selected by the
+	 *            <code>zlibCompressionLevel</code>
+	 * @see PageCompressor
+	 */
+	public void setPageCompressor(PageCompressor compressor) {
+		if (compressor != null && (compressor.getID() < 1 || compressor.getID() > 127))
+			throw new IllegalArgumentException(
+				"Page compressor ID must be 1..127: " + compressor.getID());
+		this.pageCompressor = compressor;
+	}
+	
+	/**
+	 * Sets the object that accumulates the compression ratios and timings of
+	 * pages compressed or decompressed by subsequent serializations and
+	 * deserializations; Default is <code>null</code>, meaning no statistics
+	 * are recorded.
+	 * 
+	 * @param statistics
+	 *            the statistics to add to, or <code>null</code>
+	 */
+	public void setPageCompressionStatistics(PageCompressionStatistics statistics) {
+		this.statistics = statistics;
+	}
+	
 	/**
 	 * Constructs a new streaming serializer that serializes bnux binary XML to
 	 * the given underlying output stream, using the given ZLIB compression
@@ -468,6 +748,99 @@ public class BinaryXMLCodec {
 		return new StreamingBinaryXMLSerializer(this, out, zlibCompressionLevel);
 	}
 	
+	/**
+	 * Constructs a new SAX handler that transcodes the documents reported to
+	 * it into bnux binary XML documents, written to the given underlying
+	 * output stream, using the given ZLIB compression level.
+	 * <p>
+	 * Parser events are fed straight into the page writer of this codec,
+	 * without building any intermediate XOM nodes, which makes this the
+	 * fastest and leanest way to convert textual XML to bnux. Deserializing
+	 * the result yields the same document as building it with a
+	 * {@link nu.xom.Builder} and then serializing it. Note however, that the
+	 * internal DTD subset, if any, is lost, because SAX does not report it
+	 * in raw form.
+	 * <p>
+	 * The handler also implements {@link org.xml.sax.ext.LexicalHandler},
+	 * and should be registered as such in order to transcode comments and
+	 * document type declarations. The parser must be namespace aware. The
+	 * handler can be reused for any number of subsequent documents, but not
+	 * concurrently with other uses of this codec.
+	 * <p>
+	 * Example usage:
+	 * <pre>
+	 * BinaryXMLCodec codec = new BinaryXMLCodec();
+	 * ContentHandler handler = codec.createContentHandler(out, 0);
+	 * XMLReader parser = XMLReaderFactory.createXMLReader();
+	 * parser.setContentHandler(handler);
+	 * parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+	 * parser.parse(new InputSource(in));
+	 * </pre>
+	 * 
+	 * @param out
+	 *            the underlying output stream to write to
+	 * @param zlibCompressionLevel
+	 *            a number in the range 0..9
+	 * @return a SAX content handler
+	 */
+	public ContentHandler createContentHandler(OutputStream out, int zlibCompressionLevel) {
+		return new BinaryXMLTranscoder(this, out, zlibCompressionLevel);
+	}
+	
+	/**
+	 * Transcodes the current document of the given StAX reader into a bnux
+	 * binary XML document, written onto the given output stream; The reader
+	 * must be positioned over a <code>START_DOCUMENT</code> event, and will
+	 * be positioned over the corresponding <code>END_DOCUMENT</code> event on
+	 * return.
+	 * <p>
+	 * Parser events are fed straight into the page writer of this codec,
+	 * without building any intermediate XOM nodes. Deserializing the result
+	 * yields the same document as building it with a
+	 * {@link nux.xom.io.StaxParser} and then serializing it, except that
+	 * document type declarations are ignored, as StAX does not report them in
+	 * structured form.
+	 * 
+	 * @param reader
+	 *            the namespace aware StAX reader to read from
+	 * @param zlibCompressionLevel
+	 *            a number in the range 0..9
+	 * @param out
+	 * 			 the output stream to write to
+	 * @throws IllegalArgumentException
+	 *             if the compression level is out of range.
+	 * @throws XMLStreamException
+	 *             if the reader encounters an error
+	 * @throws IOException
+	 *             if the underlying output stream encounters an I/O error
+	 */
+	public void serialize(XMLStreamReader reader, int zlibCompressionLevel, 
+			OutputStream out) throws IllegalArgumentException, XMLStreamException, IOException {
+		
+		if (reader == null) 
+			throw new IllegalArgumentException("reader must not be null");
+		
+		try {			
+			new BinaryXMLTranscoder(this, out, zlibCompressionLevel).transcode(reader);
+		} catch (Throwable t) { 
+			reset(); // better safe than sorry
+			if (t instanceof Error) {
+				throw (Error) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof XMLStreamException) {
+				throw (XMLStreamException) t;
+			} else if (t instanceof IOException) {
+				throw (IOException) t;
+			} else {
+				throw new RuntimeException(t);
+			}
+		} finally {
+			this.symbolTable = null; // help gc	
+			this.out = null;
+		}	
+	}
+	
 	/**
 	 * Returns whether or not the given input stream contains a bnux document.
 	 * <p>
@@ -580,25 +953,7 @@ public class BinaryXMLCodec {
 		
 		// read document header
 		if (page == null) page = new ArrayByteList(256);
-		page.clear();
-		if (!page.ensureRemaining(input, 4 + 1 + 1 + 4)) 
-			throw new BinaryParsingException("Missing bnux document header");
-
-		int magic = page.getInt();
-		if (magic != BNUX_MAGIC) throw new BinaryParsingException(
-			"Bnux magic number mismatch: " + magic + ", must be: " + BNUX_MAGIC);
-		
-		int version = page.get();
-		isCompressed = version < 0;
-		if (isCompressed) version = -version;
-		if (version != VERSION) throw new BinaryParsingException(
-			"Bnux data format version mismatch: " + version + ", must be: " + VERSION);
-		if (isCompressed) {
-			if (decompressor == null) decompressor = new Inflater();
-		}
-		
-		if (page.get() != DOC_TYPE) // surrogate hack to identify BEGIN_PAGE
-			throw new BinaryParsingException("Illegal bnux page header marker");
+		boolean hasPageDirectory = readDocumentStart(page, input);
 		
 		// prepare
 		if (internedNames == null) internedNames = new LRUHashMap1(128);
@@ -607,7 +962,14 @@ public class BinaryXMLCodec {
 		// parse node token data and packed indexes, building the XOM tree
 		this.factory = factory;
 		try {
-			return readDocument(page, input);
+			Document doc;
+			if (isLazyDeserializationEnabled && factory.getClass() == NodeFactory.class) {
+				doc = LazyElement.readDocument(this, page, input);
+			} else {
+				doc = readDocument(page, input);
+			}
+			if (hasPageDirectory) skipPageDirectory(page, input);
+			return doc;
 		} catch (Throwable t) { 
 			reset(); // better safe than sorry
 			if (t instanceof Error) {
@@ -621,6 +983,7 @@ public class BinaryXMLCodec {
 			}
 		} finally {
 			this.symbols = null; // help gc
+			this.dictionarySymbols = null; // help gc
 			this.textCache = null; // help gc
 			this.nameCache = null; // help gc
 			this.factory = null; // help gc
@@ -629,6 +992,164 @@ public class BinaryXMLCodec {
 		}
 	}
 	
+	/**
+	 * Returns the XOM document obtained by deserializing the next binary XML
+	 * document from the given buffer, starting at the buffer's current
+	 * position.
+	 * <p>
+	 * This method behaves exactly like
+	 * {@link #deserialize(InputStream, NodeFactory)}, except that no
+	 * intermediate stream or byte array holding the entire document is
+	 * involved. If the buffer is a (non read-only) heap buffer, pages are
+	 * decoded in place, straight from its backing array, without copying.
+	 * Otherwise, e.g. for a direct buffer or a
+	 * {@link java.nio.MappedByteBuffer} obtained from a (very large) file,
+	 * each page is transferred onto the heap by a single bulk get into the
+	 * codec's reusable page buffer, so no more than one page of the document
+	 * ever needs to reside on the Java heap at any given time.
+	 * <p>
+	 * If this method returns successfully, the buffer's position has been
+	 * advanced to one byte past the current bnux document, ready to
+	 * deserialize the following document, if any. The buffer's limit and mark
+	 * are not modified.
+	 * 
+	 * @param input
+	 *            the buffer to read and deserialize from
+	 * @param factory
+	 *            the node factory to stream into. May be <code>null</code> in
+	 *            which case the default XOM NodeFactory is used, building the
+	 *            complete XML document tree.
+	 * @return the new XOM document obtained from deserialization.
+	 * @throws BinaryParsingException
+	 *             if the bnux document is unreadable or corrupt for some reason
+	 */
+	public Document deserialize(ByteBuffer input, NodeFactory factory) 
+			throws BinaryParsingException {
+		
+		if (input == null) 
+			throw new IllegalArgumentException("input buffer must not be null");
+		
+		try {
+			return deserialize(new ByteBufferInputStream(input), factory);
+		} catch (IOException e) {
+			throw new BinaryParsingException(e); // can never happen
+		} finally {
+			if (page != null) page.clear(); // release buffer's array, if shared
+		}
+	}
+	
+	/**
+	 * Returns the XOM document obtained by deserializing the next binary XML
+	 * document from the given file channel, starting at the channel's current
+	 * position.
+	 * <p>
+	 * The document is read through a read-only memory-mapped window of at most
+	 * 16 MB, so warm pages are read straight from the operating system's page
+	 * cache, without mapping the (possibly huge) remainder of the file. The
+	 * window is remapped further down the file only when the document extends
+	 * past it. If this method returns successfully, the channel has been
+	 * positioned one byte past the current bnux document, ready to deserialize
+	 * the following document, if any. The channel is not closed.
+	 * <p>
+	 * Note that each call maps a new window. To read many small documents
+	 * from a file that fits into the address space, it is more efficient to
+	 * map the file once, and call {@link #deserialize(ByteBuffer, NodeFactory)}
+	 * on the mapped buffer in a loop, until the buffer has no bytes remaining.
+	 * 
+	 * @param input
+	 *            the channel to read and deserialize from
+	 * @param factory
+	 *            the node factory to stream into. May be <code>null</code> in
+	 *            which case the default XOM NodeFactory is used, building the
+	 *            complete XML document tree.
+	 * @return the new XOM document obtained from deserialization.
+	 * @throws BinaryParsingException
+	 *             if the bnux document is unreadable or corrupt for some reason
+	 * @throws IOException
+	 *             if the underlying channel encounters an I/O error
+	 */
+	public Document deserialize(FileChannel input, NodeFactory factory) 
+			throws BinaryParsingException, IOException {
+		
+		if (input == null) 
+			throw new IllegalArgumentException("input channel must not be null");
+		
+		FileChannelInputStream in = new FileChannelInputStream(input, input.position());
+		Document doc = deserialize(in, factory);
+		input.position(in.position());
+		return doc;
+	}
+	
+	/**
+	 * Returns a StAX pull parser that reads the given bnux document without
+	 * building a XOM tree.
+	 * <p>
+	 * Equivalent to
+	 * <code>createXMLStreamReader(new ByteArrayInputStream(bnuxDocument))</code>.
+	 * 
+	 * @param bnuxDocument
+	 *            the bnux document to read.
+	 * @return a StAX pull parser
+	 * @throws BinaryParsingException
+	 *             if the bnux document header is unreadable or corrupt
+	 * @see #createXMLStreamReader(InputStream)
+	 */
+	public XMLStreamReader createXMLStreamReader(byte[] bnuxDocument) 
+			throws BinaryParsingException {
+		
+		if (bnuxDocument == null) 
+			throw new IllegalArgumentException("bnuxDocument must not be null");
+		
+		try {
+			return createXMLStreamReader(new ByteArrayInputStream(bnuxDocument));
+		} catch (IOException e) {
+			throw new BinaryParsingException(e); // can never happen
+		}
+	}
+	
+	/**
+	 * Returns a StAX pull parser that reads the next bnux document from the
+	 * given input stream, without building a XOM tree.
+	 * <p>
+	 * The parser walks the tokens and symbol tables of the document's pages
+	 * lazily, as its <code>next()</code> method is called, reading no more
+	 * than one page (plus any pages decoded ahead in parallel) from the input
+	 * stream at a time. No XOM nodes are created; names, values and texts are
+	 * handed out straight from the page symbol tables. Thus, StAX consumers
+	 * such as JAXB 2 can read bnux data at full speed and with little memory
+	 * consumption, even for very large documents.
+	 * <p>
+	 * The parser is namespace aware, non-validating and text coalescing, and
+	 * reports the same events as the parser returned by
+	 * {@link nux.xom.io.StaxUtil#createXMLStreamReader(nu.xom.Node)} for the
+	 * deserialized document; namespace events report only declarations that
+	 * change the namespace bindings in scope. Once the parser has returned
+	 * <code>END_DOCUMENT</code>, the input stream is positioned one byte past
+	 * the current bnux document, just like after
+	 * {@link #deserialize(InputStream, NodeFactory)}.
+	 * <p>
+	 * The parser uses this codec for decoding pages (honouring its dictionary,
+	 * page compressor and parallel decoding settings), so the codec must not
+	 * be used for anything else until the parser has reached
+	 * <code>END_DOCUMENT</code> or has been closed.
+	 * 
+	 * @param input
+	 *            the stream to read from
+	 * @return a StAX pull parser
+	 * @throws BinaryParsingException
+	 *             if the bnux document header is unreadable or corrupt
+	 * @throws IOException
+	 *             if the underlying input stream encounters an I/O error
+	 */
+	public XMLStreamReader createXMLStreamReader(InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		if (input == null) 
+			throw new IllegalArgumentException("input stream must not be null");
+		
+		return new BinaryXMLStreamReader(this, input);
+	}
+	
 	/**
 	 * Returns the bnux binary XML document obtained by serializing the given
 	 * XOM document.
@@ -721,8 +1242,257 @@ public class BinaryXMLCodec {
 				compressor = new Deflater(zlibCompressionLevel);
 			}
 		}
-		compressionLevel = zlibCompressionLevel;
-		this.out = out;
+		compressionLevel = zlibCompressionLevel;
+		this.out = out;
+	}
+	
+	/**
+	 * Reads and validates the magic number and version of a document header;
+	 * returns the version byte, which is negative for ZLIB compression.
+	 */
+	static int readDocumentHeader(ArrayByteList src) throws BinaryParsingException {
+		int magic = src.getInt();
+		if (magic != BNUX_MAGIC) throw new BinaryParsingException(
+			"Bnux magic number mismatch: " + magic + ", must be: " + BNUX_MAGIC);
+		
+		int version = src.get();
+		int v = version < 0 ? -version : version;
+		if (v != VERSION && v != VERSION_WITHOUT_FLAGS) throw new BinaryParsingException(
+			"Bnux data format version mismatch: " + v + ", must be: " + VERSION);
+		return version;
+	}
+	
+	/** Returns whether the given version byte is followed by a feature flags byte. */
+	static boolean hasFeatureFlags(int version) {
+		return version == VERSION || version == -VERSION;
+	}
+	
+	/**
+	 * Reads and validates the feature flags byte following the given version
+	 * byte, if any; returns the feature flags, plus ZLIB_COMPRESSED if the
+	 * version byte is negative.
+	 */
+	static int readFeatureFlags(int version, ArrayByteList src) 
+			throws BinaryParsingException {
+		
+		int flags = 0;
+		if (hasFeatureFlags(version)) {
+			flags = src.get() & 0xFF;
+			if ((flags & ~KNOWN_FLAGS) != 0) throw new BinaryParsingException(
+				"Unsupported bnux feature flags: " + flags);
+		}
+		if (version < 0) {
+			if ((flags & PAGE_COMPRESSOR) != 0) throw new BinaryParsingException(
+				"Corrupt bnux document header: conflicting compression flags");
+			flags |= ZLIB_COMPRESSED;
+		}
+		return flags;
+	}
+	
+	/**
+	 * Reads the document header and the header of the first page from the
+	 * given stream into src, and prepares decoding of the document's pages.
+	 * Returns whether the document has a trailing page directory.
+	 */
+	final boolean readDocumentStart(ArrayByteList src, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		src.clear();
+		if (!src.ensureRemaining(input, 4 + 1)) 
+			throw new BinaryParsingException("Missing bnux document header");
+
+		int version = readDocumentHeader(src);
+		if (hasFeatureFlags(version) && !src.ensureRemaining(input, 1)) 
+			throw new BinaryParsingException("Missing bnux feature flags");
+		int flags = readFeatureFlags(version, src);
+		isCompressed = (flags & ZLIB_COMPRESSED) != 0;
+		if (isCompressed) {
+			if (decompressor == null) decompressor = new Inflater();
+		}
+		boolean hasPageDirectory = (flags & PAGE_DIRECTORY) != 0;
+		isPageCompressed = (flags & PAGE_COMPRESSOR) != 0;
+		hasSubtreeSizes = (flags & SUBTREE_SIZES) != 0;
+		dictionarySymbols = null;
+		if ((flags & DICTIONARY) != 0) {
+			if (!src.ensureRemaining(input, 4)) 
+				throw new BinaryParsingException("Missing bnux dictionary ID");
+			dictionarySymbols = getDictionarySymbols(src.getInt());
+		}
+		if (pageDecoder != null) pageDecoder.reset(isCompressed, isPageCompressed, 
+				pageCompressor, dictionarySymbols, statistics);
+		
+		if (!src.ensureRemaining(input, 1 + 4)) 
+			throw new BinaryParsingException("Missing bnux page header");
+		if (src.get() != DOC_TYPE) // surrogate hack to identify BEGIN_PAGE
+			throw new BinaryParsingException("Illegal bnux page header marker");
+		return hasPageDirectory;
+	}
+	
+	/**
+	 * Returns whether the document whose start has been read last records
+	 * subtree sizes behind start tags.
+	 */
+	final boolean hasSubtreeSizes() {
+		return hasSubtreeSizes;
+	}
+	
+	/**
+	 * Returns the symbols of the dictionary with the given ID, which must be
+	 * the dictionary set on this codec.
+	 */
+	private String[] getDictionarySymbols(int dictionaryID) throws BinaryParsingException {
+		if (dictionary == null || dictionary.getID() != dictionaryID) {
+			throw new BinaryParsingException(
+				"Bnux document requires a symbol dictionary with ID " + 
+				dictionaryID + ", but codec has dictionary " + dictionary);
+		}
+		return dictionary.symbols();
+	}
+	
+	/** Reads past the page directory trailing the last page of a document. */
+	static void skipPageDirectory(ArrayByteList src, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		src.clear();
+		if (!src.ensureRemaining(input, 4))
+			throw new BinaryParsingException("Missing bnux page directory");
+		int remaining = src.getInt() + 4;
+		if (remaining < 4) 
+			throw new BinaryParsingException("Negative page directory size");
+		
+		while (remaining > 0) { // skip in chunks; never hold the entire directory
+			int chunk = Math.min(remaining, 8192);
+			src.clear();
+			if (!src.ensureRemaining(input, chunk))
+				throw new BinaryParsingException("Missing remaining bnux page directory");
+			remaining -= chunk;
+		}
+		
+		src.clear();
+		if (!src.ensureRemaining(input, 4) || src.getInt() != BNUX_MAGIC)
+			throw new BinaryParsingException("Missing bnux page directory trailer");
+		src.clear();
+	}
+	
+	/**
+	 * For random access: Returns the elements with ordinals
+	 * <code>[from..to)</code> (including their subtrees), decoding the
+	 * document starting at the page read next from the given stream. If <code>isRecord</code> is true, only children of the root
+	 * element are counted, otherwise all elements in document order.
+	 * <code>flags</code> are the feature flags of the document header (see
+	 * {@link #readFeatureFlags(int, ArrayByteList)}), and
+	 * <code>dictionaryID</code> the ID following them, if any.
+	 * <code>depth</code> and <code>ordinal</code> describe the state at the
+	 * beginning of the page, as recorded in the page directory.
+	 */
+	final Nodes deserializeRange(InputStream in, int flags, int dictionaryID,
+			boolean isFirstPage, int depth, long ordinal, long from, long to, 
+			boolean isRecord) throws BinaryParsingException {
+		
+		if (page == null) page = new ArrayByteList(256);
+		page.clear();
+		this.isCompressed = (flags & ZLIB_COMPRESSED) != 0;
+		if (isCompressed) {
+			if (decompressor == null) decompressor = new Inflater();
+		}
+		this.isPageCompressed = (flags & PAGE_COMPRESSOR) != 0;
+		this.hasSubtreeSizes = (flags & SUBTREE_SIZES) != 0;
+		this.dictionarySymbols = null;
+		if ((flags & DICTIONARY) != 0) {
+			dictionarySymbols = getDictionarySymbols(dictionaryID);
+		}
+		if (internedNames == null) internedNames = new LRUHashMap1(128);
+		if (nodeBuilder == null) nodeBuilder = new NodeBuilder();
+		this.factory = new NodeFactory();
+		if (pageDecoder != null) pageDecoder.reset(isCompressed, isPageCompressed, 
+				pageCompressor, dictionarySymbols, statistics);
+		
+		try {
+			if (!page.ensureRemaining(in, 1) || page.get() != DOC_TYPE) 
+				throw new BinaryParsingException("Illegal bnux page header marker");
+			readPage(page, in);
+			if (isFirstPage) page.getInt(); // skip document baseURI
+			return readRange(page, in, depth, ordinal, from, to, isRecord);
+		} catch (Throwable t) { 
+			reset(); // better safe than sorry
+			if (t instanceof Error) {
+				throw (Error) t;
+			} else if (t instanceof BinaryParsingException) {
+				throw (BinaryParsingException) t;
+			} else {
+				throw new BinaryParsingException(t);
+			}
+		} finally {
+			if (page != null) page.clear(); // release buffer's array, if shared
+			this.symbols = null; // help gc
+			this.dictionarySymbols = null; // help gc
+			this.textCache = null; // help gc
+			this.nameCache = null; // help gc
+			this.factory = null; // help gc
+		}
+	}
+	
+	/** Skips tokens until the elements with ordinals [from..to) are found, and reads them. */
+	private Nodes readRange(ArrayByteList src, InputStream input, int depth, 
+			long ordinal, long from, long to, boolean isRecord) 
+			throws BinaryParsingException, IOException {
+		
+		Nodes results = new Nodes();
+		while (ordinal < to && src.remaining() > 0) {
+			int type = src.get();
+			switch (type & 0x07) { // three low bits indicate node type
+				case BEGIN_ELEMENT: {
+					if (!isRecord || depth == 1) {
+						if (ordinal++ >= from) {
+							Element elem = readStartTag(src, type);
+							readElement(src, elem, input); // reads entire subtree
+							results.append(elem);
+							continue;
+						}
+					}
+					readSymbol(src, 4, type); // qname
+					readSymbol(src, 6, type); // URI
+					int size = hasSubtreeSizes ? src.getVarInt() : 0;
+					if (isRecord && depth > 0 && size > 0) { 
+						src.position(src.position() + size); // jump over uncounted descendants
+						break;
+					}
+					depth++;
+					break;
+				}
+				case END_ELEMENT: {
+					depth--;
+					if (depth == 0) return results; // we're done with the root element
+					break;
+				}
+				case ATTRIBUTE: {
+					readSymbol(src, 4, type); // qname
+					readSymbol(src, 6, type); // URI
+					readSymbol(src, 4, src.get()); // value
+					src.get(); // attrType
+					break;
+				}
+				case NAMESPACE_DECLARATION: // prefix, URI
+				case PROCESSING_INSTRUCTION: { // target, value
+					readSymbol(src, 4, type); 
+					readSymbol(src, 6, type);
+					break;
+				}
+				case DOC_TYPE: {
+					if (depth > 0) { // surrogate hack to identify BEGIN_PAGE
+						readPage(src, input);
+					} else { // real doctype; four unpacked indexes
+						src.position(src.position() + 4 * 4);
+					}
+					break;
+				}
+				default: { // TEXT, COMMENT
+					readSymbol(src, 4, type);
+					break;
+				}
+			}
+		}
+		return results;
 	}
 	
 	/** Prepares reading from the next page. */
@@ -730,6 +1500,58 @@ public class BinaryXMLCodec {
 			throws BinaryParsingException, IOException {
 		
 		if (DEBUG) System.err.println("reading page");
+		this.symbols = null; // help gc
+		setPageSymbols(readPageSymbols(src, input));
+	}
+	
+	/** Makes the given symbols current, resetting caches accordingly. */
+	private void setPageSymbols(String[] symbols) {
+		this.symbols = symbols;
+		if (DEBUG) System.err.println("read symbols = " + Arrays.asList(symbols));
+		int symbolTableSize = symbols.length;
+		
+		// reset caches in preparation for XML token decoding
+		if (this.nameCache == null) {
+			nameCache = new String[Math.min(64, symbolTableSize)];
+		} else {
+			for (int i=nameCache.length; --i >= 0; ) nameCache[i] = null;
+		}
+		
+		if (factory.getClass() == NodeFactory.class) { // fast path
+			if (this.textCache == null) {
+				textCache = new Text[Math.min(256, symbolTableSize)];
+			} else {
+				for (int i=textCache.length; --i >= 0; ) textCache[i] = null;
+			}
+		}		
+//		this.nameCache = null; // help gc
+//		this.nameCache = new String[Math.min(64, symbolTableSize)];	
+//		this.textCache = null; // help gc
+//		if (factory.getClass() == NodeFactory.class) { // fast path
+//			this.textCache = new Text[Math.min(128, symbolTableSize)];
+//		}
+	}
+	
+	/**
+	 * Reads the next page into src, positioned at its first token, and 
+	 * returns the page's symbols.
+	 */
+	final String[] readPageSymbols(ArrayByteList src, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		if (pageDecoder != null) { // page has been inflated and decoded ahead
+			return pageDecoder.readPage(src, input);
+		}
+		return readSymbols(readPageBody(src, input), dictionarySymbols);
+	}
+	
+	/**
+	 * Reads the size and body of the next page from the input stream, and
+	 * decompresses the body if necessary.
+	 */
+	private ArrayByteList readPageBody(ArrayByteList src, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
 		if (!src.ensureRemaining(input, 4))
 			throw new BinaryParsingException("Missing remaining bnux page size");
 		int pageSize = src.getInt();
@@ -745,8 +1567,28 @@ public class BinaryXMLCodec {
 		if (!src.ensureRemaining(input, pageSize)) 
 			throw new BinaryParsingException("Missing remaining bnux page body");
 		
-		if (isCompressed) decompress(src);
-		
+		if (isCompressed || isPageCompressed) {
+			if (nodeTokens == null) nodeTokens = new ArrayByteList();
+			long start = statistics != null ? PageCompressionStatistics.now() : 0;
+			if (isPageCompressed) {
+				decompress(pageCompressor, src, nodeTokens);
+			} else {
+				decompress(decompressor, src, nodeTokens);
+			}
+			if (statistics != null) {
+				statistics.addDecompressedPage(PageCompressionStatistics.now() - start);
+			}
+		}
+		return src;
+	}
+	
+	/**
+	 * Reads the symbol table and magic number at the current position of the
+	 * given (decompressed) page, leaving the position at the first token.
+	 * Symbols may refer to entries of the given dictionary, unless it is null.
+	 */
+	static String[] readSymbols(ArrayByteList src, String[] dictionary) 
+			throws BinaryParsingException {
 		int symbolTableSize = src.getInt();
 		if (symbolTableSize < 0) 
 			throw new BinaryParsingException("Negative symbol table size");
@@ -758,56 +1600,127 @@ public class BinaryXMLCodec {
 			throw new BinaryParsingException("Negative encodedSize");
 		
 		// read symbolTable
-		this.symbols = null; // help gc
-		if (decodedSize == encodedSize) { // safe trick, faster
+		String[] symbols;
+		if (dictionary != null) { // strings or dictionary references
+			symbols = src.getUTF8Strings(symbolTableSize, dictionary);
+		} else if (decodedSize == encodedSize) { // safe trick, faster
 			// Note that 7 bit ASCII is a proper subset of UTF-8
-			this.symbols = src.getASCIIStrings(symbolTableSize); 
+			symbols = src.getASCIIStrings(symbolTableSize); 
 		} else { 
-			this.symbols = src.getUTF8Strings(symbolTableSize);
+			symbols = src.getUTF8Strings(symbolTableSize);
 		}
-//		this.symbols = src.getUTF16Strings(symbolTableSize);
-		if (DEBUG) System.err.println("read symbols = " + Arrays.asList(symbols));
+//		symbols = src.getUTF16Strings(symbolTableSize);
 		
 		int magic = src.getInt();
 		if (magic != BNUX_MAGIC) throw new BinaryParsingException(
 			"Bnux magic number mismatch: " + magic + ", must be: " + BNUX_MAGIC);
-		
-		// reset caches in preparation for XML token decoding
-		if (this.nameCache == null) {
-			nameCache = new String[Math.min(64, symbolTableSize)];
-		} else {
-			for (int i=nameCache.length; --i >= 0; ) nameCache[i] = null;
-		}
-		
-		if (factory.getClass() == NodeFactory.class) { // fast path
-			if (this.textCache == null) {
-				textCache = new Text[Math.min(256, symbolTableSize)];
-			} else {
-				for (int i=textCache.length; --i >= 0; ) textCache[i] = null;
-			}
-		}		
-//		this.nameCache = null; // help gc
-//		this.nameCache = new String[Math.min(64, symbolTableSize)];	
-//		this.textCache = null; // help gc
-//		if (factory.getClass() == NodeFactory.class) { // fast path
-//			this.textCache = new Text[Math.min(128, symbolTableSize)];
-//		}
+		return symbols;
 	}
 	
-	private void decompress(ArrayByteList src) throws BinaryParsingException {
-		if (nodeTokens == null) nodeTokens = new ArrayByteList();
-		nodeTokens.clear();
+	/**
+	 * Replaces the compressed elements in <code>src[src.position()..src.size())</code> 
+	 * with their decompressed counterpart, using tmp as scratch buffer.
+	 */
+	static void decompress(Inflater decompressor, ArrayByteList src, ArrayByteList tmp) 
+			throws BinaryParsingException {
 		
+		tmp.clear();
 		try {
-			nodeTokens.add(decompressor, src);
+			tmp.add(decompressor, src);
 		} catch (DataFormatException e) {
 			String s = e.getMessage();
 		    throw new BinaryParsingException(
 		    		s != null ? s : "Invalid ZLIB data format", e);
 		}
 
-		src.swap(nodeTokens); // replace src with nodeTokens
-		nodeTokens.clear();
+		src.swap(tmp); // replace src with tmp
+		tmp.clear();
+	}
+	
+	/**
+	 * Replaces the elements in <code>src[src.position()..src.size())</code>,
+	 * consisting of a page compressor ID, decompressed size, compressed size,
+	 * compressed data and uncompressed trailer, with their decompressed
+	 * counterpart, using tmp as scratch buffer. Compressor IDs other than
+	 * those of the built-in compressors and the given custom compressor (which
+	 * may be null) are rejected.
+	 */
+	static void decompress(PageCompressor compressor, ArrayByteList src, ArrayByteList tmp) 
+			throws BinaryParsingException {
+		
+		int id = src.get();
+		int size = src.getInt();
+		int compressedSize = src.getInt();
+		if (size < 0 || compressedSize < 0 || compressedSize > src.remaining()) 
+			throw new BinaryParsingException("Corrupt compressed bnux page header");
+		
+		if (compressor == null || compressor.getID() != id) {
+			switch (id) {
+				case 0: compressor = null; break; // stored uncompressed
+				case ZLIBPageCompressor.ID: compressor = ZLIB_PAGE_COMPRESSOR; break;
+				case LZPageCompressor.ID: compressor = LZ_PAGE_COMPRESSOR; break;
+				default: throw new BinaryParsingException(
+						"Unknown bnux page compressor ID: " + id);
+			}
+		}
+		
+		int off = src.position();
+		int trailer = src.size() - off - compressedSize;
+		if (compressor == null && size != compressedSize) 
+			throw new BinaryParsingException("Corrupt stored bnux page");
+		if (size > maxDecompressedSize(compressedSize) || (long) size + trailer > Integer.MAX_VALUE) 
+			throw new BinaryParsingException("Corrupt compressed bnux page header: " 
+				+ compressedSize + " bytes can not decompress to " + size + " bytes");
+		tmp.clear();
+		tmp.ensureCapacity(size + trailer);
+		if (compressor == null) {
+			tmp.add(src.asArray(), off, size);
+		} else {
+			compressor.decompress(src.asArray(), off, compressedSize, tmp.asArray(), 0, size);
+			tmp.setSize(size);
+		}
+		tmp.add(src.asArray(), off + compressedSize, trailer); // e.g. next page marker
+		
+		src.swap(tmp); // replace src with tmp
+		tmp.clear();
+	}
+	
+	/**
+	 * Returns the largest size the given number of page compressor output
+	 * bytes may claim to decompress to; larger claims are rejected as corrupt,
+	 * rather than allocating for them. This is well above the highest
+	 * expansion factor of ZLIB (about 1032) and LZPageCompressor (about 255).
+	 */
+	static long maxDecompressedSize(int compressedSize) {
+		return 2048L * compressedSize + 1024;
+	}
+	
+	/**
+	 * Compresses the elements in <code>src[src.position()..src.size())</code>
+	 * with the given page compressor, appending compressor ID, decompressed
+	 * size, compressed size and compressed data to dst. Stores the elements
+	 * uncompressed if compression doesn't make them any smaller.
+	 */
+	private static void compress(PageCompressor compressor, ArrayByteList src, ArrayByteList dst) {
+		int off = src.position();
+		int size = src.remaining();
+		int start = dst.size();
+		dst.ensureCapacity(start + 1 + 4 + 4 + size);
+		dst.add((byte) compressor.getID());
+		dst.addInt(size);
+		dst.addInt(0); // compressedSize dummy placeholder
+		int compressedSize = compressor.compress(src.asArray(), off, size, dst.asArray(), dst.size());
+		if (compressedSize >= 0 && compressedSize < size 
+				&& size <= maxDecompressedSize(compressedSize)) {
+			dst.setSize(dst.size() + compressedSize);
+			dst.setInt(start + 1 + 4, compressedSize);
+		} else { // store uncompressed
+			dst.setSize(start);
+			dst.add((byte) 0);
+			dst.addInt(size);
+			dst.addInt(size);
+			dst.add(src.asArray(), off, size);
+		}
 	}
 	
 	/** Parses document from encoded src buffer; tokens appear in document order. */
@@ -844,6 +1757,7 @@ public class BinaryXMLCodec {
 						if (root == null) {
 							throw new NullPointerException("Factory failed to create root element.");
 						}
+						if (hasSubtreeSizes) src.getVarInt(); // never skip the root element
 						doc.setRootElement(root);
 						readElementF(src, root, input);
 						nodes = factory.finishMakingElement(root);
@@ -901,10 +1815,12 @@ public class BinaryXMLCodec {
 	private Element readStartTag(ArrayByteList src, int type) {
 		String qname = readString(src, 4, type);
 		String namespaceURI = readName(src, 6, type);
+		if (hasSubtreeSizes) src.getVarInt(); // ignore
 		return this.nodeBuilder.createElement(qname, namespaceURI);
 //		return new Element(qname, namespaceURI);
 	}
 	
+	/** Reads start tag, except for the subtree size, if any, and asks the factory for an element */
 	private Element readStartTagF(ArrayByteList src, int type, boolean isRoot) {
 		String qname = readString(src, 4, type);
 		String namespaceURI = readName(src, 6, type);
@@ -980,10 +1896,13 @@ public class BinaryXMLCodec {
 		final FastStack stack = new FastStack();
 		stack.push(current);
 		boolean addAttributesAndNamespaces = true;
+		SubtreeFilter filter = factory instanceof SubtreeFilter ? (SubtreeFilter) factory : null;
+		boolean isSkipped = false;
 		
 		while (true) {
 			Nodes nodes = null;
-			int type = src.get(); // look ahead
+			int type = isSkipped ? END_ELEMENT : src.get(); // look ahead
+			isSkipped = false;
 //			if (DEBUG) System.err.println("reading type = " + toString(type));
 
 			switch (type & 0x07) { // three low bits indicate node type
@@ -998,10 +1917,15 @@ public class BinaryXMLCodec {
 				}
 				case BEGIN_ELEMENT: {
 					Element elem = readStartTagF(src, type, false);
+					int size = hasSubtreeSizes ? src.getVarInt() : 0;
 					stack.push(elem); // even if it's null
 					if (elem != null) {
 						current.insertChild(elem, current.getChildCount());
 						current = elem; // recurse down
+						if (filter != null && filter.isSkippable(elem)) {
+							skipSubtree(src, input, size);
+							isSkipped = true; // proceed as if elem were empty
+						}
 					}
 					addAttributesAndNamespaces = elem != null;
 					continue;
@@ -1051,6 +1975,88 @@ public class BinaryXMLCodec {
 		}
 	}
 	
+	/**
+	 * Reads past the attributes, namespace declarations, content and end tag
+	 * of the element whose start tag has just been read, without decoding
+	 * names or text. Jumps over the given number of bytes if it is positive;
+	 * otherwise scans tokens, jumping over nested subtrees with known size,
+	 * and deferring symbol decoding until the page the element ends on.
+	 */
+	private void skipSubtree(ArrayByteList src, InputStream input, int size) 
+			throws BinaryParsingException, IOException {
+		
+		if (size > 0) {
+			src.position(src.position() + size);
+			return;
+		}
+		
+		int depth = 1;
+		int pageStart = -1; // start of page with undecoded symbols, if any
+		while (true) {
+			int type = src.get();
+			switch (type & 0x07) {
+				case BEGIN_ELEMENT: {
+					readSymbol(src, 4, type); // qname
+					readSymbol(src, 6, type); // URI
+					size = hasSubtreeSizes ? src.getVarInt() : 0;
+					if (size > 0) {
+						src.position(src.position() + size);
+					} else {
+						depth++;
+					}
+					break;
+				}
+				case END_ELEMENT: {
+					if (--depth == 0) {
+						if (pageStart >= 0) { // decode symbols of current page after all
+							int pos = src.position();
+							src.position(pageStart);
+							setPageSymbols(readSymbols(src, dictionarySymbols));
+							src.position(pos);
+						}
+						return;
+					}
+					break;
+				}
+				case ATTRIBUTE: {
+					readSymbol(src, 4, type); // qname
+					readSymbol(src, 6, type); // URI
+					readSymbol(src, 4, src.get()); // value
+					src.get(); // attrType
+					break;
+				}
+				case NAMESPACE_DECLARATION: // prefix, URI
+				case PROCESSING_INSTRUCTION: { // target, value
+					readSymbol(src, 4, type); 
+					readSymbol(src, 6, type);
+					break;
+				}
+				case DOC_TYPE: { // surrogate hack to identify BEGIN_PAGE
+					if (pageDecoder != null) { // symbols have been decoded ahead anyway
+						readPage(src, input);
+						break;
+					}
+					this.symbols = null; // help gc
+					readPageBody(src, input);
+					pageStart = src.position();
+					src.position(pageStart + 4 + 4); // symbolTableSize, decodedSize
+					int encodedSize = src.getInt();
+					if (encodedSize < 0 || encodedSize > src.remaining() - 4) 
+						throw new BinaryParsingException("Illegal encodedSize");
+					src.position(src.position() + encodedSize);
+					int magic = src.getInt();
+					if (magic != BNUX_MAGIC) throw new BinaryParsingException(
+						"Bnux magic number mismatch: " + magic + ", must be: " + BNUX_MAGIC);
+					break;
+				}
+				default: { // TEXT, COMMENT
+					readSymbol(src, 4, type);
+					break;
+				}
+			}
+		}
+	}
+	
 	private static void appendNodes(Element elem, Nodes nodes) {
 		if (nodes != null) {
 			int size = nodes.size();
@@ -1168,7 +2174,7 @@ public class BinaryXMLCodec {
 	}
 	
 	/** Reads string via packed index from symbolTable */
-	private static int readSymbol(ArrayByteList src, int shift, int type) {
+	static int readSymbol(ArrayByteList src, int shift, int type) {
 		// assert shift == 4 || shift == 6		
 		if (Util.isInlinedIndex(type)) {
 			if (shift == 6) return -1;
@@ -1242,13 +2248,54 @@ public class BinaryXMLCodec {
 		page.addInt(BNUX_MAGIC);
 		encodeTokens(nodeTokens, indexData.asArray(), page);
 		
-		int pageSize;
+		if (pageWriter != null) { // compress and write in the background
+			page = pageWriter.write(page, pageOffset, isLastPage);
+			if (isLastPage) pageWriter.drain();
+		} else {
+			if (compressedPage == null) compressedPage = new ArrayByteList();
+			writePage(page, pageOffset, isLastPage, compressedPage);
+		}
+		
+		if (pageDirectory != null) {
+			if (isLastPage) {
+				writePageDirectory();
+			} else {
+				addPageDirectoryEntry(); // for the next page
+			}
+		}
+		
+		// reset 
+		if (!isLastPage) symbolTable.clear();
+		page.clear();
 		nodeTokens.clear();
-		if (compressionLevel > 0) { // compress page body
+		indexData.clear();
+		if (DEBUG) System.err.println("finished writing page");
+	}
+	
+	/**
+	 * Compresses the body of the given encoded page if necessary, fills in
+	 * the page size, and writes the page onto the output stream; 
+	 * <code>tmp</code> is scratch space for compression.
+	 */
+	final void writePage(ArrayByteList page, int pageOffset, boolean isLastPage, 
+			ArrayByteList tmp) throws IOException {
+		
+		int pageSize;
+		tmp.clear();
+		if (pageCompressor != null || compressionLevel > 0) { // compress page body
+			long start = statistics != null ? PageCompressionStatistics.now() : 0;
 			page.position(pageOffset);
-			nodeTokens.add(compressor, page);
+			if (pageCompressor != null) {
+				compress(pageCompressor, page, tmp);
+			} else {
+				tmp.add(compressor, page);
+			}
+			if (statistics != null) {
+				statistics.addCompressedPage(page.size() - pageOffset, tmp.size(), 
+					PageCompressionStatistics.now() - start);
+			}
 			page.remove(pageOffset, page.size());
-			pageSize = nodeTokens.size();
+			pageSize = tmp.size();
 		} else {
 			pageSize = page.size() - pageOffset;
 		}
@@ -1257,14 +2304,9 @@ public class BinaryXMLCodec {
 
 		// having filled the buffers, flush them onto underlying output stream
 		page.write(out);
-		nodeTokens.write(out);
-		
-		// reset 
-		if (!isLastPage) symbolTable.clear();
-		page.clear();
-		nodeTokens.clear();
-		indexData.clear();
-		if (DEBUG) System.err.println("finished writing page");
+		tmp.write(out);
+		if (pageDirectory != null) pageSizes.add(page.size() + tmp.size());
+		tmp.clear();
 	}
 	
 	private void writeDocument(Document doc) throws IOException {
@@ -1301,16 +2343,100 @@ public class BinaryXMLCodec {
 		// write bnux document header
 		if (page == null) page = new ArrayByteList(256);
 		page.clear();
-		page.ensureCapacity(DOCUMENT_HEADER_SIZE + PAGE_HEADER_SIZE + 1);
+		page.ensureCapacity(DOCUMENT_HEADER_SIZE + 4 + PAGE_HEADER_SIZE + 1);
 		page.addInt(BNUX_MAGIC);
-		int version = VERSION;
-		if (compressionLevel > 0) version = -version;
+		int flags = 0;
+		if (isPageDirectoryEnabled) flags |= PAGE_DIRECTORY;
+		if (dictionary != null) flags |= DICTIONARY;
+		hasSubtreeSizes = isSubtreeSizesEnabled;
+		if (hasSubtreeSizes) flags |= SUBTREE_SIZES;
+		if (pageCompressor != null) flags |= PAGE_COMPRESSOR;
+		
+		// without optional features keep the old format, readable by old readers
+		int version = flags == 0 ? VERSION_WITHOUT_FLAGS : VERSION;
+		if (pageCompressor == null && compressionLevel > 0) version = -version;
 		page.add((byte)version);
+		if (flags != 0) page.add((byte)flags);
+		if (dictionary != null) page.addInt(dictionary.getID());
+		firstPageOffset = page.size();
 		
 		isFirstPage = true;
+		if (isPageDirectoryEnabled) {
+			startPageDirectory();
+		} else {
+			pageDirectory = null;
+		}
 		writeIndex(baseURI);		
 	}
 	
+	private void startPageDirectory() {
+		if (pageDirectory == null) pageDirectory = new ArrayByteList();
+		pageDirectory.clear();
+		if (openElements == null) openElements = new ArrayList();
+		openElements.clear();
+		numPages = 0;
+		numElements = 0;
+		numRecords = 0;
+		if (pageEntries == null) pageEntries = new ArrayIntList();
+		pageEntries.clear();
+		if (pageSizes == null) pageSizes = new ArrayIntList();
+		pageSizes.clear();
+		addPageDirectoryEntry(); // for the first page
+	}
+	
+	/**
+	 * Appends the directory entry describing the page about to begin: offset
+	 * (filled in later), number of preceding elements and records, depth, and
+	 * names of open ancestors.
+	 */
+	private void addPageDirectoryEntry() {
+		int depth = openElements.size() / 2;
+		pageEntries.add(pageDirectory.size());
+		pageDirectory.addLong(0); // offset dummy placeholder
+		pageDirectory.addLong(numElements);
+		pageDirectory.addLong(numRecords);
+		pageDirectory.addInt(depth);
+		for (int i=0; i < 2*depth; i += 2) {
+			String prefix = (String) openElements.get(i);
+			String localName = (String) openElements.get(i+1);
+			pageDirectory.ensureCapacity(pageDirectory.size() + 
+				4 * (prefix.length() + localName.length()) + 2);
+			pageDirectory.addUTF8String(prefix, localName);
+		}
+		numPages++;
+	}
+	
+	/**
+	 * Writes the page directory following the last page of a document:
+	 * size, numPages, numElements, numRecords, entries, size, magic.
+	 */
+	private void writePageDirectory() throws IOException {
+		// fill in page offsets, now that the sizes of all (compressed) pages are known
+		int[] entries = pageEntries.asArray();
+		int[] sizes = pageSizes.asArray();
+		long end = 0;
+		for (int i=0; i < numPages; i++) {
+			pageDirectory.setLong(entries[i], i == 0 ? firstPageOffset : end);
+			end += sizes[i];
+		}
+		
+		int size = 4 + 8 + 8 + pageDirectory.size();
+		page.clear();
+		page.addInt(size);
+		page.addInt(numPages);
+		page.addLong(numElements);
+		page.addLong(numRecords);
+		page.write(out);
+		pageDirectory.write(out);
+		
+		page.clear();
+		page.addInt(size);
+		page.addInt(BNUX_MAGIC);
+		page.write(out);
+		pageDirectory.clear();
+		openElements.clear();
+	}
+	
 	final void writeEndDocument() throws IOException {
 		flush(true);
 	}
@@ -1322,8 +2448,10 @@ public class BinaryXMLCodec {
 			if (nodeTokens.size() > 0) { // anything remaining to be written?
 				writePage(isLastPage);
 			}
+			if (pageWriter != null) pageWriter.drain();
 			out.flush();
 		} finally {
+			if (pageWriter != null && isLastPage) pageWriter.close();
 			if (isLastPage) {
 				this.symbolTable = null; // help gc
 				this.out = null;
@@ -1358,15 +2486,7 @@ public class BinaryXMLCodec {
 	}
 	
 	final void writeStartTag(Element elem) {
-		writeIndex(elem.getNamespacePrefix(), elem.getLocalName());
-
-		int type = BEGIN_ELEMENT;
-		if (elem.getNamespaceURI().length() == 0) {
-			type = Util.noNamespace(type);
-		} else {
-			writeIndex(elem.getNamespaceURI());
-		}
-		nodeTokens.add((byte)type);
+		writeStartTag(elem.getNamespacePrefix(), elem.getLocalName(), elem.getNamespaceURI());
 		
 		for (int i = 0; i < elem.getAttributeCount(); i++) {
 			writeAttribute(elem.getAttribute(i));
@@ -1379,51 +2499,98 @@ public class BinaryXMLCodec {
 		}
 	}
 
+	/**
+	 * Writes a start tag, to be followed by its attributes and additional
+	 * namespace declarations, if any. The prefix may also be empty, with the
+	 * local name being the full qualified name.
+	 */
+	final void writeStartTag(String prefix, String localName, String namespaceURI) {
+		if (pageDirectory != null) {
+			if (openElements.size() == 2) numRecords++; // child of root element
+			numElements++;
+			openElements.add(prefix);
+			openElements.add(localName);
+		}
+		
+		writeIndex(prefix, localName);
+
+		int type = BEGIN_ELEMENT;
+		if (namespaceURI.length() == 0) {
+			type = Util.noNamespace(type);
+		} else {
+			writeIndex(namespaceURI);
+		}
+		nodeTokens.add((byte)type);
+	}
+	
 	final void writeEndTag() throws IOException {
 		if (nodeTokens.size() + indexData.size() + symbolTable.numCharacters() 
 				+ symbolTable.size() >= MAX_PAGE_CAPACITY) {
 			writePage(false); // write nodeTokens, indexData, symbolTable to output stream
 		}
 		
-		nodeTokens.add((byte)END_ELEMENT);		
+		nodeTokens.add((byte)END_ELEMENT);
+		
+		if (pageDirectory != null) {
+			int size = openElements.size();
+			openElements.remove(size - 1);
+			openElements.remove(size - 2);
+		}
 	}
 
 	private void writeAttribute(Attribute attr) {
-		writeIndex(attr.getNamespacePrefix(), attr.getLocalName());
+		writeAttribute(attr.getNamespacePrefix(), attr.getLocalName(), 
+			attr.getNamespaceURI(), attr.getValue(), Util.getAttributeTypeCode(attr));
+	}
+
+	/** The prefix may also be empty, with the local name being the full qualified name */
+	final void writeAttribute(String prefix, String localName, String namespaceURI, 
+			String value, byte typeCode) {
+		
+		writeIndex(prefix, localName);
 		
 		int type = ATTRIBUTE;
-		if (attr.getNamespaceURI().length() == 0) {
+		if (namespaceURI.length() == 0) {
 			type = Util.noNamespace(type);
 		} else {
-			writeIndex(attr.getNamespaceURI());
+			writeIndex(namespaceURI);
 		}
 		
-		writeIndex(attr.getValue());
+		writeIndex(value);
 		nodeTokens.add((byte)type);
-		nodeTokens.add(Util.getAttributeTypeCode(attr));
+		nodeTokens.add(typeCode);
 	}
 
 	final void writeComment(Comment comment) {
+		writeComment(comment.getValue());
+	}
+	
+	final void writeComment(String value) {
 		nodeTokens.add((byte)COMMENT);
-		writeIndex(comment.getValue());
+		writeIndex(value);
 	}
 	
-	/** Does not pack indexes of doctype (infrequent anyway) */
 	final void writeDocType(DocType docType) {
+		writeDocType(docType.getRootElementName(), docType.getPublicID(), 
+			docType.getSystemID(), docType.getInternalDTDSubset());
+	}
+	
+	/** Does not pack indexes of doctype (infrequent anyway) */
+	final void writeDocType(String rootElementName, String publicID, 
+			String systemID, String internalDTDSubset) {
+		
 		nodeTokens.add((byte)DOC_TYPE);
-		writeIndex(docType.getRootElementName());		
-		writeIndex(docType.getPublicID() == null ? DOCTYPE_NULL_ID : docType.getPublicID());
-		writeIndex(docType.getSystemID() == null ? DOCTYPE_NULL_ID : docType.getSystemID());
-		writeIndex(docType.getInternalDTDSubset() == null ? "" : docType.getInternalDTDSubset());
+		writeIndex(rootElementName);		
+		writeIndex(publicID == null ? DOCTYPE_NULL_ID : publicID);
+		writeIndex(systemID == null ? DOCTYPE_NULL_ID : systemID);
+		writeIndex(internalDTDSubset == null ? "" : internalDTDSubset);
 	}	
 	
 	// requires xom-1.1 + patches
 	private void writeNamespaceDeclarationsFast(Element elem) {
 		String[] decls = elem.getAdditionalNamespaceDeclarations();
-		for (int i=0; i < decls.length; ) {
-			nodeTokens.add((byte)NAMESPACE_DECLARATION);
-			writeIndex(decls[i++]); // prefix
-			writeIndex(decls[i++]); // URI
+		for (int i=0; i < decls.length; i += 2) {
+			writeNamespaceDeclaration(decls[i], decls[i+1]);
 		}
 	}
 	
@@ -1439,21 +2606,38 @@ public class BinaryXMLCodec {
 //				if (DEBUG) System.err.println("********** NAMESPACE IGNORED ON WRITE ***************\n");
 				continue;
 			}
-			nodeTokens.add((byte)NAMESPACE_DECLARATION);
-			writeIndex(prefix);
-			writeIndex(uri);
+			writeNamespaceDeclaration(prefix, uri);
 		}
 	}
+	
+	final void writeNamespaceDeclaration(String prefix, String uri) {
+		nodeTokens.add((byte)NAMESPACE_DECLARATION);
+		writeIndex(prefix);
+		writeIndex(uri);
+	}
 
 	final void writeProcessingInstruction(ProcessingInstruction pi) {
+		writeProcessingInstruction(pi.getTarget(), pi.getValue());
+	}
+	
+	final void writeProcessingInstruction(String target, String value) {
 		nodeTokens.add((byte)PROCESSING_INSTRUCTION);
-		writeIndex(pi.getTarget());
-		writeIndex(pi.getValue());
+		writeIndex(target);
+		writeIndex(value);
 	}
 	
 	final void writeText(Text text) {
+		writeText(text.getValue());
+	}
+	
+	final void writeText(String value) {
 		nodeTokens.add((byte)TEXT);
-		writeIndex(text.getValue());
+		writeIndex(value);
+	}
+	
+	final void writeText(char[] chars, int offset, int length) {
+		nodeTokens.add((byte)TEXT);
+		indexData.add(symbolTable.addSymbol(chars, offset, length));
 	}
 	
 	/** Puts symbol into symbolTable and appends the string's index to indexData */
@@ -1479,6 +2663,19 @@ public class BinaryXMLCodec {
 		 */
 //		if (DEBUG) System.err.println("encoding symbols = " + toString(entries));
 		int len = entries.length;
+		if (dictionary != null) { // refer to dictionary entries where possible
+			for (int i=0; i < len; i++) {
+				Entry entry = entries[i];
+				int index = dictionary.indexOf(entry.getKey1(), entry.getKey2());
+				if (index >= 0) {
+					dst.addDictionaryReference(index);
+				} else {
+					dst.addUTF8String(entry.getKey1(), entry.getKey2());
+				}
+			}
+			return;
+		}
+		
 		for (int i=0; i < len; i++) {
 			Entry entry = entries[i];
 			dst.addUTF8String(entry.getKey1(), entry.getKey2());
@@ -1545,6 +2742,11 @@ public class BinaryXMLCodec {
 		int j = 0;
 		if (isFirstPage) dst.addInt(indexes[i++]); // document baseURI
 		isFirstPage = false;
+		int open = -1; // innermost element opened on this page and not yet closed
+		if (hasSubtreeSizes) {
+			if (subtrees == null) subtrees = new ArrayIntList();
+			subtrees.clear();
+		}
 
 		while (j < size) {
 			int type = tokens[j++];
@@ -1573,10 +2775,23 @@ public class BinaryXMLCodec {
 					} else {
 						Util.packTwoIndexes(dst, indexes[i++], indexes[i++], type); // qname, URI
 					}
+					if (hasSubtreeSizes) {
+						int k = subtrees.size();
+						subtrees.add(dst.size()); // offset of subtree size
+						subtrees.add(-1); // end offset unknown
+						subtrees.add(open);
+						subtrees.add(0);
+						open = k;
+					}
 					break;
 				}
 				case END_ELEMENT: {
-					break; // nothing to do
+					if (open >= 0) { // ignore elements opened on previous pages
+						int[] subtree = subtrees.asArray();
+						subtree[open+1] = dst.size();
+						open = subtree[open+2];
+					}
+					break;
 				}				
 				case COMMENT: {
 					Util.packOneIndex(dst, indexes[i++], type); // value
@@ -1602,6 +2817,52 @@ public class BinaryXMLCodec {
 				}				
 			}			
 		}
+		
+		if (hasSubtreeSizes) insertSubtreeSizes(dst);
+	}
+	
+	/**
+	 * Inserts the size of each element subtree of the current page behind the
+	 * element's start tag. The size of an element that doesn't end on the
+	 * current page is zero.
+	 */
+	private void insertSubtreeSizes(ArrayByteList dst) {
+		int[] subtree = subtrees.asArray();
+		int n = subtrees.size();
+		
+		// compute sizes bottom-up; a size includes the sizes of nested elements
+		int total = 0;
+		for (int k = n - 4; k >= 0; k -= 4) {
+			int end = subtree[k+1];
+			int size = end < 0 ? 0 : end - subtree[k] + subtree[k+3];
+			subtree[k+1] = size;
+			int len = ArrayByteList.getVarIntLength(size);
+			total += len;
+			int parent = subtree[k+2];
+			if (parent >= 0) subtree[parent+3] += len + subtree[k+3];
+		}
+		
+		// shift bytes to the right, back to front, stitching in sizes
+		int from = dst.size();
+		int to = from + total;
+		dst.ensureCapacity(to);
+		byte[] buf = dst.asArray();
+		for (int k = n - 4; k >= 0; k -= 4) {
+			int offset = subtree[k];
+			int length = from - offset;
+			to -= length;
+			System.arraycopy(buf, offset, buf, to, length);
+			int size = subtree[k+1];
+			to -= ArrayByteList.getVarIntLength(size);
+			int p = to;
+			while ((size & ~0x7F) != 0) { // same encoding as ArrayByteList.addVarInt()
+				buf[p++] = (byte) ((size & 0x7F) | 0x80);
+				size >>>= 7;
+			}
+			buf[p] = (byte) size;
+			from = offset;
+		}
+		dst.setSize(dst.size() + total);
 	}
 
 	private static int createMagicNumber() {
@@ -1725,6 +2986,33 @@ public class BinaryXMLCodec {
 			return size++;
 		}
 		
+		/**
+		 * Same as <code>addSymbol("", new String(chars, offset, length))</code>, 
+		 * except that no string is created unless the symbol is not yet present.
+		 */
+		public int addSymbol(char[] chars, int offset, int length) {
+			int h = 0; // same as String.hashCode()
+			for (int j = offset, end = offset + length; j < end; j++) {
+				h = 31*h + chars[j];
+			}
+			int hash = auxiliaryHash(h);
+			int i = hash & (entries.length - 1);
+			for (Entry cursor = entries[i]; cursor != null; cursor = cursor.next) {
+				if (hash == cursor.hash && cursor.key1.length() == 0 
+						&& eq(cursor.key2, chars, offset, length)) {
+					cursor.frequency++;
+					return cursor.index;
+				}
+			}
+			
+			// not found; add entry at head of chain
+			String key2 = new String(chars, offset, length);
+			numChars += length;
+			entries[i] = new Entry("", key2, hash, entries[i], size); 
+			if (size >= threshold) rehash();
+			return size++;
+		}
+		
 		private static Entry findEntry(String key1, String key2, Entry cursor, int hash) {
 			while (cursor != null) { // scan collision chain
 				if (hash == cursor.hash && eq(key2, cursor.key2) && eq(key1, cursor.key1)) { 
@@ -1804,6 +3092,14 @@ public class BinaryXMLCodec {
 		private static boolean eq(String x, String y) {
 			return x == y || x.equals(y);
 		}
+		
+		private static boolean eq(String x, char[] chars, int offset, int length) {
+			if (x.length() != length) return false;
+			for (int j = 0; j < length; j++) {
+				if (x.charAt(j) != chars[offset + j]) return false;
+			}
+			return true;
+		}
 			
 		/** Sanity check; Unnecessary since NULs have already been checked by nu.xom.Verifier. */
 		private static void checkNULChar(String key) { 
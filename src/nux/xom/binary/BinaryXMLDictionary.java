@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.ProcessingInstruction;
+
+/**
+ * Immutable symbol dictionary shared by the sender and receiver of many bnux
+ * documents, typically holding the vocabulary of a schema (qualified element
+ * and attribute names, namespace URIs and prefixes).
+ * <p>
+ * Without a dictionary, each page of each bnux document carries its own
+ * symbol table, spelling out every distinct name in UTF-8. For a stream of
+ * small messages conforming to the same schema, these names make up a large
+ * part of each message, and decoding them makes up a large part of
+ * deserialization time. With a dictionary, a page refers to a name contained
+ * in the dictionary by a 2 or 3 byte index rather than repeating the string,
+ * and the receiver looks the string up rather than decoding it. Strings not
+ * contained in the dictionary are encoded as usual.
+ * <p>
+ * A document serialized with a dictionary records the dictionary ID in its
+ * header, and can only be deserialized by a codec configured with a
+ * dictionary of the same ID (and contents). It is the responsibility of the
+ * application to make the same dictionary available on both ends, for
+ * example by agreeing on a fixed list of symbols ahead of time, or by
+ * {@link #learn(Document[], int) learning} it from a set of representative
+ * sample documents and shipping {@link #getSymbols()} to the receiver once.
+ * <p>
+ * Example usage:
+ * <pre>
+ * String[] symbols = new String[] {
+ *     "http://schemas.xmlsoap.org/soap/envelope/", "soap", 
+ *     "soap:Envelope", "soap:Header", "soap:Body", "soap:Fault" };
+ * BinaryXMLDictionary dictionary = new BinaryXMLDictionary(symbols);
+ * 
+ * BinaryXMLCodec codec = new BinaryXMLCodec();
+ * codec.setDictionary(dictionary);
+ * byte[] bnuxDoc = codec.serialize(doc, 0);
+ * Document doc2 = codec.deserialize(bnuxDoc); // requires same dictionary
+ * </pre>
+ * <p>
+ * Instances are immutable and thread-safe, and can be shared by any number
+ * of codecs.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public final class BinaryXMLDictionary {
+	
+	/** The maximum number of symbols a dictionary can hold. */
+	public static final int MAX_SIZE = 65536;
+	
+	private final int id;
+	private final String[] symbols;
+	private final HashMap indexes; // String --> Integer
+	
+	/**
+	 * Constructs a dictionary holding the given symbols, with an ID computed
+	 * from the symbols (in a manner that is stable across JVMs). Two
+	 * dictionaries constructed from equal symbol arrays have the same ID.
+	 * 
+	 * @param symbols
+	 *            the strings held by the dictionary, in the order of their
+	 *            indexes; frequent strings should come first as they are
+	 *            referenced more compactly
+	 */
+	public BinaryXMLDictionary(String[] symbols) {
+		this(computeID(symbols), symbols);
+	}
+	
+	/**
+	 * Constructs a dictionary holding the given symbols, with the given ID.
+	 * 
+	 * @param id
+	 *            the application defined ID identifying this dictionary
+	 * @param symbols
+	 *            the strings held by the dictionary, in the order of their
+	 *            indexes; frequent strings should come first as they are
+	 *            referenced more compactly
+	 */
+	public BinaryXMLDictionary(int id, String[] symbols) {
+		if (symbols == null) 
+			throw new IllegalArgumentException("symbols must not be null");
+		if (symbols.length > MAX_SIZE) 
+			throw new IllegalArgumentException("Too many symbols: " + 
+					symbols.length + ", must not exceed " + MAX_SIZE);
+		
+		this.id = id;
+		this.symbols = new String[symbols.length];
+		this.indexes = new HashMap(2 * symbols.length);
+		for (int i=0; i < symbols.length; i++) {
+			String symbol = symbols[i];
+			if (symbol == null) 
+				throw new IllegalArgumentException("symbol must not be null");
+			symbol = symbol.intern();
+			this.symbols[i] = symbol;
+			// an empty string is shorter than any reference to it
+			if (symbol.length() > 0 && !indexes.containsKey(symbol)) {
+				indexes.put(symbol, new Integer(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns a dictionary holding the (at most) <code>maxSize</code> most
+	 * frequent qualified element and attribute names, namespace URIs and
+	 * prefixes, and processing instruction targets found in the given sample
+	 * documents, ordered descending by frequency.
+	 * 
+	 * @param samples
+	 *            representative documents
+	 * @param maxSize
+	 *            the maximum number of symbols to hold
+	 * @return a new dictionary
+	 */
+	public static BinaryXMLDictionary learn(Document[] samples, int maxSize) {
+		if (samples == null) 
+			throw new IllegalArgumentException("samples must not be null");
+		if (maxSize < 0 || maxSize > MAX_SIZE) 
+			throw new IllegalArgumentException("Illegal maxSize: " + maxSize);
+		
+		HashMap counts = new HashMap(); // String --> int[1]
+		for (int i=0; i < samples.length; i++) {
+			countSymbols(samples[i], counts);
+		}
+		
+		Map.Entry[] entries = new Map.Entry[counts.size()];
+		Iterator iter = counts.entrySet().iterator();
+		for (int i=0; iter.hasNext(); i++) {
+			entries[i] = (Map.Entry) iter.next();
+		}
+		Arrays.sort(entries, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				Map.Entry e1 = (Map.Entry) o1;
+				Map.Entry e2 = (Map.Entry) o2;
+				int c1 = ((int[]) e1.getValue())[0];
+				int c2 = ((int[]) e2.getValue())[0];
+				if (c1 != c2) return c1 > c2 ? -1 : 1; // descending
+				return ((String) e1.getKey()).compareTo((String) e2.getKey());
+			}
+		});
+		
+		String[] symbols = new String[Math.min(maxSize, entries.length)];
+		for (int i=0; i < symbols.length; i++) {
+			symbols[i] = (String) entries[i].getKey();
+		}
+		return new BinaryXMLDictionary(symbols);
+	}
+	
+	private static void countSymbols(Node node, HashMap counts) {
+		if (node instanceof Element) {
+			Element elem = (Element) node;
+			count(elem.getQualifiedName(), counts);
+			count(elem.getNamespaceURI(), counts);
+			for (int i=0; i < elem.getAttributeCount(); i++) {
+				Attribute attr = elem.getAttribute(i);
+				count(attr.getQualifiedName(), counts);
+				count(attr.getNamespaceURI(), counts);
+			}
+			for (int i=0; i < elem.getNamespaceDeclarationCount(); i++) {
+				String prefix = elem.getNamespacePrefix(i);
+				count(prefix, counts);
+				count(elem.getNamespaceURI(prefix), counts);
+			}
+		} else if (node instanceof ProcessingInstruction) {
+			count(((ProcessingInstruction) node).getTarget(), counts);
+		}
+		
+		for (int i=0; i < node.getChildCount(); i++) {
+			countSymbols(node.getChild(i), counts);
+		}
+	}
+	
+	private static void count(String symbol, HashMap counts) {
+		if (symbol == null || symbol.length() == 0) return;
+		int[] count = (int[]) counts.get(symbol);
+		if (count == null) {
+			count = new int[1];
+			counts.put(symbol, count);
+		}
+		count[0]++;
+	}
+	
+	private static int computeID(String[] symbols) {
+		if (symbols == null) 
+			throw new IllegalArgumentException("symbols must not be null");
+		int hash = symbols.length;
+		for (int i=0; i < symbols.length; i++) {
+			// String.hashCode() is specified, hence stable across JVMs
+			if (symbols[i] != null) hash = 31 * hash + symbols[i].hashCode();
+		}
+		return hash;
+	}
+	
+	/**
+	 * Returns the ID identifying this dictionary.
+	 * 
+	 * @return the ID
+	 */
+	public int getID() {
+		return id;
+	}
+	
+	/**
+	 * Returns the number of symbols held by this dictionary.
+	 * 
+	 * @return the number of symbols
+	 */
+	public int size() {
+		return symbols.length;
+	}
+	
+	/**
+	 * Returns (a copy of) the symbols held by this dictionary, in the order of
+	 * their indexes.
+	 * 
+	 * @return the symbols
+	 */
+	public String[] getSymbols() {
+		return (String[]) symbols.clone();
+	}
+	
+	/** Returns the symbols without copying; callers must not modify them. */
+	final String[] symbols() {
+		return symbols;
+	}
+	
+	/**
+	 * Returns the index of the given symbol (<code>prefix:localName</code>,
+	 * or <code>localName</code> if the prefix is empty), or -1 if the
+	 * dictionary does not hold it.
+	 */
+	final int indexOf(String prefix, String localName) {
+		String key = prefix.length() == 0 ? localName : prefix + ':' + localName;
+		Integer index = (Integer) indexes.get(key);
+		return index == null ? -1 : index.intValue();
+	}
+	
+	/**
+	 * Returns a summary string representation.
+	 * 
+	 * @return a string representation
+	 */
+	public String toString() {
+		return "[id=" + id + ", size=" + symbols.length + "]";
+	}
+	
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nu.xom.Element;
+import nu.xom.Nodes;
+
+/**
+ * Random access reader for a bnux file that has been written with a trailing
+ * page directory (see {@link BinaryXMLCodec#setPageDirectoryEnabled(boolean)}).
+ * <p>
+ * Rather than decoding a document from start to end, this class consults the
+ * page directory to locate the page containing the beginning of a requested
+ * element, and then decodes only that page and any following pages the
+ * element's subtree extends into. For example, fetching record N of a file
+ * containing 10 million records, each being a child of the root element, takes
+ * (roughly) constant time, independent of N.
+ * <p>
+ * The file must contain exactly one bnux document. Pages are read on demand,
+ * one at a time, into a reusable heap buffer, so a request touches only the
+ * bytes of the pages it decodes. Like a {@link BinaryXMLCodec}, an instance is
+ * not thread-safe.
+ * <p>
+ * Example usage:
+ * <pre>
+ * BinaryXMLCodec codec = new BinaryXMLCodec();
+ * codec.setPageDirectoryEnabled(true);
+ * OutputStream out = new FileOutputStream("/tmp/log.xml.bnux");
+ * codec.serialize(doc, 0, out);
+ * out.close();
+ * 
+ * BinaryXMLRandomAccessFile file = new BinaryXMLRandomAccessFile(new File("/tmp/log.xml.bnux"));
+ * System.out.println("#records = " + file.getRecordCount());
+ * Element record = file.readRecord(123456);
+ * System.out.println(record.toXML());
+ * file.close();
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public class BinaryXMLRandomAccessFile {
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final BinaryXMLCodec codec = new BinaryXMLCodec();
+	private final int flags;        // feature flags of document header
+	private final int dictionaryID; // ID of the document's symbol dictionary, if any
+	
+	// page directory
+	private final long[] offsets;  // byte offset of each page
+	private final long[] elements; // number of elements preceding each page
+	private final long[] records;  // number of records preceding each page
+	private final int[] depths;    // number of open elements at the start of each page
+	private final String[][] paths;// qualified names of the open elements
+	private final long numElements;
+	private final long numRecords;
+	private final long directoryOffset; // end of the last page
+	
+	private ByteBuffer pageBuffer = ByteBuffer.allocate(0); // reused across reads
+	
+	/**
+	 * Opens the given bnux file and reads its page directory.
+	 * 
+	 * @param file
+	 *            the bnux file to read from
+	 * @throws BinaryParsingException
+	 *             if the file is not a bnux document, is corrupt, or has no
+	 *             page directory
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public BinaryXMLRandomAccessFile(File file) throws BinaryParsingException, IOException {
+		this(file, null);
+	}
+	
+	/**
+	 * Opens the given bnux file, written with the given symbol dictionary, and
+	 * reads its page directory.
+	 * 
+	 * @param file
+	 *            the bnux file to read from
+	 * @param dictionary
+	 *            the symbol dictionary the file has been written with (see
+	 *            {@link BinaryXMLCodec#setDictionary(BinaryXMLDictionary)}),
+	 *            or <code>null</code> if none
+	 * @throws BinaryParsingException
+	 *             if the file is not a bnux document, is corrupt, or has no
+	 *             page directory
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public BinaryXMLRandomAccessFile(File file, BinaryXMLDictionary dictionary) 
+			throws BinaryParsingException, IOException {
+		
+		if (file == null) 
+			throw new IllegalArgumentException("file must not be null");
+		
+		codec.setDictionary(dictionary);
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		boolean success = false;
+		try {
+			// read document header
+			ArrayByteList src = read(0, 4 + 1 + 1 + 4);
+			int version = BinaryXMLCodec.readDocumentHeader(src);
+			this.flags = BinaryXMLCodec.readFeatureFlags(version, src);
+			if ((flags & BinaryXMLCodec.PAGE_DIRECTORY) == 0) 
+				throw new BinaryParsingException("Bnux document has no page directory");
+			this.dictionaryID = src.getInt(); // meaningless unless DICTIONARY flag is set
+			if ((flags & BinaryXMLCodec.DICTIONARY) != 0 && 
+					(dictionary == null || dictionary.getID() != dictionaryID)) {
+				throw new BinaryParsingException(
+					"Bnux document requires a symbol dictionary with ID " + dictionaryID);
+			}
+			
+			// read trailer: size, magic
+			long size = channel.size();
+			src = read(size - 8, 8);
+			int dirSize = src.getInt();
+			if (src.getInt() != BinaryXMLCodec.BNUX_MAGIC || dirSize < 0 || dirSize > size - 8)
+				throw new BinaryParsingException("Corrupt bnux page directory trailer");
+			
+			// read page directory
+			this.directoryOffset = size - 8 - dirSize - 4; // page directory's leading size
+			src = read(size - 8 - dirSize, dirSize);
+			int numPages = src.getInt();
+			if (numPages <= 0) 
+				throw new BinaryParsingException("Corrupt bnux page directory");
+			this.numElements = src.getLong();
+			this.numRecords = src.getLong();
+			this.offsets = new long[numPages];
+			this.elements = new long[numPages];
+			this.records = new long[numPages];
+			this.depths = new int[numPages];
+			this.paths = new String[numPages][];
+			for (int i=0; i < numPages; i++) {
+				offsets[i] = src.getLong();
+				elements[i] = src.getLong();
+				records[i] = src.getLong();
+				depths[i] = src.getInt();
+				if (depths[i] < 0) 
+					throw new BinaryParsingException("Negative page depth");
+				paths[i] = src.getUTF8Strings(depths[i]);
+			}
+			success = true;
+		} finally {
+			if (!success) this.file.close();
+		}
+	}
+	
+	/**
+	 * Returns the number of pages of the document.
+	 * 
+	 * @return the number of pages
+	 */
+	public int getPageCount() {
+		return offsets.length;
+	}
+	
+	/**
+	 * Returns the byte offset within the file where the given page begins.
+	 * 
+	 * @param page
+	 *            the page number, in the range <code>0..getPageCount()-1</code>
+	 * @return the byte offset
+	 */
+	public long getPageOffset(int page) {
+		return offsets[page];
+	}
+	
+	/**
+	 * Returns the element nesting depth at the beginning of the given page,
+	 * that is, the number of elements opened but not yet closed before the
+	 * page.
+	 * 
+	 * @param page
+	 *            the page number, in the range <code>0..getPageCount()-1</code>
+	 * @return the depth
+	 */
+	public int getPageDepth(int page) {
+		return depths[page];
+	}
+	
+	/**
+	 * Returns the qualified names of the elements opened but not yet closed at
+	 * the beginning of the given page, from the root element downwards.
+	 * 
+	 * @param page
+	 *            the page number, in the range <code>0..getPageCount()-1</code>
+	 * @return the path of open ancestors (with <code>length == getPageDepth(page)</code>)
+	 */
+	public String[] getPagePath(int page) {
+		return (String[]) paths[page].clone();
+	}
+	
+	/**
+	 * Returns the total number of elements of the document.
+	 * 
+	 * @return the number of elements
+	 */
+	public long getElementCount() {
+		return numElements;
+	}
+	
+	/**
+	 * Returns the total number of records of the document, that is, the number
+	 * of child elements of the root element.
+	 * 
+	 * @return the number of records
+	 */
+	public long getRecordCount() {
+		return numRecords;
+	}
+	
+	/**
+	 * Returns the record with the given index (the <code>index</code>-th
+	 * child element of the root element), including its subtree.
+	 * 
+	 * @param index
+	 *            the zero based record index
+	 * @return the detached record element
+	 * @throws BinaryParsingException
+	 *             if the bnux document is unreadable or corrupt for some reason
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public Element readRecord(long index) throws BinaryParsingException, IOException {
+		return (Element) readRecords(index, index + 1).get(0);
+	}
+	
+	/**
+	 * Returns the records with indexes <code>[from..to)</code>, that is, the
+	 * corresponding child elements of the root element, including their
+	 * subtrees. Only the pages covering the given range are decoded.
+	 * 
+	 * @param from
+	 *            the index of the first record to return (inclusive)
+	 * @param to
+	 *            the index of the last record to return (exclusive)
+	 * @return the detached record elements, in document order
+	 * @throws BinaryParsingException
+	 *             if the bnux document is unreadable or corrupt for some reason
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public Nodes readRecords(long from, long to) throws BinaryParsingException, IOException {
+		checkRange(from, to, numRecords);
+		if (from == to) return new Nodes();
+		return readRange(findPage(records, from), records, from, to, true);
+	}
+	
+	/**
+	 * Returns the element with the given ordinal, including its subtree, where
+	 * elements are numbered in document order, and the root element has
+	 * ordinal zero.
+	 * 
+	 * @param ordinal
+	 *            the zero based position of the element in document order
+	 * @return the detached element
+	 * @throws BinaryParsingException
+	 *             if the bnux document is unreadable or corrupt for some reason
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public Element readElement(long ordinal) throws BinaryParsingException, IOException {
+		checkRange(ordinal, ordinal + 1, numElements);
+		Nodes nodes = readRange(findPage(elements, ordinal), elements, ordinal, ordinal + 1, false);
+		return (Element) nodes.get(0);
+	}
+	
+	/**
+	 * Sets the custom page compressor the file has been written with, if any
+	 * (see {@link BinaryXMLCodec#setPageCompressor(PageCompressor)}); the
+	 * built-in page compressors need not be set.
+	 * 
+	 * @param compressor
+	 *            the page compressor, or <code>null</code>
+	 */
+	public void setPageCompressor(PageCompressor compressor) {
+		codec.setPageCompressor(compressor);
+	}
+	
+	/**
+	 * Closes the underlying file.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+	
+	private Nodes readRange(int page, long[] ordinals, long from, long to, boolean isRecord) 
+			throws BinaryParsingException, IOException {
+		
+		InputStream input = new PageInputStream(page);
+		Nodes nodes = codec.deserializeRange(input, flags, dictionaryID, page == 0, 
+				depths[page], ordinals[page], from, to, isRecord);
+		if (nodes.size() != to - from) 
+			throw new BinaryParsingException("Corrupt bnux page directory");
+		return nodes;
+	}
+	
+	/** Returns the last page that starts before or at the given ordinal. */
+	private static int findPage(long[] ordinals, long ordinal) {
+		int low = 0;
+		int high = ordinals.length - 1;
+		while (low < high) { // binary search
+			int mid = (low + high + 1) >>> 1;
+			if (ordinals[mid] <= ordinal) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+	
+	private static void checkRange(long from, long to, long size) {
+		if (from < 0 || from > to || to > size)
+			throw new IndexOutOfBoundsException("from: " + from + ", to: "
+						+ to + ", size: " + size);
+	}
+	
+	/** Reads length bytes at the given file offset. */
+	private ArrayByteList read(long offset, int length) throws BinaryParsingException, IOException {
+		if (offset < 0) 
+			throw new BinaryParsingException("Premature end of bnux file");
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) 
+				throw new BinaryParsingException("Premature end of bnux file");
+		}
+		return new ArrayByteList(buffer.array());
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Stream over the pages of the document, starting at a given page; reads
+	 * the next page into the (shared) page buffer only once the current page
+	 * has been consumed, so records spanning pages are read page by page.
+	 */
+	private final class PageInputStream extends InputStream {
+		
+		private int nextPage;
+		
+		public PageInputStream(int page) {
+			this.nextPage = page;
+			pageBuffer.clear().limit(0);
+		}
+		
+		public int read() throws IOException {
+			if (!ensurePage()) return -1;
+			return pageBuffer.get() & 0xFF;
+		}
+		
+		public int read(byte[] dst, int offset, int length) throws IOException {
+			if (length == 0) return 0;
+			if (!ensurePage()) return -1;
+			int n = Math.min(length, pageBuffer.remaining());
+			pageBuffer.get(dst, offset, n);
+			return n;
+		}
+		
+		public int available() {
+			return pageBuffer.remaining();
+		}
+		
+		/** Reads the next page if the current one has been consumed; returns false at the end. */
+		private boolean ensurePage() throws IOException {
+			if (pageBuffer.hasRemaining()) return true;
+			if (nextPage >= offsets.length) return false;
+			long offset = offsets[nextPage];
+			long end = nextPage + 1 < offsets.length ? offsets[nextPage + 1] : directoryOffset;
+			if (end < offset || end - offset > Integer.MAX_VALUE) 
+				throw new IOException("Corrupt bnux page directory");
+			int length = (int) (end - offset);
+			if (pageBuffer.capacity() < length) pageBuffer = ByteBuffer.allocate(length);
+			pageBuffer.clear().limit(length);
+			while (pageBuffer.hasRemaining()) {
+				if (channel.read(pageBuffer, offset + pageBuffer.position()) < 0) 
+					throw new IOException("Premature end of bnux file");
+			}
+			pageBuffer.flip();
+			nextPage++;
+			return length > 0 || ensurePage();
+		}
+	}
+	
+}
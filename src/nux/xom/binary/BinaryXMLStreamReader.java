@@ -0,0 +1,951 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nu.xom.Attribute;
+import nu.xom.DocType;
+import nux.xom.io.StaxUtil;
+
+/**
+ * StAX {@link XMLStreamReader} pull parser implementation that reads directly
+ * from the pages of a bnux document, without building a XOM tree; mirrors the
+ * behaviour of the StAX reader over XOM trees in nux.xom.io.
+ * <p>
+ * Decoding state is kept in a few arrays: the names of open elements, the
+ * namespace bindings in scope, and the attributes of the current start tag.
+ * All strings are taken straight from the page symbol tables.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class BinaryXMLStreamReader implements XMLStreamReader { // not a public class
+	
+	/** The codec decoding pages for us. */
+	private final BinaryXMLCodec codec;
+	
+	/** The stream to read pages from; null once closed. */
+	private InputStream input;
+	
+	/** The current page, positioned at the next token. */
+	private final ArrayByteList src = new ArrayByteList(256);
+	
+	/** The symbols of the current page. */
+	private String[] symbols;
+	
+	private final boolean hasPageDirectory;
+	private final boolean hasSubtreeSizes;
+	private final String baseURI;
+	
+	/** The event the cursor is currently positioned over. */
+	private int eventType;
+	
+	// qualified names and namespace URIs of the open elements, including the current one
+	private String[] qnames = new String[16];
+	private String[] uris = new String[16];
+	private int depth = 0;
+	
+	// namespace bindings in scope; nsStarts[i] is the first binding declared by element i
+	private String[] nsPrefixes = new String[16];
+	private String[] nsURIs = new String[16];
+	private int[] nsStarts = new int[16];
+	private int nsSize = 0;
+	
+	// attributes of the current start tag
+	private String[] attrQNames = new String[8];
+	private String[] attrURIs = new String[8];
+	private String[] attrValues = new String[8];
+	private int[] attrTypes = new int[8];
+	private int attrCount = 0;
+	
+	/** Text of the current CHARACTERS or COMMENT event; potentially coalesced. */
+	private String text;
+	
+	/** Target and data of the current PROCESSING_INSTRUCTION event. */
+	private String piTarget;
+	private String piData;
+	
+	/** Root element name, public ID, system ID, internal subset of the current DTD event. */
+	private String[] docType;
+	
+	/** Maps a qualified name to its prefix and local name. */
+	private final LRUHashMap1 splitNames = new LRUHashMap1(128);
+	
+	private static final boolean DEBUG = false;
+	
+	
+	/**
+	 * Constructs an instance that reads the next bnux document from the given
+	 * stream, decoding pages with the given codec.
+	 */
+	BinaryXMLStreamReader(BinaryXMLCodec codec, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		this.codec = codec;
+		this.input = input;
+		this.hasPageDirectory = codec.readDocumentStart(src, input);
+		this.hasSubtreeSizes = codec.hasSubtreeSizes();
+		this.symbols = codec.readPageSymbols(src, input);
+		int i = src.getInt();
+		this.baseURI = i < 0 ? "" : symbols[i];
+		this.eventType = START_DOCUMENT;
+	}
+	
+	/** {@inheritDoc} */
+	public void close() throws XMLStreamException {
+		this.input = null;
+		this.symbols = null;
+		this.text = null;
+		this.eventType = END_DOCUMENT;
+	}
+
+	/** {@inheritDoc} */
+	public int getEventType() {
+		return eventType;
+	}
+
+	/** {@inheritDoc} */
+	public boolean hasNext() throws XMLStreamException {
+		return eventType != END_DOCUMENT;
+	}
+
+	/** {@inheritDoc} */
+	public int next() throws XMLStreamException {
+		/*
+		 * Note that the following event types are never returned: CDATA, SPACE,
+		 * ENTITY_REFERENCE, ENTITY_DECLARATION, NOTATION_DECLARATION,
+		 * NAMESPACE, ATTRIBUTE. These event types are not present in the XOM 
+		 * object model.
+		 */   
+		if (!hasNext()) throw new NoSuchElementException(
+				"Attempted to read beyond end of bnux document");
+		
+		if (eventType == END_ELEMENT) popElement();
+		text = null;
+		try {
+			return readEvent();
+		} catch (BinaryParsingException e) {
+			throw new XMLStreamException(e.getMessage(), getLocation(), e);
+		} catch (IOException e) {
+			throw new XMLStreamException(e.getMessage(), getLocation(), e);
+		} catch (RuntimeException e) { // corrupt data, e.g. index out of bounds
+			throw new XMLStreamException(e.toString(), getLocation(), e);
+		}
+	}
+	
+	/** Reads tokens until the next event; returns the event type. */
+	private int readEvent() throws BinaryParsingException, IOException {
+		while (true) {
+			if (src.remaining() == 0) { // end of last page
+				if (depth > 0) 
+					throw new BinaryParsingException("Premature end of bnux document");
+				if (hasPageDirectory) BinaryXMLCodec.skipPageDirectory(src, input);
+				symbols = null; // help gc
+				return setEventType(END_DOCUMENT);
+			}
+			
+			int type = src.get();
+			if (DEBUG) System.err.println("reading type = " + (type & 0x07));
+			switch (type & 0x07) { // three low bits indicate node type
+				case BinaryXMLCodec.TEXT: {
+					text = readString(4, type);
+					if (src.remaining() > 0 && isText(src.get(src.position()))) {
+						// Merge adjacent Text nodes into a single virtual text node, ala XPath
+						StringBuffer buf = new StringBuffer(text);
+						while (src.remaining() > 0 && isText(src.get(src.position()))) {
+							buf.append(readString(4, src.get()));
+						}
+						text = buf.toString();
+					}
+					if (text.length() == 0) continue; // ignore empty Text ala XPath
+					return setEventType(CHARACTERS);
+				}
+				case BinaryXMLCodec.BEGIN_ELEMENT: {
+					readStartTag(type);
+					return setEventType(START_ELEMENT);
+				}
+				case BinaryXMLCodec.END_ELEMENT: {
+					if (depth == 0) 
+						throw new BinaryParsingException("Unbalanced end of element");
+					return setEventType(END_ELEMENT); // pops on next()
+				}
+				case BinaryXMLCodec.COMMENT: {
+					text = readString(4, type);
+					return setEventType(COMMENT);
+				}
+				case BinaryXMLCodec.PROCESSING_INSTRUCTION: {
+					piTarget = readString(4, type);
+					piData = readString(6, type);
+					return setEventType(PROCESSING_INSTRUCTION);
+				}
+				case BinaryXMLCodec.DOC_TYPE: {
+					if (depth > 0) { // surrogate hack to identify BEGIN_PAGE
+						symbols = null; // help gc
+						symbols = codec.readPageSymbols(src, input);
+						continue;
+					}
+					// real doctype; four unpacked indexes
+					docType = new String[4];
+					for (int i=0; i < 4; i++) docType[i] = symbols[src.getInt()];
+					return setEventType(DTD);
+				}
+				case BinaryXMLCodec.ATTRIBUTE: {
+					throw new BinaryParsingException("Unreachable attribute");
+				}
+				default: { // NAMESPACE_DECLARATION
+					throw new BinaryParsingException("Unreachable namespace declaration");
+				}
+			}
+		}
+	}
+	
+	private static boolean isText(int type) {
+		return (type & 0x07) == BinaryXMLCodec.TEXT;
+	}
+	
+	/** Reads string via packed index from symbol table */
+	private String readString(int shift, int type) {
+		int i = BinaryXMLCodec.readSymbol(src, shift, type);
+		if (i < 0) return "";
+		return symbols[i];
+	}
+	
+	/**
+	 * Reads the start tag including the attributes and namespace declarations
+	 * following it, and pushes the element and its namespace bindings.
+	 */
+	private void readStartTag(int type) throws BinaryParsingException {
+		if (depth == qnames.length) {
+			qnames = grow(qnames, depth);
+			uris = grow(uris, depth);
+			int[] tmp = new int[2 * depth];
+			System.arraycopy(nsStarts, 0, tmp, 0, depth);
+			nsStarts = tmp;
+		}
+		String qname = readString(4, type);
+		String uri = readString(6, type);
+		if (hasSubtreeSizes) src.getVarInt(); // ignore
+		qnames[depth] = qname;
+		uris[depth] = uri;
+		nsStarts[depth] = nsSize;
+		depth++;
+		declareNamespace(getPrefix(qname), uri);
+		
+		// read attributes and additional namespace declarations
+		attrCount = 0;
+		while (src.remaining() > 0) {
+			type = src.get(src.position()); // look ahead
+			if ((type & 0x07) == BinaryXMLCodec.ATTRIBUTE) {
+				src.get();
+				if (attrCount == attrQNames.length) {
+					attrQNames = grow(attrQNames, attrCount);
+					attrURIs = grow(attrURIs, attrCount);
+					attrValues = grow(attrValues, attrCount);
+					int[] tmp = new int[2 * attrCount];
+					System.arraycopy(attrTypes, 0, tmp, 0, attrCount);
+					attrTypes = tmp;
+				}
+				String attrQName = readString(4, type);
+				String attrURI = readString(6, type);
+				attrQNames[attrCount] = attrQName;
+				attrURIs[attrCount] = attrURI;
+				attrValues[attrCount] = readString(4, src.get());
+				attrTypes[attrCount] = src.get();
+				attrCount++;
+				if (attrURI.length() > 0) declareNamespace(getPrefix(attrQName), attrURI);
+			} else if ((type & 0x07) == BinaryXMLCodec.NAMESPACE_DECLARATION) {
+				src.get();
+				String prefix = readString(4, type);
+				declareNamespace(prefix, readString(6, type));
+			} else {
+				break;
+			}
+		}
+	}
+	
+	/** Pops the element that has just ended, and its namespace bindings. */
+	private void popElement() {
+		depth--;
+		nsSize = nsStarts[depth];
+		attrCount = 0;
+	}
+	
+	/** Adds the given binding, unless it is already in scope. */
+	private void declareNamespace(String prefix, String uri) {
+		if (prefix.equals(XMLConstants.XML_NS_PREFIX)) return; // implicitly bound
+		if (uri.equals(lookupNamespaceURI(prefix))) return; // redundant
+		if (nsSize == nsPrefixes.length) {
+			nsPrefixes = grow(nsPrefixes, nsSize);
+			nsURIs = grow(nsURIs, nsSize);
+		}
+		nsPrefixes[nsSize] = prefix;
+		nsURIs[nsSize] = uri;
+		nsSize++;
+	}
+	
+	/** Returns the URI bound to the given prefix, or null if unbound. */
+	private String lookupNamespaceURI(String prefix) {
+		for (int i=nsSize; --i >= 0; ) {
+			if (prefix.equals(nsPrefixes[i])) return nsURIs[i];
+		}
+		if (prefix.length() == 0) return ""; // default namespace
+		if (prefix.equals(XMLConstants.XML_NS_PREFIX)) return XMLConstants.XML_NS_URI;
+		if (prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+		return null;
+	}
+	
+	private static String[] grow(String[] array, int size) {
+		String[] tmp = new String[2 * size];
+		System.arraycopy(array, 0, tmp, 0, size);
+		return tmp;
+	}
+	
+	/** Returns the prefix and local name of the given qualified name. */
+	private String[] splitName(String qname) {
+		String[] parts = (String[]) splitNames.get(qname);
+		if (parts == null) {
+			int i = qname.indexOf(':');
+			if (i < 0) {
+				parts = new String[] {"", qname};
+			} else {
+				parts = new String[] {qname.substring(0, i), qname.substring(i+1)};
+			}
+			splitNames.put(qname, parts);
+		}
+		return parts;
+	}
+	
+	private String getPrefix(String qname) {
+		if (qname.indexOf(':') < 0) return "";
+		return splitName(qname)[0];
+	}
+	
+	private int setEventType(int eventType) {
+		this.eventType = eventType;
+		return eventType;
+	}
+
+	/** {@inheritDoc} */
+	public int nextTag() throws XMLStreamException {
+		while (true) {
+			int ev = next();
+
+			switch (ev) {
+				case SPACE:
+				case COMMENT:
+				case PROCESSING_INSTRUCTION:
+					break; // skip to next event
+				case CDATA:
+				case CHARACTERS:
+					if (!isWhiteSpace()) throwXMLStreamException(
+							"Required whitespace-only CHARACTERS|CDATA");
+					break; // skip to next event
+				case START_ELEMENT:
+				case END_ELEMENT:
+					return ev;
+				default: 
+					throwXMLStreamException("type", "START_ELEMENT|END_ELEMENT",
+							toString(ev));
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	public boolean isStartElement() {
+		return getEventType() == START_ELEMENT;
+	}
+
+	/** {@inheritDoc} */
+	public boolean isEndElement() {
+		return getEventType() == END_ELEMENT;
+	}
+
+	/** {@inheritDoc} */
+	public boolean isCharacters() {
+		return getEventType() == CHARACTERS;
+	}
+
+	/** {@inheritDoc} */
+	public boolean isWhiteSpace() {
+		return isCharacters() && isWhitespaceOnly(getText());
+	}
+	
+	/** Returns the index of the current element on the stack. */
+	private int currentElement() {
+		if (!isStartElement() && !isEndElement()) {
+			throwIllegalStateException("START_ELEMENT|END_ELEMENT");
+		}
+		return depth - 1;
+	}
+	
+	private int currentAttribute(int index) {
+		if (!isStartElement()) throwIllegalStateException("START_ELEMENT");
+		if (index < 0 || index >= attrCount) 
+			throw new IndexOutOfBoundsException("index: " + index + ", count: " + attrCount);
+		return index;
+	}
+	
+	/** {@inheritDoc} */
+	public String getLocalName() {
+		return splitName(qnames[currentElement()])[1];
+	}
+
+	/** {@inheritDoc} */
+	public String getPrefix() {
+		return getPrefix(qnames[currentElement()]);
+	}
+
+	/** {@inheritDoc} */
+	public String getNamespaceURI() {
+		return uris[currentElement()];
+	}
+
+	/** {@inheritDoc} */
+	public QName getName() {
+		return new QName(getNamespaceURI(), getLocalName(), getPrefix());
+	}
+	
+	/** {@inheritDoc} */
+	public int getAttributeCount() {
+		if (!isStartElement()) throwIllegalStateException("START_ELEMENT");
+		return attrCount;
+	}
+
+	/** {@inheritDoc} */
+	public QName getAttributeName(int index) {
+		return new QName(
+			getAttributeNamespace(index), 
+			getAttributeLocalName(index), 
+			getAttributePrefix(index));
+	}
+	
+	/** {@inheritDoc} */
+	public String getAttributeNamespace(int index) {
+		return attrURIs[currentAttribute(index)];
+	}
+
+	/** {@inheritDoc} */
+	public String getAttributeLocalName(int index) {
+		return splitName(attrQNames[currentAttribute(index)])[1];
+	}
+
+	/** {@inheritDoc} */
+	public String getAttributePrefix(int index) {
+		return getPrefix(attrQNames[currentAttribute(index)]);
+	}
+
+	/** {@inheritDoc} */
+	public String getAttributeType(int index) {
+		Attribute.Type attrType;
+		try {
+			attrType = Util.getAttributeType(attrTypes[currentAttribute(index)]);
+		} catch (BinaryParsingException e) {
+			return "CDATA"; // can't happen for well-formed data
+		}
+		if (attrType == Attribute.Type.ENUMERATION) return "ENUMERATED"; // TODO: ???
+		return attrType.getName(); // StAX spec isn't clear on what's legal here
+	}
+
+	/** {@inheritDoc} */
+	public String getAttributeValue(int index) {
+		return attrValues[currentAttribute(index)];
+	}
+
+	/** {@inheritDoc} */
+	public String getAttributeValue(String namespaceURI, String localName) {
+		if (localName == null) 
+			throw new IllegalArgumentException("localName must not be null");
+		
+		int count = getAttributeCount();
+		for (int i=0; i < count; i++) {
+			if (localName.equals(getAttributeLocalName(i))) {
+				if (namespaceURI == null || namespaceURI.equals(attrURIs[i])) {
+					return attrValues[i];
+				}
+			}
+		}
+		return null; // not found
+	}
+
+	/** {@inheritDoc} */
+	public boolean isAttributeSpecified(int index) {
+		return false; // info not available from XOM
+	}
+
+	/** {@inheritDoc} */
+	public String getElementText() throws XMLStreamException {
+		require(START_ELEMENT, null, null);
+		String str = null;
+		
+		while (true) {
+			switch (next()) {
+				case END_ELEMENT:
+					return str == null ? "" : str; // we're done
+				case CDATA:
+				case SPACE:
+				case ENTITY_REFERENCE:
+				case CHARACTERS: { // accumulate strings
+					String text = getText();
+					str = str == null ? text : str + text;
+					break;
+				}
+				case PROCESSING_INSTRUCTION:
+				case COMMENT:
+					break; // skip to next event
+				case END_DOCUMENT:
+					throwXMLStreamException(
+						"unexpected end of document when reading element text content");
+				case START_ELEMENT:
+					throwXMLStreamException(
+						"element text content may not contain START_ELEMENT");
+				default:
+					throwXMLStreamException(
+						"Unexpected event type: " + toString(getEventType()));
+			}				
+		}
+	}
+
+	/** {@inheritDoc} */
+	public int getNamespaceCount() {
+		int i = currentElement();
+		int end = i + 1 < depth ? nsStarts[i+1] : nsSize;
+		return end - nsStarts[i];
+	}
+
+	/** {@inheritDoc} */
+	public String getNamespacePrefix(int index) {
+		return nsPrefixes[currentNamespace(index)];
+	}
+
+	/** {@inheritDoc} */
+	public String getNamespaceURI(int index) {
+		return nsURIs[currentNamespace(index)];
+	}
+	
+	private int currentNamespace(int index) {
+		if (index < 0 || index >= getNamespaceCount()) 
+			throw new IndexOutOfBoundsException("index: " + index);
+		return nsStarts[currentElement()] + index;
+	}
+
+	/** {@inheritDoc} */
+	public String getNamespaceURI(String prefix) {
+		if (prefix == null) 
+			throw new IllegalArgumentException("prefix must not be null");
+		return lookupNamespaceURI(prefix);
+	}
+
+	/** {@inheritDoc} */
+	public NamespaceContext getNamespaceContext() {
+		String[] prefixes = new String[nsSize];
+		String[] uris = new String[nsSize];
+		System.arraycopy(nsPrefixes, 0, prefixes, 0, nsSize);
+		System.arraycopy(nsURIs, 0, uris, 0, nsSize);
+		return new NamespaceContextImpl(prefixes, uris);
+	}
+
+	/** {@inheritDoc} */
+	public String getPITarget() {
+		if (getEventType() != PROCESSING_INSTRUCTION) 
+			throwIllegalStateException("PROCESSING_INSTRUCTION");
+		return piTarget;
+	}
+
+	/** {@inheritDoc} */
+	public String getPIData() {
+		if (getEventType() != PROCESSING_INSTRUCTION) 
+			throwIllegalStateException("PROCESSING_INSTRUCTION");
+		return piData;
+	}
+	
+	/** {@inheritDoc} */
+	public String getText() {
+		switch (getEventType()) {
+			case CHARACTERS: return text;
+			case COMMENT: return text;
+			case DTD: return createDocType().toXML(); // TODO: ???
+			default: {
+				throwIllegalStateException("CHARACTERS|CDATA|SPACE|COMMENT|DTD");
+				return null; // unreachable
+			}
+		}
+	}
+	
+	private DocType createDocType() {
+		String publicID = docType[1];
+		if (BinaryXMLCodec.DOCTYPE_NULL_ID.equals(publicID)) publicID = null;
+		String systemID = docType[2];
+		if (BinaryXMLCodec.DOCTYPE_NULL_ID.equals(systemID)) systemID = null;
+		DocType result = new DocType(docType[0], publicID, systemID);
+		if (docType[3].length() > 0) {
+			try {
+				result.setInternalDTDSubset(docType[3]);
+			} catch (IllegalAccessError e) {
+				; // ignore; setInternalDTDSubset() is private in xom < 1.1 
+			}
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public char[] getTextCharacters() {
+		return getText().toCharArray();
+	}
+
+	/** {@inheritDoc} */
+	public int getTextCharacters(int sourceStart, char[] target,
+			int targetStart, int length) throws XMLStreamException {
+		
+		String text = getText();
+		int sourceEnd = Math.min(text.length(), sourceStart + length);
+		text.getChars(sourceStart, sourceEnd, target, targetStart);
+		return sourceEnd - sourceStart;
+	}
+
+	/** {@inheritDoc} */
+	public int getTextStart() {
+		return 0;
+	}
+
+	/** {@inheritDoc} */
+	public int getTextLength() {
+		return getText().length();
+	}
+
+	/** {@inheritDoc} */
+	public boolean hasName() {
+		return isStartElement() || isEndElement();
+	}
+
+	/** {@inheritDoc} */
+	public boolean hasText() {
+		switch (getEventType()) {
+			case CHARACTERS:
+			case COMMENT:
+			case DTD: return true; // ???
+			default: return false;
+		}
+	}
+
+	/** {@inheritDoc} */
+	public String getEncoding() {
+		return null;
+	}
+
+	/** {@inheritDoc} */
+	public Location getLocation() {
+		return new UnknownLocation();
+	}
+
+	/** {@inheritDoc} */
+	public String getVersion() {
+		return null;
+	}
+
+	/** {@inheritDoc} */
+	public boolean isStandalone() {
+		return false;
+	}
+
+	/** {@inheritDoc} */
+	public boolean standaloneSet() {
+		return false;
+	}
+
+	/** {@inheritDoc} */
+	public String getCharacterEncodingScheme() {
+		return null;
+	}
+
+	/** {@inheritDoc} */
+	public Object getProperty(String name) throws IllegalArgumentException {
+		if (name == null) 
+			throw new IllegalArgumentException("name must not be null");	
+		
+		if (name.equals(XMLInputFactory.IS_NAMESPACE_AWARE)) {
+			return Boolean.TRUE;
+		}
+		if (name.equals(XMLInputFactory.IS_COALESCING)) {
+			return Boolean.TRUE;
+		}
+		if (name.equals(XMLInputFactory.IS_VALIDATING)) {
+			return Boolean.FALSE;
+		}
+		if (name.equals(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES)) {
+			return Boolean.TRUE; // by virtue of XOM
+		}
+		if (name.equals(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES)) {
+			return Boolean.TRUE; // by virtue of XOM
+		}
+		if (name.equals(XMLInputFactory.SUPPORT_DTD)) {
+			return Boolean.TRUE; // by virtue of XOM
+		}
+		if (name.equals(XMLInputFactory.REPORTER)) {
+			return null;
+		}
+		if (name.equals(XMLInputFactory.RESOLVER)) {
+			return null;
+		}
+		if (name.equals(XMLInputFactory.ALLOCATOR)) {
+			return null;
+		}
+		
+		throw new IllegalArgumentException("Unsupported property: " + name);
+	}
+	
+	/**
+	 * The standard StAX API does not provide enough info, so this is an
+	 * experimental StAX extension borrowed from woodstox, to be used via pure
+	 * runtime reflection. 
+	 * <p>
+	 * Also see StaxParser.readDocType()
+	 */
+	public Object getDTDInfo() {
+		if (getEventType() != DTD) throwIllegalStateException("DTD");
+		return new DTDInfo(createDocType());
+	}
+
+	/** {@inheritDoc} */
+	public void require(int type, String namespaceURI, String localName)
+			throws XMLStreamException {
+		
+		if (getEventType() != type) {
+			throwXMLStreamException("type", toString(type), toString(getEventType()));
+		}		
+		
+		if (localName != null && !localName.equals(getLocalName())) {
+			throwXMLStreamException("localName", localName, getLocalName());
+		}
+		
+		if (namespaceURI != null && !namespaceURI.equals(getNamespaceURI())) {
+			throwXMLStreamException("namespaceURI", namespaceURI, getNamespaceURI());
+		}
+		
+	}
+
+	// moved slow path out of hotspot to enable better inlining
+	private void throwIllegalStateException(String expected) {
+		throw new IllegalStateException("Required type: " + expected 
+				+ ", actual type: " + toString(getEventType()));		
+	}
+	
+	private void throwXMLStreamException(String msg, String expected, String actual)
+			throws XMLStreamException {
+		
+		msg = "Required " + msg + ":'" + expected + "', actual " + msg + ":'" + actual + "'";
+		throwXMLStreamException(msg);
+	}
+	
+	private void throwXMLStreamException(String msg) throws XMLStreamException {
+		throw new XMLStreamException(msg, getLocation());
+	}
+	
+	private static boolean isWhitespaceOnly(String str) {
+		for (int i=str.length(); --i >= 0; ) {
+			switch (str.charAt(i)) { // see XML spec
+				case '\t': 
+				case '\n': 
+				case '\r': 
+				case ' ' : break;
+				default  : return false;			
+			}
+		}
+		return true;
+	}
+	
+	/** {@inheritDoc} */
+	public String toString() {
+		return toString(getEventType());		
+	}
+	
+	private static String toString(int ev) {
+		return StaxUtil.toString(ev);
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Immutable snapshot of the namespace bindings in scope. */
+	private static final class NamespaceContextImpl implements NamespaceContext {
+		
+		private final String[] prefixes;
+		private final String[] uris;
+		
+		private NamespaceContextImpl(String[] prefixes, String[] uris) {
+			this.prefixes = prefixes;
+			this.uris = uris;
+		}
+		
+		/** {@inheritDoc} */
+		public String getNamespaceURI(String prefix) {
+			if (prefix == null) 
+				throw new IllegalArgumentException("prefix must not be null");
+			for (int i=prefixes.length; --i >= 0; ) {
+				if (prefix.equals(prefixes[i])) return uris[i];
+			}
+			if (prefix.length() == 0) return "";
+			if (prefix.equals(XMLConstants.XML_NS_PREFIX)) return XMLConstants.XML_NS_URI;
+			if (prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+			return null;
+		}
+				
+		/** {@inheritDoc} */
+		public String getPrefix(String namespaceURI) {
+			Iterator iter = getPrefixes(namespaceURI);
+			if (iter.hasNext()) return (String) iter.next();
+			return null; // not found
+		}
+
+		/** {@inheritDoc} */
+		public Iterator getPrefixes(String namespaceURI) {
+			if (namespaceURI == null) 
+				throw new IllegalArgumentException("namespaceURI must not be null");
+			
+			// "http://www.w3.org/XML/1998/namespace" --> "xml"
+			if (namespaceURI.equals(XMLConstants.XML_NS_URI)) {
+				return getSingletonIterator(XMLConstants.XML_NS_PREFIX);
+			}
+			// "http://www.w3.org/2000/xmlns/" --> "xmlns"
+			if (namespaceURI.equals(XMLConstants.XMLNS_ATTRIBUTE_NS_URI)) {
+				return getSingletonIterator(XMLConstants.XMLNS_ATTRIBUTE);
+			}
+			
+			ArrayList result = new ArrayList(1);
+			for (int i=prefixes.length; --i >= 0; ) { // innermost first
+				String prefix = prefixes[i];
+				if (namespaceURI.equals(uris[i]) && !result.contains(prefix) 
+						&& namespaceURI.equals(getNamespaceURI(prefix))) { // not shadowed
+					result.add(prefix);
+				}
+			}
+			return Collections.unmodifiableList(result).iterator();
+		}
+		
+		private static Iterator getSingletonIterator(String str) {
+			List prefixes = Arrays.asList(new String[] {str});
+			return Collections.unmodifiableList(prefixes).iterator();
+		}
+					
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	private final class UnknownLocation implements Location {
+
+		/** {@inheritDoc} */
+		public int getLineNumber() { return -1; }
+		
+		/** {@inheritDoc} */
+		public int getColumnNumber() { return -1; }
+		
+		/** {@inheritDoc} */
+		public int getCharacterOffset() { return -1; }
+
+		/** {@inheritDoc} */
+		public String getPublicId() {
+			return null;
+		}
+
+		/** {@inheritDoc} */
+		public String getSystemId() {
+			// a baseURI isn't exactly a systemID, but better than nothing
+			return baseURI.length() == 0 ? null : baseURI;
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** StAX extension hack to pass through DocType related info. */
+	private static final class DTDInfo {
+
+		private final DocType docType;
+
+		private DTDInfo(DocType docType) {
+			this.docType = docType;
+		}
+
+		public String getDTDRootName() {
+			return docType.getRootElementName();
+		}
+
+		public String getDTDSystemId() {
+			return docType.getSystemID();
+		}
+
+		public String getDTDPublicId() {
+			return docType.getPublicID();
+		}
+
+		public String getDTDInternalSubset() {
+			return docType.getInternalDTDSubset();
+		}
+
+	}
+	
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Transcodes the events of a SAX or StAX parser directly into bnux binary
+ * XML, without building intermediate XOM nodes; see
+ * {@link BinaryXMLCodec#createContentHandler(OutputStream, int)} and
+ * {@link BinaryXMLCodec#serialize(XMLStreamReader, int, OutputStream)}.
+ * <p>
+ * Namespace declarations and attribute types are mapped the same way as
+ * <code>nu.xom.Builder</code> does, so deserializing the result yields the
+ * same document as building it with a <code>Builder</code> would.
+ * Exceptions: internal DTD subsets are not reported by SAX and StAX, and
+ * DTDs are ignored altogether for StAX.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class BinaryXMLTranscoder implements ContentHandler, LexicalHandler { // not a public class
+
+	private final BinaryXMLCodec codec;
+	private final OutputStream out;
+	private final int zlibCompressionLevel;
+	
+	/** Current element nesting depth. */
+	private int depth;
+	
+	/** Are we within a DTD, whose comments and PIs belong to the internal subset? */
+	private boolean isInDTD;
+	
+	/** Coalesces adjacent chunks of character data into a single text node. */
+	private char[] text = new char[256];
+	private int textLength = 0;
+	
+	/** SAX namespace declarations of the next start tag. */
+	private String[] nsPrefixes = new String[8];
+	private String[] nsURIs = new String[8];
+	private int nsCount = 0;
+	
+	private Locator locator;
+	
+	private static final boolean DEBUG = false;
+	
+	BinaryXMLTranscoder(BinaryXMLCodec codec, OutputStream out, int zlibCompressionLevel) {
+		if (codec == null) 
+			throw new IllegalArgumentException("codec must not be null");
+		if (out == null) 
+			throw new IllegalArgumentException("output stream must not be null");
+		if (zlibCompressionLevel < 0 || zlibCompressionLevel > 9)
+			throw new IllegalArgumentException("Compression level must be 0..9");
+		
+		this.codec = codec;
+		this.out = out;
+		this.zlibCompressionLevel = zlibCompressionLevel;
+	}
+	
+	/**
+	 * Transcodes the current document of the given reader, which must be
+	 * positioned over a <code>START_DOCUMENT</code> event; afterwards the
+	 * reader is positioned over the corresponding <code>END_DOCUMENT</code>.
+	 */
+	void transcode(XMLStreamReader reader) throws XMLStreamException, IOException {
+		reader.require(XMLStreamConstants.START_DOCUMENT, null, null);
+		Location loc = reader.getLocation();
+		String baseURI = loc == null ? null : loc.getSystemId();
+		startDocument(baseURI);
+		
+		while (true) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT: {
+					flushText();
+					depth++;
+					String prefix = nonNull(reader.getPrefix());
+					codec.writeStartTag(prefix, reader.getLocalName(), 
+							nonNull(reader.getNamespaceURI()));
+					
+					int count = reader.getAttributeCount();
+					for (int i = 0; i < count; i++) {
+						codec.writeAttribute(
+							nonNull(reader.getAttributePrefix(i)), 
+							reader.getAttributeLocalName(i), 
+							nonNull(reader.getAttributeNamespace(i)), 
+							reader.getAttributeValue(i), 
+							Util.getAttributeTypeCode(reader.getAttributeType(i)));
+					}
+					
+					count = reader.getNamespaceCount();
+					for (int i = 0; i < count; i++) {
+						String nsPrefix = nonNull(reader.getNamespacePrefix(i));
+						if (!nsPrefix.equals(prefix)) { // already implied by start tag
+							codec.writeNamespaceDeclaration(nsPrefix, 
+									nonNull(reader.getNamespaceURI(i)));
+						}
+					}
+					break;
+				}
+				case XMLStreamConstants.END_ELEMENT: {
+					flushText();
+					depth--;
+					codec.writeEndTag();
+					break;
+				}
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+				case XMLStreamConstants.ENTITY_REFERENCE: {
+					if (depth > 0) { // ignore text in prolog/epilog
+						addText(reader.getTextCharacters(), 
+							reader.getTextStart(), reader.getTextLength());
+					}
+					break;
+				}
+				case XMLStreamConstants.COMMENT: {
+					flushText();
+					codec.writeComment(reader.getText());
+					break;
+				}
+				case XMLStreamConstants.PROCESSING_INSTRUCTION: {
+					flushText();
+					codec.writeProcessingInstruction(
+						reader.getPITarget(), nonNull(reader.getPIData()));
+					break;
+				}
+				case XMLStreamConstants.END_DOCUMENT: {
+					if (depth != 0) throw new XMLStreamException("Unbalanced end of document");
+					codec.writeEndDocument();
+					return;
+				}
+				default: { // DTD, ENTITY_DECLARATION, NOTATION_DECLARATION
+					break; // ignore (missing StAX support)
+				}
+			}
+		}
+	}
+	
+	private static String nonNull(String str) {
+		return str == null ? "" : str;
+	}
+	
+	private void startDocument(String baseURI) {
+		if (DEBUG) System.err.println("transcoding document");
+		depth = 0;
+		isInDTD = false;
+		nsCount = 0;
+		textLength = 0;
+		codec.setOutputStream(zlibCompressionLevel, out);
+		codec.writeXMLDeclaration(baseURI);
+	}
+	
+	private void addText(char[] chars, int offset, int length) {
+		if (textLength + length > text.length) {
+			char[] tmp = new char[Math.max(2 * text.length, textLength + length)];
+			System.arraycopy(text, 0, tmp, 0, textLength);
+			text = tmp;
+		}
+		System.arraycopy(chars, offset, text, textLength, length);
+		textLength += length;
+	}
+	
+	/** Writes pending text; creates no string unless the text is new to the current page. */
+	private void flushText() {
+		if (textLength > 0) {
+			codec.writeText(text, 0, textLength);
+			textLength = 0;
+		}
+	}
+	
+	/** Returns whether the given qualified name has the given prefix */
+	private static boolean hasPrefix(String qName, String prefix) {
+		int len = prefix.length();
+		if (len == 0) return qName.indexOf(':') < 0;
+		return qName.length() > len && qName.charAt(len) == ':' && qName.startsWith(prefix);
+	}
+	
+	/** {@inheritDoc} */
+	public void setDocumentLocator(Locator locator) {
+		this.locator = locator;
+	}
+
+	/** {@inheritDoc} */
+	public void startDocument() {
+		startDocument(locator == null ? null : locator.getSystemId());
+	}
+
+	/** {@inheritDoc} */
+	public void endDocument() throws SAXException {
+		try {
+			codec.writeEndDocument();
+		} catch (IOException e) {
+			codec.reset(); // better safe than sorry
+			throw new SAXException(e);
+		} finally {
+			locator = null;
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void startPrefixMapping(String prefix, String uri) {
+		if (nsCount == nsPrefixes.length) {
+			String[] tmp = new String[2 * nsCount];
+			System.arraycopy(nsPrefixes, 0, tmp, 0, nsCount);
+			nsPrefixes = tmp;
+			tmp = new String[2 * nsCount];
+			System.arraycopy(nsURIs, 0, tmp, 0, nsCount);
+			nsURIs = tmp;
+		}
+		nsPrefixes[nsCount] = prefix;
+		nsURIs[nsCount] = uri;
+		nsCount++;
+	}
+
+	/** {@inheritDoc} */
+	public void endPrefixMapping(String prefix) {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void startElement(String uri, String localName, String qName, Attributes atts) {
+		flushText();
+		depth++;
+		codec.writeStartTag("", qName, uri); // avoids splitting qName into prefix and localName
+		
+		for (int i = 0, count = atts.getLength(); i < count; i++) {
+			String attQName = atts.getQName(i);
+			if (attQName.startsWith("xmlns") && 
+					(attQName.length() == 5 || attQName.charAt(5) == ':')) {
+				continue; // namespace declaration reported via startPrefixMapping
+			}
+			codec.writeAttribute("", attQName, atts.getURI(i), atts.getValue(i), 
+					Util.getAttributeTypeCode(atts.getType(i)));
+		}
+		
+		for (int i = 0; i < nsCount; i++) {
+			if (!hasPrefix(qName, nsPrefixes[i])) { // else already implied by start tag
+				codec.writeNamespaceDeclaration(nsPrefixes[i], nsURIs[i]);
+			}
+			nsPrefixes[i] = null; // help gc
+			nsURIs[i] = null; // help gc
+		}
+		nsCount = 0;
+	}
+
+	/** {@inheritDoc} */
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		flushText();
+		depth--;
+		try {
+			codec.writeEndTag();
+		} catch (IOException e) {
+			codec.reset(); // better safe than sorry
+			throw new SAXException(e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void characters(char[] ch, int start, int length) {
+		if (depth > 0) addText(ch, start, length); // ignore text in prolog/epilog
+	}
+
+	/** {@inheritDoc} */
+	public void ignorableWhitespace(char[] ch, int start, int length) {
+		characters(ch, start, length);
+	}
+
+	/** {@inheritDoc} */
+	public void processingInstruction(String target, String data) {
+		if (isInDTD) return; // belongs to internal DTD subset
+		flushText();
+		codec.writeProcessingInstruction(target, nonNull(data));
+	}
+
+	/** {@inheritDoc} */
+	public void skippedEntity(String name) {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void startDTD(String name, String publicId, String systemId) {
+		isInDTD = true;
+		codec.writeDocType(name, publicId, systemId, "");
+	}
+
+	/** {@inheritDoc} */
+	public void endDTD() {
+		isInDTD = false;
+	}
+
+	/** {@inheritDoc} */
+	public void startEntity(String name) {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void endEntity(String name) {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void startCDATA() {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void endCDATA() {
+		; // nothing to do
+	}
+
+	/** {@inheritDoc} */
+	public void comment(char[] ch, int start, int length) {
+		if (isInDTD) return; // belongs to internal DTD subset
+		flushText();
+		codec.writeComment(new String(ch, start, length));
+	}
+	
+}
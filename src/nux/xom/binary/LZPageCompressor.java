@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.util.Arrays;
+
+/**
+ * Fast {@link PageCompressor} of the LZ77 family, written in pure Java; trades
+ * compression factor for speed, and is intended as a middle ground between no
+ * compression and ZLIB compression, for example on high-bandwidth networks
+ * where ZLIB is CPU-bound. Its ID is 2.
+ * <p>
+ * The data format is a sequence of (literals, match) pairs, similar to LZ4.
+ * Each pair starts with a token byte, whose high 4 bits hold the number of
+ * literal bytes, and whose low 4 bits hold the match length minus 4. A value
+ * of 15 is followed by bytes of 255 and a final byte smaller than 255, all of
+ * which are added to it. The token is followed by the literal bytes, the two
+ * byte backward offset of the match, and any match length extension bytes.
+ * The final pair consists of literals only.
+ * <p>
+ * Matches are found via a single-entry hash table of 4 byte sequences, without
+ * any search for better matches, so compression runs in a single linear pass,
+ * and decompression is mostly <code>System.arraycopy</code>.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public final class LZPageCompressor implements PageCompressor {
+	
+	/** The ID of this compressor's data format. */
+	public static final int ID = 2;
+	
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5; // matches end at least this far from the end
+	private static final int MAX_OFFSET = 0xFFFF;
+	private static final int HASH_BITS = 14;
+	private static final int SKIP_BITS = 6; // speeds up scanning of incompressible data
+	
+	// for each thread: hash table mapping 4 byte sequences to their last position
+	private static final ThreadLocal tables = new ThreadLocal() {
+		protected Object initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+	
+	/**
+	 * Constructs an instance.
+	 */
+	public LZPageCompressor() {
+	}
+	
+	/**
+	 * Returns the ID of this compressor's data format.
+	 * 
+	 * @return the ID
+	 */
+	public int getID() {
+		return ID;
+	}
+	
+	/**
+	 * Compresses the given data.
+	 * 
+	 * @see PageCompressor#compress(byte[], int, int, byte[], int)
+	 */
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		final int[] table = (int[]) tables.get();
+		Arrays.fill(table, -1);
+		final int srcEnd = srcOff + srcLen;
+		final int matchLimit = srcEnd - LAST_LITERALS;
+		final int dstLimit = dstOff + srcLen;
+		int anchor = srcOff; // start of pending literals
+		int s = srcOff;
+		int d = dstOff;
+		
+		while (s + MIN_MATCH <= matchLimit) {
+			int seq = getInt(src, s);
+			int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+			int ref = table[h];
+			table[h] = s;
+			if (ref < 0 || s - ref > MAX_OFFSET || getInt(src, ref) != seq) {
+				s += 1 + ((s - anchor) >>> SKIP_BITS);
+				continue;
+			}
+			
+			int len = MIN_MATCH;
+			while (s + len < matchLimit && src[ref + len] == src[s + len]) len++;
+			
+			int litLen = s - anchor;
+			int matchLen = len - MIN_MATCH;
+			if (d + 1 + litLen / 255 + 1 + litLen + 2 + matchLen / 255 + 1 >= dstLimit) {
+				return -1; // not getting any smaller
+			}
+			int token = d++;
+			dst[token] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(matchLen, 15));
+			if (litLen >= 15) d = putLength(dst, d, litLen - 15);
+			System.arraycopy(src, anchor, dst, d, litLen);
+			d += litLen;
+			int offset = s - ref;
+			dst[d++] = (byte) (offset >>> 8);
+			dst[d++] = (byte) offset;
+			if (matchLen >= 15) d = putLength(dst, d, matchLen - 15);
+			
+			s += len;
+			anchor = s;
+		}
+		
+		// last literals
+		int litLen = srcEnd - anchor;
+		if (d + 1 + litLen / 255 + 1 + litLen >= dstLimit) return -1;
+		dst[d++] = (byte) (Math.min(litLen, 15) << 4);
+		if (litLen >= 15) d = putLength(dst, d, litLen - 15);
+		System.arraycopy(src, anchor, dst, d, litLen);
+		d += litLen;
+		return d - dstOff;
+	}
+	
+	/**
+	 * Decompresses the given data.
+	 * 
+	 * @see PageCompressor#decompress(byte[], int, int, byte[], int, int)
+	 */
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, 
+			int dstLen) throws BinaryParsingException {
+		
+		final int srcEnd = srcOff + srcLen;
+		final int dstEnd = dstOff + dstLen;
+		int s = srcOff;
+		int d = dstOff;
+		
+		try {
+			while (true) {
+				int token = src[s++] & 0xFF;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do { b = src[s++] & 0xFF; litLen += b; } while (b == 255);
+				}
+				if (s + litLen > srcEnd || d + litLen > dstEnd) break; // corrupt
+				System.arraycopy(src, s, dst, d, litLen);
+				s += litLen;
+				d += litLen;
+				if (s == srcEnd) { // last literals
+					if (d == dstEnd) return;
+					break; // corrupt
+				}
+				
+				int offset = ((src[s] & 0xFF) << 8) | (src[s+1] & 0xFF);
+				s += 2;
+				int len = token & 0x0F;
+				if (len == 15) {
+					int b;
+					do { b = src[s++] & 0xFF; len += b; } while (b == 255);
+				}
+				len += MIN_MATCH;
+				int ref = d - offset;
+				if (offset == 0 || ref < dstOff || d + len > dstEnd) break; // corrupt
+				if (offset >= len) {
+					System.arraycopy(dst, ref, dst, d, len);
+					d += len;
+				} else { // overlapping copy repeats the pattern
+					for (int end = d + len; d < end; ) dst[d++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			; // corrupt; fall through
+		}
+		throw new BinaryParsingException("Corrupt LZ compressed page");
+	}
+	
+	private static int putLength(byte[] dst, int d, int length) {
+		while (length >= 255) {
+			dst[d++] = (byte) 255;
+			length -= 255;
+		}
+		dst[d++] = (byte) length;
+		return d;
+	}
+	
+	private static int getInt(byte[] src, int i) {
+		return ((src[i] & 0xFF) << 24) | ((src[i+1] & 0xFF) << 16) 
+			| ((src[i+2] & 0xFF) << 8) | (src[i+3] & 0xFF);
+	}
+	
+	/**
+	 * Returns a summary string representation.
+	 * 
+	 * @return a string representation
+	 */
+	public String toString() {
+		return "[LZ]";
+	}
+	
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+import nu.xom.XMLException;
+
+/**
+ * Element whose children remain undecoded bnux tokens until they are first
+ * navigated to; used by lazy deserialization.
+ * <p>
+ * All XOM methods accessing or modifying children are overridden to first
+ * materialize the children from the pages held by the document's
+ * {@link Tree}. Child elements are again lazy, so only the elements actually
+ * visited (and their siblings) are ever created.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class LazyElement extends Element { // not a public class
+
+	/** The tokens and symbols of the document; null once materialized. */
+	private Tree tree;
+	
+	/** The page and position of the first token following the start tag. */
+	private int page;
+	private int offset;
+	
+	private static final boolean DEBUG = false;
+	
+	private LazyElement(Element template, Tree tree) {
+		super(template); // copy constructor is fast
+		this.tree = tree;
+	}
+	
+	/**
+	 * Reads all pages of a bnux document, the header of which has already
+	 * been read into src, and returns the document with a lazy root element.
+	 */
+	static Document readDocument(BinaryXMLCodec codec, ArrayByteList src, 
+			InputStream input) throws BinaryParsingException, IOException {
+		
+		Tree tree = new Tree(codec, src, input);
+		int page = 0;
+		ArrayByteList tokens = tree.tokens[page];
+		tokens.position(0);
+		String baseURI = tree.readString(tokens, page, tokens.getInt());
+		
+		// add children of document, retaining the exact same order found in input
+		Document doc = null;
+		ArrayList prolog = new ArrayList();
+		int rootIndex = -1;
+		while (tokens.remaining() > 0) {
+			int type = tokens.get();
+			switch (type & 0x07) {
+				case BinaryXMLCodec.BEGIN_ELEMENT: {
+					if (doc != null) throw new BinaryParsingException("Multiple root elements");
+					doc = new Document(tree.readStartTag(tokens, page, type));
+					rootIndex = prolog.size();
+					prolog.add(null);
+					page = tree.skipContent(tokens, page); // ends on the last page
+					tokens = tree.tokens[page];
+					break;
+				}
+				case BinaryXMLCodec.COMMENT: {
+					prolog.add(new Comment(tree.readString(tokens, page, 4, type)));
+					break;
+				}
+				case BinaryXMLCodec.PROCESSING_INSTRUCTION: {
+					String target = tree.readString(tokens, page, 4, type);
+					String value = tree.readString(tokens, page, 6, type);
+					prolog.add(new ProcessingInstruction(target, value));
+					break;
+				}
+				case BinaryXMLCodec.DOC_TYPE: {
+					prolog.add(tree.readDocType(tokens, page));
+					break;
+				}
+				default: {
+					throw new BinaryParsingException("Illegal node type code=" + type);
+				}
+			}
+		}
+		if (doc == null) throw new BinaryParsingException("Missing root element");
+		
+		doc.setBaseURI(baseURI);
+		for (int i=0; i < prolog.size(); i++) {
+			if (i != rootIndex) doc.insertChild((Node) prolog.get(i), i);
+		}
+		return doc;
+	}
+	
+	/** Decodes and inserts all children; afterwards behaves like a normal element. */
+	private void materialize() {
+		Tree tree = this.tree;
+		this.tree = null;
+		if (DEBUG) System.err.println("materializing " + getQualifiedName());
+		
+		try {
+			int page = this.page;
+			ArrayByteList tokens = tree.tokens[page];
+			tokens.position(offset);
+			int i = 0;
+			while (true) {
+				Node node;
+				int type = tokens.get();
+				switch (type & 0x07) { // three low bits indicate node type
+					case BinaryXMLCodec.TEXT: {
+						node = new Text(tree.readString(tokens, page, 4, type));
+						break;
+					}
+					case BinaryXMLCodec.BEGIN_ELEMENT: {
+						node = tree.readStartTag(tokens, page, type);
+						page = tree.skipContent(tokens, page);
+						tokens = tree.tokens[page];
+						break;
+					}
+					case BinaryXMLCodec.END_ELEMENT: {
+						tree.release();
+						return; // we're done
+					}
+					case BinaryXMLCodec.COMMENT: {
+						node = new Comment(tree.readString(tokens, page, 4, type));
+						break;
+					}
+					case BinaryXMLCodec.PROCESSING_INSTRUCTION: {
+						String target = tree.readString(tokens, page, 4, type);
+						String value = tree.readString(tokens, page, 6, type);
+						node = new ProcessingInstruction(target, value);
+						break;
+					}
+					case BinaryXMLCodec.DOC_TYPE: { // surrogate hack to identify BEGIN_PAGE
+						tokens = tree.tokens[++page];
+						tokens.position(0);
+						continue;
+					}
+					default: { // ATTRIBUTE or NAMESPACE_DECLARATION
+						throw new BinaryParsingException("Illegal node type code=" + type);
+					}
+				}
+				
+				if (BinaryXMLCodec.IS_EXTENDED_XOM) { // xom-1.1 + patch
+					fastInsertChild(node, i);
+				} else {
+					super.insertChild(node, i);
+				}
+				i++;
+			}
+		} catch (BinaryParsingException e) {
+			throw new XMLException("Corrupt bnux document", e); // can't happen 
+		}
+	}
+	
+	/** {@inheritDoc} */
+	public int getChildCount() {
+		if (tree != null) materialize();
+		return super.getChildCount();
+	}
+	
+	/** {@inheritDoc} */
+	public Node getChild(int position) {
+		if (tree != null) materialize();
+		return super.getChild(position);
+	}
+	
+	/** {@inheritDoc} */
+	public int indexOf(Node child) {
+		if (tree != null) materialize();
+		return super.indexOf(child);
+	}
+	
+	/** {@inheritDoc} */
+	public void insertChild(Node child, int position) {
+		if (tree != null) materialize();
+		super.insertChild(child, position);
+	}
+	
+	/** {@inheritDoc} */
+	public void insertChild(String text, int position) {
+		if (tree != null) materialize();
+		super.insertChild(text, position);
+	}
+	
+	/** {@inheritDoc} */
+	public void appendChild(Node child) {
+		if (tree != null) materialize();
+		super.appendChild(child);
+	}
+	
+	/** {@inheritDoc} */
+	public void appendChild(String text) {
+		if (tree != null) materialize();
+		super.appendChild(text);
+	}
+	
+	/** {@inheritDoc} */
+	public Node removeChild(int position) {
+		if (tree != null) materialize();
+		return super.removeChild(position);
+	}
+	
+	/** {@inheritDoc} */
+	public Node removeChild(Node child) {
+		if (tree != null) materialize();
+		return super.removeChild(child);
+	}
+	
+	/** {@inheritDoc} */
+	public void replaceChild(Node oldChild, Node newChild) {
+		if (tree != null) materialize();
+		super.replaceChild(oldChild, newChild);
+	}
+	
+	/** {@inheritDoc} */
+	public Nodes removeChildren() {
+		if (tree != null) materialize();
+		return super.removeChildren();
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * The decoded pages of a lazily deserialized document, shared by all of
+	 * its elements. Released once all elements have been materialized.
+	 */
+	private static final class Tree {
+		
+		/** The node tokens of each page, excluding the symbol table. */
+		private ArrayByteList[] tokens;
+		
+		/** The symbol table of each page. */
+		private String[][] symbols;
+		
+		/** Number of lazy elements not yet materialized. */
+		private int pending = 0;
+		
+		/** Do start tags record the size of the element subtree? */
+		private final boolean hasSubtreeSizes;
+		
+		/** End offset of the subtree of the start tag read last, or -1 if unknown. */
+		private int subtreeEnd;
+		
+		private LRUHashMap2 elements = new LRUHashMap2(128);
+		private NodeBuilder nodeBuilder = new NodeBuilder();
+		
+		/**
+		 * Reads all pages from the input, checking the token structure along
+		 * the way, so that later materialization can't fail on truncated data.
+		 */
+		private Tree(BinaryXMLCodec codec, ArrayByteList src, InputStream input) 
+				throws BinaryParsingException, IOException {
+			
+			this.hasSubtreeSizes = codec.hasSubtreeSizes();
+			ArrayList tokenList = new ArrayList();
+			ArrayList symbolList = new ArrayList();
+			int depth = 0;
+			int[] ends = new int[16]; // expected end offset of each open element, or -1
+			while (true) {
+				String[] syms = codec.readPageSymbols(src, input);
+				byte[] page = new byte[src.remaining()];
+				System.arraycopy(src.asArray(), src.position(), page, 0, page.length);
+				src.position(src.size());
+				ArrayByteList tokens = new ArrayByteList(page);
+				tokenList.add(tokens);
+				symbolList.add(syms);
+				if (tokenList.size() == 1) tokens.getInt(); // baseURI
+				
+				while (tokens.remaining() > 0) {
+					int type = tokens.get();
+					switch (type & 0x07) {
+						case BinaryXMLCodec.BEGIN_ELEMENT: 
+							if (hasSubtreeSizes) {
+								BinaryXMLCodec.readSymbol(tokens, 4, type);
+								BinaryXMLCodec.readSymbol(tokens, 6, type);
+								int size = tokens.getVarInt();
+								if (depth == ends.length) {
+									int[] tmp = new int[2 * depth];
+									System.arraycopy(ends, 0, tmp, 0, depth);
+									ends = tmp;
+								}
+								ends[depth++] = size > 0 ? tokens.position() + size : -1;
+								continue;
+							}
+							depth++;
+							break;
+						case BinaryXMLCodec.END_ELEMENT: 
+							if (--depth < 0) 
+								throw new BinaryParsingException("Unbalanced end of element");
+							if (hasSubtreeSizes && ends[depth] >= 0 && ends[depth] != tokens.position())
+								throw new BinaryParsingException("Illegal subtree size");
+							break;
+						case BinaryXMLCodec.ATTRIBUTE:
+							if (depth == 0)
+								throw new BinaryParsingException("Unreachable attribute");
+							break;
+						case BinaryXMLCodec.DOC_TYPE:
+							if (depth > 0 && tokens.remaining() > 0) 
+								throw new BinaryParsingException("Illegal bnux page header marker");
+							for (int i=0; hasSubtreeSizes && i < depth; i++) {
+								if (ends[i] >= 0) 
+									throw new BinaryParsingException("Illegal subtree size");
+							}
+							break;
+						default: 
+							break;
+					}
+					skipToken(tokens, type, depth);
+				}
+				if (depth == 0) break; // last page
+			}
+			
+			this.tokens = new ArrayByteList[tokenList.size()];
+			tokenList.toArray(this.tokens);
+			this.symbols = new String[symbolList.size()][];
+			symbolList.toArray(this.symbols);
+		}
+		
+		/** Skips the indexes following the given token type. */
+		private void skipToken(ArrayByteList tokens, int type, int depth) {
+			switch (type & 0x07) {
+				case BinaryXMLCodec.TEXT:
+				case BinaryXMLCodec.COMMENT:
+					BinaryXMLCodec.readSymbol(tokens, 4, type);
+					break;
+				case BinaryXMLCodec.ATTRIBUTE:
+					BinaryXMLCodec.readSymbol(tokens, 4, type);
+					BinaryXMLCodec.readSymbol(tokens, 6, type);
+					BinaryXMLCodec.readSymbol(tokens, 4, tokens.get()); // value
+					tokens.get(); // attribute type
+					break;
+				case BinaryXMLCodec.BEGIN_ELEMENT:
+					BinaryXMLCodec.readSymbol(tokens, 4, type);
+					BinaryXMLCodec.readSymbol(tokens, 6, type);
+					if (hasSubtreeSizes) tokens.getVarInt(); // validated on use
+					break;
+				case BinaryXMLCodec.NAMESPACE_DECLARATION:
+				case BinaryXMLCodec.PROCESSING_INSTRUCTION:
+					BinaryXMLCodec.readSymbol(tokens, 4, type);
+					BinaryXMLCodec.readSymbol(tokens, 6, type);
+					break;
+				case BinaryXMLCodec.DOC_TYPE:
+					if (depth == 0) tokens.position(tokens.position() + 4 * 4);
+					break;
+				default: // END_ELEMENT
+					break;
+			}
+		}
+		
+		/**
+		 * Skips the remaining content of the element whose start tag has just
+		 * been read, including its end tag; returns the page positioned past
+		 * the end tag.
+		 */
+		private int skipContent(ArrayByteList tokens, int page) {
+			if (subtreeEnd >= 0) { // jump
+				tokens.position(subtreeEnd);
+				return page;
+			}
+			int depth = 1;
+			while (true) {
+				int type = tokens.get();
+				switch (type & 0x07) {
+					case BinaryXMLCodec.BEGIN_ELEMENT:
+						depth++;
+						break;
+					case BinaryXMLCodec.END_ELEMENT:
+						if (--depth == 0) return page;
+						break;
+					case BinaryXMLCodec.DOC_TYPE: // BEGIN_PAGE
+						tokens = this.tokens[++page];
+						tokens.position(0);
+						continue;
+					default:
+						break;
+				}
+				skipToken(tokens, type, depth);
+			}
+		}
+		
+		/**
+		 * Reads the start tag including attributes and namespace declarations,
+		 * and returns a corresponding lazy element.
+		 */
+		private LazyElement readStartTag(ArrayByteList tokens, int page, int type) 
+				throws BinaryParsingException {
+			
+			String qname = readString(tokens, page, 4, type);
+			String uri = readString(tokens, page, 6, type);
+			subtreeEnd = -1;
+			if (hasSubtreeSizes) {
+				int size = tokens.getVarInt();
+				if (size > 0) subtreeEnd = tokens.position() + size;
+			}
+			Element template = (Element) elements.get(qname, uri);
+			if (template == null) {
+				template = new Element(qname, uri);
+				elements.put(qname, uri, template);
+			}
+			LazyElement elem = new LazyElement(template, this);
+			
+			// attributes and additional namespace declarations follow on same page
+			while (tokens.remaining() > 0) {
+				type = tokens.get(tokens.position()); // look ahead
+				if ((type & 0x07) == BinaryXMLCodec.ATTRIBUTE) {
+					tokens.get();
+					String attrQName = readString(tokens, page, 4, type);
+					String attrURI = readString(tokens, page, 6, type);
+					String value = readString(tokens, page, 4, tokens.get());
+					Attribute.Type attrType = Util.getAttributeType(tokens.get());
+					elem.addAttribute(nodeBuilder.createAttribute(
+							attrQName, attrURI, value, attrType));
+				} else if ((type & 0x07) == BinaryXMLCodec.NAMESPACE_DECLARATION) {
+					tokens.get();
+					String prefix = readString(tokens, page, 4, type);
+					elem.addNamespaceDeclaration(prefix, readString(tokens, page, 6, type));
+				} else {
+					break;
+				}
+			}
+			
+			elem.page = page;
+			elem.offset = tokens.position();
+			pending++;
+			return elem;
+		}
+		
+		private DocType readDocType(ArrayByteList tokens, int page) {
+			String[] syms = symbols[page];
+			String rootElementName = syms[tokens.getInt()];
+			String publicID = syms[tokens.getInt()];
+			if (BinaryXMLCodec.DOCTYPE_NULL_ID.equals(publicID)) publicID = null;
+			String systemID = syms[tokens.getInt()];
+			if (BinaryXMLCodec.DOCTYPE_NULL_ID.equals(systemID)) systemID = null;
+			String internalDTDSubset = syms[tokens.getInt()];
+			
+			DocType docType = new DocType(rootElementName, publicID, systemID);
+			if (internalDTDSubset.length() > 0) {
+				try {
+					docType.setInternalDTDSubset(internalDTDSubset);
+				} catch (IllegalAccessError e) {
+					; // ignore; setInternalDTDSubset() is private in xom < 1.1 
+				}
+			}
+			return docType;
+		}
+		
+		/** Reads string via packed index from the page's symbol table */
+		private String readString(ArrayByteList tokens, int page, int shift, int type) {
+			return readString(tokens, page, BinaryXMLCodec.readSymbol(tokens, shift, type));
+		}
+		
+		private String readString(ArrayByteList tokens, int page, int i) {
+			if (i < 0) return "";
+			return symbols[page][i];
+		}
+		
+		/** Called whenever an element has been materialized. */
+		private void release() {
+			if (--pending == 0) { // help gc
+				tokens = null;
+				symbols = null;
+				elements = null;
+				nodeBuilder = null;
+			}
+		}
+		
+	}
+
+}
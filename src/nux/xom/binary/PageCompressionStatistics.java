@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.lang.reflect.Method;
+
+/**
+ * Accumulates per-page compression ratios and timings of one or more
+ * {@link BinaryXMLCodec} instances, for both ZLIB compression and
+ * {@link PageCompressor} plugins; useful to pick the compression scheme
+ * best suited to the CPU and network bandwidth at hand.
+ * <p>
+ * Ratios are given as uncompressed size divided by compressed size, so
+ * larger is better. Times are given in nanoseconds (with millisecond
+ * resolution on pre-1.5 JVMs). This class is thread-safe.
+ * <p>
+ * Example usage:
+ * <pre>
+ * PageCompressionStatistics stats = new PageCompressionStatistics();
+ * BinaryXMLCodec codec = new BinaryXMLCodec();
+ * codec.setPageCompressor(new LZPageCompressor());
+ * codec.setPageCompressionStatistics(stats);
+ * for (int i=0; i &lt; docs.length; i++) {
+ *     codec.serialize(docs[i], 0, out);
+ * }
+ * System.out.println(stats);
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public final class PageCompressionStatistics {
+	
+	private long pages;
+	private long uncompressedSize;
+	private long compressedSize;
+	private long compressionTime;
+	private double minRatio;
+	private double maxRatio;
+	private double lastRatio;
+	
+	private long decompressedPages;
+	private long decompressionTime;
+	
+	private static final Method NANO_TIME = findNanoTime();
+	
+	/**
+	 * Constructs an empty instance.
+	 */
+	public PageCompressionStatistics() {
+		reset();
+	}
+	
+	/**
+	 * Discards all accumulated statistics.
+	 */
+	public synchronized void reset() {
+		pages = 0;
+		uncompressedSize = 0;
+		compressedSize = 0;
+		compressionTime = 0;
+		minRatio = 0;
+		maxRatio = 0;
+		lastRatio = 0;
+		decompressedPages = 0;
+		decompressionTime = 0;
+	}
+	
+	/** Records the compression of a single page. */
+	synchronized void addCompressedPage(int uncompressed, int compressed, long nanos) {
+		double ratio = compressed == 0 ? 1.0 : (double) uncompressed / compressed;
+		if (pages == 0 || ratio < minRatio) minRatio = ratio;
+		if (pages == 0 || ratio > maxRatio) maxRatio = ratio;
+		lastRatio = ratio;
+		pages++;
+		uncompressedSize += uncompressed;
+		compressedSize += compressed;
+		compressionTime += nanos;
+	}
+	
+	/** Records the decompression of a single page. */
+	synchronized void addDecompressedPage(long nanos) {
+		decompressedPages++;
+		decompressionTime += nanos;
+	}
+	
+	/**
+	 * Returns the number of pages compressed so far.
+	 * 
+	 * @return the number of pages
+	 */
+	public synchronized long getPageCount() {
+		return pages;
+	}
+	
+	/**
+	 * Returns the total number of bytes of all compressed pages, before
+	 * compression.
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getUncompressedSize() {
+		return uncompressedSize;
+	}
+	
+	/**
+	 * Returns the total number of bytes of all compressed pages, after
+	 * compression.
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getCompressedSize() {
+		return compressedSize;
+	}
+	
+	/**
+	 * Returns the overall compression ratio of all compressed pages.
+	 * 
+	 * @return the ratio
+	 */
+	public synchronized double getCompressionRatio() {
+		return compressedSize == 0 ? 0 : (double) uncompressedSize / compressedSize;
+	}
+	
+	/**
+	 * Returns the smallest compression ratio of any single page.
+	 * 
+	 * @return the ratio
+	 */
+	public synchronized double getMinCompressionRatio() {
+		return minRatio;
+	}
+	
+	/**
+	 * Returns the largest compression ratio of any single page.
+	 * 
+	 * @return the ratio
+	 */
+	public synchronized double getMaxCompressionRatio() {
+		return maxRatio;
+	}
+	
+	/**
+	 * Returns the compression ratio of the page compressed most recently.
+	 * 
+	 * @return the ratio
+	 */
+	public synchronized double getLastCompressionRatio() {
+		return lastRatio;
+	}
+	
+	/**
+	 * Returns the total time spent compressing pages, in nanoseconds.
+	 * 
+	 * @return the time
+	 */
+	public synchronized long getCompressionTime() {
+		return compressionTime;
+	}
+	
+	/**
+	 * Returns the number of pages decompressed so far.
+	 * 
+	 * @return the number of pages
+	 */
+	public synchronized long getDecompressedPageCount() {
+		return decompressedPages;
+	}
+	
+	/**
+	 * Returns the total time spent decompressing pages, in nanoseconds.
+	 * 
+	 * @return the time
+	 */
+	public synchronized long getDecompressionTime() {
+		return decompressionTime;
+	}
+	
+	/**
+	 * Returns a summary string representation.
+	 * 
+	 * @return a string representation
+	 */
+	public synchronized String toString() {
+		return "[pages=" + pages 
+			+ ", uncompressedSize=" + uncompressedSize 
+			+ ", compressedSize=" + compressedSize 
+			+ ", ratio=" + (float) getCompressionRatio() 
+			+ ", minRatio=" + (float) minRatio 
+			+ ", maxRatio=" + (float) maxRatio 
+			+ ", compressionTime[ms]=" + compressionTime / 1000000 
+			+ ", decompressedPages=" + decompressedPages 
+			+ ", decompressionTime[ms]=" + decompressionTime / 1000000 
+			+ "]";
+	}
+	
+	/** Returns the current value of the most precise available timer, in nanoseconds. */
+	static long now() {
+		if (NANO_TIME != null) {
+			try {
+				return ((Long) NANO_TIME.invoke(null, null)).longValue();
+			} catch (Exception e) {
+				; // fall through
+			}
+		}
+		return System.currentTimeMillis() * 1000000;
+	}
+	
+	private static Method findNanoTime() {
+		try { // System.nanoTime() is only available on JDK >= 1.5
+			return System.class.getMethod("nanoTime", null);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+	
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+/**
+ * Service provider interface for compressing and decompressing the pages of
+ * bnux documents, as an alternative to the classic ZLIB compression selected
+ * via the <code>zlibCompressionLevel</code> of {@link BinaryXMLCodec}.
+ * <p>
+ * Each compressed page records the ID of the compressor that produced it, so
+ * a reader can pick the matching implementation. IDs 1 and 2 are reserved
+ * for the built-in {@link ZLIBPageCompressor} and {@link LZPageCompressor},
+ * which a codec can always decompress; applications should use IDs in the
+ * range 16..127 for their own implementations. ID 0 marks pages stored
+ * uncompressed because compression did not make them any smaller.
+ * <p>
+ * Implementations must be thread-safe, as a single instance may be used by
+ * several codecs and background threads concurrently (see
+ * {@link BinaryXMLCodec#setParallelDecodingEnabled(boolean)} and
+ * {@link BinaryXMLCodec#setPipelinedSerializationEnabled(boolean)}).
+ * <p>
+ * Example usage:
+ * <pre>
+ * BinaryXMLCodec codec = new BinaryXMLCodec();
+ * codec.setPageCompressor(new LZPageCompressor());
+ * byte[] bnuxDoc = codec.serialize(doc, 0);
+ * Document doc2 = codec.deserialize(bnuxDoc);
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public interface PageCompressor {
+	
+	/**
+	 * Returns the ID identifying this compressor's data format within page
+	 * headers; must be in the range 1..127.
+	 * 
+	 * @return the ID
+	 */
+	public int getID();
+	
+	/**
+	 * Compresses the bytes <code>src[srcOff..srcOff+srcLen)</code> into 
+	 * <code>dst</code>, starting at <code>dstOff</code>.
+	 * 
+	 * @param src
+	 *            the data to compress
+	 * @param srcOff
+	 *            the offset of the data within <code>src</code>
+	 * @param srcLen
+	 *            the number of bytes to compress
+	 * @param dst
+	 *            the array to write compressed data into; has room for at least
+	 *            <code>srcLen</code> bytes following <code>dstOff</code>
+	 * @param dstOff
+	 *            the offset within <code>dst</code> to start writing at
+	 * @return the number of compressed bytes written, or -1 if the data can
+	 *         not be compressed into fewer than <code>srcLen</code> bytes.
+	 *         Pages compressed by a factor of more than 2048 are stored
+	 *         uncompressed, as readers reject them as corrupt.
+	 */
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff);
+	
+	/**
+	 * Decompresses the bytes <code>src[srcOff..srcOff+srcLen)</code>, which
+	 * have previously been produced by {@link #compress}, into
+	 * <code>dst[dstOff..dstOff+dstLen)</code>.
+	 * 
+	 * @param src
+	 *            the compressed data
+	 * @param srcOff
+	 *            the offset of the data within <code>src</code>
+	 * @param srcLen
+	 *            the number of compressed bytes
+	 * @param dst
+	 *            the array to write decompressed data into
+	 * @param dstOff
+	 *            the offset within <code>dst</code> to start writing at
+	 * @param dstLen
+	 *            the exact number of bytes the data decompresses to
+	 * @throws BinaryParsingException
+	 *             if the compressed data is corrupt
+	 */
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, 
+			int dstLen) throws BinaryParsingException;
+	
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.zip.Inflater;
+
+/**
+ * Reads bnux pages ahead of the token stitching thread of a
+ * {@link BinaryXMLCodec}, and has a shared pool of daemon worker threads
+ * ZLIB inflate them and decode their symbol tables in parallel.
+ * <p>
+ * Reading raw page bytes from the input stream remains on the calling thread,
+ * in order; only the CPU bound per-page work is farmed out. If the calling
+ * thread needs a page that no worker has started on yet, it decodes that page
+ * itself rather than waiting idly (work stealing).
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class ParallelPageDecoder { // not a public class!
+	
+	private static final int NUM_CPUS = Runtime.getRuntime().availableProcessors();
+	
+	/** Maximum number of pages read ahead per document. */
+	private static final int MAX_PENDING = Math.max(2, 2 * NUM_CPUS);
+
+	// shared by all decoders: tasks not yet taken by any worker thread
+	private static final LinkedList queue = new LinkedList();
+	private static int numWorkers = 0;
+	private static int numIdleWorkers = 0;
+	
+	// tasks of the current document, in page order
+	private final LinkedList pending = new LinkedList();
+	
+	// recycled page buffers
+	private final LinkedList buffers = new LinkedList();
+	
+	private final ArrayByteList pageSize = new ArrayByteList(4);
+	private boolean isCompressed;
+	private boolean isPageCompressed;
+	private PageCompressor compressor;
+	private String[] dictionary;
+	private PageCompressionStatistics statistics;
+	private boolean isLastPageRead;
+	
+	private static final boolean DEBUG = false;
+	
+	ParallelPageDecoder() {
+	}
+	
+	/** Prepares decoding the pages of a new document. */
+	public void reset(boolean isCompressed, boolean isPageCompressed, 
+			PageCompressor compressor, String[] dictionary, 
+			PageCompressionStatistics statistics) {
+		
+		pending.clear(); // in-flight tasks complete in the background and are dropped
+		this.isCompressed = isCompressed;
+		this.isPageCompressed = isPageCompressed;
+		this.compressor = compressor;
+		this.dictionary = dictionary;
+		this.statistics = statistics;
+		this.isLastPageRead = false;
+	}
+	
+	/**
+	 * Replaces the contents of <code>src</code> with the next decoded page,
+	 * positioned at its first token, and returns the page's symbols. On the
+	 * first page of a document, <code>src</code> holds the (already read) 
+	 * page size.
+	 */
+	public String[] readPage(ArrayByteList src, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		if (src.remaining() >= 4) { // first page; size was read with document header
+			submit(readRawPage(src.getInt(), input));
+		}
+		while (!isLastPageRead && pending.size() < MAX_PENDING) { // read ahead
+			pageSize.clear();
+			if (!pageSize.ensureRemaining(input, 4))
+				throw new BinaryParsingException("Missing remaining bnux page size");
+			int size = pageSize.getInt();
+			pageSize.clear(); // release buffer's array, if shared
+			submit(readRawPage(size, input));
+		}
+		if (pending.isEmpty()) 
+			throw new BinaryParsingException("Missing remaining bnux page");
+		
+		Task task = (Task) pending.removeFirst();
+		task.await(); // decodes the page inline unless a worker has started on it
+		src.swap(task.page);
+		task.page.clear();
+		if (buffers.size() < MAX_PENDING) buffers.add(task.page); // recycle
+		return task.symbols;
+	}
+	
+	/** Reads the body of the next page, with the given size. */
+	private ArrayByteList readRawPage(int size, InputStream input) 
+			throws BinaryParsingException, IOException {
+		
+		boolean isLastPage = size < 0;
+		if (isLastPage) {
+			size = -size;
+			isLastPageRead = true;
+		} else {
+			size++; // read one byte past page, fetching PAGE_BEGIN marker
+		}
+		
+		ArrayByteList page = buffers.isEmpty() ? 
+				new ArrayByteList(size) : (ArrayByteList) buffers.removeFirst();
+		page.clear();
+		if (!page.ensureRemaining(input, size)) 
+			throw new BinaryParsingException("Missing remaining bnux page body");
+		return page;
+	}
+	
+	private void submit(ArrayByteList page) {
+		Task task = new Task(page, this);
+		pending.add(task);
+		if (isLastPageRead && pending.size() == 1) {
+			return; // single remaining page; calling thread decodes it itself
+		}
+		
+		synchronized (queue) {
+			queue.add(task);
+			if (numIdleWorkers > 0) {
+				queue.notify();
+			} else if (numWorkers < NUM_CPUS) {
+				startWorker();
+			}
+		}
+	}
+	
+	private static void startWorker() {
+		Thread thread = new Thread("nux-bnux-page-decoder-" + numWorkers) {
+			public void run() {
+				while (true) {
+					Task task;
+					synchronized (queue) {
+						while (queue.isEmpty()) {
+							numIdleWorkers++;
+							try {
+								queue.wait();
+							} catch (InterruptedException e) {
+								; // ignore; keep serving
+							} finally {
+								numIdleWorkers--;
+							}
+						}
+						task = (Task) queue.removeFirst();
+					}
+					if (task.claim()) task.run();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		numWorkers++;
+		thread.start();
+		if (DEBUG) System.err.println("started " + thread.getName());
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Inflates and decodes the symbol table of a single page. */
+	private static final class Task implements Runnable {
+		
+		private static final int QUEUED = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+		
+		private final boolean isCompressed;
+		private final boolean isPageCompressed;
+		private final PageCompressor compressor;
+		private final String[] dictionary;
+		private final PageCompressionStatistics statistics;
+		private int state = QUEUED;
+		private Throwable error;
+		ArrayByteList page;
+		String[] symbols;
+		
+		/** Captures the decoding settings of the decoder's current document. */
+		public Task(ArrayByteList page, ParallelPageDecoder decoder) {
+			this.page = page;
+			this.isCompressed = decoder.isCompressed;
+			this.isPageCompressed = decoder.isPageCompressed;
+			this.compressor = decoder.compressor;
+			this.dictionary = decoder.dictionary;
+			this.statistics = decoder.statistics;
+		}
+		
+		/** Returns true if the caller has obtained the right to run this task. */
+		public synchronized boolean claim() {
+			if (state != QUEUED) return false;
+			state = RUNNING;
+			return true;
+		}
+		
+		public void run() {
+			try {
+				if (isCompressed || isPageCompressed) {
+					long start = statistics != null ? PageCompressionStatistics.now() : 0;
+					ArrayByteList tmp = new ArrayByteList(page.size());
+					if (isPageCompressed) {
+						BinaryXMLCodec.decompress(compressor, page, tmp);
+					} else {
+						Inflater decompressor = ZLIBPageCompressor.acquireInflater();
+						try {
+							BinaryXMLCodec.decompress(decompressor, page, tmp);
+						} finally {
+							ZLIBPageCompressor.releaseInflater(decompressor);
+						}
+					}
+					if (statistics != null) {
+						statistics.addDecompressedPage(PageCompressionStatistics.now() - start);
+					}
+				}
+				symbols = BinaryXMLCodec.readSymbols(page, dictionary);
+			} catch (Throwable t) {
+				error = t;
+			}
+			
+			synchronized (this) {
+				state = DONE;
+				notifyAll();
+			}
+		}
+		
+		/** Waits until the page is decoded, decoding it inline if nobody has started yet. */
+		public void await() throws BinaryParsingException, IOException {
+			if (claim()) run();
+			synchronized (this) {
+				while (state != DONE) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("interrupted while decoding bnux page");
+					}
+				}
+			}
+			
+			if (error instanceof BinaryParsingException) {
+				throw (BinaryParsingException) error;
+			} else if (error instanceof RuntimeException) {
+				throw (RuntimeException) error;
+			} else if (error instanceof Error) {
+				throw (Error) error;
+			} else if (error != null) {
+				throw new BinaryParsingException(error);
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * Background stage of a pipelined {@link BinaryXMLCodec} serialization; takes
+ * encoded pages from the tokenizing thread via a bounded queue, compresses
+ * them and writes them onto the underlying output stream, in order.
+ * <p>
+ * A background thread is started lazily with the first page of a document
+ * that isn't also its last page, and terminates once the last page has been
+ * written.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class PipelinedPageWriter { // not a public class!
+	
+	/** Maximum number of pages queued for the background thread. */
+	private static final int MAX_PENDING = 2;
+	
+	private final BinaryXMLCodec codec;
+	
+	// pages handed over but not yet taken by the background thread
+	private final LinkedList queue = new LinkedList();
+	
+	// written pages, recycled for use by the tokenizing thread
+	private final LinkedList buffers = new LinkedList();
+	
+	private Thread thread; // null if no background thread is running
+	private boolean isBusy; // is the background thread writing a page?
+	private boolean isClosed;
+	private Throwable error; // first error encountered in the background
+	
+	// scratch space for compression; used by the writing thread only
+	private final ArrayByteList tmp = new ArrayByteList();
+	
+	private static final boolean DEBUG = false;
+	
+	PipelinedPageWriter(BinaryXMLCodec codec) {
+		this.codec = codec;
+	}
+	
+	/**
+	 * Hands the given encoded page over to the background thread, waiting
+	 * while the queue is full; returns an empty buffer for the next page.
+	 */
+	public synchronized ArrayByteList write(ArrayByteList page, int pageOffset, 
+			boolean isLastPage) throws IOException {
+		
+		checkError();
+		isClosed = false;
+		if (isLastPage && thread == null) { // single page document; write it inline
+			codec.writePage(page, pageOffset, isLastPage, tmp);
+			return page;
+		}
+		
+		while (queue.size() >= MAX_PENDING && error == null) {
+			waitForBackground();
+		}
+		checkError();
+		
+		queue.add(new Page(page, pageOffset, isLastPage));
+		if (thread == null) {
+			startThread();
+		} else {
+			notifyAll();
+		}
+		
+		if (buffers.isEmpty()) return new ArrayByteList(page.size());
+		return (ArrayByteList) buffers.removeFirst();
+	}
+	
+	/** Waits until all pages handed over so far have been written. */
+	public synchronized void drain() throws IOException {
+		while ((isBusy || !queue.isEmpty()) && error == null) {
+			waitForBackground();
+		}
+		checkError();
+	}
+	
+	/**
+	 * Discards any pending pages, waits for the page currently being written
+	 * (which still uses the codec's output stream), and lets the background
+	 * thread terminate; forgets about any error of the document.
+	 */
+	public synchronized void close() {
+		queue.clear();
+		isClosed = true;
+		notifyAll();
+		boolean isInterrupted = false;
+		while (isBusy) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				isInterrupted = true; // must not return while the page is in flight
+			}
+		}
+		error = null;
+		if (isInterrupted) Thread.currentThread().interrupt();
+	}
+	
+	private void waitForBackground() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing bnux page");
+		}
+	}
+	
+	private void checkError() throws IOException {
+		Throwable t = error;
+		if (t == null) return;
+		error = null;
+		queue.clear();
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else {
+			throw new RuntimeException(t);
+		}
+	}
+	
+	private void startThread() {
+		thread = new Thread("nux-bnux-page-writer") {
+			public void run() {
+				while (writeNextPage()) ;
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		if (DEBUG) System.err.println("started " + thread.getName());
+	}
+	
+	/** 
+	 * Called from the background thread; returns false if the thread should
+	 * terminate. 
+	 */
+	private boolean writeNextPage() {
+		Page page;
+		synchronized (this) {
+			while (queue.isEmpty()) {
+				if (isClosed) {
+					thread = null;
+					return false;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					; // ignore; keep serving
+				}
+			}
+			page = (Page) queue.removeFirst();
+			isBusy = true;
+			notifyAll(); // queue has room again
+		}
+		
+		Throwable t = null;
+		try {
+			codec.writePage(page.buffer, page.offset, page.isLastPage, tmp);
+		} catch (Throwable e) {
+			t = e;
+		}
+		
+		synchronized (this) {
+			isBusy = false;
+			page.buffer.clear();
+			if (buffers.size() < MAX_PENDING + 1) buffers.add(page.buffer);
+			if (t != null) {
+				error = t;
+				queue.clear();
+			}
+			notifyAll();
+			if (page.isLastPage || t != null) {
+				thread = null;
+				return false;
+			}
+			return true;
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** An encoded page awaiting compression and I/O. */
+	private static final class Page {
+		
+		final ArrayByteList buffer;
+		final int offset;
+		final boolean isLastPage;
+		
+		public Page(ArrayByteList buffer, int offset, boolean isLastPage) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.isLastPage = isLastPage;
+		}
+	}
+	
+}
@@ -120,6 +120,26 @@ final class Util { // not a public class!
 		return (byte) attr.getType().hashCode();
 	}
 
+	/**
+	 * Returns the code of the attribute type reported by a SAX or StAX
+	 * parser, mapping types the same way as nu.xom.Builder.
+	 */
+	public static byte getAttributeTypeCode(String type) {
+		if (type == null || type.length() == 0) return 0; // UNDECLARED
+		if (type.equalsIgnoreCase("CDATA")) return 1;
+		if (type.equalsIgnoreCase("ID")) return 2;
+		if (type.equalsIgnoreCase("IDREF")) return 3;
+		if (type.equalsIgnoreCase("IDREFS")) return 4;
+		if (type.equalsIgnoreCase("NMTOKEN")) return 5;
+		if (type.equalsIgnoreCase("NMTOKENS")) return 6;
+		if (type.equalsIgnoreCase("NOTATION")) return 7;
+		if (type.equalsIgnoreCase("ENTITY")) return 8;
+		if (type.equalsIgnoreCase("ENTITIES")) return 9;
+		if (type.equalsIgnoreCase("ENUMERATION") || type.equalsIgnoreCase("ENUMERATED") 
+				|| type.startsWith("(")) return 10;
+		return 0; // UNDECLARED
+	}
+
 	public static Attribute.Type getAttributeType(int typeCode) throws BinaryParsingException {
 		switch (typeCode) {
 			case 0 : return Attribute.Type.UNDECLARED;
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.binary;
+
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link PageCompressor} based on the ZLIB compression algorithm (see
+ * {@link java.util.zip.Deflater}); yields strong compression at considerable
+ * CPU cost. Its ID is 1.
+ * <p>
+ * This is the same algorithm as selected by a <code>zlibCompressionLevel</code>
+ * greater than zero, but packaged as a pluggable page compressor, for use
+ * alongside other page compressors.
+ * <p>
+ * ZLIB streams hold native memory, so idle compressors and decompressors are
+ * kept for reuse in small pools bounded by the number of CPUs, and any
+ * surplus is released via <code>end()</code> right away, rather than being
+ * left to the garbage collector (or bound to threads) indefinitely.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+public final class ZLIBPageCompressor implements PageCompressor {
+	
+	/** The ID of this compressor's data format. */
+	public static final int ID = 1;
+	
+	private final int level;
+	
+	private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+	
+	// idle ZLIB compressors of this level; decompressors are level independent
+	private final ArrayList deflaters = new ArrayList(); 
+	private static final ArrayList inflaters = new ArrayList();
+	
+	/**
+	 * Constructs an instance with the default compression level (6).
+	 */
+	public ZLIBPageCompressor() {
+		this(6);
+	}
+	
+	/**
+	 * Constructs an instance with the given compression level.
+	 * 
+	 * @param level
+	 *            a ZLIB compression level, ranging from 1 (fastest) to 9
+	 *            (strongest)
+	 */
+	public ZLIBPageCompressor(int level) {
+		if (level < 1 || level > 9) 
+			throw new IllegalArgumentException("Compression level must be 1..9");
+		this.level = level;
+	}
+	
+	/**
+	 * Returns the ID of this compressor's data format.
+	 * 
+	 * @return the ID
+	 */
+	public int getID() {
+		return ID;
+	}
+	
+	/**
+	 * Compresses the given data.
+	 * 
+	 * @see PageCompressor#compress(byte[], int, int, byte[], int)
+	 */
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		Deflater deflater = null;
+		synchronized (deflaters) {
+			if (deflaters.size() > 0) deflater = (Deflater) deflaters.remove(deflaters.size() - 1);
+		}
+		if (deflater == null) deflater = new Deflater(level);
+		try {
+			deflater.setInput(src, srcOff, srcLen);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished() && n < srcLen) {
+				n += deflater.deflate(dst, dstOff + n, srcLen - n);
+			}
+			return deflater.finished() && n < srcLen ? n : -1;
+		} finally {
+			deflater.reset();
+			synchronized (deflaters) {
+				if (deflaters.size() < MAX_IDLE) {
+					deflaters.add(deflater);
+					deflater = null;
+				}
+			}
+			if (deflater != null) deflater.end(); // free native memory
+		}
+	}
+	
+	/**
+	 * Decompresses the given data.
+	 * 
+	 * @see PageCompressor#decompress(byte[], int, int, byte[], int, int)
+	 */
+	public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, 
+			int dstLen) throws BinaryParsingException {
+		
+		Inflater inflater = acquireInflater();
+		try {
+			inflater.setInput(src, srcOff, srcLen);
+			int n = 0;
+			while (!inflater.finished() && n < dstLen) {
+				int k = inflater.inflate(dst, dstOff + n, dstLen - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += k;
+			}
+			if (n != dstLen) 
+				throw new BinaryParsingException("Corrupt ZLIB compressed page");
+		} catch (DataFormatException e) {
+			String s = e.getMessage();
+			throw new BinaryParsingException(
+					s != null ? s : "Invalid ZLIB data format", e);
+		} finally {
+			releaseInflater(inflater);
+		}
+	}
+	
+	/** Returns an idle ZLIB decompressor, or a new one if none is idle. */
+	static Inflater acquireInflater() {
+		synchronized (inflaters) {
+			if (inflaters.size() > 0) return (Inflater) inflaters.remove(inflaters.size() - 1);
+		}
+		return new Inflater();
+	}
+	
+	/**
+	 * Resets the given decompressor, and keeps it for reuse, or ends it if
+	 * enough decompressors are idle already.
+	 */
+	static void releaseInflater(Inflater inflater) {
+		inflater.reset();
+		synchronized (inflaters) {
+			if (inflaters.size() < MAX_IDLE) {
+				inflaters.add(inflater);
+				return;
+			}
+		}
+		inflater.end(); // free native memory
+	}
+	
+	/**
+	 * Returns a summary string representation.
+	 * 
+	 * @return a string representation
+	 */
+	public String toString() {
+		return "[ZLIB, level=" + level + "]";
+	}
+	
+}
@@ -69,6 +69,7 @@ import nu.xom.Text;
 import nu.xom.WellformednessException;
 import nu.xom.XMLException;
 import nux.xom.binary.NodeBuilder;
+import nux.xom.binary.SubtreeFilter;
 
 /**
  * Similar to the XOM {@link nu.xom.Builder} except that it builds a XOM
@@ -178,6 +179,9 @@ import nux.xom.binary.NodeBuilder;
 	/** The optional XOM factory to push into. */
 	private final NodeFactory factory;
 	
+	/** The factory, if it wants to skip the contents of some elements. */
+	private final SubtreeFilter filter;
+	
 	/** Small fast cache for the most recent elements and attributes. */
 	private NodeBuilder nodeBuilder;
 	
@@ -196,7 +200,11 @@ import nux.xom.binary.NodeBuilder;
 	 * @param factory
 	 *            the node factory to stream into. May be <code>null</code> in
 	 *            which case the default XOM NodeFactory is used, building the
-	 *            full XML tree.
+	 *            full XML tree. If the factory implements
+	 *            {@link SubtreeFilter} (as the factory of a
+	 *            {@link nux.xom.xquery.StreamingPathFilter} does), the subtrees
+	 *            of elements it declares skippable are skipped by counting
+	 *            nesting depth only, without being reported to the factory.
 	 */
 	public StaxParser(XMLStreamReader reader, NodeFactory factory) {
 		if (reader == null) 
@@ -204,6 +212,7 @@ import nux.xom.binary.NodeBuilder;
 		this.reader = reader;
 		if (factory == null) factory = new NodeFactory();
 		this.factory = factory;
+		this.filter = factory instanceof SubtreeFilter ? (SubtreeFilter) factory : null;
 		if (DEBUG) System.err.println("StAX parser=" + reader.getClass().getName());
 		if (!isNamespaceAware(reader)) 
 			throw new IllegalArgumentException("reader must be namespace aware");
@@ -388,9 +397,13 @@ import nux.xom.binary.NodeBuilder;
 								"Factory failed to create root element.");
 						}
 						doc.setRootElement(root);
-						addAttributesF(root);
-						addNamespaceDeclarations(root);
-						readElementF(root); // read entire subtree
+						if (filter != null && filter.isSkippable(root)) {
+							StaxUtil.skipElement(reader); // proceed as if root were empty
+						} else {
+							addAttributesF(root);
+							addNamespaceDeclarations(root);
+							readElementF(root); // read entire subtree
+						}
 						nodes = factory.finishMakingElement(root);
 					}
 					reader.require(XMLStreamConstants.END_ELEMENT, null, null);
@@ -538,17 +551,25 @@ import nux.xom.binary.NodeBuilder;
 		
 		final ArrayList stack = new ArrayList();
 		stack.add(current); // push
+		boolean isSkipped = false;
 
 		while (true) {
 			Nodes nodes;
-			switch (reader.next()) {	
+			int event = isSkipped ? XMLStreamConstants.END_ELEMENT : reader.next();
+			isSkipped = false;
+			switch (event) {	
 				case XMLStreamConstants.START_ELEMENT: {
 					Element elem = readStartTagF(false);
 					stack.add(elem); // push even if it's null
 					if (elem != null) { 
 						current.appendChild(elem);
-						addAttributesF(elem);
-						addNamespaceDeclarations(elem);
+						if (filter != null && filter.isSkippable(elem)) {
+							StaxUtil.skipElement(reader);
+							isSkipped = true; // proceed as if elem were empty
+						} else {
+							addAttributesF(elem);
+							addNamespaceDeclarations(elem);
+						}
 						current = elem; // recurse down
 					}
 					continue;
@@ -237,6 +237,36 @@ public class StaxUtil {
 		}
 	}
 	
+	/**
+	 * Moves the cursor of the given reader from a START_ELEMENT to the
+	 * corresponding END_ELEMENT by counting nesting depth only, without
+	 * looking at names, attributes or text of the skipped subtree.
+	 * 
+	 * @param reader
+	 *            the reader, positioned on a START_ELEMENT
+	 * @throws XMLStreamException
+	 *             if the document ends before the element, or if the
+	 *             underlying parser fails
+	 */
+	public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT: 
+					depth++; 
+					break;
+				case XMLStreamConstants.END_ELEMENT: 
+					depth--; 
+					break;
+				case XMLStreamConstants.END_DOCUMENT: 
+					throw new XMLStreamException("Unexpected end of document", 
+						reader.getLocation());
+				default: 
+					break; // ignore
+			}
+		}
+	}
+	
 	/** little helper for safe reading of boolean system properties */
 	static boolean getSystemProperty(String key, boolean defaults) {
 		try { 
@@ -91,8 +91,33 @@ public class StreamingSerializerFactory {
 	 * @return a streaming serializer that writes bnux binary XML
 	 */
 	public StreamingSerializer createBinaryXMLSerializer(OutputStream out, int zlibCompressionLevel) {
+		return createBinaryXMLSerializer(out, zlibCompressionLevel, false);
+	}
+
+	/**
+	 * Returns a new streaming serializer that writes bnux binary XML to the
+	 * given underlying output stream, using the given ZLIB compression level,
+	 * optionally in a pipelined manner.
+	 * <p>
+	 * If pipelining is enabled, finished pages are handed over to a bounded
+	 * background stage that performs ZLIB compression and the blocking writes
+	 * onto the output stream, while the calling thread goes on tokenizing the
+	 * next page. The output is exactly the same in either case. See
+	 * {@link BinaryXMLCodec#setPipelinedSerializationEnabled(boolean)}.
+	 * 
+	 * @param out
+	 *            the underlying output stream to write to
+	 * @param zlibCompressionLevel
+	 *            a number in the range 0..9
+	 * @param isPipelined
+	 *            whether or not to compress and write pages in the background
+	 * @return a streaming serializer that writes bnux binary XML
+	 */
+	public StreamingSerializer createBinaryXMLSerializer(OutputStream out, 
+			int zlibCompressionLevel, boolean isPipelined) {
 //		BinaryXMLCodec codec = XOMUtil.getBinaryXMLCodec();
 		BinaryXMLCodec codec = new BinaryXMLCodec();
+		codec.setPipelinedSerializationEnabled(isPipelined);
 		return codec.createStreamingSerializer(out, zlibCompressionLevel);
 	}
 
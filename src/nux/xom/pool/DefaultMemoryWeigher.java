@@ -0,0 +1,679 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.pool;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import nu.xom.Attribute;
+import nu.xom.Comment;
+import nu.xom.DocType;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.ProcessingInstruction;
+import nu.xom.Text;
+import nux.xom.binary.SubtreeFilter;
+
+import org.apache.lucene.index.memory.MemoryIndex;
+
+/**
+ * Default {@link MemoryWeigher}, estimating memory consumption according to the
+ * object layout of the current JVM: pointer size (32 bit, 64 bit, or 64 bit
+ * with compressed oops), object header size and object alignment. Instance
+ * sizes are derived via reflection from the declared fields of each class, and
+ * are remembered per class.
+ * <p>
+ * Understands XOM nodes (including attributes and additional namespace
+ * declarations), strings, arrays, collections, maps, files and
+ * {@link MemoryIndex} objects; any other object is estimated by its instance
+ * size alone. Assumes that qname strings, namespace URIs and whitespace-only text
+ * (i.e. indentation) are shared across a tree, as is the case for trees built
+ * by {@link nu.xom.Builder} or {@link nux.xom.binary.BinaryXMLCodec}, whereas
+ * other text and attribute values are not.
+ * <p>
+ * Weighing a XOM document requires a traversal of the entire tree. To avoid it,
+ * documents can be weighed incrementally while they are being built, via the
+ * node factory returned by {@link #createNodeFactory(NodeFactory)}. Either way,
+ * the size of a document is remembered (without preventing its garbage
+ * collection), and subsequent requests for the same document return in
+ * constant time. Hence, documents are assumed not to be modified after they
+ * have been weighed, as is the case for documents held by the pools of this
+ * package.
+ * <p>
+ * The layout of the current JVM is obtained from the HotSpot diagnostic MXBean
+ * if available, and otherwise guessed from the data model and maximum heap
+ * size. It can be overridden via the system properties
+ * <code>nux.xom.pool.DefaultMemoryWeigher.pointerSize</code>,
+ * <code>nux.xom.pool.DefaultMemoryWeigher.headerSize</code> and
+ * <code>nux.xom.pool.DefaultMemoryWeigher.alignment</code>, or by using the
+ * explicit constructor.
+ * <p>
+ * This implementation is thread-safe.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/28 03:41:12 $
+ */
+public class DefaultMemoryWeigher implements MemoryWeigher {
+
+	private final int pointerSize;
+	private final int headerSize;
+	private final int alignment;
+
+	/** bytes per String char (1 on VMs with compact Latin-1 strings) */
+	private final int charSize;
+
+	/** instance sizes of frequent classes */
+	private final int stringSize;
+	private final int textSize;
+	private final int attributeSize;
+	private final int elementSize;
+
+	/** memory of a namespace declaration holder, and of each declaration therein */
+	private final int namespacesSize;
+	private final int namespaceSize;
+
+	/** Map from Class to Integer instance size (guarded by lock on itself) */
+	private final Map instanceSizes = new HashMap();
+
+	/** Map from Document to Long memory size; guarded by lock on itself */
+	private final Map documentSizes = new WeakHashMap();
+
+	/**
+	 * Constructs a weigher for the object layout of the current JVM.
+	 */
+	public DefaultMemoryWeigher() {
+		this(DetectedLayout.POINTER_SIZE, DetectedLayout.HEADER_SIZE,
+			DetectedLayout.ALIGNMENT);
+	}
+
+	/**
+	 * Constructs a weigher for the given object layout; for example
+	 * <code>(4, 8, 8)</code> for 32 bit VMs, <code>(4, 12, 8)</code> for 64 bit
+	 * VMs with compressed oops, and <code>(8, 16, 8)</code> for 64 bit VMs
+	 * without.
+	 * 
+	 * @param pointerSize
+	 *            the size [bytes] of an object reference (4 or 8)
+	 * @param headerSize
+	 *            the size [bytes] of an object header
+	 * @param alignment
+	 *            the granularity [bytes] of object sizes (a power of two)
+	 */
+	public DefaultMemoryWeigher(int pointerSize, int headerSize, int alignment) {
+		if (pointerSize != 4 && pointerSize != 8)
+			throw new IllegalArgumentException("pointerSize must be 4 or 8: " + pointerSize);
+		if (headerSize < pointerSize)
+			throw new IllegalArgumentException("headerSize must not be less than pointerSize: " + headerSize);
+		if (alignment <= 0 || (alignment & (alignment - 1)) != 0)
+			throw new IllegalArgumentException("alignment must be a power of two: " + alignment);
+
+		this.pointerSize = pointerSize;
+		this.headerSize = headerSize;
+		this.alignment = alignment;
+		this.charSize = hasField(String.class, "coder") ? 1 : 2;
+
+		this.stringSize = getInstanceSize(String.class);
+		this.textSize = getInstanceSize(Text.class);
+		this.attributeSize = getInstanceSize(Attribute.class);
+		this.elementSize = getInstanceSize(Element.class);
+
+		// nu.xom.Namespaces holds a HashMap and an ArrayList of prefixes
+		int size;
+		try {
+			size = getInstanceSize(Class.forName("nu.xom.Namespaces"));
+		} catch (Throwable e) { // better safe than sorry
+			size = align(headerSize + 2 * pointerSize);
+		}
+		size += getInstanceSize(HashMap.class) + getArraySize(16, pointerSize);
+		size += getInstanceSize(ArrayList.class) + getArraySize(10, pointerSize);
+		this.namespacesSize = size;
+		this.namespaceSize = align(headerSize + 3 * pointerSize + 4) + 2 * pointerSize;
+	}
+
+	/**
+	 * Returns a reasonable approximation of the main memory [bytes] consumed by
+	 * the given object, including the objects it (exclusively) refers to.
+	 * Assumes that object graphs have no cycles.
+	 * 
+	 * @param obj
+	 *            the object to estimate (may be <code>null</code>)
+	 * @return the approximate memory consumption
+	 */
+	public long getMemorySize(Object obj) {
+		if (obj == null) 
+			return 0;
+		if (obj instanceof Document) {
+			Long size;
+			synchronized (documentSizes) {
+				size = (Long) documentSizes.get(obj);
+			}
+			if (size == null) { // need not hold lock (potentially expensive)
+				size = new Long(getTreeSize((Node) obj));
+				putDocumentSize((Document) obj, size.longValue());
+			}
+			return size.longValue();
+		}
+		if (obj instanceof Node) 
+			return getTreeSize((Node) obj);
+		if (obj instanceof String) 
+			return getStringSize((String) obj);
+		if (obj instanceof CharSequence) 
+			return getInstanceSize(obj.getClass()) 
+				+ getArraySize(((CharSequence) obj).length(), 2);
+		
+		Class clazz = obj.getClass();
+		if (clazz.isArray()) {
+			if (obj instanceof Object[]) {
+				Object[] arr = (Object[]) obj;
+				long size = getArraySize(arr.length, pointerSize);
+				for (int i = arr.length; --i >= 0; ) {
+					size += getMemorySize(arr[i]);
+				}
+				return size;
+			}
+			return getArraySize(
+				Array.getLength(obj), 
+				getFieldSize(clazz.getComponentType()));
+		}
+		
+		if (obj instanceof Collection) {
+			Collection coll = (Collection) obj;
+			long size = getInstanceSize(clazz) + getArraySize(coll.size(), pointerSize);
+			Iterator iter = coll.iterator();
+			while (iter.hasNext()) {
+				size += getMemorySize(iter.next());
+			}
+			return size;
+		}
+		if (obj instanceof Map) {
+			Map map = (Map) obj;
+			long size = getInstanceSize(clazz) + getArraySize(map.size(), pointerSize);
+			size += map.size() * (long) align(headerSize + 3 * pointerSize + 4);
+			Iterator iter = map.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				size += getMemorySize(entry.getKey());
+				size += getMemorySize(entry.getValue());
+			}
+			return size;
+		}
+		if (obj instanceof File) 
+			return getInstanceSize(clazz) + getStringSize(((File) obj).getPath());
+		if (obj instanceof MemoryIndex) 
+			return ((MemoryIndex) obj).getMemorySize();
+		
+		return getInstanceSize(clazz);
+	}
+
+	/**
+	 * Returns a node factory that weighs the document being built, node by node,
+	 * as the nodes are handed to the builder by the given child factory. Thus,
+	 * a subsequent call to {@link #getMemorySize(Object)} for the resulting
+	 * document returns in constant time, rather than traversing the tree.
+	 * Nodes dropped by the child factory are not accounted for.
+	 * <p>
+	 * This is most useful for parsers already streaming through a custom node
+	 * factory, such as a {@link nux.xom.xquery.StreamingPathFilter}. Note that
+	 * {@link nu.xom.Builder} verifies the output of any factory other than the
+	 * default {@link NodeFactory}, which typically costs more than a traversal.
+	 * <p>
+	 * Like most node factories, the returned factory is stateful, and hence
+	 * must be used by no more than one builder at any given time.
+	 * 
+	 * @param childFactory
+	 *            the factory to delegate to (may be <code>null</code>, in
+	 *            which case the default XOM NodeFactory is used)
+	 * @return a weighing node factory
+	 */
+	public NodeFactory createNodeFactory(NodeFactory childFactory) {
+		if (childFactory == null) childFactory = new NodeFactory();
+		if (childFactory instanceof SubtreeFilter) {
+			return new WeighingSubtreeFilter(childFactory);
+		}
+		return new WeighingNodeFactory(childFactory);
+	}
+
+	/** remembers the given size of the given document */
+	private void putDocumentSize(Document doc, long size) {
+		synchronized (documentSizes) {
+			documentSizes.put(doc, new Long(size));
+		}
+	}
+
+	/**
+	 * Walks the tree rooted at the given node in pre-order, without recursion
+	 * (to avoid stack overflows on deep trees), summing up the memory of all
+	 * nodes.
+	 */
+	private long getTreeSize(Node root) {
+		long size = 0;
+		Node[] parents = null; // allocated lazily; most trees weighed by factories are leafs
+		int[] positions = null;
+		int depth = 0;
+		int position = 0;
+		Node node = root;
+		while (true) {
+			size += getNodeSize(node);
+
+			// advance to next node in pre-order
+			if (node.getChildCount() > 0) { // descend
+				if (parents == null) {
+					parents = new Node[16];
+					positions = new int[16];
+				} else if (depth == parents.length) {
+					Node[] tmpParents = new Node[2 * depth];
+					System.arraycopy(parents, 0, tmpParents, 0, depth);
+					parents = tmpParents;
+					int[] tmpPositions = new int[2 * depth];
+					System.arraycopy(positions, 0, tmpPositions, 0, depth);
+					positions = tmpPositions;
+				}
+				parents[depth] = node;
+				positions[depth] = position;
+				depth++;
+				node = node.getChild(0);
+				position = 0;
+			} else { // next sibling, or next sibling of nearest ancestor
+				while (depth > 0 && position + 1 >= parents[depth-1].getChildCount()) {
+					depth--;
+					position = positions[depth];
+				}
+				if (depth == 0) return size;
+				position++;
+				node = parents[depth-1].getChild(position);
+			}
+		}
+	}
+
+	/**
+	 * Returns the memory of the given node, excluding its children, but
+	 * including its attributes and namespace declarations, if any.
+	 */
+	private long getNodeSize(Node node) {
+		long size;
+		if (node instanceof Text) {
+			size = node.getClass() == Text.class ? textSize : getInstanceSize(node.getClass());
+			String value = node.getValue();
+			if (!isWhitespace(value)) size += getStringSize(value);
+		} else if (node instanceof Element) {
+			Element elem = (Element) node;
+			size = node.getClass() == Element.class ? elementSize : getInstanceSize(node.getClass());
+			int count = elem.getChildCount();
+			if (count > 0) size += getArraySize(count, pointerSize);
+			count = elem.getAttributeCount();
+			if (count > 0) {
+				size += getArraySize(count, pointerSize);
+				for (int i = count; --i >= 0; ) {
+					size += getNodeSize(elem.getAttribute(i));
+				}
+			}
+			count = elem.getNamespaceDeclarationCount(); // 1 unless prefixes are in use
+			if (count > 1) size += getNamespacesSize(elem, count);
+		} else if (node instanceof Attribute) {
+			size = node.getClass() == Attribute.class ? attributeSize : getInstanceSize(node.getClass());
+			size += getStringSize(node.getValue());
+		} else if (node instanceof Document) {
+			size = getInstanceSize(node.getClass());
+			size += getArraySize(node.getChildCount(), pointerSize);
+		} else if (node instanceof Comment) {
+			size = getInstanceSize(node.getClass()) + getStringSize(node.getValue());
+		} else if (node instanceof ProcessingInstruction) {
+			size = getInstanceSize(node.getClass()) + getStringSize(node.getValue());
+		} else if (node instanceof DocType) {
+			String subset = ((DocType) node).getInternalDTDSubset();
+			size = getInstanceSize(node.getClass()) + getStringSize(subset);
+		} else {
+			size = getInstanceSize(node.getClass());
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the memory of the additional namespace declarations of the given
+	 * element, that is, those not implied by the prefix of the element itself
+	 * or of one of its attributes.
+	 */
+	private int getNamespacesSize(Element elem, int count) {
+		String prefix = elem.getNamespacePrefix();
+		int decls = 0;
+		for (int i = count; --i >= 0; ) {
+			String p = elem.getNamespacePrefix(i);
+			if (p.equals(prefix)) continue;
+			boolean isImplied = false;
+			for (int j = elem.getAttributeCount(); !isImplied && --j >= 0; ) {
+				isImplied = p.equals(elem.getAttribute(j).getNamespacePrefix());
+			}
+			if (!isImplied) decls++;
+		}
+		if (decls == 0) return 0;
+		return namespacesSize + decls * namespaceSize;
+	}
+
+	/** returns true if the given string is (typically shared) indentation */
+	private static boolean isWhitespace(String str) {
+		for (int i = str.length(); --i >= 0; ) {
+			switch (str.charAt(i)) {
+				case ' ':
+				case '\t':
+				case '\n':
+				case '\r': break;
+				default: return false;
+			}
+		}
+		return true;
+	}
+
+	private long getStringSize(String str) {
+		if (str == null) return 0;
+		return stringSize + getArraySize(str.length(), charSize);
+	}
+
+	private int getArraySize(int length, int elementSize) {
+		return align(headerSize + 4 + length * elementSize);
+	}
+
+	private int align(int size) {
+		return (size + alignment - 1) & -alignment;
+	}
+
+	/**
+	 * Returns the memory of an instance of the given class, excluding the
+	 * objects it refers to, assuming fields are packed densely.
+	 */
+	private int getInstanceSize(Class clazz) {
+		synchronized (instanceSizes) {
+			Integer size = (Integer) instanceSizes.get(clazz);
+			if (size != null) return size.intValue();
+		}
+
+		int size = headerSize;
+		try {
+			for (Class c = clazz; c != null; c = c.getSuperclass()) {
+				Field[] fields = c.getDeclaredFields();
+				for (int i = 0; i < fields.length; i++) {
+					if (!Modifier.isStatic(fields[i].getModifiers())) {
+						size += getFieldSize(fields[i].getType());
+					}
+				}
+			}
+		} catch (SecurityException e) { // we can live with that
+			size += 4 * pointerSize;
+		}
+		size = align(size);
+
+		synchronized (instanceSizes) {
+			instanceSizes.put(clazz, new Integer(size));
+		}
+		return size;
+	}
+
+	private int getFieldSize(Class type) {
+		if (!type.isPrimitive()) return pointerSize;
+		if (type == long.class || type == double.class) return 8;
+		if (type == int.class || type == float.class) return 4;
+		if (type == char.class || type == short.class) return 2;
+		return 1; // byte, boolean
+	}
+
+	private static boolean hasField(Class clazz, String name) {
+		try {
+			clazz.getDeclaredField(name);
+			return true;
+		} catch (Throwable e) { // NoSuchFieldException, SecurityException
+			return false;
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Object layout of the current JVM; determined lazily, on first use, as
+	 * querying the VM options may take a while.
+	 */
+	private static final class DetectedLayout {
+
+		private static final int POINTER_SIZE;
+		private static final int HEADER_SIZE;
+		private static final int ALIGNMENT;
+
+		static {
+			String model = XOMUtil.getSystemProperty("sun.arch.data.model", "");
+			String arch = XOMUtil.getSystemProperty("os.arch", "");
+			boolean is64Bit = model.length() > 0 ? model.equals("64") : arch.indexOf("64") >= 0;
+
+			int ptr = 4;
+			int header = 8;
+			int alignment = 8;
+			if (is64Bit) {
+				String[] options = getVMOptions(new String[] {
+					"UseCompressedOops", "UseCompressedClassPointers", "ObjectAlignmentInBytes" });
+
+				// HotSpot compresses oops by default for heaps below 32 GB
+				boolean compressedOops = options[0] != null ? 
+					options[0].equals("true") : 
+					Runtime.getRuntime().maxMemory() < 31L * 1024 * 1024 * 1024;
+				boolean compressedClasses = options[1] != null ? 
+					options[1].equals("true") : 
+					compressedOops;
+				ptr = compressedOops ? 4 : 8;
+				header = compressedClasses ? 12 : 16;
+				if (options[2] != null) {
+					try {
+						alignment = Integer.parseInt(options[2]);
+					} catch (NumberFormatException e) {
+						; // ignore
+					}
+				}
+			}
+
+			POINTER_SIZE = XOMUtil.getSystemProperty(
+				"nux.xom.pool.DefaultMemoryWeigher.pointerSize", ptr);
+			HEADER_SIZE = XOMUtil.getSystemProperty(
+				"nux.xom.pool.DefaultMemoryWeigher.headerSize", header);
+			ALIGNMENT = XOMUtil.getSystemProperty(
+				"nux.xom.pool.DefaultMemoryWeigher.alignment", alignment);
+		}
+
+		/**
+		 * Returns the values of the given HotSpot VM options, or nulls if they
+		 * are unavailable. Uses reflection as the management API does not exist
+		 * on all VMs.
+		 */
+		private static String[] getVMOptions(String[] names) {
+			String[] values = new String[names.length];
+			Object bean;
+			Method getVMOption;
+			Method getValue;
+			try {
+				Class factory = Class.forName("java.lang.management.ManagementFactory");
+				Class beanClass = Class.forName("com.sun.management.HotSpotDiagnosticMXBean");
+				Object server = factory.getMethod("getPlatformMBeanServer", null).invoke(null, null);
+				Method newProxy = factory.getMethod("newPlatformMXBeanProxy", new Class[] {
+					Class.forName("javax.management.MBeanServerConnection"), String.class, Class.class });
+				bean = newProxy.invoke(null, new Object[] {
+					server, "com.sun.management:type=HotSpotDiagnostic", beanClass });
+				getVMOption = beanClass.getMethod("getVMOption", new Class[] {String.class});
+				getValue = Class.forName("com.sun.management.VMOption").getMethod("getValue", null);
+			} catch (Throwable e) { // not a HotSpot VM, or older than 1.6, or access denied
+				return values;
+			}
+
+			for (int i = 0; i < names.length; i++) {
+				try {
+					Object option = getVMOption.invoke(bean, new Object[] {names[i]});
+					values[i] = (String) getValue.invoke(option, null);
+				} catch (Throwable e) { // option is unknown to this VM version
+					; // ignore
+				}
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Delegates to a child factory, summing up the memory of the nodes it
+	 * returns, per open element; remembers the total memory of the document on
+	 * finishMakingDocument().
+	 */
+	private class WeighingNodeFactory extends NodeFactory {
+
+		private final NodeFactory child;
+
+		/** memory of the contents of the open elements; [0] is the document */
+		private long[] sizes = new long[16];
+		private int depth;
+
+		private WeighingNodeFactory(NodeFactory child) {
+			this.child = child;
+		}
+
+		public Document startMakingDocument() {
+			depth = 0;
+			sizes[0] = 0;
+			return child.startMakingDocument();
+		}
+
+		public void finishMakingDocument(Document document) {
+			child.finishMakingDocument(document);
+			putDocumentSize(document, sizes[0] + getNodeSize(document));
+		}
+
+		public Element makeRootElement(String name, String namespace) {
+			return push(child.makeRootElement(name, namespace));
+		}
+
+		public Element startMakingElement(String name, String namespace) {
+			return push(child.startMakingElement(name, namespace));
+		}
+
+		public Nodes finishMakingElement(Element element) {
+			Nodes nodes = child.finishMakingElement(element);
+			long size = sizes[depth] + getNodeSize(element); // incl. attributes
+			if (depth > 0) depth--;
+			for (int i = nodes.size(); --i >= 0; ) {
+				Node node = nodes.get(i);
+				sizes[depth] += node == element ? size : getTreeSize(node);
+			}
+			return nodes;
+		}
+
+		public Nodes makeAttribute(String name, String URI, String value, Attribute.Type type) {
+			return child.makeAttribute(name, URI, value, type); // weighed with its element
+		}
+
+		public Nodes makeComment(String data) {
+			return add(child.makeComment(data));
+		}
+
+		public Nodes makeDocType(String rootElementName, String publicID, String systemID) {
+			return add(child.makeDocType(rootElementName, publicID, systemID));
+		}
+
+		public Nodes makeProcessingInstruction(String target, String data) {
+			return add(child.makeProcessingInstruction(target, data));
+		}
+
+		public Nodes makeText(String text) {
+			return add(child.makeText(text));
+		}
+
+		/** opens a new level for the given element, unless it is null */
+		private Element push(Element element) {
+			if (element != null) {
+				if (++depth == sizes.length) {
+					long[] tmp = new long[2 * depth];
+					System.arraycopy(sizes, 0, tmp, 0, depth);
+					sizes = tmp;
+				}
+				sizes[depth] = 0;
+			}
+			return element;
+		}
+
+		/** accounts for the given nodes in the current level */
+		private Nodes add(Nodes nodes) {
+			for (int i = nodes.size(); --i >= 0; ) {
+				sizes[depth] += getTreeSize(nodes.get(i));
+			}
+			return nodes;
+		}
+
+		/** the factory this factory delegates to */
+		NodeFactory getChild() {
+			return child;
+		}
+	}
+
+	/**
+	 * A WeighingNodeFactory preserving the subtree skipping ability of its
+	 * child factory.
+	 */
+	private final class WeighingSubtreeFilter extends WeighingNodeFactory implements SubtreeFilter {
+
+		private WeighingSubtreeFilter(NodeFactory child) {
+			super(child);
+		}
+
+		public boolean isSkippable(Element element) {
+			return ((SubtreeFilter) getChild()).isSkippable(element);
+		}
+	}
+
+}
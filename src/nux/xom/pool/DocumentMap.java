@@ -62,6 +62,9 @@ import nux.xom.binary.BinaryParsingException;
  * </li>
  * <li>The maximum memory limit is exceeded by the sum of all contained
  * documents (<code>capacity</code>).</li>
+ * <li>The process-wide memory budget shared with other pools is exceeded
+ * (<code>memoryGovernor</code>), and the document is among the least valuable
+ * entries of all these pools, in terms of rebuild cost per byte held.</li>
  * <li>The time an entry has been inactive is exceeded (
  * <code>maxIdleTime</code>). That is, a key's entry is removed if the key
  * has not been recalled for some time via <code>getDocument</code>.</li>
@@ -120,8 +123,9 @@ import nux.xom.binary.BinaryParsingException;
  *     System.out.println(doc.toXML());
  * </pre>
  * 
- * Note: Internally uses extremely short-lived locks; the resulting potential
- * lock contention is completely negligible.
+ * Note: Internally uses extremely short-lived locks. Should the resulting lock
+ * contention ever show up with very many threads, consider
+ * {@link PoolConfig#setConcurrencyLevel(int)} to stripe the locks.
  * 
  * @author whoschek.AT.lbl.DOT.gov
  * @author $Author: hoschek3 $
@@ -200,6 +204,14 @@ public class DocumentMap {
 				XOMUtil.getBinaryXMLCodec().serialize(doc, compressionLevel));
 	}
 		
+	/**
+	 * Returns whether <code>getDocument()</code> returns the very document
+	 * objects previously stored, rather than separate copies.
+	 */
+	boolean isSharingDocuments() {
+		return maxEntries != 0 && compressionLevel == -1;
+	}
+	
 //	/**
 //	 * Streams (pushes) the document associated with the given key through the
 //	 * given node factory, returning a new result document, filtered according
@@ -51,6 +51,7 @@ import java.util.MissingResourceException;
 
 import nu.xom.Document;
 import nu.xom.ParsingException;
+import nux.xom.xquery.XQueryUtil;
 
 /**
  * Efficient compact thread-safe pool/cache of XOM XML {@link Document} objects,
@@ -93,6 +94,18 @@ import nu.xom.ParsingException;
  *         new DocumentFactory().getBinaryXMLFactory());
  *     Document doc = pool.getDocument(new File("samples/data/periodic.xml.bnux"));
  * </pre>
+ * <p>
+ * If several threads concurrently miss the cache for the same document, only one of
+ * them builds it, while the others wait for its result rather than building the
+ * same document over again.
+ * <p>
+ * If the underlying {@link DocumentMap} shares documents rather than copying
+ * them (compression level -1), cached documents must not be modified by clients,
+ * and are hence declared immutable via
+ * {@link XQueryUtil#setStructuralIndexing(Document, boolean)}: repeated queries
+ * against them reuse an element name index, built once on demand. This can be
+ * disabled via the system property 
+ * <code>nux.xom.pool.DocumentPool.structuralIndexing=false</code>.
  * 
  * @author whoschek.AT.lbl.DOT.gov
  * @author $Author: hoschek3 $
@@ -114,6 +127,13 @@ public class DocumentPool {
 	 * Current pool entries.
 	 */
 	private final DocumentMap entries;
+
+	/** Keys currently being loaded on a cache miss; at most one thread loads a given key */
+	private final SingleFlight loads = new SingleFlight();
+
+	/** Index shared documents for queries? */
+	private static final boolean STRUCTURAL_INDEXING = 
+		XOMUtil.getSystemProperty("nux.xom.pool.DocumentPool.structuralIndexing", true);
 	
 	/**
 	 * Creates a new pool with default parameters.
@@ -151,15 +171,18 @@ public class DocumentPool {
 	 *             if an XML parsing error occurs
 	 * @return a document
 	 */
-	public Document getDocument(File input) throws ParsingException, IOException {
+	public Document getDocument(final File input) throws ParsingException, IOException {
 		if (input == null) 
 			throw new IllegalArgumentException("input must not be null");
 
 		Object key = input;
 		Document doc = entries.getDocument(key);
 		if (doc == null) {
-			doc = factory.createDocument(input);
-			entries.putDocument(key, doc);
+			doc = load(key, new Loader() {
+				protected Document create() throws ParsingException, IOException {
+					return factory.createDocument(input);
+				}
+			});
 		}
 		return doc;
 	}
@@ -175,15 +198,18 @@ public class DocumentPool {
 	 *             if an XML parsing error occurs
 	 * @return a document
 	 */
-	public Document getDocument(URI systemID) throws ParsingException, IOException {
+	public Document getDocument(final URI systemID) throws ParsingException, IOException {
 		if (systemID == null) 
 			throw new IllegalArgumentException("systemID must not be null");
 
 		Object key = systemID;
 		Document doc = entries.getDocument(key);
 		if (doc == null) {
-			doc = factory.createDocument(null, systemID);
-			entries.putDocument(key, doc);
+			doc = load(key, new Loader() {
+				protected Document create() throws ParsingException, IOException {
+					return factory.createDocument(null, systemID);
+				}
+			});
 		}
 		return doc;
 	}
@@ -209,7 +235,8 @@ public class DocumentPool {
 	 *             if an XML parsing error occurs
 	 * @return a document
 	 */
-	public Document getDocument(ResourceResolver resolver, String resourceName, URI baseURI) 
+	public Document getDocument(final ResourceResolver resolver, 
+			final String resourceName, final URI baseURI) 
 		throws ParsingException, IOException, MissingResourceException {
 
 		if (resolver == null) 
@@ -220,18 +247,82 @@ public class DocumentPool {
 		Object key = Pool.createHashKeys(new Object[] {resourceName, baseURI});
 		Document doc = entries.getDocument(key);
 		if (doc == null) {
-			InputStream input = resolver.getResourceAsStream(resourceName);
-			if (input == null) {
-				throw new MissingResourceException(
-					"Resource '" + resourceName + "' could not be found by resolver: " + 
-					resolver.getClass().getName(), 
-					resolver.getClass().getName(), 
-					resourceName);
-			}
-			doc = factory.createDocument(input, baseURI);
-			entries.putDocument(key, doc);
+			doc = load(key, new Loader() {
+				protected Document create() throws ParsingException, IOException {
+					InputStream input = resolver.getResourceAsStream(resourceName);
+					if (input == null) {
+						throw new MissingResourceException(
+							"Resource '" + resourceName + "' could not be found by resolver: " + 
+							resolver.getClass().getName(), 
+							resolver.getClass().getName(), 
+							resourceName);
+					}
+					return factory.createDocument(input, baseURI);
+				}
+			});
 		}
 		return doc;
 	}
 
+	/**
+	 * Returns the document for the given key, building it at most once at a
+	 * time; threads waiting for the build receive the built document (or a
+	 * copy of it, unless the cache shares documents) even if the cache
+	 * declines to keep it.
+	 */
+	private Document load(Object key, Loader loader) throws ParsingException, IOException {
+		try {
+			return (Document) loads.load(key, loader);
+		} catch (ParsingException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e); // can never happen
+		}
+	}
+	
+	/**
+	 * Caches the given document; declares it immutable if the cache returns
+	 * it to subsequent callers as is.
+	 */
+	private void putDocument(Object key, Document doc) {
+		entries.putDocument(key, doc);
+		if (STRUCTURAL_INDEXING && entries.isSharingDocuments()) {
+			try {
+				XQueryUtil.setStructuralIndexing(doc, true);
+			} catch (NoClassDefFoundError err) {
+				; // Saxon is not on the classpath; hence there are no queries to speed up
+			}
+		}
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Builds and caches a document on a cache miss. */
+	private abstract class Loader extends SingleFlight.Loader {
+		
+		protected Object get(Object key) {
+			return entries.getDocument(key);
+		}
+		
+		protected Object load(Object key) throws ParsingException, IOException {
+			Document doc = create();
+			putDocument(key, doc);
+			return doc;
+		}
+		
+		protected Object copy(Object doc) {
+			if (entries.isSharingDocuments()) return doc;
+			return new Document((Document) doc); // each caller gets its own copy
+		}
+		
+		/** Builds the document. */
+		protected abstract Document create() throws ParsingException, IOException;
+	}
+	
 }
\ No newline at end of file
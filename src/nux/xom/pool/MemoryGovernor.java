@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Process-wide memory budget shared by any number of pools, such as
+ * {@link XQueryPool}, {@link DocumentPool}/{@link DocumentMap},
+ * {@link XSLTransformPool}, {@link FullTextPool} and the per-thread pools of
+ * {@link BuilderPool}.
+ * <p>
+ * Each pool registers with the governor of its {@link PoolConfig} (by default
+ * {@link #GLOBAL_GOVERNOR}) and reports the memory consumption of its entries,
+ * as estimated by its {@link MemoryWeigher}. Whenever the sum over all
+ * registered pools exceeds the capacity of the governor, entries are evicted
+ * from whichever pools hold the least valuable ones, rather than from the pool
+ * that happens to be inserting, until the budget is met again. Thus, pools
+ * need not be under-provisioned individually to avoid running out of memory
+ * when they all fill up at the same time. The individual
+ * {@link PoolConfig#setCapacity(long) capacity} of each pool continues to
+ * apply as well.
+ * <p>
+ * The value of an entry is its rebuild cost per byte held, discounted by the
+ * time the entry has been idle. The rebuild cost is measured as the time
+ * elapsed between a cache miss on a key and the subsequent insertion of a
+ * value for that key by the same thread, which is how all pools of this
+ * package operate. For example, a compiled query taking 50 ms to compile and
+ * holding a few KB outlives a large document that is quickly rebuilt from its
+ * binary XML representation. To keep the cost of eviction low, candidates are
+ * sampled among the least recently used entries of each pool.
+ * <p>
+ * Pools are referenced weakly; the memory of pools that have been garbage
+ * collected (e.g. along with the thread of a <code>BuilderPool</code>) is
+ * released from the budget automatically.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/29 22:15:48 $
+ */
+public final class MemoryGovernor {
+
+	/**
+	 * The default governor shared by all pools (global per class loader); its
+	 * capacity defaults to <code>Runtime.maxMemory() / 2</code>, overridable
+	 * via the system property
+	 * <code>nux.xom.pool.MemoryGovernor.capacity</code>.
+	 */
+	public static final MemoryGovernor GLOBAL_GOVERNOR = new MemoryGovernor(getDefaultCapacity());
+
+	/** the maximum amount of memory [bytes] of all pools (guarded by lock on this) */
+	private long capacity;
+
+	/** the current amount of memory [bytes] of all pools (guarded by lock on this) */
+	private long totalSize;
+
+	/** the registered pools, as PoolRefs (guarded by lock on this) */
+	private final ArrayList pools = new ArrayList();
+
+	/** enable Nux debug output on System.err? */
+	private static final boolean DEBUG = 
+		XOMUtil.getSystemProperty("nux.xom.pool.MemoryGovernor.debug", false);
+
+	private static long getDefaultCapacity() {
+		long def = Runtime.getRuntime().maxMemory();
+		if (def != Long.MAX_VALUE) def = def / 2;
+		return XOMUtil.getSystemProperty("nux.xom.pool.MemoryGovernor.capacity", def);
+	}
+
+	/**
+	 * Constructs a governor with the given capacity.
+	 * 
+	 * @param capacity
+	 *            the maximum amount of memory [bytes] the entries of all
+	 *            registered pools may occupy
+	 */
+	public MemoryGovernor(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the maximum amount of memory [bytes] the entries of all
+	 * registered pools may occupy.
+	 * 
+	 * @return the capacity
+	 */
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum amount of memory [bytes] the entries of all registered
+	 * pools may occupy, evicting entries right away if the new capacity is
+	 * exceeded. A value of <code>Long.MAX_VALUE</code> effectively disables
+	 * this constraint.
+	 * 
+	 * @param capacity
+	 *            the new capacity
+	 */
+	public void setCapacity(long capacity) {
+		synchronized (this) {
+			this.capacity = capacity;
+		}
+		evictExcessEntries(); // need not hold lock
+	}
+
+	/**
+	 * Returns the current amount of memory [bytes] occupied by the entries of
+	 * all registered pools.
+	 * 
+	 * @return the current memory consumption
+	 */
+	public synchronized long getMemorySize() {
+		return totalSize;
+	}
+
+	/**
+	 * Registers the given pool, returning the handle the pool reports its
+	 * memory consumption through.
+	 */
+	synchronized Object register(Pool pool) {
+		PoolRef ref = new PoolRef(pool);
+		pools.add(ref);
+		return ref;
+	}
+
+	/**
+	 * Accounts for entries of the given size [bytes] having been added to (or,
+	 * if negative, removed from) the pool with the given handle.
+	 */
+	synchronized void add(Object handle, long size) {
+		((PoolRef) handle).size += size;
+		totalSize += size;
+	}
+
+	/**
+	 * Removes the least valuable entries among all registered pools until the
+	 * capacity invariant holds again. Must not be called while holding a lock
+	 * of a pool or segment.
+	 */
+	void evictExcessEntries() {
+		while (true) {
+			Pool[] candidates;
+			synchronized (this) {
+				expungeStalePools();
+				if (totalSize <= capacity) return; // we're done
+				candidates = new Pool[pools.size()];
+				for (int i = 0; i < candidates.length; i++) {
+					candidates[i] = (Pool) ((PoolRef) pools.get(i)).get();
+				}
+			}
+
+			// find the pool holding the least valuable sampled entry
+			long now = System.currentTimeMillis();
+			Pool victim = null;
+			double min = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < candidates.length; i++) {
+				if (candidates[i] == null) continue; // gc'd meanwhile
+				double value = candidates[i].getLeastEvictionValue(now);
+				if (value < min) {
+					min = value;
+					victim = candidates[i];
+				}
+			}
+			if (DEBUG) System.err.println("MemoryGovernor: MB=" 
+				+ (getMemorySize() / (1024.0f * 1024.0f)) + ", victim=" + victim + ", value=" + min);
+			
+			if (victim == null) return; // all pools are empty
+			if (!victim.evictLeastValuableEntry(now)) return; // emptied meanwhile
+		}
+	}
+
+	/** forgets about pools that have been garbage collected, along with their memory */
+	private void expungeStalePools() {
+		for (int i = pools.size(); --i >= 0; ) {
+			PoolRef ref = (PoolRef) pools.get(i);
+			if (ref.get() == null) {
+				totalSize -= ref.size;
+				pools.remove(i);
+			}
+		}
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Refers to a registered pool without preventing it from being garbage
+	 * collected; remembers the pool's memory consumption, so it can be
+	 * released afterwards.
+	 */
+	private static final class PoolRef extends WeakReference {
+
+		private long size; // guarded by lock on governor
+
+		private PoolRef(Pool pool) {
+			super(pool);
+		}
+	}
+
+}
@@ -50,6 +50,7 @@ import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -57,16 +58,26 @@ import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import org.apache.lucene.index.memory.MemoryIndex;
-
-import nu.xom.Node;
-
 /**
  * Thread-safe memory sensitive cache/pool using a LRUHashMap; maintains a
  * {@link SoftReference} for each map value; Automatically and safely evicts
  * stale entries of values that have been garbage collected by Java's soft
  * reference mechanism.
  * <p>
+ * The entries are spread over a power-of-two number of segments according to
+ * the hash code of their key (see {@link PoolConfig#setConcurrencyLevel(int)}).
+ * Each segment is a LRUHashMap guarded by its own lock, so threads accessing
+ * different segments never contend. The limits on the number of entries and
+ * on memory consumption apply to the pool as a whole: whenever a limit is
+ * exceeded, the least recently used among the eldest entries of all segments
+ * is evicted. With a single segment this is exact LRU; with multiple segments
+ * it is a close approximation thereof.
+ * <p>
+ * In addition, the pool reports the memory of its entries to the
+ * {@link MemoryGovernor} of its configuration, if any, which evicts the least
+ * valuable entries across all pools whenever their total exceeds the global
+ * budget.
+ * <p>
  * Null keys are permitted. Null values are permitted but their mappings are
  * silently removed (a cache with null values is rather meaningless).
  * <p>
@@ -81,23 +92,49 @@ import nu.xom.Node;
  */
 final class Pool implements Map { // not a public class!
 
-	/** the underlying map holding the real entries */
-	private final SoftLRUHashMap child;
-//	private final Map child;
+	/** the segments holding the real entries; length is a power of two */
+	private final Segment[] segments;
 
-	/** gc notifies us of soft ref collections by enqueuing onto this queue */
-	private final ReferenceQueue queue;
-	
 	/**
-	 * the current amount of memory [bytes] this map occupies
+	 * the current amount of memory [bytes] and the number of entries of all
+	 * segments (guarded by lock on this; never acquire a segment lock while
+	 * holding it)
 	 */
 	private long totalSize;
+	private int totalEntries;
+	
+	/**
+	 * logical clock ordering accesses across segments; updated without lock,
+	 * so lost updates merely blur the approximate LRU order a little
+	 */
+	private long clock;
 
+	private final int maxEntries; // copied from config
 	private final long maxIdleTime; // copied from config
 	private final long maxLifeTime; // copied from config
 	private final long capacity;    // copied from config
 	private final boolean fileMonitoring; // copied from config
+	private final MemoryWeigher weigher; // copied from config
+	private final MemoryGovernor governor; // copied from config; may be null
+
+	/** handle reporting our memory consumption to the governor */
+	private final Object governorHandle;
+
+	/** per thread MissLog remembering recent cache misses (see put) */
+	private final ThreadLocal misses = new ThreadLocal();
 
+	/** the first segment the governor samples; updated without lock */
+	private int governorCursor;
+
+	/** upper bound on the number of segments */
+	private static final int MAX_SEGMENTS = 256;
+	
+	/** number of segments to inspect on each eviction */
+	private static final int EVICTION_SAMPLES = 8;
+	
+	/** number of LRU entries per segment to inspect on each governor eviction */
+	private static final int VALUE_SAMPLES = 4;
+	
 	/**
 	 * daemon thread running periodically to evict invalid entries.
 	 */
@@ -135,9 +172,11 @@ final class Pool implements Map { // not a public class!
 	
 	private Pool(PoolConfig config) {		
 		this.totalSize = 0;
-		this.child = new SoftLRUHashMap(this, config.getMaxEntries());
+		this.totalEntries = 0;
+		this.maxEntries = config.getMaxEntries();
 		this.capacity = config.getCapacity();
 		this.fileMonitoring = config.getFileMonitoring();
+		this.weigher = config.getMemoryWeigher();
 
 		// fixup terribly inefficient parameters
 		this.maxIdleTime = Math.max(100, config.getMaxIdleTime());
@@ -147,51 +186,56 @@ final class Pool implements Map { // not a public class!
 		t = Math.min(config.getInvalidationPeriod(), t);
 		if (t == Long.MAX_VALUE) t = -1; // never evict
 		if (t >= 0) t = Math.max(100, t); // fixup inefficient parameters
-		this.queue = t > 0 ? new ReferenceQueue() : null;
+		
+		int level = Math.min(MAX_SEGMENTS, Math.min(maxEntries, config.getConcurrencyLevel()));
+		int n = 1;
+		while (n < level) n <<= 1; // round up to power of two
+		this.segments = new Segment[n];
+		for (int i=0; i < n; i++) {
+			segments[i] = new Segment(this, i, t > 0 ? new ReferenceQueue() : null);
+		}
+		
 		if (t > 0) SWEEPER.schedule(new SweepTask(this), t, t);
+		
+		this.governor = config.getMemoryGovernor();
+		this.governorHandle = governor != null ? governor.register(this) : null;
 	}
 
-	public synchronized void clear() {
-		evictStaleEntries();
-		child.clear();
-		totalSize = 0;
+	public void clear() {
+		for (int i=0; i < segments.length; i++) {
+			segments[i].clear();
+		}
 	}
 
-	public synchronized Object get(Object key) {
-		evictStaleEntries();
-		SoftValue ref = (SoftValue) child.get(key);
-		return SoftValue.unwrap(ref, false);
+	public Object get(Object key) {
+		Object value = segmentFor(key).get(key);
+		if (value == null && governor != null) MissLog.get(misses).add(key);
+		return value;
 	}
 
 	public Object put(Object key, Object value) {
-		synchronized (this) {
-			evictStaleEntries();
-		}
+		Segment segment = segmentFor(key);
+		segment.evictStaleEntries();
 		
-		int size = 0;
-		if (value != null && capacity != Long.MAX_VALUE) {
-			int valueSize = getMemorySize(value); // need not hold lock (potentially expensive)
-			int keySize = getMemorySize(key);
+		long size = 0;
+		long cost = 0;
+		if (value != null && governor != null) {
+			cost = MissLog.get(misses).remove(key); // time since cache miss
+		}
+		if (value != null && (capacity != Long.MAX_VALUE || governor != null)) {
+			long valueSize = weigher.getMemorySize(value); // need not hold lock (potentially expensive)
+			long keySize = weigher.getMemorySize(key instanceof HashKeys ? ((HashKeys) key).keys : key);
 			size += valueSize + keySize;
 //			if (DEBUG) System.err.println("vsize=" + valueSize + ", ksize=" + keySize + ", MB=" + (totalSize / (1024.0f * 1024.0f)));
 			if (size > capacity) value = null; // i.e. remove entry, if any
 		}
 		
-		synchronized (this) {
-			SoftValue old;
-			if (value != null) {
-				SoftValue ref = new SoftValue(key, value, queue, size);
-				old = (SoftValue) child.put(key, ref);
-				totalSize += size;
-			} else {
-				old = (SoftValue) child.remove(key);
-			}
-	
-			Object result = SoftValue.unwrap(old, true);
-			if (old != null) evictEntry(key, old, "PUT");
-			if (value != null && totalSize > capacity) evictExcessMemoryEntries();
-			return result;
+		Object result = segment.put(key, value, size, cost);
+		if (value != null) {
+			evictExcessEntries(segment.index);
+			if (governor != null) governor.evictExcessEntries();
 		}
+		return result;
 	}
 
 	public Object remove(Object key) {
@@ -199,10 +243,16 @@ final class Pool implements Map { // not a public class!
 	}
 
 	// methods that are not really needed for our purposes:
-	public synchronized boolean containsKey(Object key) { return get(key) != null; }
-	public synchronized int size() { return child.size(); }
-	public synchronized boolean isEmpty() { return child.isEmpty(); }
-	public synchronized Set keySet() { return child.keySet(); }
+	public boolean containsKey(Object key) { return get(key) != null; }
+	public synchronized int size() { return totalEntries; }
+	public boolean isEmpty() { return size() == 0; }
+	public Set keySet() { 
+		Set keys = new HashSet();
+		for (int i=0; i < segments.length; i++) {
+			segments[i].addKeysTo(keys);
+		}
+		return keys;
+	}
 	public void putAll(Map src) {
 		Iterator iter = src.entrySet().iterator();
 		while (iter.hasNext()) {
@@ -216,125 +266,141 @@ final class Pool implements Map { // not a public class!
 	public Collection values() { throw new UnsupportedOperationException(); }
 	public Set entrySet() { throw new UnsupportedOperationException(); }
 
+	/** Returns the segment responsible for the given key */
+	private Segment segmentFor(Object key) {
+		int h = key == null ? 0 : key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12); // spread bits, as in java.util.HashMap
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & (segments.length - 1)];
+	}
+	
+	/** returns the next value of the logical clock */
+	private long tick() {
+		return ++clock;
+	}
+	
+	/** accounts for an entry that has been added to a segment */
+	private synchronized void addEntry(long size) {
+		totalSize += size;
+		totalEntries++;
+		if (governor != null) governor.add(governorHandle, size);
+	}
+	
 	/** mark entry as removed; the actual removal is done elsewhere */
 	private void evictEntry(Object key, SoftValue ref, String msg) {
 		ref.remove();
-		totalSize -= ref.size;
+		long total;
+		int entries;
+		synchronized (this) {
+			totalSize -= ref.size;
+			totalEntries--;
+			if (governor != null) governor.add(governorHandle, -ref.size);
+			total = totalSize;
+			entries = totalEntries;
+		}
 		if (DEBUG) {
 			String str = String.valueOf(key);
 			if (str.length() > 35) str = str.substring(0, 32) + "...";
 			System.err.println("*******" + msg + " EVICTED=" + str
-					+ ", size()=" + child.size() + ", MB=" + (totalSize / (1024.0f * 1024.0f)));
+					+ ", size()=" + entries + ", MB=" + (total / (1024.0f * 1024.0f)));
 		}
 //		if (key instanceof PoolValidatingKey) { // TODO: consider adding feature?
 //			((PoolValidatingKey) key).onRemoval(); // notify for potential dependency chain invalidation
 //		}
 	}
 	
-	/** removes all entries that have been collected and enqueued by the VM gc */
-	private void evictStaleEntries() {
-		if (queue == null) return; // nothing to do
-		SoftValue ref;
-		while ((ref = (SoftValue) queue.poll()) != null) {
-			if (!ref.isRemoved()) {
-				child.remove(ref.key);
-				evictEntry(ref.key, ref, "GC");
-			}
-		}
-	}
-
-	/** removes all entries that turn out to be nomore valid (to be run periodically) */
-	private void evictInvalidEntries() {
-		Iterator iter = child.entrySet().iterator();
-		long now = System.currentTimeMillis();
-		long idle = maxIdleTime - now;
-		long life = maxLifeTime - now;
-		
-		while (iter.hasNext()) {
-			Map.Entry entry = (Map.Entry) iter.next();
-			Object key = entry.getKey();
-			SoftValue ref = (SoftValue) entry.getValue();
-			String msg = null;
-			
-			boolean isValid = ref.lastAccessTime + idle > 0;
-			if (!isValid) msg = "INVALID (maxIdleTime)";
-			
-			if (isValid) {
-				isValid = ref.insertionTime + life > 0;
-				if (!isValid) msg = "INVALID (maxLifeTime)";
-			}
-			
-			if (isValid && key instanceof PoolValidatingKey) {
-				isValid = ((PoolValidatingKey) key).isValid();
-				if (!isValid) msg = "INVALID (PoolValidatingKey)";
+	/**
+	 * removes LRU entries until the maxEntries and max memory limit invariants
+	 * hold again; inspects a sample of segments, starting with the given one
+	 */
+	private void evictExcessEntries(int start) {
+		int samples = Math.min(EVICTION_SAMPLES, segments.length);
+		int stride = segments.length / samples;
+		while (true) {
+			String msg;
+			synchronized (this) {
+				if (totalEntries > maxEntries) {
+					msg = "MAXENTRIES";
+				} else if (totalSize > capacity) {
+					msg = "MEMORY";
+				} else {
+					return; // we're done
+				}
 			}
 			
-			if (isValid && fileMonitoring) {
-				File file = null;
-				if (key instanceof File) { 
-					file = (File) key;
-				} else if (key instanceof HashKeys) {
-					file = ((HashKeys) key).getFile();
+			// find the sampled segment holding the least recently used eldest entry
+			Segment victim = null;
+			long oldest = Long.MAX_VALUE;
+			for (int i=0; i < samples; i++) {
+				Segment segment = segments[(start + i * stride) & (segments.length - 1)];
+				long stamp = segment.getEldestAccessStamp();
+				if (stamp < oldest) {
+					oldest = stamp;
+					victim = segment;
 				}
-				
-				if (file != null) { // invalidate entry if it's file has changed
-					long lastModified = file.lastModified();
-					isValid = lastModified != 0 && lastModified <= ref.insertionTime;
-					if (!isValid) msg = "INVALID (fileChange)";
+			}
+			if (victim == null) { // all sampled segments are empty; try all
+				for (int i=0; victim == null && i < segments.length; i++) {
+					if (segments[i].getEldestAccessStamp() != Long.MAX_VALUE) {
+						victim = segments[i];
+					}
 				}
+				if (victim == null) return; // all segments are empty
 			}
-			
-			if (!isValid) {
-				iter.remove();
-				evictEntry(key, ref, msg);
-			}			
-		}		
+			victim.evictEldestEntry(msg);
+		}
 	}
 
-	/** removes LRU entries until the max memory limit invariant holds again */
-	private void evictExcessMemoryEntries() {		
-		Iterator iter = child.entrySet().iterator();
-		while (totalSize > capacity && iter.hasNext()) {
-			Map.Entry entry = (Map.Entry) iter.next();
-			iter.remove();
-			evictEntry(entry.getKey(), (SoftValue) entry.getValue(), "MEMORY");
+	/**
+	 * Returns the eviction value of the least valuable entry among a sample of
+	 * entries, or infinity if the pool is empty (see {@link MemoryGovernor}).
+	 */
+	double getLeastEvictionValue(long now) {
+		Segment segment = findLeastValuableSegment(now);
+		return segment == null ? Double.POSITIVE_INFINITY : segment.getLeastEvictionValue(now);
+	}
+	
+	/**
+	 * Removes the least valuable entry among the same sample of entries;
+	 * returns false if there was no entry to remove.
+	 */
+	boolean evictLeastValuableEntry(long now) {
+		Segment segment = findLeastValuableSegment(now);
+		governorCursor++; // sample other segments next time
+		return segment != null && segment.evictLeastValuableEntry(now, "GOVERNOR");
+	}
+	
+	/** returns the sampled segment holding the least valuable entry, or null if empty */
+	private Segment findLeastValuableSegment(long now) {
+		int samples = Math.min(EVICTION_SAMPLES, segments.length);
+		int stride = segments.length / samples;
+		int start = governorCursor;
+		Segment victim = null;
+		double min = Double.POSITIVE_INFINITY;
+		for (int i=0; i < samples; i++) {
+			Segment segment = segments[(start + i * stride) & (segments.length - 1)];
+			double value = segment.getLeastEvictionValue(now);
+			if (value < min) {
+				min = value;
+				victim = segment;
+			}
+		}
+		for (int i=0; victim == null && i < segments.length; i++) { // sampled ones are empty; try all
+			if (segments[i].getEldestAccessStamp() != Long.MAX_VALUE) {
+				victim = segments[i];
+			}
 		}
+		return victim;
 	}
 
-	/** calculates approximate memory consumption of the given value object */
-	private static int getMemorySize(Object value) {
-		if (value == null)
-			return 0;
-		if (value instanceof byte[]) 
-			return ((byte[]) value).length;
-		if (value instanceof Node) 
-			return XOMUtil.getMemorySize((Node) value);
-		if (value instanceof CharSequence) 
-			return 2 * ((CharSequence) value).length();
-		
-		if (value instanceof HashKeys) {
-			value = ((HashKeys) value).keys;
-		}
-		else if (value instanceof Collection) {
-			value = ((Collection) value).toArray();
-		}
-		
-		if (value instanceof Object[]) {
-			Object[] arr = (Object[]) value;
-			int size = 12 + 4 + 4 * arr.length;
-			for (int i=arr.length; --i >= 0; ) {
-				size += getMemorySize(arr[i]); // assumes no graph cycles
-			}
-			return size;
-		}		
-		else if (value instanceof MemoryIndex) {
-			return ((MemoryIndex) value).getMemorySize();
+	/** removes all entries that turn out to be nomore valid (to be run periodically) */
+	private void evictInvalidEntries() {
+		for (int i=0; i < segments.length; i++) {
+			segments[i].evictStaleEntries();
+			segments[i].evictInvalidEntries();
 		}
-		
-		return 0;
 	}
 	
-
 	///////////////////////////////////////////////////////////////////////////////
 	// Nested classes:
 	///////////////////////////////////////////////////////////////////////////////
@@ -358,25 +424,171 @@ final class Pool implements Map { // not a public class!
 	}	
 	
 	/**
-	 * Notifies the Pool of removals that occur as a result of exceeding the
-	 * maxEntries limit. This helps to accurately keep track of the current
-	 * total memory size occupied by the entries.
+	 * A LinkedHashMap in access order guarded by its own lock, holding the
+	 * entries of one hash range. Notifies the Pool of all removals, which helps
+	 * to accurately keep track of the current total number of entries and
+	 * memory size occupied by the entries.
 	 */
-	private static final class SoftLRUHashMap extends LRUHashMap {
+	private static final class Segment {
 		
 		private final Pool pool;
+		private final int index;
+		
+		/** the underlying map holding the real entries */
+		private final LinkedHashMap child = new LinkedHashMap(16, 0.75f, true);
 		
-		private SoftLRUHashMap(Pool pool, int maxEntries) {
-			super(maxEntries);
+		/** gc notifies us of soft ref collections by enqueuing onto this queue */
+		private final ReferenceQueue queue;
+		
+		private Segment(Pool pool, int index, ReferenceQueue queue) {
 			this.pool = pool;
+			this.index = index;
+			this.queue = queue;
 		}
 		
-		protected boolean removeEldestEntry(Map.Entry eldest) {
-			if (super.removeEldestEntry(eldest)) {
-				remove(eldest.getKey());
-				pool.evictEntry(eldest.getKey(), (SoftValue) eldest.getValue(), "MAXENTRIES");
+		private synchronized Object get(Object key) {
+			evictStaleEntries();
+			SoftValue ref = (SoftValue) child.get(key);
+			if (ref != null) ref.accessStamp = pool.tick();
+			return SoftValue.unwrap(ref, false);
+		}
+		
+		private synchronized Object put(Object key, Object value, long size, long cost) {
+			SoftValue old;
+			if (value != null) {
+				SoftValue ref = new SoftValue(key, value, queue, size, cost);
+				ref.accessStamp = pool.tick();
+				old = (SoftValue) child.put(key, ref);
+				pool.addEntry(size);
+			} else {
+				old = (SoftValue) child.remove(key);
 			}
-			return false;
+	
+			Object result = SoftValue.unwrap(old, true);
+			if (old != null) pool.evictEntry(key, old, "PUT");
+			return result;
+		}
+		
+		private synchronized void clear() {
+			evictStaleEntries();
+			Iterator iter = child.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				iter.remove();
+				pool.evictEntry(entry.getKey(), (SoftValue) entry.getValue(), "CLEAR");
+			}
+		}
+		
+		private synchronized void addKeysTo(Set keys) {
+			keys.addAll(child.keySet());
+		}
+		
+		/** returns the access stamp of the LRU entry, or Long.MAX_VALUE if empty */
+		private synchronized long getEldestAccessStamp() {
+			if (child.isEmpty()) return Long.MAX_VALUE;
+			return ((SoftValue) child.values().iterator().next()).accessStamp;
+		}
+		
+		/** removes the LRU entry, if any */
+		private synchronized void evictEldestEntry(String msg) {
+			Iterator iter = child.entrySet().iterator();
+			if (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				iter.remove();
+				pool.evictEntry(entry.getKey(), (SoftValue) entry.getValue(), msg);
+			}
+		}
+		
+		/** returns the least eviction value among the LRU entries, or infinity if empty */
+		private synchronized double getLeastEvictionValue(long now) {
+			double min = Double.POSITIVE_INFINITY;
+			Iterator iter = child.values().iterator();
+			for (int i = VALUE_SAMPLES; --i >= 0 && iter.hasNext(); ) {
+				min = Math.min(min, ((SoftValue) iter.next()).getEvictionValue(now));
+			}
+			return min;
+		}
+		
+		/** removes the least valuable among the LRU entries, if any */
+		private synchronized boolean evictLeastValuableEntry(long now, String msg) {
+			Map.Entry victim = null;
+			double min = Double.POSITIVE_INFINITY;
+			Iterator iter = child.entrySet().iterator();
+			for (int i = VALUE_SAMPLES; --i >= 0 && iter.hasNext(); ) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				double value = ((SoftValue) entry.getValue()).getEvictionValue(now);
+				if (victim == null || value < min) {
+					min = value;
+					victim = entry;
+				}
+			}
+			if (victim == null) return false;
+			
+			Object key = victim.getKey();
+			SoftValue ref = (SoftValue) victim.getValue();
+			child.remove(key);
+			pool.evictEntry(key, ref, msg);
+			return true;
+		}
+		
+		/** removes all entries that have been collected and enqueued by the VM gc */
+		private synchronized void evictStaleEntries() {
+			if (queue == null) return; // nothing to do
+			SoftValue ref;
+			while ((ref = (SoftValue) queue.poll()) != null) {
+				if (!ref.isRemoved()) {
+					child.remove(ref.key);
+					pool.evictEntry(ref.key, ref, "GC");
+				}
+			}
+		}
+		
+		/** removes all entries that turn out to be nomore valid */
+		private synchronized void evictInvalidEntries() {
+			Iterator iter = child.entrySet().iterator();
+			long now = System.currentTimeMillis();
+			long idle = pool.maxIdleTime - now;
+			long life = pool.maxLifeTime - now;
+			
+			while (iter.hasNext()) {
+				Map.Entry entry = (Map.Entry) iter.next();
+				Object key = entry.getKey();
+				SoftValue ref = (SoftValue) entry.getValue();
+				String msg = null;
+				
+				boolean isValid = ref.lastAccessTime + idle > 0;
+				if (!isValid) msg = "INVALID (maxIdleTime)";
+				
+				if (isValid) {
+					isValid = ref.insertionTime + life > 0;
+					if (!isValid) msg = "INVALID (maxLifeTime)";
+				}
+				
+				if (isValid && key instanceof PoolValidatingKey) {
+					isValid = ((PoolValidatingKey) key).isValid();
+					if (!isValid) msg = "INVALID (PoolValidatingKey)";
+				}
+				
+				if (isValid && pool.fileMonitoring) {
+					File file = null;
+					if (key instanceof File) { 
+						file = (File) key;
+					} else if (key instanceof HashKeys) {
+						file = ((HashKeys) key).getFile();
+					}
+					
+					if (file != null) { // invalidate entry if it's file has changed
+						long lastModified = file.lastModified();
+						isValid = lastModified != 0 && lastModified <= ref.insertionTime;
+						if (!isValid) msg = "INVALID (fileChange)";
+					}
+				}
+				
+				if (!isValid) {
+					iter.remove();
+					pool.evictEntry(key, ref, msg);
+				}			
+			}		
 		}
 	}
 	
@@ -389,15 +601,27 @@ final class Pool implements Map { // not a public class!
 		private Object key; // hard ref to the key this value is associated with
 		private final long insertionTime; // timestamp at put()
 		private long lastAccessTime; // timestamp on get()
-		private final int size; // memory consumed by the value [bytes]
+		private long accessStamp; // logical clock on put() and get()
+		private final long size; // memory consumed by the entry [bytes]
+		private final long cost; // time it took to build the value [ms]
 		private static final Object REMOVED = new Object(); // marker
 
-		private SoftValue(Object key, Object value, ReferenceQueue queue, int size) {
+		private SoftValue(Object key, Object value, ReferenceQueue queue, long size, long cost) {
 			super(value, queue);
 			this.key = key;
 			this.insertionTime = System.currentTimeMillis();
 			this.lastAccessTime = this.insertionTime;
 			this.size = size;
+			this.cost = cost;
+		}
+		
+		/**
+		 * Returns the rebuild cost per byte held, discounted by the time the
+		 * entry has been idle; the lower, the better a candidate for eviction.
+		 */
+		private double getEvictionValue(long now) {
+			long idle = Math.max(0, now - lastAccessTime);
+			return (cost + 1.0) / ((size + 1.0) * (idle + 1000.0));
 		}
 
 		private static Object unwrap(SoftValue ref, boolean remove) {
@@ -445,10 +669,7 @@ final class Pool implements Map { // not a public class!
 						System.err.println("############### Pool.SweepTask running...");
 					}
 					long now = DEBUG ? System.currentTimeMillis() : 0;
-					synchronized (pool) { // must hold lock
-						pool.evictStaleEntries();
-						pool.evictInvalidEntries();
-					}
+					pool.evictInvalidEntries(); // acquires segment locks one by one
 					if (DEBUG) System.err.println("Pool.SweepTask took ms=" + 
 							(System.currentTimeMillis() - now));
 				} else {
@@ -461,6 +682,57 @@ final class Pool implements Map { // not a public class!
 		}
 	}
 
+	/**
+	 * Remembers the keys of the most recent cache misses of a thread, along
+	 * with their time, so the time it takes to build the value of a key can be
+	 * measured when the value is put. Keys without subsequent put (e.g. because
+	 * another thread has built the value meanwhile) are forgotten eventually.
+	 */
+	private static final class MissLog {
+		
+		private final Object[] keys = new Object[4];
+		private final long[] times = new long[4];
+		private int next; // slot to overwrite next
+		
+		private static MissLog get(ThreadLocal threadLocal) {
+			MissLog log = (MissLog) threadLocal.get();
+			if (log == null) {
+				log = new MissLog();
+				threadLocal.set(log);
+			}
+			return log;
+		}
+		
+		private void add(Object key) {
+			int i = indexOf(key);
+			if (i < 0) {
+				i = next;
+				next = (next + 1) % keys.length;
+				keys[i] = key;
+			}
+			times[i] = System.currentTimeMillis();
+		}
+		
+		/** returns the time [ms] since the miss of the given key, or 0 if unknown */
+		private long remove(Object key) {
+			int i = indexOf(key);
+			if (i < 0) return 0;
+			long cost = Math.max(0, System.currentTimeMillis() - times[i]);
+			keys[i] = null;
+			times[i] = 0; // free slot
+			return cost;
+		}
+		
+		private int indexOf(Object key) {
+			for (int i = keys.length; --i >= 0; ) {
+				if (times[i] != 0 && (key == null ? keys[i] == null : key.equals(keys[i]))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+	
 	/**
 	 * Small efficient helper wrapping an array to be used as a key in a HashMap;
 	 * intended for caches/pools. 
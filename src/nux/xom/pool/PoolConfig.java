@@ -61,6 +61,9 @@ public class PoolConfig {
 	private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
 	private long maxLifeTime = DEFAULT_MAX_LIFE_TIME;
 	private boolean fileMonitoring = DEFAULT_FILE_MONITORING;
+	private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+	private MemoryWeigher memoryWeigher = DEFAULT_MEMORY_WEIGHER;
+	private MemoryGovernor memoryGovernor = MemoryGovernor.GLOBAL_GOVERNOR;
 
 	private static final int DEFAULT_COMPRESSION_LEVEL = 
 		XOMUtil.getSystemProperty("nux.xom.pool.PoolConfig.compressionLevel", 0);
@@ -77,11 +80,16 @@ public class PoolConfig {
 	private static final boolean DEFAULT_FILE_MONITORING = 
 		XOMUtil.getSystemProperty("nux.xom.pool.PoolConfig.fileMonitoring", false);
 
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 
+		XOMUtil.getSystemProperty("nux.xom.pool.PoolConfig.concurrencyLevel", 1);
+
 	private static final long DEFAULT_INVALIDATION_PERIOD = 
 		XOMUtil.getSystemProperty("nux.xom.pool.PoolConfig.invalidationPeriod", 10000L);
 
 	private static final long DEFAULT_CAPACITY = getDefaultCapacity();
 
+	private static final MemoryWeigher DEFAULT_MEMORY_WEIGHER = new DefaultMemoryWeigher();
+
 	private static long getDefaultCapacity() {
 		long def = Runtime.getRuntime().maxMemory();
 //		System.err.println("maxMem=" + (def / (1024 * 1024.0f)));
@@ -108,6 +116,9 @@ public class PoolConfig {
 		setMaxIdleTime(src.getMaxIdleTime());
 		setMaxLifeTime(src.getMaxLifeTime());
 		setFileMonitoring(src.getFileMonitoring());
+		setConcurrencyLevel(src.getConcurrencyLevel());
+		setMemoryWeigher(src.getMemoryWeigher());
+		setMemoryGovernor(src.getMemoryGovernor());
 	}
 	
 	/**
@@ -181,7 +192,12 @@ public class PoolConfig {
 	 * Sets the maximum amount of memory [bytes] the sum of all contained pool
 	 * values may occupy. A value of <code>Long.MAX_VALUE</code> effectively
 	 * disables this constraint. The default is
-	 * <code>Runtime.maxMemory() / 2</code>.
+	 * <code>Runtime.maxMemory() / 2</code>. The memory of keys and values is
+	 * estimated by the configured {@link #setMemoryWeigher(MemoryWeigher)}.
+	 * <p>
+	 * Independently, the sum over all pools sharing the same
+	 * {@link #setMemoryGovernor(MemoryGovernor)} is limited by the capacity of
+	 * that governor.
 	 * 
 	 * @param capacity
 	 *            the new capacity
@@ -266,6 +282,87 @@ public class PoolConfig {
 		return fileMonitoring;
 	}
 	
+	/**
+	 * Sets the number of independently locked segments a pool spreads its
+	 * entries over, rounded up to the next power of two. Threads accessing
+	 * entries in different segments never contend for the same lock, so
+	 * values greater than one reduce lock contention when many threads
+	 * concurrently access the same pool. The <code>maxEntries</code> and
+	 * <code>capacity</code> limits continue to apply to the pool as a whole;
+	 * however with more than one segment, entries are evicted in approximate
+	 * rather than exact least-recently-used order. The default is 1.
+	 * 
+	 * @param concurrencyLevel
+	 *            the number of segments (must be greater than zero)
+	 * @return this
+	 */
+	public PoolConfig setConcurrencyLevel(int concurrencyLevel) {
+		if (concurrencyLevel <= 0) 
+			throw new IllegalArgumentException("concurrencyLevel must be > 0");
+		this.concurrencyLevel = concurrencyLevel;
+		return this;
+	}
+	
+	/**
+	 * Returns the number of independently locked segments of a pool.
+	 * 
+	 * @return the concurrency level
+	 */
+	public int getConcurrencyLevel() {
+		return concurrencyLevel;
+	}
+	
+	/**
+	 * Sets the strategy estimating the memory consumed by pool keys and values,
+	 * which is accounted against the <code>capacity</code> limit. The default
+	 * is a {@link DefaultMemoryWeigher} for the object layout of the current
+	 * JVM, shared by all configurations.
+	 * 
+	 * @param memoryWeigher
+	 *            the new memory weigher
+	 * @return this
+	 */
+	public PoolConfig setMemoryWeigher(MemoryWeigher memoryWeigher) {
+		if (memoryWeigher == null) 
+			throw new IllegalArgumentException("memoryWeigher must not be null");
+		this.memoryWeigher = memoryWeigher;
+		return this;
+	}
+	
+	/**
+	 * Returns the strategy estimating the memory consumed by pool keys and
+	 * values.
+	 * 
+	 * @return the memory weigher
+	 */
+	public MemoryWeigher getMemoryWeigher() {
+		return memoryWeigher;
+	}
+	
+	/**
+	 * Sets the process-wide memory budget a pool shares with other pools. A
+	 * value of <code>null</code> indicates that the pool shall be limited by
+	 * its own <code>capacity</code> only. The default is
+	 * {@link MemoryGovernor#GLOBAL_GOVERNOR}.
+	 * 
+	 * @param memoryGovernor
+	 *            the new memory governor (may be <code>null</code>)
+	 * @return this
+	 */
+	public PoolConfig setMemoryGovernor(MemoryGovernor memoryGovernor) {
+		this.memoryGovernor = memoryGovernor;
+		return this;
+	}
+	
+	/**
+	 * Returns the process-wide memory budget a pool shares with other pools.
+	 * 
+	 * @return the memory governor (may be <code>null</code>)
+	 */
+	public MemoryGovernor getMemoryGovernor() {
+		return memoryGovernor;
+	}
+	
 	/** time [ms] the sweeper thread should sleep between runs */
 	long getInvalidationPeriod() {
 		return DEFAULT_INVALIDATION_PERIOD;
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.pool;
+
+import java.util.HashMap;
+
+/**
+ * Registry of in-flight loads, ensuring that at most one thread at a time
+ * builds the value for any given key, while other threads asking for the
+ * same key wait for it; prevents cache stampedes in pools.
+ * <p>
+ * Example usage on a pool cache miss:
+ * 
+ * <pre>
+ *     Object value = entries.get(key);
+ *     if (value == null) {
+ *         value = loads.load(key, new SingleFlight.Loader() {
+ *             protected Object get(Object key) {
+ *                 return entries.get(key); // loaded meanwhile?
+ *             }
+ *             protected Object load(Object key) throws Exception {
+ *                 Object value = ... expensive build ...
+ *                 entries.put(key, value);
+ *                 return value;
+ *             }
+ *         });
+ *     }
+ * </pre>
+ * 
+ * The value built by a loader is handed over to the threads waiting for it,
+ * even if the cache declined to keep it (e.g. because it is too large). If a
+ * loader fails with an exception, no value is handed over, and the next
+ * waiting thread attempts the load itself. A flight and its result are
+ * discarded as soon as no thread is interested in the key anymore, so the
+ * registry never grows beyond the number of concurrent cache misses.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/19 02:02:48 $
+ */
+final class SingleFlight { // not a public class!
+
+	/** key --> Flight */
+	private final HashMap flights = new HashMap();
+	
+	/** Constructs a new empty instance. */
+	SingleFlight() {}
+	
+	/**
+	 * Returns the value for the given key: the value handed over by a
+	 * concurrent loader of the same key, if any, or else the value found by
+	 * <code>loader.get()</code>, or else the value built by
+	 * <code>loader.load()</code>. At most one thread at a time runs the
+	 * loader for a given key.
+	 * 
+	 * @throws Exception
+	 *             whatever <code>loader.load()</code> throws
+	 */
+	Object load(Object key, Loader loader) throws Exception {
+		Flight flight = begin(key);
+		try {
+			synchronized (flight) { // at most one loader per key
+				Object value = flight.result;
+				if (value != null) return loader.copy(value); // handed over
+				value = loader.get(key); // loaded meanwhile?
+				if (value != null) return value;
+				
+				value = loader.load(key);
+				if (hasWaiters(flight)) {
+					flight.result = loader.copy(value); // hand over to waiting threads
+				}
+				return value;
+			}
+		} finally {
+			end(flight);
+		}
+	}
+	
+	/**
+	 * Returns the flight for the given key, registering interest in it. Each
+	 * call must be followed by a call to {@link #end(Flight)}.
+	 */
+	private Flight begin(Object key) {
+		synchronized (flights) {
+			Flight flight = (Flight) flights.get(key);
+			if (flight == null) {
+				flight = new Flight(key);
+				flights.put(key, flight);
+			}
+			flight.interest++;
+			return flight;
+		}
+	}
+	
+	/** Deregisters interest in the given flight. */
+	private void end(Flight flight) {
+		synchronized (flights) {
+			if (--flight.interest == 0) flights.remove(flight.key);
+		}
+	}
+	
+	/** Returns whether threads other than the loader are interested in the flight. */
+	private boolean hasWaiters(Flight flight) {
+		synchronized (flights) {
+			return flight.interest > 1;
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Looks up and builds the values of a pool on behalf of
+	 * {@link SingleFlight#load(Object, Loader)}.
+	 */
+	static abstract class Loader {
+		
+		/** Returns the value cached for the given key, or null if there is none. */
+		protected abstract Object get(Object key);
+		
+		/** Builds the value for the given key, caches it, and returns it. */
+		protected abstract Object load(Object key) throws Exception;
+		
+		/**
+		 * Returns the given value as handed over to a waiting thread; override
+		 * to return a copy if threads must not share values. The default
+		 * returns the value itself.
+		 */
+		protected Object copy(Object value) {
+			return value;
+		}
+	}
+	
+	/**
+	 * The load of a given key; its monitor serializes loaders of that key.
+	 */
+	private static final class Flight {
+		
+		private final Object key;
+		private int interest = 0; // guarded by lock on SingleFlight.flights
+		private Object result; // guarded by lock on this
+		
+		private Flight(Object key) {
+			this.key = key;
+		}
+	}
+	
+}
@@ -679,51 +679,6 @@ public class XOMUtil {
 		}		
 	}
 	
-	/**
-	 * Returns a reasonable approximation of the main memory [bytes] consumed by the
-	 * given XOM subtree. Assumes that qname Strings are interned, but Text
-	 * values and Attribute values are not. For simplicity, assumes no VM word
-	 * boundary alignment of instance vars. Useful for memory-sensitive caches.
-	 */
-	static int getMemorySize(Node node) {
-		// int PTR = getSystemProperty("sun.arch.data.model", 32) / 8;
-		int PTR = 4; // pointer
-		int HEADER = 3*PTR; // object header of any java object
-		int STR = HEADER + 3*4 + PTR + HEADER + 4; // string
-//		int ARRLIST = HEADER + 4 + PTR + HEADER + 4; // ArrayList
-		int ARR = HEADER + 4; // Object[]
-
-		int size = HEADER + PTR + 4; // object header + parent + siblingPosition
-		if (node instanceof ParentNode) {
-			ParentNode parent = (ParentNode) node;
-			size += PTR + PTR + 4; // baseURI + childrenPtr + childCount
-			int count = parent.getChildCount();
-			if (count > 0) size += ARR + count*PTR;
-			for (int i = count; --i >= 0; ) {
-				size += getMemorySize(parent.getChild(i));
-			}
-			
-			if (node instanceof Element) {
-				Element elem = (Element) node;
-				size += 5*PTR + 4;
-				count = elem.getAttributeCount();
-				if (count > 0) size += ARR + count*PTR;
-				for (int i = count; --i >= 0; ) {
-					size += getMemorySize(elem.getAttribute(i));
-				}
-				// for the moment assume no additional namespace declarations (common case)
-			}
-		} else if (node instanceof Attribute) {
-			size += 5*PTR;
-			size += STR + 2 * node.getValue().length();
-		} else { // Text (and Comment, ProcessingInstruction, DocType)
-			size += PTR;
-			size += STR + 2 * node.getValue().length();
-		}
-
-		return size;
-	}
-	
 	/**
 	 * Marshals (serializes) the given JAXB object via the given marshaller
 	 * into a new XOM Document (convenience method).
@@ -51,12 +51,18 @@ import java.io.InputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
 
+import net.sf.saxon.query.StaticQueryContext;
+import nux.xom.xquery.SharedConfiguration;
 import nux.xom.xquery.XQuery;
 import nux.xom.xquery.XQueryException;
 
 /**
  * Creates and returns new <code>XQuery</code> objects using flexible parametrization (thread-safe).
  * <p>
+ * By default all queries created by a factory are compiled against the same
+ * {@link SharedConfiguration}, rather than each against a configuration of its
+ * own.
+ * <p>
  * This implementation is thread-safe.
  *
  * @author whoschek.AT.lbl.DOT.gov
@@ -67,6 +73,7 @@ public class XQueryFactory {
 	
 	private final Charset charset;
 	private final DocumentURIResolver resolver;
+	private final SharedConfiguration config;
 	
 	/**
 	 * Equivalent to <code>new XQueryFactory(null, null)</code>.
@@ -91,8 +98,38 @@ public class XQueryFactory {
 	 *            case non-validating default resolution is used.
 	 */
 	public XQueryFactory(Charset charset, DocumentURIResolver resolver) {
+		this(charset, null, new SharedConfiguration(resolver));
+	}
+	
+	/**
+	 * Creates a factory instance that uses the given character encoding, and
+	 * compiles queries against the given shared configuration, or against a
+	 * new configuration per query using the given DocumentURIResolver.
+	 * 
+	 * @param charset
+	 *            the charset to convert byte streams to a query string, e.g.
+	 *            <code>Charset.forName("UTF-8")</code>. May be
+	 *            <code>null</code> in which case the system's default
+	 *            platform encoding is used.
+	 * @param resolver
+	 *            the resolver to use if no shared configuration is given. May
+	 *            be <code>null</code> in which case non-validating default
+	 *            resolution is used. Must be <code>null</code> if a shared
+	 *            configuration is given; the resolver of that configuration is
+	 *            used instead.
+	 * @param config
+	 *            the configuration to compile all queries against. May be
+	 *            <code>null</code> in which case each query is compiled
+	 *            against a new configuration of its own, as in previous
+	 *            releases.
+	 */
+	public XQueryFactory(Charset charset, DocumentURIResolver resolver, SharedConfiguration config) {
+		if (resolver != null && config != null) 
+			throw new IllegalArgumentException(
+				"resolver must be null if a shared configuration is given");
 		this.charset = charset;
 		this.resolver = resolver;
+		this.config = config;
 	}
 	
 	/**
@@ -162,7 +199,9 @@ public class XQueryFactory {
 	 *             declared, or contains other static errors such as type mismatches.
 	 */
 	public XQuery createXQuery(String query, URI baseURI) throws XQueryException {
-		return new XQuery(query, baseURI, null, resolver);
+		if (config == null) return new XQuery(query, baseURI, null, resolver);
+		StaticQueryContext context = new StaticQueryContext(config.getConfiguration());
+		return new XQuery(query, baseURI, context, null);
 	}
 
 	/**
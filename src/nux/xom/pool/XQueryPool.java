@@ -86,8 +86,13 @@ import nux.xom.xquery.XQueryException;
  *     }
  * </pre>
  * <p>
- * Note: Internally uses extremely short-lived locks; the resulting potential lock
- * contention is completely negligible.
+ * Note: Internally uses extremely short-lived locks. Should the resulting lock
+ * contention ever show up with very many threads, consider
+ * {@link PoolConfig#setConcurrencyLevel(int)} to stripe the locks.
+ * <p>
+ * If several threads concurrently miss the cache for the same query, only one of
+ * them compiles it, while the others wait for its result rather than compiling the
+ * same query over again.
  * 
  * @author whoschek.AT.lbl.DOT.gov
  * @author $Author: hoschek3 $
@@ -108,6 +113,9 @@ public class XQueryPool {
 	
 	/** Current pool entries */
 	private final Map entries;
+
+	/** Keys currently being loaded on a cache miss; at most one thread loads a given key */
+	private final SingleFlight loads = new SingleFlight();
 	
 	/**
 	 * Creates a new pool with default parameters.
@@ -147,15 +155,18 @@ public class XQueryPool {
 	 *             namespaces, variables, or functions that have not been
 	 *             declared, or contains other static errors such as type mismatches.
 	 */
-	public XQuery getXQuery(File query) throws XQueryException, IOException {
+	public XQuery getXQuery(final File query) throws XQueryException, IOException {
 		if (query == null) 
 			throw new IllegalArgumentException("query must not be null");
 
 		Object key = query;
 		XQuery xquery = (XQuery) entries.get(key);
 		if (xquery == null) {
-			xquery = factory.createXQuery(query);
-			entries.put(key, xquery);
+			xquery = load(key, new Loader() {
+				protected Object create() throws XQueryException, IOException {
+					return factory.createXQuery(query);
+				}
+			});
 		}
 		return xquery;
 	}
@@ -180,15 +191,18 @@ public class XQueryPool {
 	 *             namespaces, variables, or functions that have not been
 	 *             declared, or contains other static errors such as type mismatches.
 	 */
-	public XQuery getXQuery(File query, URI baseURI) throws XQueryException, IOException {
+	public XQuery getXQuery(final File query, final URI baseURI) throws XQueryException, IOException {
 		if (query == null) 
 			throw new IllegalArgumentException("query must not be null");
 
 		Object key = Pool.createHashKeys(new Object[] {query, baseURI, null, null});
 		XQuery xquery = (XQuery) entries.get(key);
 		if (xquery == null) {
-			xquery = factory.createXQuery(query, baseURI);
-			entries.put(key, xquery);
+			xquery = load(key, new Loader() {
+				protected Object create() throws XQueryException, IOException {
+					return factory.createXQuery(query, baseURI);
+				}
+			});
 		}
 		return xquery;
 	}
@@ -212,7 +226,7 @@ public class XQueryPool {
 	 *             namespaces, variables, or functions that have not been
 	 *             declared, or contains other static errors such as type mismatches.
 	 */
-	public XQuery getXQuery(String query, URI baseURI) throws XQueryException {
+	public XQuery getXQuery(final String query, final URI baseURI) throws XQueryException {
 		if (query == null) 
 			throw new IllegalArgumentException("query must not be null");
 		
@@ -224,8 +238,15 @@ public class XQueryPool {
 		
 		XQuery xquery = (XQuery) entries.get(key);
 		if (xquery == null) {
-			xquery = factory.createXQuery(query, baseURI);
-			entries.put(key, xquery);
+			try {
+				xquery = load(key, new Loader() {
+					protected Object create() throws XQueryException {
+						return factory.createXQuery(query, baseURI);
+					}
+				});
+			} catch (IOException e) {
+				throw new RuntimeException(e); // can never happen
+			}
 		}
 		return xquery;
 	}
@@ -257,7 +278,8 @@ public class XQueryPool {
 	 *             namespaces, variables, or functions that have not been
 	 *             declared, or contains other static errors such as type mismatches.
 	 */
-	public XQuery getXQuery(ResourceResolver resolver, String resourceName, URI baseURI) 
+	public XQuery getXQuery(final ResourceResolver resolver, final String resourceName, 
+			final URI baseURI) 
 			throws XQueryException, IOException, MissingResourceException {
 
 		if (resolver == null) 
@@ -268,18 +290,58 @@ public class XQueryPool {
 		Object key = Pool.createHashKeys(new Object[] {resourceName, baseURI, null});
 		XQuery xquery = (XQuery) entries.get(key);
 		if (xquery == null) {
-			InputStream query = resolver.getResourceAsStream(resourceName);
-			if (query == null) {
-				throw new MissingResourceException(
-					"Resource '" + resourceName + "' could not be found by resolver: " + 
-					resolver.getClass().getName(), 
-					resolver.getClass().getName(), 
-					resourceName);
-			}
-			xquery = factory.createXQuery(query, baseURI);
-			entries.put(key, xquery);
+			xquery = load(key, new Loader() {
+				protected Object create() throws XQueryException, IOException {
+					InputStream query = resolver.getResourceAsStream(resourceName);
+					if (query == null) {
+						throw new MissingResourceException(
+							"Resource '" + resourceName + "' could not be found by resolver: " + 
+							resolver.getClass().getName(), 
+							resolver.getClass().getName(), 
+							resourceName);
+					}
+					return factory.createXQuery(query, baseURI);
+				}
+			});
 		}
 		return xquery;
 	}
 	
+	/** Returns the query for the given key, compiling it at most once at a time. */
+	private XQuery load(Object key, Loader loader) throws XQueryException, IOException {
+		try {
+			return (XQuery) loads.load(key, loader);
+		} catch (XQueryException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e); // can never happen
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Compiles and caches a query on a cache miss. */
+	private abstract class Loader extends SingleFlight.Loader {
+		
+		protected Object get(Object key) {
+			return entries.get(key);
+		}
+		
+		protected Object load(Object key) throws XQueryException, IOException {
+			Object xquery = create();
+			entries.put(key, xquery);
+			return xquery;
+		}
+		
+		/** Compiles the query. */
+		protected abstract Object create() throws XQueryException, IOException;
+	}
+	
 }
\ No newline at end of file
@@ -80,8 +80,13 @@ import nu.xom.xslt.XSLTransform;
  *     }
  * </pre>
  * <p>
- * Note: Internally uses extremely short-lived locks; the resulting potential lock
- * contention is completely negligible.
+ * Note: Internally uses extremely short-lived locks. Should the resulting lock
+ * contention ever show up with very many threads, consider
+ * {@link PoolConfig#setConcurrencyLevel(int)} to stripe the locks.
+ * <p>
+ * If several threads concurrently miss the cache for the same stylesheet, only one of
+ * them compiles it, while the others wait for its result rather than compiling the
+ * same stylesheet over again.
  * 
  * @author whoschek.AT.lbl.DOT.gov
  * @author $Author: hoschek3 $
@@ -101,6 +106,9 @@ public class XSLTransformPool {
 	
 	/** Current pool entries */
 	private final Map entries;
+
+	/** Keys currently being loaded on a cache miss; at most one thread loads a given key */
+	private final SingleFlight loads = new SingleFlight();
 	
 	/**
 	 * Creates a new pool with default parameters.
@@ -137,13 +145,22 @@ public class XSLTransformPool {
 	 *             if the XSLTransform can't be created, e.g. because of an XSL
 	 *             syntax error.
 	 */
-	public XSLTransform getTransform(Document stylesheet) throws XSLException {
+	public XSLTransform getTransform(final Document stylesheet) throws XSLException {
 		if (stylesheet == null) 
 			throw new IllegalArgumentException("stylesheet must not be null");
 		XSLTransform transform = (XSLTransform) entries.get(stylesheet);
 		if (transform == null) {
-			transform = factory.createTransform(stylesheet);
-			entries.put(stylesheet, transform);
+			try {
+				transform = load(stylesheet, new Loader() {
+					protected Object create() throws XSLException {
+						return factory.createTransform(stylesheet);
+					}
+				});
+			} catch (ParsingException e) {
+				throw new RuntimeException(e); // can never happen
+			} catch (IOException e) {
+				throw new RuntimeException(e); // can never happen
+			}
 		}
 		return transform;
 	}
@@ -161,14 +178,17 @@ public class XSLTransformPool {
 	 * @throws XSLException
 	 *             if the XSLTransform can't be created, e.g. because of an XSL syntax error.
 	 */
-	public XSLTransform getTransform(File stylesheet) throws XSLException, ParsingException, IOException {
+	public XSLTransform getTransform(final File stylesheet) throws XSLException, ParsingException, IOException {
 		if (stylesheet == null) 
 			throw new IllegalArgumentException("stylesheet must not be null");
 		Object key = stylesheet;
 		XSLTransform transform = (XSLTransform) entries.get(key);
 		if (transform == null) {
-			transform = factory.createTransform(stylesheet);
-			entries.put(key, transform);
+			transform = load(key, new Loader() {
+				protected Object create() throws XSLException, ParsingException, IOException {
+					return factory.createTransform(stylesheet);
+				}
+			});
 		}
 		return transform;
 	}
@@ -196,7 +216,8 @@ public class XSLTransformPool {
 	 * @throws XSLException
 	 *             if the XSLTransform can't be created, e.g. because of an XSL syntax error.
 	 */
-	public XSLTransform getTransform(ResourceResolver resolver, String resourceName, URI baseURI) 
+	public XSLTransform getTransform(final ResourceResolver resolver, 
+			final String resourceName, final URI baseURI) 
 			throws XSLException, ParsingException, IOException, MissingResourceException {
 		
 		if (resolver == null) 
@@ -207,17 +228,60 @@ public class XSLTransformPool {
 		Object key = Pool.createHashKeys(new Object[] {resourceName, baseURI});
 		XSLTransform transform = (XSLTransform) entries.get(key);
 		if (transform == null) {
-			InputStream stylesheet = resolver.getResourceAsStream(resourceName);
-			if (stylesheet == null) {
-				throw new MissingResourceException(
-					"Resource '" + resourceName + "' could not be found by resolver: " + 
-					resolver.getClass().getName(), 
-					resolver.getClass().getName(), 
-					resourceName);
-			}
-			transform = factory.createTransform(stylesheet, baseURI);
-			entries.put(key, transform);
+			transform = load(key, new Loader() {
+				protected Object create() throws XSLException, ParsingException, IOException {
+					InputStream stylesheet = resolver.getResourceAsStream(resourceName);
+					if (stylesheet == null) {
+						throw new MissingResourceException(
+							"Resource '" + resourceName + "' could not be found by resolver: " + 
+							resolver.getClass().getName(), 
+							resolver.getClass().getName(), 
+							resourceName);
+					}
+					return factory.createTransform(stylesheet, baseURI);
+				}
+			});
 		}
 		return transform;
 	}
+	
+	/** Returns the transform for the given key, compiling it at most once at a time. */
+	private XSLTransform load(Object key, Loader loader) 
+			throws XSLException, ParsingException, IOException {
+		try {
+			return (XSLTransform) loads.load(key, loader);
+		} catch (XSLException e) {
+			throw e;
+		} catch (ParsingException e) {
+			throw e;
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e); // can never happen
+		}
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Compiles and caches a stylesheet on a cache miss. */
+	private abstract class Loader extends SingleFlight.Loader {
+		
+		protected Object get(Object key) {
+			return entries.get(key);
+		}
+		
+		protected Object load(Object key) throws XSLException, ParsingException, IOException {
+			Object transform = create();
+			entries.put(key, transform);
+			return transform;
+		}
+		
+		/** Compiles the stylesheet. */
+		protected abstract Object create() throws XSLException, ParsingException, IOException;
+	}
 }
\ No newline at end of file
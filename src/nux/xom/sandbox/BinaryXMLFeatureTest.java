@@ -0,0 +1,545 @@
+package nux.xom.sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nux.xom.binary.BinaryParsingException;
+import nux.xom.binary.BinaryXMLCodec;
+import nux.xom.binary.BinaryXMLDictionary;
+import nux.xom.binary.BinaryXMLRandomAccessFile;
+import nux.xom.binary.LZPageCompressor;
+import nux.xom.binary.ZLIBPageCompressor;
+import nux.xom.pool.XOMUtil;
+
+/**
+ * Round-trips documents through bnux with each optional format feature
+ * (subtree sizes, page directory, symbol dictionary, page compressor, ZLIB)
+ * enabled alone and in all combinations, decoding sequentially, in parallel
+ * and lazily, and checks that corrupt document headers are rejected. Also
+ * checks that parallel decoding yields exactly the same documents and node
+ * factory call sequences as sequential decoding, even with several threads
+ * decoding at once, and that pipelined serialization yields exactly the same
+ * bytes as non-pipelined serialization, and recovers from output and input
+ * failures. Finally, reads a stream of documents from a large file channel, and
+ * reads records and elements of a large document via random access.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.BinaryXMLFeatureTest samples/data/*.xml
+ * </pre>
+ *
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/20 04:11:37 $
+ */
+class BinaryXMLFeatureTest {
+
+	private static final int SUBTREE_SIZES = 1;
+	private static final int PAGE_DIRECTORY = 2;
+	private static final int DICTIONARY = 4;
+	private static final int PAGE_COMPRESSOR = 8;
+	private static final int ZLIB = 16;
+	private static final int ALL_FEATURES = 32;
+
+	private static final int SEQUENTIAL = 0;
+	private static final int PARALLEL = 1;
+	private static final int LAZY = 2;
+
+	public static void main(String[] args) throws Exception {
+		ArrayList docs = new ArrayList();
+		for (int j=0; j < args.length; j++) {
+			File file = new File(args[j]);
+			if (file.isDirectory() || !file.getName().endsWith(".xml")) continue;
+			docs.add(new Builder().build(file));
+		}
+		Document[] samples = (Document[]) docs.toArray(new Document[docs.size()]);
+		BinaryXMLDictionary dictionary = BinaryXMLDictionary.learn(samples, 1000);
+
+		for (int i=0; i < samples.length; i++) {
+			System.out.println("now processing " + samples[i].getBaseURI());
+			testFeatures(samples[i], dictionary);
+			testCorruptHeaders(samples[i]);
+		}
+		testParallelDecoding(samples);
+		testPipelinedSerialization(samples);
+		testPipelinedErrors();
+		testFileChannel(samples);
+		testRandomAccess();
+		System.out.println("done");
+	}
+
+	/** Round-trips doc with every combination of features and decoding modes. */
+	private static void testFeatures(Document doc, BinaryXMLDictionary dictionary)
+			throws Exception {
+
+		byte[] expected = XOMUtil.toCanonicalXML(doc);
+		for (int features=0; features < ALL_FEATURES; features++) {
+			BinaryXMLCodec codec = createCodec(features, dictionary);
+			int level = (features & ZLIB) != 0 ? 6 : 0;
+			byte[] bnux = codec.serialize(doc, level);
+
+			for (int mode=SEQUENTIAL; mode <= LAZY; mode++) {
+				BinaryXMLCodec decoder = createCodec(features, dictionary);
+				decoder.setParallelDecodingEnabled(mode == PARALLEL);
+				decoder.setLazyDeserializationEnabled(mode == LAZY);
+
+				check(expected, decoder.deserialize(bnux), features, mode);
+				check(expected, decoder.deserialize(
+					new ByteArrayInputStream(bnux), null), features, mode);
+
+				// two consecutive documents in a single buffer
+				ByteBuffer buffer = ByteBuffer.allocate(2 * bnux.length);
+				buffer.put(bnux).put(bnux).flip();
+				check(expected, decoder.deserialize(buffer, null), features, mode);
+				check(expected, decoder.deserialize(buffer, null), features, mode);
+				if (buffer.hasRemaining())
+					fail("trailing bytes after second document", features, mode);
+			}
+		}
+	}
+
+	/** Checks that damaged document headers are rejected, rather than misread. */
+	private static void testCorruptHeaders(Document doc) throws Exception {
+		BinaryXMLCodec codec = new BinaryXMLCodec();
+		byte[] plain = codec.serialize(doc, 0);
+		byte[] zlib = codec.serialize(doc, 6);
+		codec.setPageCompressor(new LZPageCompressor());
+		byte[] paged = codec.serialize(doc, 0);
+		codec.setPageCompressor(null);
+		codec.setSubtreeSizesEnabled(true);
+		byte[] flagged = codec.serialize(doc, 0);
+		codec.setSubtreeSizesEnabled(false);
+
+		// without optional features, output keeps the previous version of the
+		// format (7), which has no flags byte, so old readers can read it
+		if (plain[4] != 7 || zlib[4] != -7) 
+			throw new IllegalStateException("default output must have version 7");
+		if (flagged[4] != 8 || paged[4] != 8) 
+			throw new IllegalStateException("output with features must have version 8");
+
+		// header: 4 byte magic, version byte (negative if ZLIB), feature flags byte
+		byte[] bnux = (byte[]) flagged.clone();
+		bnux[5] |= 0x80; // reserved flag
+		expectFailure(codec, bnux, "reserved feature flag");
+
+		bnux = (byte[]) paged.clone();
+		bnux[4] = (byte) -bnux[4]; // ZLIB plus page compressor
+		expectFailure(codec, bnux, "conflicting compression flags");
+
+		bnux = (byte[]) plain.clone();
+		bnux[4] = 42;
+		expectFailure(codec, bnux, "unknown version");
+
+		bnux = (byte[]) plain.clone();
+		bnux[0] ^= 0xFF;
+		expectFailure(codec, bnux, "bad magic number");
+
+		// first page: marker, page size, compressor ID, decompressed size, compressed size
+		int compressedSize = getInt(paged, 16);
+		int[] sizes = { Integer.MAX_VALUE - 4, 4096 * compressedSize, -1 };
+		for (int i=0; i < sizes.length; i++) {
+			bnux = (byte[]) paged.clone();
+			setInt(bnux, 12, sizes[i]);
+			expectFailure(codec, bnux, "decompressed page size " + sizes[i]);
+		}
+
+		for (int len=0; len < 7; len++) {
+			byte[] truncated = new byte[len];
+			System.arraycopy(plain, 0, truncated, 0, len);
+			expectFailure(codec, truncated, "truncated header of length " + len);
+		}
+
+		// version 8 with no flags set is readable too
+		byte[] expected = XOMUtil.toCanonicalXML(doc);
+		for (int k=0; k < 2; k++) {
+			byte[] src = k == 0 ? plain : zlib;
+			bnux = new byte[src.length + 1];
+			System.arraycopy(src, 0, bnux, 0, 5);
+			System.arraycopy(src, 5, bnux, 6, src.length - 5);
+			bnux[4] = (byte) (src[4] < 0 ? -8 : 8);
+			check(expected, codec.deserialize(bnux), 0, SEQUENTIAL);
+		}
+	}
+
+	/**
+	 * Checks that parallel decoding of a stream of many (multi-page) documents
+	 * yields the same node factory call sequence as sequential decoding, both
+	 * on a single thread and on several threads sharing the worker pool.
+	 */
+	private static void testParallelDecoding(final Document[] samples) throws Exception {
+		for (int level=0; level <= 6; level += 6) {
+			for (int k=0; k < 2; k++) {
+				BinaryXMLCodec codec = new BinaryXMLCodec();
+				if (k == 1) codec.setPageCompressor(new LZPageCompressor());
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				for (int i=0; i < samples.length; i++) {
+					codec.serialize(samples[i], level, out);
+				}
+				final byte[] bnux = out.toByteArray();
+				final String expected = decode(bnux, samples.length, false);
+				if (!expected.equals(decode(bnux, samples.length, true))) {
+					throw new IllegalStateException(
+						"parallel decoding mismatch, level=" + level + ", k=" + k);
+				}
+				
+				Thread[] threads = new Thread[4];
+				final Throwable[] errors = new Throwable[threads.length];
+				for (int t=0; t < threads.length; t++) {
+					final int id = t;
+					threads[t] = new Thread() {
+						public void run() {
+							try {
+								for (int r=0; r < 3; r++) {
+									if (!expected.equals(decode(bnux, samples.length, true)))
+										throw new IllegalStateException("concurrent parallel decoding mismatch");
+								}
+							} catch (Throwable e) {
+								errors[id] = e;
+							}
+						}
+					};
+					threads[t].start();
+				}
+				for (int t=0; t < threads.length; t++) {
+					threads[t].join();
+					if (errors[t] != null) throw new IllegalStateException(errors[t].toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that pipelined serialization of a stream of many documents yields
+	 * exactly the same bytes as non-pipelined serialization, for uncompressed,
+	 * ZLIB and page compressed output, with and without a page directory.
+	 */
+	private static void testPipelinedSerialization(Document[] samples) throws Exception {
+		for (int features=0; features < 4; features++) {
+			for (int level=0; level <= 6; level += 6) {
+				byte[][] results = new byte[2][];
+				for (int k=0; k < 2; k++) {
+					BinaryXMLCodec codec = new BinaryXMLCodec();
+					codec.setPipelinedSerializationEnabled(k == 1);
+					codec.setPageDirectoryEnabled((features & 1) != 0);
+					if ((features & 2) != 0) codec.setPageCompressor(new LZPageCompressor());
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					for (int i=0; i < samples.length; i++) {
+						codec.serialize(samples[i], level, out);
+					}
+					results[k] = out.toByteArray();
+				}
+				if (!Arrays.equals(results[0], results[1])) {
+					throw new IllegalStateException("pipelined serialization mismatch, features=" 
+						+ features + ", level=" + level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks that a pipelined codec reports a failure of its output stream or
+	 * of its input in the middle of a multi-page document, and that the failure
+	 * neither leaks into nor corrupts the next document serialized with the
+	 * same codec, even if a page was still being written when the input failed.
+	 */
+	private static void testPipelinedErrors() throws Exception {
+		Element root = new Element("root");
+		for (int i=0; i < 20000; i++) {
+			Element child = new Element("item" + (i % 100));
+			child.appendChild("value " + i);
+			root.appendChild(child);
+		}
+		Document doc = new Document(root);
+		String xml = doc.toXML();
+		
+		for (int level=0; level <= 6; level += 6) {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			new BinaryXMLCodec().serialize(doc, level, expected);
+			
+			for (int k=0; k < 2; k++) {
+				BinaryXMLCodec codec = new BinaryXMLCodec();
+				codec.setPipelinedSerializationEnabled(true);
+				// second write fails, slowly enough for the input to fail meanwhile
+				OutputStream failing = new OutputStream() {
+					private int writes = 0;
+					public void write(int b) throws IOException {
+						write(new byte[] {(byte) b}, 0, 1);
+					}
+					public void write(byte[] b, int off, int len) throws IOException {
+						if (++writes < 2) return;
+						try {
+							Thread.sleep(500);
+						} catch (InterruptedException e) {
+							; // ignore
+						}
+						throw new IOException("simulated output failure");
+					}
+				};
+				try {
+					if (k == 0) {
+						codec.serialize(doc, level, failing);
+					} else {
+						XMLStreamReader reader = new StreamReaderDelegate(
+							XMLInputFactory.newInstance().createXMLStreamReader(
+								new StringReader(xml))) {
+							private int events = 0;
+							public int next() throws XMLStreamException {
+								if (++events > 50000) {
+									throw new XMLStreamException("simulated input failure");
+								}
+								return super.next();
+							}
+						};
+						codec.serialize(reader, level, failing);
+					}
+					throw new IllegalStateException("missing failure, level=" + level);
+				} catch (IOException e) {
+					; // expected
+				} catch (XMLStreamException e) {
+					; // expected
+				}
+				
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				codec.serialize(doc, level, out);
+				if (!Arrays.equals(expected.toByteArray(), out.toByteArray())) {
+					throw new IllegalStateException(
+						"pipelined serialization after error mismatch, level=" + level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the samples, interleaved with a large document, many times over
+	 * into a file several times larger than the codec's mapping window, and
+	 * checks that reading them back from the file channel, one after another,
+	 * yields all documents, including those that straddle a window boundary.
+	 */
+	private static void testFileChannel(Document[] samples) throws Exception {
+		Element root = new Element("root");
+		for (int i=0; i < 100000; i++) {
+			Element child = new Element("item" + (i % 100));
+			child.appendChild("value " + i);
+			root.appendChild(child);
+		}
+		Document big = new Document(root);
+		
+		ArrayList expected = new ArrayList();
+		BinaryXMLCodec codec = new BinaryXMLCodec();
+		File file = File.createTempFile("nux-bnux", ".bnux");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			while (file.length() < 40 * 1024 * 1024) {
+				for (int i=0; i < samples.length; i++) {
+					codec.serialize(samples[i], 0, out);
+					expected.add(samples[i]);
+				}
+				codec.serialize(big, 0, out);
+				expected.add(big);
+				out.flush();
+			}
+		} finally {
+			out.close();
+		}
+		
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			for (int i=0; i < expected.size(); i++) {
+				Document doc = codec.deserialize(channel, null);
+				if (!Arrays.equals(XOMUtil.toCanonicalXML((Document) expected.get(i)), 
+						XOMUtil.toCanonicalXML(doc))) {
+					throw new IllegalStateException("file channel mismatch at document " + i);
+				}
+			}
+			if (channel.position() != channel.size()) {
+				throw new IllegalStateException("file channel not fully consumed");
+			}
+		} finally {
+			channel.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Writes a large document with a page directory, with and without subtree
+	 * sizes, page compression and ZLIB, and checks that records and elements
+	 * read via random access, including records spanning several pages, equal
+	 * those of the original document.
+	 */
+	private static void testRandomAccess() throws Exception {
+		Element root = new Element("root");
+		for (int i=0; i < 30000; i++) {
+			Element record = new Element("record");
+			record.appendChild("value " + i);
+			if (i % 5000 == 7) { // large record spanning pages
+				for (int j=0; j < 40000; j++) {
+					Element child = new Element("child");
+					child.appendChild("text " + j);
+					record.appendChild(child);
+				}
+			}
+			root.appendChild(record);
+		}
+		Document doc = new Document(root);
+		
+		File file = File.createTempFile("nux-bnux", ".bnux");
+		file.deleteOnExit();
+		try {
+			for (int features=0; features < 4; features++) {
+				for (int level=0; level <= 6; level += 6) {
+					BinaryXMLCodec codec = new BinaryXMLCodec();
+					codec.setPageDirectoryEnabled(true);
+					codec.setSubtreeSizesEnabled((features & 1) != 0);
+					if ((features & 2) != 0) codec.setPageCompressor(new LZPageCompressor());
+					FileOutputStream out = new FileOutputStream(file);
+					try {
+						codec.serialize(doc, level, out);
+					} finally {
+						out.close();
+					}
+					
+					BinaryXMLRandomAccessFile raf = new BinaryXMLRandomAccessFile(file);
+					try {
+						if (raf.getPageCount() < 2 || raf.getRecordCount() != root.getChildCount()) {
+							throw new IllegalStateException("bad page directory, features=" 
+								+ features + ", level=" + level);
+						}
+						for (int i=0; i < root.getChildCount(); i += 997) {
+							checkEquals(root.getChild(i), raf.readRecord(i), features, level);
+							checkEquals(root.getChild(i + 7), raf.readRecord(i + 7), features, level);
+						}
+						checkEquals(root, raf.readElement(0), features, level);
+						checkEquals(root.getChild(7).getChild(1), raf.readElement(9), features, level);
+					} finally {
+						raf.close();
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static void checkEquals(Node expected, Node actual, int features, int level) {
+		if (!expected.toXML().equals(actual.toXML())) {
+			throw new IllegalStateException("random access mismatch, features=" 
+				+ features + ", level=" + level);
+		}
+	}
+
+	/**
+	 * Decodes the given number of documents from the stream, returning a
+	 * transcript of all node factory calls.
+	 */
+	private static String decode(byte[] bnux, int count, boolean parallel) throws Exception {
+		BinaryXMLCodec codec = new BinaryXMLCodec();
+		codec.setParallelDecodingEnabled(parallel);
+		final StringBuffer transcript = new StringBuffer();
+		NodeFactory factory = new NodeFactory() {
+			public Element startMakingElement(String name, String namespace) {
+				transcript.append("<" + name + " " + namespace + "\n");
+				return super.startMakingElement(name, namespace);
+			}
+			public Nodes finishMakingElement(Element element) {
+				transcript.append(">" + element.getQualifiedName() + "\n");
+				return super.finishMakingElement(element);
+			}
+			public Nodes makeAttribute(String name, String URI, String value, nu.xom.Attribute.Type type) {
+				transcript.append("@" + name + " " + URI + "=" + value + "\n");
+				return super.makeAttribute(name, URI, value, type);
+			}
+			public Nodes makeText(String text) {
+				transcript.append("#" + text + "\n");
+				return super.makeText(text);
+			}
+			public Nodes makeComment(String text) {
+				transcript.append("!" + text + "\n");
+				return super.makeComment(text);
+			}
+			public Nodes makeProcessingInstruction(String target, String data) {
+				transcript.append("?" + target + " " + data + "\n");
+				return super.makeProcessingInstruction(target, data);
+			}
+			public void finishMakingDocument(Document document) {
+				transcript.append(document.toXML());
+				super.finishMakingDocument(document);
+			}
+		};
+		
+		InputStream in = new ByteArrayInputStream(bnux);
+		for (int i=0; i < count; i++) {
+			codec.deserialize(in, factory);
+		}
+		if (in.read() >= 0) throw new IllegalStateException("trailing bytes");
+		return transcript.toString();
+	}
+
+	private static BinaryXMLCodec createCodec(int features, BinaryXMLDictionary dictionary) {
+		BinaryXMLCodec codec = new BinaryXMLCodec();
+		codec.setSubtreeSizesEnabled((features & SUBTREE_SIZES) != 0);
+		codec.setPageDirectoryEnabled((features & PAGE_DIRECTORY) != 0);
+		if ((features & DICTIONARY) != 0) codec.setDictionary(dictionary);
+		if ((features & PAGE_COMPRESSOR) != 0) {
+			if ((features & ZLIB) != 0) {
+				codec.setPageCompressor(new ZLIBPageCompressor());
+			} else {
+				codec.setPageCompressor(new LZPageCompressor());
+			}
+		}
+		return codec;
+	}
+
+	private static void check(byte[] expected, Document actual, int features, int mode) {
+		if (!Arrays.equals(expected, XOMUtil.toCanonicalXML(actual))) {
+			fail("canonical XML mismatch", features, mode);
+		}
+	}
+
+	private static void expectFailure(BinaryXMLCodec codec, byte[] bnux, String what) {
+		try {
+			codec.deserialize(bnux);
+		} catch (BinaryParsingException e) {
+			return; // as expected
+		}
+		throw new IllegalStateException("failed to reject " + what);
+	}
+
+	private static int getInt(byte[] bytes, int off) {
+		return ((bytes[off] & 0xFF) << 24) | ((bytes[off+1] & 0xFF) << 16) 
+			| ((bytes[off+2] & 0xFF) << 8) | (bytes[off+3] & 0xFF);
+	}
+
+	private static void setInt(byte[] bytes, int off, int value) {
+		bytes[off] = (byte) (value >>> 24);
+		bytes[off+1] = (byte) (value >>> 16);
+		bytes[off+2] = (byte) (value >>> 8);
+		bytes[off+3] = (byte) value;
+	}
+
+	private static void fail(String msg, int features, int mode) {
+		throw new IllegalStateException(msg + ", features=" + features + ", mode=" + mode);
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.sandbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nux.xom.pool.DefaultMemoryWeigher;
+import nux.xom.pool.DocumentFactory;
+import nux.xom.pool.DocumentMap;
+import nux.xom.pool.DocumentPool;
+import nux.xom.pool.MemoryWeigher;
+import nux.xom.pool.PoolConfig;
+
+/**
+ * Hammers the lock striped pool behind DocumentMap from many threads at once,
+ * and checks that the PoolConfig semantics still hold: a key never maps to
+ * another key's value or to a stale version, and the maxEntries, capacity,
+ * idle time, life time and file monitoring limits are respected.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.ConcurrentPoolTest [threads] [iterations]
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/20 04:11:37 $
+ */
+public final class ConcurrentPoolTest {
+	
+	private static final int KEYS_PER_THREAD = 100;
+	private static final int SHARED_KEYS = 10;
+	
+	private ConcurrentPoolTest() {}
+
+	public static void main(String[] args) throws Exception {
+		// sweep for invalid entries frequently; must be set before using any pool
+		System.setProperty("nux.xom.pool.PoolConfig.invalidationPeriod", "200"); 
+		
+		int threads = 8;
+		if (args.length > 0) threads = Integer.parseInt(args[0]);
+		int iterations = 20000;
+		if (args.length > 1) iterations = Integer.parseInt(args[1]);
+		
+		testConsistency(threads, iterations);
+		testCapacity(threads, iterations);
+		testTimeouts();
+		testFileMonitoring();
+		System.out.println("done");
+	}
+	
+	/**
+	 * Each thread puts new versions of its own keys and of a few shared keys,
+	 * and checks that gets yield either nothing (evicted) or the right value.
+	 */
+	private static void testConsistency(int numThreads, final int iterations) 
+			throws Exception {
+		
+		final int maxEntries = 200;
+		final DocumentMap map = new DocumentMap(createConfig()
+				.setMaxEntries(maxEntries).setConcurrencyLevel(16));
+		run(numThreads, new Task() {
+			public void run(int thread, Random rand) {
+				int[] versions = new int[KEYS_PER_THREAD];
+				for (int i=0; i < iterations; i++) {
+					int k = rand.nextInt(KEYS_PER_THREAD + SHARED_KEYS);
+					boolean isShared = k >= KEYS_PER_THREAD;
+					Integer key = new Integer(isShared ? -k : thread * KEYS_PER_THREAD + k);
+					if (rand.nextInt(3) == 0) {
+						int version = isShared ? 0 : ++versions[k];
+						map.putDocument(key, createDocument(key.intValue(), version));
+					} else {
+						Document doc = map.getDocument(key);
+						if (doc == null) continue; // never put, or evicted
+						Element root = doc.getRootElement();
+						check(getInt(root, "key") == key.intValue(), "value of foreign key");
+						if (!isShared) {
+							check(getInt(root, "version") == versions[k], "stale value");
+						}
+					}
+				}
+			}
+		});
+		
+		int live = 0;
+		for (int t=0; t < numThreads; t++) {
+			for (int k=0; k < KEYS_PER_THREAD; k++) {
+				if (map.getDocument(new Integer(t * KEYS_PER_THREAD + k)) != null) live++;
+			}
+		}
+		for (int k=KEYS_PER_THREAD; k < KEYS_PER_THREAD + SHARED_KEYS; k++) {
+			if (map.getDocument(new Integer(-k)) != null) live++;
+		}
+		System.out.println("consistency: live entries=" + live);
+		check(live <= maxEntries, "maxEntries exceeded: " + live);
+		check(live > 0, "nothing cached");
+	}
+	
+	/** Checks that the total memory held by live values never exceeds capacity. */
+	private static void testCapacity(int numThreads, final int iterations) 
+			throws Exception {
+		
+		final long capacity = 200 * 1024;
+		final DocumentMap map = new DocumentMap(createConfig()
+				.setMaxEntries(Integer.MAX_VALUE).setCapacity(capacity));
+		run(numThreads, new Task() {
+			public void run(int thread, Random rand) {
+				for (int i=0; i < iterations / 10; i++) {
+					int key = thread * KEYS_PER_THREAD + rand.nextInt(KEYS_PER_THREAD);
+					map.putDocument(new Integer(key), createDocument(key, i));
+				}
+			}
+		});
+		
+		MemoryWeigher weigher = new DefaultMemoryWeigher();
+		long total = 0;
+		for (int key=0; key < numThreads * KEYS_PER_THREAD; key++) {
+			Document doc = map.getDocument(new Integer(key));
+			if (doc != null) total += weigher.getMemorySize(doc);
+		}
+		System.out.println("capacity: live bytes=" + total);
+		check(total <= capacity, "capacity exceeded: " + total);
+		check(total > 0, "nothing cached");
+	}
+	
+	/** Checks that entries expire after their maximum idle and life time. */
+	private static void testTimeouts() throws Exception {
+		DocumentMap idle = new DocumentMap(createConfig().setMaxIdleTime(300));
+		DocumentMap life = new DocumentMap(createConfig().setMaxLifeTime(600));
+		for (int key=0; key < 100; key++) {
+			idle.putDocument(new Integer(key), createDocument(key, 0));
+			life.putDocument(new Integer(key), createDocument(key, 0));
+		}
+		check(idle.getDocument(new Integer(0)) != null, "idle entry lost early");
+		
+		for (int i=0; i < 10; i++) { // keep accessing: idle time doesn't expire
+			Thread.sleep(100);
+			check(idle.getDocument(new Integer(0)) != null, "accessed entry expired");
+			life.getDocument(new Integer(0));
+		}
+		Thread.sleep(1000);
+		for (int key=0; key < 100; key++) {
+			check(idle.getDocument(new Integer(key)) == null, "idle time exceeded");
+			check(life.getDocument(new Integer(key)) == null, "life time exceeded");
+		}
+	}
+	
+	/** 
+	 * Checks that a modified file is reloaded after the next sweep, and an
+	 * unmodified one is not.
+	 */
+	private static void testFileMonitoring() throws Exception {
+		File file = File.createTempFile("nux-pool-test", ".xml");
+		try {
+			DocumentPool pool = new DocumentPool(
+				new DocumentMap(createConfig().setFileMonitoring(true)), 
+				new DocumentFactory());
+			write(file, "<a/>", 0);
+			Document doc = pool.getDocument(file);
+			check(doc.getRootElement().getLocalName().equals("a"), "wrong document");
+			Thread.sleep(1000);
+			check(pool.getDocument(file) == doc, "unmodified file reloaded");
+			
+			write(file, "<b/>", 10000); // make sure the timestamp changes
+			Thread.sleep(1000);
+			doc = pool.getDocument(file);
+			check(doc.getRootElement().getLocalName().equals("b"), "modified file not reloaded");
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static PoolConfig createConfig() {
+		return new PoolConfig().setCompressionLevel(-1).setMemoryGovernor(null);
+	}
+	
+	private static Document createDocument(int key, int version) {
+		Element root = new Element("entry");
+		root.addAttribute(new Attribute("key", String.valueOf(key)));
+		root.addAttribute(new Attribute("version", String.valueOf(version)));
+		for (int i=0; i < 10; i++) {
+			Element item = new Element("item");
+			item.appendChild("text " + i);
+			root.appendChild(item);
+		}
+		return new Document(root);
+	}
+	
+	private static int getInt(Element elem, String attributeName) {
+		return Integer.parseInt(elem.getAttributeValue(attributeName));
+	}
+	
+	private static void write(File file, String xml, long delta) throws Exception {
+		long lastModified = file.lastModified();
+		OutputStream out = new FileOutputStream(file);
+		out.write(xml.getBytes("UTF-8"));
+		out.close();
+		file.setLastModified(lastModified + delta);
+	}
+	
+	private static void check(boolean condition, String msg) {
+		if (!condition) throw new IllegalStateException(msg);
+	}
+	
+	/** Runs the given task on the given number of threads, and waits for all of them. */
+	private static void run(int numThreads, final Task task) throws Exception {
+		Thread[] threads = new Thread[numThreads];
+		final Throwable[] errors = new Throwable[numThreads];
+		for (int t=0; t < numThreads; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						task.run(thread, new Random(thread));
+					} catch (Throwable e) {
+						errors[thread] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t=0; t < numThreads; t++) {
+			threads[t].join();
+			if (errors[t] != null) {
+				errors[t].printStackTrace();
+				throw new IllegalStateException("thread " + t + " failed: " + errors[t]);
+			}
+		}
+	}
+	
+	private static interface Task {
+		public void run(int thread, Random rand);
+	}
+	
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.sandbox;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nux.xom.pool.DocumentMap;
+import nux.xom.pool.MemoryGovernor;
+import nux.xom.pool.PoolConfig;
+
+/**
+ * Checks that a {@link MemoryGovernor} shared by two pools enforces its
+ * budget across both: on overflow it evicts the entries that are cheap to
+ * rebuild from whichever pool holds them, and keeps the expensive ones;
+ * shrinking the budget evicts right away; a pool that opts out is neither
+ * accounted nor evicted.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.MemoryGovernorTest
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/30 01:22:41 $
+ */
+public final class MemoryGovernorTest {
+	
+	private static final int SLOW = 4; // number of expensive entries
+	private static final int CHEAP = 40; // number of cheap entries
+	private static final long REBUILD_MILLIS = 200; // cost of an expensive entry
+	
+	private MemoryGovernorTest() {}
+
+	public static void main(String[] args) throws Exception {
+		long docSize = getDocumentSize();
+		MemoryGovernor governor = new MemoryGovernor(10 * docSize);
+		DocumentMap slow = new DocumentMap(createConfig(governor));
+		DocumentMap cheap = new DocumentMap(createConfig(governor));
+		DocumentMap private_ = new DocumentMap(createConfig(null));
+		
+		// expensive entries first, so LRU alone would evict them first
+		for (int key=0; key < SLOW; key++) {
+			load(slow, key, REBUILD_MILLIS);
+		}
+		check(governor.getMemorySize() == SLOW * docSize, 
+			"wrong accounting: " + governor.getMemorySize());
+		for (int key=0; key < CHEAP; key++) {
+			load(cheap, key, 0);
+			load(private_, key, 0);
+			check(governor.getMemorySize() <= governor.getCapacity(), 
+				"budget exceeded: " + governor.getMemorySize());
+		}
+		int slowLive = count(slow, SLOW);
+		int cheapLive = count(cheap, CHEAP);
+		System.out.println("overflow: slow=" + slowLive + ", cheap=" + cheapLive 
+			+ ", bytes=" + governor.getMemorySize() + "/" + governor.getCapacity());
+		check(slowLive == SLOW, "expensive entries evicted before cheap ones");
+		check(cheapLive > 0 && cheapLive <= 10 - SLOW, "wrong number of cheap entries");
+		check(count(private_, CHEAP) == CHEAP, "entries of opted out pool evicted");
+		check(governor.getMemorySize() == (slowLive + cheapLive) * docSize, 
+			"wrong accounting: " + governor.getMemorySize());
+		
+		// shrinking the budget evicts immediately, cheap entries first
+		governor.setCapacity(SLOW * docSize);
+		slowLive = count(slow, SLOW);
+		cheapLive = count(cheap, CHEAP);
+		System.out.println("shrunk: slow=" + slowLive + ", cheap=" + cheapLive 
+			+ ", bytes=" + governor.getMemorySize() + "/" + governor.getCapacity());
+		check(cheapLive == 0, "cheap entries survived a shrink");
+		check(slowLive == SLOW, "expensive entries evicted by a shrink");
+		
+		governor.setCapacity((SLOW - 2) * docSize);
+		check(count(slow, SLOW) == SLOW - 2, "budget not enforced within a pool");
+		
+		governor.setCapacity(0);
+		check(count(slow, SLOW) == 0 && governor.getMemorySize() == 0, 
+			"memory still accounted: " + governor.getMemorySize());
+		check(count(private_, CHEAP) == CHEAP, "entries of opted out pool evicted");
+		System.out.println("done");
+	}
+	
+	/** Simulates a pool client: a cache miss, then building and inserting the value. */
+	private static void load(DocumentMap map, int key, long millis) throws Exception {
+		Integer k = new Integer(key);
+		check(map.getDocument(k) == null, "unexpected cache hit");
+		if (millis > 0) Thread.sleep(millis); // e.g. parsing a large file
+		map.putDocument(k, createDocument(key));
+	}
+	
+	private static int count(DocumentMap map, int keys) {
+		int live = 0;
+		for (int key=0; key < keys; key++) {
+			if (map.getDocument(new Integer(key)) != null) live++;
+		}
+		return live;
+	}
+	
+	/** Returns the governor's weight of a document as created by createDocument(). */
+	private static long getDocumentSize() {
+		MemoryGovernor governor = new MemoryGovernor(Long.MAX_VALUE);
+		new DocumentMap(createConfig(governor)).putDocument(new Integer(0), createDocument(0)); // keys are weighed too
+		return governor.getMemorySize();
+	}
+	
+	private static PoolConfig createConfig(MemoryGovernor governor) {
+		return new PoolConfig().setCompressionLevel(-1).setMemoryGovernor(governor);
+	}
+	
+	/** All documents have the same size (as long as key < 9000). */
+	private static Document createDocument(int key) {
+		Element root = new Element("entry");
+		root.addAttribute(new Attribute("key", String.valueOf(1000 + key)));
+		for (int i=0; i < 50; i++) {
+			Element item = new Element("item");
+			item.appendChild("text " + (100 + i));
+			root.appendChild(item);
+		}
+		return new Document(root);
+	}
+	
+	private static void check(boolean condition, String msg) {
+		if (!condition) throw new IllegalStateException(msg);
+	}
+	
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nu.xom.ParsingException;
+import nux.xom.binary.BinaryXMLCodec;
+import nux.xom.xquery.StreamingPathFilter;
+import nux.xom.xquery.StreamingTransform;
+import nux.xom.xquery.XQueryUtil;
+
+/**
+ * Checks that the node factories returned by
+ * {@link StreamingPathFilter#createParallelNodeFactory(NodeFactory, StreamingTransform, StreamingTransform, int, boolean)}
+ * yield the same results as the sequential node factory: in ordered mode the
+ * same document and the same emitter order, in unordered mode the same
+ * emitted results in some order; for various bounds on the number of matches
+ * in flight, over XML and over bnux. Also checks that an error thrown by a
+ * transform aborts the parse, and that the factory can be reused afterwards.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.ParallelTransformTest [file]
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/26 02:15:08 $
+ */
+public final class ParallelTransformTest {
+	
+	private ParallelTransformTest() {}
+
+	public static void main(String[] args) throws Exception {
+		String fileName = "samples/data/auction-0.01.xml";
+		if (args.length > 0) fileName = args[0];
+		byte[] xml = toBytes(new Builder().build(new File(fileName)));
+		byte[] bnux = new BinaryXMLCodec().serialize(new Builder().build(new File(fileName)), 0);
+		
+		String[] paths = {
+			"/site/people/person",
+			"/site/regions/*/item",
+			"/site/open_auctions/open_auction/bidder",
+		};
+		int[] maxPendings = { 1, 2, 0, 64 };
+		for (int p=0; p < paths.length; p++) {
+			StreamingPathFilter filter = new StreamingPathFilter(paths[p], null);
+			
+			// expected: transform sequentially on the parsing thread
+			ArrayList expectedEmits = new ArrayList();
+			NodeFactory factory = filter.createNodeFactory(null, 
+					emitting(createTransform(), createEmitter(expectedEmits)));
+			String expected = build(factory, xml, bnux, false).toXML();
+			
+			for (int i=0; i < maxPendings.length; i++) {
+				for (int mode=0; mode < 2; mode++) {
+					boolean isBnux = mode == 1;
+					ArrayList emits = new ArrayList();
+					factory = filter.createParallelNodeFactory(null, createTransform(), 
+							createEmitter(emits), maxPendings[i], true);
+					String actual = build(factory, xml, bnux, isBnux).toXML();
+					String where = paths[p] + ", maxPending=" + maxPendings[i] 
+						+ (isBnux ? ", bnux" : ", xml");
+					check(expected.equals(actual), "ordered document differs: " + where);
+					check(expectedEmits.equals(emits), "ordered emits differ: " + where);
+					
+					emits = new ArrayList();
+					factory = filter.createParallelNodeFactory(null, createTransform(), 
+							createEmitter(emits), maxPendings[i], false);
+					build(factory, xml, bnux, isBnux);
+					check(sorted(expectedEmits).equals(sorted(emits)), 
+							"unordered emits differ: " + where);
+				}
+			}
+			System.out.println(paths[p] + ": " + expectedEmits.size() + " results ok");
+		}
+		
+		testError(xml);
+		System.out.println("done");
+	}
+	
+	/** A transform that fails on some match aborts the parse; the factory stays usable. */
+	private static void testError(byte[] xml) throws Exception {
+		final boolean[] fail = { true };
+		StreamingTransform transform = new StreamingTransform() {
+			public Nodes transform(Element person) {
+				if (fail[0] && "person17".equals(person.getAttributeValue("id"))) {
+					throw new IllegalStateException("expected failure");
+				}
+				return new Nodes(person);
+			}
+		};
+		NodeFactory factory = new StreamingPathFilter("/site/people/person", null)
+			.createParallelNodeFactory(null, transform, null, 4, true);
+		try {
+			new Builder(factory).build(new ByteArrayInputStream(xml));
+			check(false, "transform error was swallowed");
+		} catch (ParsingException e) { // the builder wraps the transform's exception
+			Throwable cause = e.getCause();
+			check(cause instanceof IllegalStateException 
+				&& "expected failure".equals(cause.getMessage()), "wrong error: " + e);
+		}
+		
+		fail[0] = false;
+		Document doc = new Builder(factory).build(new ByteArrayInputStream(xml));
+		int persons = XQueryUtil.xquery(doc, "/site/people/person").size();
+		check(persons > 17, "factory not reusable after error: " + persons);
+		System.out.println("error propagation ok");
+	}
+	
+	/** Runs a few queries per match; drops some matches to exercise pruning. */
+	private static StreamingTransform createTransform() {
+		return new StreamingTransform() {
+			public Nodes transform(Element elem) {
+				Nodes results = XQueryUtil.xquery(elem, 
+					"for $e in .//* return string-length(string($e))");
+				int sum = 0;
+				for (int i=0; i < results.size(); i++) {
+					sum += Integer.parseInt(results.get(i).getValue());
+				}
+				if (sum % 3 == 0) return new Nodes(); // drop
+				
+				Element summary = new Element("summary");
+				summary.addAttribute(new Attribute("name", elem.getLocalName()));
+				summary.addAttribute(new Attribute("sum", String.valueOf(sum)));
+				Nodes names = XQueryUtil.xquery(elem, "name | @id");
+				for (int i=0; i < names.size(); i++) {
+					summary.appendChild(names.get(i).getValue());
+				}
+				Nodes nodes = new Nodes(summary);
+				if (sum % 3 == 1) nodes.append(elem); // keep the match too
+				return nodes;
+			}
+		};
+	}
+	
+	/** Records each result; keeps it in the document. */
+	private static StreamingTransform createEmitter(final ArrayList emits) {
+		return new StreamingTransform() {
+			public Nodes transform(Element elem) {
+				emits.add(elem.toXML());
+				return new Nodes(elem);
+			}
+		};
+	}
+	
+	/** Applies the emitter to each element returned by the transform, as the parallel factory does. */
+	private static StreamingTransform emitting(final StreamingTransform transform, 
+			final StreamingTransform emitter) {
+		return new StreamingTransform() {
+			public Nodes transform(Element elem) {
+				Nodes results = transform.transform(elem);
+				Nodes nodes = new Nodes();
+				for (int i=0; i < results.size(); i++) {
+					if (results.get(i) instanceof Element) {
+						Nodes emitted = emitter.transform((Element) results.get(i));
+						for (int j=0; j < emitted.size(); j++) nodes.append(emitted.get(j));
+					} else {
+						nodes.append(results.get(i));
+					}
+				}
+				return nodes;
+			}
+		};
+	}
+	
+	private static Document build(NodeFactory factory, byte[] xml, byte[] bnux, 
+			boolean isBnux) throws Exception {
+		if (isBnux) {
+			return new BinaryXMLCodec().deserialize(new ByteArrayInputStream(bnux), factory);
+		}
+		return new Builder(factory).build(new ByteArrayInputStream(xml));
+	}
+	
+	private static byte[] toBytes(Document doc) throws Exception {
+		return doc.toXML().getBytes("UTF-8");
+	}
+	
+	private static ArrayList sorted(ArrayList list) {
+		ArrayList copy = new ArrayList(list);
+		Collections.sort(copy);
+		return copy;
+	}
+	
+	private static void check(boolean condition, String msg) {
+		if (!condition) throw new IllegalStateException(msg);
+	}
+	
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.xom.Attribute;
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nux.xom.binary.BinaryXMLCodec;
+import nux.xom.pool.BuilderPool;
+import nux.xom.xquery.StreamingMultiPathFilter;
+import nux.xom.xquery.StreamingTransform;
+import nux.xom.xquery.XQueryUtil;
+
+/**
+ * Checks that a single pass of a {@link StreamingMultiPathFilter} delivers
+ * exactly the elements that the same paths select when evaluated one by one
+ * as XPath over the fully built document, both when parsing XML and when
+ * deserializing bnux.
+ * <p>
+ * Each element of the input is first tagged with its position in document
+ * order, so that matches of the streaming pass (which sees a pruned tree) can
+ * be compared to the nodes selected by XPath.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.StreamingMultiPathFilterTest
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/26 02:15:08 $
+ */
+public final class StreamingMultiPathFilterTest {
+	
+	private static final String SEQ_URI = "http://dsd.lbl.gov/nux/test";
+	
+	private StreamingMultiPathFilterTest() {}
+
+	public static void main(String[] args) throws Exception {
+		String[] auctionPaths = {
+			"/site/regions//item",
+			"//item",
+			"//item[@featured='yes']",
+			"//item[@featured]/name",
+			"/site/people/person[@id='person0']",
+			"/site/people/person[@id]/name",
+			"//person//name",
+			"/site/*/*",
+			"//listitem",
+			"//listitem//listitem",
+			"//description//keyword",
+			"/site/closed_auctions/closed_auction/annotation//text",
+			"//*[@id='item0']",
+			"//item", // same path twice
+			"/site", // root is never delivered
+			"//nonexistent",
+		};
+		check("samples/data/auction-0.01.xml", auctionPaths, new HashMap());
+		
+		String[] atomPaths = {
+			"//atom:entry",
+			"/*:feed/*:entry/*:title",
+			"//atom:link[@rel='alternate']",
+			"//*:entry//atom:name",
+			"/atom:feed/atom:link[@rel][@type='application/atom+xml']",
+			"//entry", // no namespace
+		};
+		Map prefixes = new HashMap();
+		prefixes.put("atom", "http://purl.org/atom/ns#");
+		check("samples/data/ns-atom.xml", atomPaths, prefixes);
+		
+		System.out.println("done");
+	}
+	
+	private static void check(String fileName, String[] paths, Map prefixes) 
+			throws Exception {
+		
+		Document doc = BuilderPool.GLOBAL_POOL.getBuilder(false).build(new File(fileName));
+		number(doc.getRootElement(), 0);
+		
+		// expected: evaluate each path separately
+		String declarations = "declare namespace seq = '" + SEQ_URI + "'; ";
+		Object[] entries = prefixes.entrySet().toArray();
+		for (int i=0; i < entries.length; i++) {
+			Map.Entry entry = (Map.Entry) entries[i];
+			declarations += "declare namespace " + entry.getKey() + " = '" + entry.getValue() + "'; ";
+		}
+		int[][] expected = new int[paths.length][];
+		for (int i=0; i < paths.length; i++) {
+			Nodes results = XQueryUtil.xquery(doc, declarations + paths[i]);
+			ArrayList seqs = new ArrayList();
+			for (int j=0; j < results.size(); j++) {
+				Node node = results.get(j);
+				if (node != doc.getRootElement()) seqs.add(getSeq((Element) node));
+			}
+			expected[i] = toSortedArray(seqs);
+		}
+		
+		// actual: evaluate all paths in one pass, over XML and over bnux
+		StreamingMultiPathFilter filter = new StreamingMultiPathFilter(paths, prefixes);
+		byte[] xml = doc.toXML().getBytes("UTF-8");
+		byte[] bnux = new BinaryXMLCodec().serialize(doc, 0);
+		for (int mode=0; mode < 2; mode++) {
+			ArrayList[] matches = new ArrayList[paths.length];
+			NodeFactory factory = filter.createNodeFactory(null, createTransforms(matches));
+			if (mode == 0) {
+				new Builder(factory).build(new ByteArrayInputStream(xml));
+			} else {
+				new BinaryXMLCodec().deserialize(new ByteArrayInputStream(bnux), factory);
+			}
+			
+			for (int i=0; i < paths.length; i++) {
+				int[] actual = toSortedArray(matches[i]);
+				if (!Arrays.equals(expected[i], actual)) {
+					throw new IllegalStateException(fileName + (mode == 0 ? " (xml)" : " (bnux)")
+						+ ": path " + paths[i] + " matched " + actual.length 
+						+ " elements, but XPath selects " + expected[i].length);
+				}
+			}
+		}
+		
+		int total = 0;
+		for (int i=0; i < paths.length; i++) total += expected[i].length;
+		System.out.println(fileName + ": " + paths.length + " paths, " + total + " matches ok");
+	}
+	
+	/** Returns transforms that record the positions of the elements they see. */
+	private static StreamingTransform[] createTransforms(final ArrayList[] matches) {
+		StreamingTransform[] transforms = new StreamingTransform[matches.length];
+		for (int i=0; i < matches.length; i++) {
+			final ArrayList seqs = new ArrayList();
+			matches[i] = seqs;
+			transforms[i] = new StreamingTransform() {
+				public Nodes transform(Element element) {
+					seqs.add(getSeq(element));
+					return new Nodes(); // outer matches see no inner matches
+				}
+			};
+		}
+		return transforms;
+	}
+	
+	/** Tags each element with its position in document order. */
+	private static int number(Element elem, int seq) {
+		elem.addAttribute(new Attribute("seq:n", SEQ_URI, String.valueOf(seq++)));
+		for (int i=0; i < elem.getChildCount(); i++) {
+			Node child = elem.getChild(i);
+			if (child instanceof Element) seq = number((Element) child, seq);
+		}
+		return seq;
+	}
+	
+	private static Integer getSeq(Element elem) {
+		return Integer.valueOf(elem.getAttributeValue("n", SEQ_URI));
+	}
+	
+	private static int[] toSortedArray(ArrayList list) {
+		int[] result = new int[list.size()];
+		for (int i=0; i < result.length; i++) {
+			result[i] = ((Integer) list.get(i)).intValue();
+		}
+		Arrays.sort(result);
+		return result;
+	}
+	
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.sandbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamReader;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Nodes;
+import nux.xom.binary.BinaryXMLCodec;
+import nux.xom.io.StaxParser;
+import nux.xom.io.StaxUtil;
+import nux.xom.pool.XOMUtil;
+import nux.xom.xquery.StreamingPathFilter;
+import nux.xom.xquery.StreamingPathIterator;
+import nux.xom.xquery.StreamingTransform;
+
+/**
+ * Checks that a {@link StreamingPathIterator} returns the same elements as
+ * the node factory of the same {@link StreamingPathFilter} driven by a
+ * {@link StaxParser}, reading from a StAX parser over XML as well as from the
+ * bnux pull parser; a matching root element is compared to the root of the
+ * fully built document. Also advances two iterators over the same input in
+ * lockstep, to check that suspending one in between matches loses nothing.
+ * <p>
+ * Example usage:
+ * <pre>
+ * java nux.xom.sandbox.StreamingPathIteratorTest
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/26 02:15:08 $
+ */
+public final class StreamingPathIteratorTest {
+	
+	private StreamingPathIteratorTest() {}
+
+	public static void main(String[] args) throws Exception {
+		String[] auctionPaths = {
+			"/site/people/person",
+			"/site/regions/*/item",
+			"/site/open_auctions/open_auction/bidder/increase",
+			"/*/closed_auctions/*/annotation",
+			"/site/categories/category/name",
+			"/site/nonexistent",
+			"/site",
+		};
+		check("samples/data/auction-0.01.xml", auctionPaths, null);
+		
+		String[] atomPaths = {
+			"/atom:feed/atom:entry",
+			"/*:feed/*:entry/*:author/*:name",
+			"/feed/entry", // no namespace
+		};
+		Map prefixes = new HashMap();
+		prefixes.put("atom", "http://purl.org/atom/ns#");
+		check("samples/data/ns-atom.xml", atomPaths, prefixes);
+		
+		System.out.println("done");
+	}
+	
+	private static void check(String fileName, String[] paths, Map prefixes) throws Exception {
+		Document doc = new Builder().build(new File(fileName));
+		byte[] xml = doc.toXML().getBytes("UTF-8");
+		byte[] bnux = new BinaryXMLCodec().serialize(doc, 0);
+		
+		for (int p=0; p < paths.length; p++) {
+			StreamingPathFilter filter = new StreamingPathFilter(paths[p], prefixes);
+			for (int mode=0; mode < 2; mode++) {
+				boolean isBnux = mode == 1;
+				String where = fileName + ": " + paths[p] + (isBnux ? " (bnux)" : " (xml)");
+				
+				// expected: the filter's node factory, driven by a StaxParser
+				final ArrayList expected = new ArrayList();
+				StreamingTransform transform = new StreamingTransform() {
+					public Nodes transform(Element elem) {
+						expected.add(new Element(elem).toXML()); // detached, like the iterator's
+						return new Nodes();
+					}
+				};
+				new StaxParser(createReader(xml, bnux, isBnux), 
+						filter.createNodeFactory(null, transform)).build();
+				if (paths[p].lastIndexOf('/') == 0) { // all single step paths used here match the root
+					// the node factory never transforms the root element
+					Element root = new StaxParser(createReader(xml, bnux, isBnux), 
+						XOMUtil.getIgnoreWhitespaceOnlyTextNodeFactory()).build().getRootElement();
+					expected.add(root.toXML());
+				}
+				
+				// actual: the iterator
+				ArrayList actual = new ArrayList();
+				StreamingPathIterator iter = new StreamingPathIterator(
+						filter, createReader(xml, bnux, isBnux), null);
+				Element elem;
+				while ((elem = iter.next()) != null) {
+					check(elem.getParent() instanceof Document, "match not detached: " + where);
+					actual.add(elem.toXML());
+				}
+				check(iter.next() == null, "iterator not exhausted: " + where);
+				
+				check(expected.size() == actual.size(), where + ": iterator returned " 
+					+ actual.size() + " matches, but the node factory " + expected.size());
+				for (int i=0; i < expected.size(); i++) {
+					check(expected.get(i).equals(actual.get(i)), where + ": match " + i + " differs");
+				}
+				
+				checkInterleaved(filter, xml, bnux, isBnux, actual, where);
+			}
+			System.out.println(fileName + ": " + paths[p] + " ok");
+		}
+	}
+	
+	/**
+	 * Two iterators over the same input advanced in lockstep must yield the
+	 * same matches as one iterator run to the end.
+	 */
+	private static void checkInterleaved(StreamingPathFilter filter, byte[] xml, byte[] bnux, 
+			boolean isBnux, ArrayList expected, String where) throws Exception {
+		
+		StreamingPathIterator iter1 = new StreamingPathIterator(
+				filter, createReader(xml, bnux, isBnux), null);
+		StreamingPathIterator iter2 = new StreamingPathIterator(
+				filter, createReader(xml, bnux, isBnux), null);
+		for (int i=0; i < expected.size(); i++) {
+			Element e1 = iter1.next();
+			Element e2 = iter2.next();
+			check(e1 != null && e2 != null, where + ": interleaved iterators ended early");
+			check(expected.get(i).equals(e1.toXML()) && expected.get(i).equals(e2.toXML()), 
+				where + ": interleaved match " + i + " differs");
+		}
+		check(iter1.next() == null && iter2.next() == null, 
+			where + ": interleaved iterators not exhausted");
+	}
+	
+	private static XMLStreamReader createReader(byte[] xml, byte[] bnux, boolean isBnux) 
+			throws Exception {
+		if (isBnux) {
+			return new BinaryXMLCodec().createXMLStreamReader(new ByteArrayInputStream(bnux));
+		}
+		return StaxUtil.createXMLStreamReader(new ByteArrayInputStream(xml), null);
+	}
+	
+	private static void check(boolean condition, String msg) {
+		if (!condition) throw new IllegalStateException(msg);
+	}
+	
+}
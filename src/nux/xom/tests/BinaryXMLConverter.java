@@ -57,6 +57,11 @@ import nux.xom.io.StreamingSerializer;
 import nux.xom.io.StreamingSerializerFactory;
 import nux.xom.pool.XOMUtil;
 
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
 /**
  * Command-line demo that converts a set of standard textual XML files to and
  * from binary xml (bnux) files; Bnux files are indicated by a ".bnux" file name
@@ -110,9 +115,7 @@ public final class BinaryXMLConverter {
 				NodeFactory redirector = XOMUtil.getRedirectingNodeFactory(ser);
 				codec.deserialize(in, redirector);
 			} else { // it's an XML document (or rubbish)
-				StreamingSerializer ser = factory.createBinaryXMLSerializer(System.out, compressionLevel);
-				NodeFactory redirector = XOMUtil.getRedirectingNodeFactory(ser);
-				new Builder(redirector).build(in);
+				transcode(new InputSource(in), codec.createContentHandler(System.out, compressionLevel));
 			}
 			return;
 		}
@@ -145,20 +148,21 @@ public final class BinaryXMLConverter {
 					codec.deserialize(in, redirector); // perform conversion				
 				}
 				else { // it's a textual XML document
-					NodeFactory redirector = null; 
-					if (readOnly) {
-						redirector = XOMUtil.getNullNodeFactory();
-					} else {
+					ContentHandler handler = null; 
+					if (!readOnly) {
 						String destFileName = fileName + ".bnux";
 						System.out.print(destFileName);
 						out = new FileOutputStream(destFileName);
-						StreamingSerializer ser = codec.createStreamingSerializer(out, compressionLevel);
-						redirector = XOMUtil.getRedirectingNodeFactory(ser);
+						handler = codec.createContentHandler(out, compressionLevel);
 					}
 
 					start = System.currentTimeMillis();
 					
-					new Builder(redirector).build(file); // perform conversion				
+					if (readOnly) {
+						new Builder(XOMUtil.getNullNodeFactory()).build(file);
+					} else { // perform conversion, without building XOM nodes
+						transcode(new InputSource(file.toURI().toString()), handler); 
+					}
 				}
 				
 				end = System.currentTimeMillis();
@@ -171,5 +175,13 @@ public final class BinaryXMLConverter {
 			System.out.println("\n");
 		}
 	}
+	
+	/** Feeds the events of a SAX parser into the given bnux transcoder. */
+	private static void transcode(InputSource source, ContentHandler handler) throws Exception {
+		XMLReader parser = XMLReaderFactory.createXMLReader();
+		parser.setContentHandler(handler);
+		parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+		parser.parse(source);
+	}
 
 }
\ No newline at end of file
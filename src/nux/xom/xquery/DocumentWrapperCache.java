@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.xom.DocumentWrapper;
+import nu.xom.Node;
+
+/**
+ * Caches the Saxon DocumentWrapper of a XOM tree across query executions, so
+ * that derived per-document state such as the ID index need not be rebuilt
+ * for each execution (thread-safe).
+ * <p>
+ * Only trees declared immutable via
+ * {@link #setNameIndexEnabled(Node, boolean)}, typically documents shared by
+ * a {@link nux.xom.pool.DocumentPool}, are cached, unless the cache is
+ * created to cache all trees. Other trees get a fresh wrapper per execution.
+ * <p>
+ * Keys are the root nodes of XOM trees, held weakly; since XOM nodes do not
+ * override <code>equals()</code> a key matches by identity only. A wrapper
+ * strongly references its root, so wrappers are held softly; otherwise the
+ * keys could never be collected. Hence a cached tree and its indexes stay
+ * reachable until the garbage collector needs the memory, even once the
+ * application has dropped the tree. Entries are spread over several
+ * independently locked stripes, so concurrent executions over different
+ * trees rarely contend.
+ * <p>
+ * XOM offers no notification on tree modification, so a wrapper handed out
+ * by {@link #get(Node, Configuration)} is told that its tree may have been
+ * modified, and verifies its indexes lazily.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.2 $, $Date: 2006/06/24 19:12:40 $
+ */
+final class DocumentWrapperCache {
+	
+	private static final int STRIPES = 16; // power of two
+	
+	/** Root --> Entry; each stripe is guarded by itself */
+	private final Map[] stripes = new Map[STRIPES];
+	
+	/** Cache wrappers of all trees, rather than just of immutable ones? */
+	private final boolean cacheAll;
+	
+	/**
+	 * Creates an empty cache.
+	 * 
+	 * @param cacheAll
+	 *            whether to cache the wrappers of all trees, rather than just
+	 *            those of trees declared immutable
+	 */
+	public DocumentWrapperCache(boolean cacheAll) {
+		this.cacheAll = cacheAll;
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new WeakHashMap();
+		}
+	}
+	
+	/**
+	 * Returns a wrapper for the given root node and configuration; reusing a
+	 * cached one if possible.
+	 * 
+	 * @param root
+	 *            the root of a XOM tree (a node without parent)
+	 * @param config
+	 *            the configuration of the query to execute
+	 * @return a wrapper for the tree
+	 */
+	public DocumentWrapper get(Node root, Configuration config) {
+		String baseURI = root.getBaseURI();
+		Map stripe = getStripe(root);
+		Entry entry;
+		synchronized (stripe) {
+			entry = (Entry) stripe.get(root);
+		}
+		if (entry == null && !cacheAll) { // not cacheable
+			return new DocumentWrapper(root, baseURI, config);
+		}
+		
+		DocumentWrapper docWrapper = entry == null ? null : entry.getWrapper();
+		if (docWrapper != null && docWrapper.getConfiguration() == config
+				&& equals(entry.baseURI, baseURI)) {
+			docWrapper.setMayBeModified();
+			return docWrapper;
+		}
+		
+		docWrapper = new DocumentWrapper(root, baseURI, config);
+		synchronized (stripe) {
+			Entry current = (Entry) stripe.get(root);
+			if (current == null && !cacheAll) {
+				return docWrapper; // declared mutable meanwhile
+			}
+			boolean immutable = current != null && current.immutable;
+			if (immutable) docWrapper.setNameIndexEnabled(true);
+			stripe.put(root, new Entry(docWrapper, baseURI, immutable));
+		}
+		return docWrapper;
+	}
+	
+	/**
+	 * Declares the given tree immutable (or mutable again), enabling (or
+	 * disabling) caching of its wrapper and its element name index.
+	 * 
+	 * @param root
+	 *            the root of a XOM tree (a node without parent)
+	 * @param enabled
+	 *            whether or not to index the tree
+	 */
+	public void setNameIndexEnabled(Node root, boolean enabled) {
+		Map stripe = getStripe(root);
+		DocumentWrapper docWrapper = null;
+		synchronized (stripe) {
+			Entry entry = (Entry) stripe.get(root);
+			if (entry != null) docWrapper = entry.getWrapper();
+			if (enabled || cacheAll) {
+				stripe.put(root, new Entry(docWrapper, 
+					entry == null ? null : entry.baseURI, enabled));
+			} else {
+				stripe.remove(root);
+			}
+		}
+		
+		if (docWrapper != null) docWrapper.setNameIndexEnabled(enabled);
+	}
+	
+	/** Removes all cached wrappers (but retains which trees are immutable). */
+	public void clear() {
+		for (int i = 0; i < STRIPES; i++) {
+			Map stripe = stripes[i];
+			synchronized (stripe) {
+				Object[] roots = stripe.keySet().toArray();
+				for (int j = 0; j < roots.length; j++) {
+					Entry entry = (Entry) stripe.get(roots[j]);
+					if (entry != null && entry.immutable) {
+						stripe.put(roots[j], new Entry(null, null, true));
+					} else {
+						stripe.remove(roots[j]);
+					}
+				}
+			}
+		}
+	}
+	
+	private Map getStripe(Node root) {
+		int h = System.identityHashCode(root);
+		h ^= (h >>> 16); // spread high bits
+		return stripes[h & (STRIPES - 1)];
+	}
+	
+	private static boolean equals(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * A softly held wrapper (if any), the base URI it has been created with,
+	 * and whether its tree is declared immutable; never modified once created.
+	 */
+	private static final class Entry {
+		
+		private final SoftReference wrapper;
+		final String baseURI;
+		final boolean immutable;
+		
+		Entry(DocumentWrapper docWrapper, String baseURI, boolean immutable) {
+			this.wrapper = docWrapper == null ? null : new SoftReference(docWrapper);
+			this.baseURI = baseURI;
+			this.immutable = immutable;
+		}
+		
+		DocumentWrapper getWrapper() {
+			return wrapper == null ? null : (DocumentWrapper) wrapper.get();
+		}
+	}
+	
+}
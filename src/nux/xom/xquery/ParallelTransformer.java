@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nu.xom.ParentNode;
+import nu.xom.Text;
+
+/**
+ * Runs the {@link StreamingTransform} of a streaming path filter node factory
+ * on a shared pool of daemon worker threads, while the parsing thread goes on
+ * building the document; splices the results back into the document on the
+ * parsing thread, either in document order or in the order of completion.
+ * <p>
+ * The number of matches in flight per node factory is bounded; when the bound
+ * is reached the parsing thread waits, or runs a task no worker has started
+ * on yet itself (work stealing).
+ * <p>
+ * Care is needed because the XOM builder (as well as the bnux codec) removes the
+ * last child of the parent after <code>finishMakingElement()</code> returns
+ * and before appending the returned nodes. A match is therefore handed to a
+ * worker only at the next node factory callback, once it has been detached,
+ * and results are appended to the parent only while no child element of the
+ * parent is open.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/25 18:40:31 $
+ */
+final class ParallelTransformer { // not a public class!
+	
+	private static final int NUM_CPUS = Runtime.getRuntime().availableProcessors();
+	
+	// shared by all transformers: tasks not yet taken by any worker thread
+	private static final LinkedList queue = new LinkedList();
+	private static int numWorkers = 0;
+	private static int numIdleWorkers = 0;
+	
+	private final StreamingTransform transform;
+	private final StreamingTransform emitter;
+	private final int maxPending;
+	private final boolean isOrdered;
+	
+	// tasks of the current document that have not yet been spliced, in document order
+	private final LinkedList pending = new LinkedList();
+	
+	// unordered mode: tasks that are done but not yet spliced, in the order of completion; guarded by this
+	private final LinkedList completed = new LinkedList();
+	
+	// match handed over by finishMakingElement(), still attached to its parent
+	private Task deferred;
+	
+	private static final Nodes NONE = new Nodes();
+	private static final boolean DEBUG = false;
+	
+	/**
+	 * Creates a transformer running <code>transform</code> in parallel, with
+	 * at most <code>maxPending</code> matches in flight (or a default if
+	 * <code>maxPending &lt;= 0</code>).
+	 */
+	public ParallelTransformer(StreamingTransform transform, StreamingTransform emitter, 
+			int maxPending, boolean isOrdered) {
+		
+		if (transform == null) 
+			throw new IllegalArgumentException("transform must not be null");
+		this.transform = transform;
+		this.emitter = emitter;
+		this.maxPending = maxPending > 0 ? maxPending : 4 * NUM_CPUS;
+		this.isOrdered = isOrdered;
+	}
+	
+	/** Prepares transforming the matches of a new document. */
+	public void reset() {
+		// cancel leftovers of a previous document that failed to parse
+		Iterator iter = pending.iterator();
+		while (iter.hasNext()) {
+			((Task) iter.next()).claim(); // in-flight tasks complete in the background
+		}
+		pending.clear();
+		synchronized (this) {
+			completed.clear();
+		}
+		deferred = null;
+	}
+	
+	/**
+	 * Takes over the given element matching the location path; returns the
+	 * nodes that finishMakingElement() shall return in its place.
+	 */
+	public Nodes submit(Element elem) {
+		Text placeholder = isOrdered ? new Text("") : null;
+		deferred = new Task(elem, elem.getParent(), placeholder, this);
+		return isOrdered ? new Nodes(placeholder) : NONE;
+	}
+	
+	/**
+	 * Called at the beginning of each node factory callback: hands the
+	 * previous match over to the workers and splices the results of completed
+	 * tasks, as far as possible. If canAppend is false, the parent of the
+	 * matches may have an open child element, so results must not be appended
+	 * to it.
+	 */
+	public void flush(boolean canAppend) {
+		if (deferred != null) {
+			Task task = deferred;
+			deferred = null;
+			pending.add(task);
+			synchronized (queue) {
+				queue.add(task);
+				if (numIdleWorkers > 0) {
+					queue.notify();
+				} else if (numWorkers < NUM_CPUS) {
+					startWorker();
+				}
+			}
+		}
+		
+		if (isOrdered) {
+			while (pending.size() >= maxPending) {
+				((Task) pending.getFirst()).await(); // runs it inline unless a worker has started on it
+				splice((Task) pending.removeFirst());
+			}
+			while (pending.size() > 0 && ((Task) pending.getFirst()).isDone()) {
+				splice((Task) pending.removeFirst());
+			}
+		} else {
+			while (numRunning() >= maxPending) {
+				awaitAny();
+			}
+			if (canAppend) {
+				Task task;
+				while ((task = pollCompleted()) != null) {
+					pending.remove(task);
+					splice(task);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Waits for all matches of the current parent to be transformed, and
+	 * splices their results; called when the parent is finished.
+	 */
+	public void flushAll() {
+		flush(true);
+		while (pending.size() > 0) {
+			if (isOrdered) {
+				((Task) pending.getFirst()).await();
+			} else {
+				awaitAny();
+			}
+			flush(true);
+		}
+	}
+	
+	/** Returns the number of pending tasks that are not yet done. */
+	private int numRunning() {
+		synchronized (this) {
+			return pending.size() - completed.size();
+		}
+	}
+	
+	private Task pollCompleted() {
+		synchronized (this) {
+			return completed.isEmpty() ? null : (Task) completed.removeFirst();
+		}
+	}
+	
+	/** Runs a task no worker has started on yet, or waits for any task to complete. */
+	private void awaitAny() {
+		Iterator iter = pending.iterator();
+		while (iter.hasNext()) {
+			Task task = (Task) iter.next();
+			if (task.claim()) {
+				task.run(); // work stealing
+				return;
+			}
+		}
+		synchronized (this) {
+			if (completed.isEmpty()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+	}
+	
+	/** Replaces the match of the given task with the task's results. */
+	private void splice(Task task) {
+		if (task.error instanceof RuntimeException) throw (RuntimeException) task.error;
+		if (task.error instanceof Error) throw (Error) task.error;
+		if (task.error != null) throw new RuntimeException(task.error);
+		
+		Nodes results = emit(task.results, task.elem);
+		ParentNode parent = task.parent;
+		int i;
+		if (task.placeholder != null) {
+			parent = task.placeholder.getParent();
+			i = parent.indexOf(task.placeholder);
+			parent.removeChild(i);
+		} else {
+			i = parent.getChildCount();
+		}
+		for (int j = 0; j < results.size(); j++) {
+			Node node = results.get(j);
+			node.detach(); // prevent potential nu.xom.MultipleParentException
+			parent.insertChild(node, i++);
+		}
+	}
+	
+	/** Passes the element results of the transform through the emitter, if any. */
+	private Nodes emit(Nodes results, Element elem) {
+		if (emitter == null) return results;
+		Nodes emitted = new Nodes();
+		for (int i = 0; i < results.size(); i++) {
+			Node node = results.get(i);
+			if (node instanceof Element) {
+				if (node != elem) node.detach();
+				Nodes nodes = emitter.transform((Element) node);
+				for (int j = 0; j < nodes.size(); j++) emitted.append(nodes.get(j));
+			} else {
+				emitted.append(node);
+			}
+		}
+		return emitted;
+	}
+	
+	private static void startWorker() {
+		Thread thread = new Thread("nux-streaming-transform-" + numWorkers) {
+			public void run() {
+				while (true) {
+					Task task;
+					synchronized (queue) {
+						while (queue.isEmpty()) {
+							numIdleWorkers++;
+							try {
+								queue.wait();
+							} catch (InterruptedException e) {
+								; // ignore; keep serving
+							} finally {
+								numIdleWorkers--;
+							}
+						}
+						task = (Task) queue.removeFirst();
+					}
+					if (task.claim()) task.run();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		numWorkers++;
+		thread.start();
+		if (DEBUG) System.err.println("started " + thread.getName());
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** Transforms a single (detached) match. */
+	private static final class Task implements Runnable {
+		
+		private static final int QUEUED = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+		
+		final Element elem;
+		final ParentNode parent;
+		final Text placeholder;
+		private final ParallelTransformer owner;
+		private int state = QUEUED; // guarded by owner
+		Nodes results;
+		Throwable error;
+		
+		public Task(Element elem, ParentNode parent, Text placeholder, ParallelTransformer owner) {
+			this.elem = elem;
+			this.parent = parent;
+			this.placeholder = placeholder;
+			this.owner = owner;
+		}
+		
+		/** Returns true if the caller has obtained the right to run this task. */
+		public boolean claim() {
+			synchronized (owner) {
+				if (state != QUEUED) return false;
+				state = RUNNING;
+				return true;
+			}
+		}
+		
+		public boolean isDone() {
+			synchronized (owner) {
+				return state == DONE;
+			}
+		}
+		
+		public void run() {
+			try {
+				results = owner.transform.transform(elem);
+			} catch (Throwable t) {
+				error = t;
+			}
+			
+			synchronized (owner) {
+				state = DONE;
+				if (!owner.isOrdered) owner.completed.add(this);
+				owner.notifyAll();
+			}
+		}
+		
+		/** Waits until this task is done, running it on the calling thread if no one has started it yet. */
+		public void await() {
+			if (claim()) {
+				run();
+				return;
+			}
+			synchronized (owner) {
+				while (state != DONE) {
+					try {
+						owner.wait();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.sf.saxon.expr.AxisExpression;
+import net.sf.saxon.expr.CardinalityChecker;
+import net.sf.saxon.expr.ContextItemExpression;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FilterExpression;
+import net.sf.saxon.expr.FirstItemExpression;
+import net.sf.saxon.expr.ItemChecker;
+import net.sf.saxon.expr.ParentNodeExpression;
+import net.sf.saxon.expr.PathExpression;
+import net.sf.saxon.expr.RootExpression;
+import net.sf.saxon.expr.SimpleMappingExpression;
+import net.sf.saxon.expr.UserFunctionCall;
+import net.sf.saxon.expr.VariableReference;
+import net.sf.saxon.functions.Evaluate;
+import net.sf.saxon.functions.ExtensionFunctionCall;
+import net.sf.saxon.functions.Id;
+import net.sf.saxon.functions.Idref;
+import net.sf.saxon.functions.Root;
+import net.sf.saxon.instruct.GeneralVariable;
+import net.sf.saxon.om.Axis;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.pattern.NameTest;
+import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.sort.DocumentSorter;
+import net.sf.saxon.type.Type;
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+
+/**
+ * Static analysis of a compiled query determining the elements it can
+ * possibly access, along with a node factory that builds only those elements
+ * ("XML projection").
+ * <p>
+ * The analysis is name based and conservative: it collects the names of all
+ * elements the query navigates through (e.g. <code>site</code> and
+ * <code>people</code> in <code>/site/people/person/name</code>), and the
+ * names of the elements whose complete content the query may observe, because
+ * they are results of a path, or atomized (e.g. <code>name</code>). If the
+ * query can access elements whose names are not known statically (e.g. via
+ * <code>*</code>, <code>node()</code>, <code>..</code> as a result,
+ * <code>descendant::text()</code>, <code>id()</code>, the root node as a
+ * result, or extension functions), no projection is done.
+ * <p>
+ * The node factory keeps the complete subtrees of elements of the second
+ * kind; elements of the first kind along with their attributes and text; and
+ * any other element only as long as it has kept descendants, so that all
+ * parent/child and sibling relationships of kept elements are preserved.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/22 01:40:02 $
+ */
+final class QueryProjection {
+	
+	/** Map from local name to HashSet of namespace URIs of navigated elements */
+	private final HashMap navigated = new HashMap();
+	
+	/** Map from local name to HashSet of namespace URIs of completely kept elements */
+	private final HashMap complete = new HashMap();
+	
+	private final NamePool pool;
+	
+	/** Global variables and user functions analyzed so far */
+	private final Map visited = new IdentityHashMap();
+	
+	/** Number of enclosing predicates and path steps (expressions with a focus) */
+	private int focusDepth = 0;
+	
+	private boolean isProjectable = true;
+	
+	/** The first expression that prevents projection, if any (for debugging) */
+	private Object obstacle;
+
+	private static final boolean DEBUG = 
+		XQueryUtil.getSystemProperty("nux.xom.xquery.QueryProjection.debug", false);
+	
+	private QueryProjection(NamePool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Analyzes the given compiled query expression, returning its projection,
+	 * or null if no projection can be done safely.
+	 */
+	public static QueryProjection analyze(Expression expression, NamePool pool) {
+		QueryProjection projection = new QueryProjection(pool);
+		projection.visit(expression, true);
+		if (DEBUG) System.err.println("projection=" + projection);
+		return projection.isProjectable ? projection : null;
+	}
+	
+	/**
+	 * Returns a new node factory building only the parts of a document the
+	 * query can access.
+	 */
+	public NodeFactory createNodeFactory(NodeFactory childFactory) {
+		return new ProjectingNodeFactory(navigated, complete, childFactory);
+	}
+	
+	/**
+	 * Records the elements the given expression can access. If isResult is
+	 * true, the value of the expression may be returned or atomized, i.e. its
+	 * nodes are required completely; otherwise it is merely navigated.
+	 */
+	private void visit(Expression expr, boolean isResult) {
+		if (!isProjectable) return;
+		
+		if (expr instanceof PathExpression || expr instanceof SimpleMappingExpression) {
+			Expression start;
+			Expression step;
+			if (expr instanceof PathExpression) {
+				start = ((PathExpression) expr).getStartExpression();
+				step = ((PathExpression) expr).getStepExpression();
+			} else {
+				start = ((SimpleMappingExpression) expr).getStartExpression();
+				step = ((SimpleMappingExpression) expr).getStepExpression();
+			}
+			boolean hasContextItem = containsContextItem(step);
+			if (!hasContextItem && isDescendantOrSelfNode(lastStep(start)) 
+					&& isChildNameTest(firstStep(step))) {
+				// e.g. //a[1] == descendant-or-self::node()/child::a[1]
+				// both axes together can only reach elements named 'a'
+				if (start instanceof PathExpression) {
+					visit(((PathExpression) start).getStartExpression(), false);
+				}
+			} else {
+				visit(start, hasContextItem);
+			}
+			visitWithFocus(step, isResult);
+		}
+		else if (expr instanceof FilterExpression) {
+			FilterExpression filter = (FilterExpression) expr;
+			visit(filter.getBaseExpression(), 
+				isResult || containsContextItem(filter.getFilter()));
+			visitWithFocus(filter.getFilter(), true);
+		}
+		else if (expr instanceof AxisExpression) {
+			visitAxis(((AxisExpression) expr).getAxis(), 
+				((AxisExpression) expr).getNodeTest(), isResult);
+		}
+		else if (expr instanceof ParentNodeExpression || expr instanceof RootExpression) {
+			// parent or root element may be of any name
+			if (isResult) disable(expr);
+		}
+		else if (expr instanceof ContextItemExpression) {
+			// the initial context item (usually the document) is required completely
+			if (isResult && focusDepth == 0) disable(expr);
+		}
+		else if (expr instanceof Id || expr instanceof Idref || expr instanceof Root 
+				|| expr instanceof Evaluate || expr instanceof ExtensionFunctionCall) {
+			// may access elements of any name
+			disable(expr);
+		}
+		else if (expr instanceof DocumentSorter || expr instanceof FirstItemExpression 
+				|| expr instanceof ItemChecker || expr instanceof CardinalityChecker) {
+			// passes nodes through as is
+			visitChildren(expr, isResult);
+		}
+		else {
+			if (expr instanceof VariableReference) {
+				Object binding = ((VariableReference) expr).getBinding();
+				if (binding instanceof GeneralVariable && visited.put(binding, binding) == null) {
+					Expression select = ((GeneralVariable) binding).getSelectExpression();
+					if (select != null) visitWithoutFocus(select);
+				}
+			}
+			else if (expr instanceof UserFunctionCall) {
+				Object function = ((UserFunctionCall) expr).getFunction();
+				if (function != null && visited.put(function, function) == null) {
+					visitWithoutFocus(((UserFunctionCall) expr).getFunction().getBody());
+				}
+			}
+			// any other expression may return or atomize its operands
+			visitChildren(expr, true);
+		}
+	}
+	
+	private void visitChildren(Expression expr, boolean isResult) {
+		Iterator iter = expr.iterateSubExpressions();
+		while (iter.hasNext()) {
+			visit((Expression) iter.next(), isResult);
+		}
+	}
+	
+	private void visitWithFocus(Expression expr, boolean isResult) {
+		focusDepth++;
+		visit(expr, isResult);
+		focusDepth--;
+	}
+	
+	private void visitWithoutFocus(Expression expr) {
+		int depth = focusDepth;
+		focusDepth = 0;
+		visit(expr, true);
+		focusDepth = depth;
+	}
+	
+	private void visitAxis(byte axis, NodeTest test, boolean isResult) {
+		if (axis == Axis.ATTRIBUTE || axis == Axis.NAMESPACE) return;
+		
+		if (test instanceof NameTest && test.getPrimitiveType() == Type.ELEMENT) {
+			int fingerprint = ((NameTest) test).getFingerprint();
+			add(isResult ? complete : navigated, 
+				pool.getLocalName(fingerprint), pool.getURI(fingerprint));
+			return;
+		}
+		
+		int elementKinds = (1 << Type.ELEMENT) | (1 << Type.DOCUMENT);
+		if (test != null && (test.getNodeKindMask() & elementKinds) == 0) {
+			// text(), comment(), processing-instruction(), named PIs
+			switch (axis) {
+				case Axis.CHILD:
+				case Axis.SELF:
+				case Axis.FOLLOWING_SIBLING:
+				case Axis.PRECEDING_SIBLING:
+					return; // siblings and children of kept elements are kept
+				default:
+					disable(test); // may live within dropped elements
+					return;
+			}
+		}
+		
+		// elements of any name
+		switch (axis) {
+			case Axis.PARENT:
+			case Axis.ANCESTOR:
+			case Axis.ANCESTOR_OR_SELF:
+			case Axis.SELF:
+				// ancestors of kept elements are kept, but not necessarily completely
+				if (isResult) disable(test);
+				return;
+			default:
+				disable(test);
+				return;
+		}
+	}
+	
+	private void disable(Object obstacle) {
+		if (isProjectable) this.obstacle = obstacle;
+		isProjectable = false;
+	}
+	
+	private static void add(HashMap names, String localName, String namespaceURI) {
+		HashSet uris = (HashSet) names.get(localName);
+		if (uris == null) {
+			uris = new HashSet();
+			names.put(localName, uris);
+		}
+		uris.add(namespaceURI);
+	}
+	
+	private static Expression firstStep(Expression expr) {
+		while (true) {
+			if (expr instanceof PathExpression) {
+				expr = ((PathExpression) expr).getStartExpression();
+			} else if (expr instanceof FilterExpression) {
+				expr = ((FilterExpression) expr).getBaseExpression();
+			} else if (expr instanceof FirstItemExpression) {
+				expr = ((FirstItemExpression) expr).getBaseExpression();
+			} else {
+				return expr;
+			}
+		}
+	}
+	
+	private static Expression lastStep(Expression expr) {
+		while (expr instanceof PathExpression) {
+			expr = ((PathExpression) expr).getStepExpression();
+		}
+		return expr;
+	}
+	
+	private static boolean isDescendantOrSelfNode(Expression expr) {
+		return expr instanceof AxisExpression 
+			&& ((AxisExpression) expr).getAxis() == Axis.DESCENDANT_OR_SELF
+			&& ((AxisExpression) expr).getNodeTest() == null; // node()
+	}
+	
+	private static boolean isChildNameTest(Expression expr) {
+		if (!(expr instanceof AxisExpression)) return false;
+		AxisExpression axis = (AxisExpression) expr;
+		return axis.getAxis() == Axis.CHILD 
+			&& axis.getNodeTest() instanceof NameTest
+			&& axis.getNodeTest().getPrimitiveType() == Type.ELEMENT;
+	}
+	
+	/**
+	 * Returns whether the given expression (or a subexpression) refers to "."
+	 * of the current focus; ignores "." within predicates and path steps, as
+	 * these refer to a nested focus.
+	 */
+	private static boolean containsContextItem(Expression expr) {
+		if (expr instanceof ContextItemExpression) return true;
+		if (expr instanceof PathExpression) {
+			return containsContextItem(((PathExpression) expr).getStartExpression());
+		}
+		if (expr instanceof SimpleMappingExpression) {
+			return containsContextItem(((SimpleMappingExpression) expr).getStartExpression());
+		}
+		if (expr instanceof FilterExpression) {
+			return containsContextItem(((FilterExpression) expr).getBaseExpression());
+		}
+		Iterator iter = expr.iterateSubExpressions();
+		while (iter.hasNext()) {
+			if (containsContextItem((Expression) iter.next())) return true;
+		}
+		return false;
+	}
+	
+	/** Returns a summary for debugging purposes. */
+	public String toString() {
+		return "[isProjectable=" + isProjectable + ", obstacle=" + obstacle 
+			+ ", navigated=" + navigated 
+			+ ", complete=" + complete + "]";
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Builds completely kept elements as is, navigated elements without their
+	 * unneeded children, and all other elements only if they turn out to have
+	 * kept descendants.
+	 */
+	private static final class ProjectingNodeFactory extends NodeFactory {
+		
+		private final HashMap navigated;
+		private final HashMap complete;
+		private final NodeFactory child;
+		
+		/** Number of enclosing completely kept elements */
+		private int completeDepth;
+		
+		/** For each open element: is it required by name? */
+		private boolean[] required = new boolean[16];
+		private int level;
+		
+		private final Nodes NONE = new Nodes();
+		
+		public ProjectingNodeFactory(HashMap navigated, HashMap complete, NodeFactory child) {
+			this.navigated = navigated;
+			this.complete = complete;
+			this.child = child == null ? new NodeFactory() : child;
+		}
+		
+		public Document startMakingDocument() {
+			// reset state
+			completeDepth = 0;
+			level = -1;
+			return child.startMakingDocument();
+		}
+		
+		public Element startMakingElement(String qname, String namespaceURI) {
+			level++;
+			if (level == required.length) {
+				boolean[] tmp = new boolean[2 * level];
+				System.arraycopy(required, 0, tmp, 0, level);
+				required = tmp;
+			}
+			
+			if (completeDepth > 0) {
+				completeDepth++;
+				required[level] = true;
+			} else {
+				String localName = qname.substring(qname.indexOf(':') + 1);
+				if (contains(complete, localName, namespaceURI)) {
+					completeDepth++;
+					required[level] = true;
+				} else {
+					// root element must always be present;
+					// a document without root element is illegal in XOM
+					required[level] = level == 0 || contains(navigated, localName, namespaceURI);
+				}
+			}
+			Element elem = child.startMakingElement(qname, namespaceURI);
+			if (elem == null) { // finishMakingElement() will not be called
+				if (completeDepth > 0) completeDepth--;
+				level--;
+			}
+			return elem;
+		}
+		
+		public Nodes finishMakingElement(Element elem) {
+			boolean isRequired = required[level];
+			level--;
+			if (completeDepth > 0) completeDepth--;
+			
+			if (!isRequired && !hasChildElements(elem)) {
+				return NONE; // prune: neither required nor ancestor of a required element
+			}
+			return child.finishMakingElement(elem);
+		}
+		
+		private static boolean contains(HashMap names, String localName, String namespaceURI) {
+			HashSet uris = (HashSet) names.get(localName);
+			return uris != null && uris.contains(namespaceURI);
+		}
+		
+		// is at least one child element present?
+		private static boolean hasChildElements(Element elem) {
+			for (int i = elem.getChildCount(); --i >= 0;) {
+				if (elem.getChild(i) instanceof Element) return true;
+			}
+			return false;
+		}
+		
+		//
+		// delegating methods:
+		//
+		public Nodes makeComment(String data) {
+			return child.makeComment(data);
+		}
+
+		public Nodes makeText(String data) {
+			return child.makeText(data);
+		}
+
+		public Nodes makeAttribute(String qname, String URI, String value, Attribute.Type type) {
+			return child.makeAttribute(qname, URI, value, type);
+		}
+
+		public Nodes makeProcessingInstruction(String target, String data) {
+			return child.makeProcessingInstruction(target, data);
+		}
+		
+		public Nodes makeDocType(String rootElementName, String publicID, String systemID) {
+			return child.makeDocType(rootElementName, publicID, systemID);
+		}
+
+		public void finishMakingDocument(Document document) {
+			child.finishMakingDocument(document);
+		}
+	}
+	
+}
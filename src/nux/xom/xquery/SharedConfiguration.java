@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NamePool;
+import nux.xom.pool.DocumentURIResolver;
+
+/**
+ * A Saxon configuration and NamePool shared by many compiled queries, with
+ * bounded NamePool growth (thread-safe).
+ * <p>
+ * Unless a configuration is shared, each {@link XQuery} compiles against its
+ * own Saxon <code>Configuration</code>, with its own caches and potentially
+ * its own NamePool, even though most queries of an application could happily
+ * use the same one. Sharing a configuration reduces the heap consumed per
+ * compiled query and makes compilation of new queries cheaper. The
+ * {@link nux.xom.pool.XQueryFactory}, and hence the
+ * {@link nux.xom.pool.XQueryPool}, share a configuration among all the
+ * queries they create.
+ * <p>
+ * A Saxon NamePool never forgets a name, and it fails once it is full.
+ * Hence, a long running application that queries documents with an open ended
+ * set of names (e.g. generated element names) would eventually exhaust a
+ * shared NamePool. To prevent this, the number of distinct names allocated in
+ * the current NamePool is monitored. Once it exceeds a given maximum, the next
+ * call to {@link #getConfiguration()} starts a new generation, that is, it
+ * returns a fresh configuration with an empty NamePool. Queries compiled
+ * against a previous generation continue to work with the configuration they
+ * were compiled against; the old generation is garbage collected once none of
+ * its queries are referenced anymore, for example once they have been evicted
+ * from a pool.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/21 00:31:17 $
+ */
+public final class SharedConfiguration {
+	
+	/** The default maximum number of names per NamePool generation. */
+	public static final int DEFAULT_MAX_NAMES = 100000;
+	
+	private final DocumentURIResolver resolver;
+	private final int maxNames;
+	
+	/** The current generation; lazily created. */
+	private Configuration config;
+	private CountingNamePool pool;
+	
+	/** The number of generations created so far. */
+	private int generations = 0;
+	
+	/**
+	 * Equivalent to
+	 * <code>new SharedConfiguration(resolver, DEFAULT_MAX_NAMES)</code>.
+	 * 
+	 * @param resolver
+	 *            an object that is called by the XQuery processor to turn a URI
+	 *            passed to the XQuery <code>doc()</code> function into a XOM
+	 *            {@link nu.xom.Document}. May be <code>null</code> in which
+	 *            case non-validating non-pooled default resolution is used.
+	 */
+	public SharedConfiguration(DocumentURIResolver resolver) {
+		this(resolver, DEFAULT_MAX_NAMES);
+	}
+	
+	/**
+	 * Creates an instance that uses the given resolver for all queries
+	 * compiled against it, and starts a new generation whenever the current
+	 * NamePool contains more than the given number of names.
+	 * 
+	 * @param resolver
+	 *            an object that is called by the XQuery processor to turn a URI
+	 *            passed to the XQuery <code>doc()</code> function into a XOM
+	 *            {@link nu.xom.Document}. May be <code>null</code> in which
+	 *            case non-validating non-pooled default resolution is used.
+	 * @param maxNames
+	 *            the maximum number of distinct names per NamePool generation
+	 */
+	public SharedConfiguration(DocumentURIResolver resolver, int maxNames) {
+		if (maxNames <= 0) 
+			throw new IllegalArgumentException("maxNames must be > 0");
+		this.resolver = resolver;
+		this.maxNames = maxNames;
+	}
+	
+	/**
+	 * Returns the configuration of the current generation, starting a new
+	 * generation if the NamePool of the current one has grown too large.
+	 * <p>
+	 * The configuration returned must be treated as read-only; it is
+	 * typically passed to a new <code>StaticQueryContext</code> per query.
+	 * 
+	 * @return the current configuration
+	 */
+	public synchronized Configuration getConfiguration() {
+		if (config == null || pool.getNameCount() > maxNames) {
+			pool = new CountingNamePool();
+			config = XQuery.createConfiguration();
+			config.setNamePool(pool);
+			XQuery.setDocumentURIResolver(config, resolver);
+			generations++;
+		}
+		return config;
+	}
+	
+	/**
+	 * Returns the number of distinct names allocated so far in the NamePool of
+	 * the current generation.
+	 * 
+	 * @return the number of names
+	 */
+	public synchronized int getNameCount() {
+		return pool == null ? 0 : pool.getNameCount();
+	}
+	
+	/**
+	 * Returns the number of generations created so far.
+	 * 
+	 * @return the number of generations
+	 */
+	public synchronized int getGenerationCount() {
+		return generations;
+	}
+	
+	/**
+	 * Returns a summary string representation.
+	 * 
+	 * @return a string representation
+	 */
+	public synchronized String toString() {
+		return "[generations=" + generations 
+			+ ", names=" + getNameCount() 
+			+ ", maxNames=" + maxNames 
+			+ "]";
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * A NamePool that counts its names. Saxon encodes a user defined name as
+	 * <code>(depth << 10) + hashSlot</code> where depth is the 1-based position
+	 * of the name in the hash slot's chain, and chains only ever grow. Hence
+	 * the names can be counted from the codes returned, without any additional
+	 * lookups.
+	 */
+	private static final class CountingNamePool extends NamePool {
+		
+		/** The chain length of each hash slot seen so far. */
+		private final int[] depths = new int[1024];
+		private int names = 0;
+		
+		public synchronized int allocate(String prefix, String uri, String localName) {
+			return count(super.allocate(prefix, uri, localName));
+		}
+		
+		public synchronized int allocate(String prefix, short uriCode, String localName) {
+			return count(super.allocate(prefix, uriCode, localName));
+		}
+		
+		private int count(int nameCode) {
+			int fingerprint = nameCode & FP_MASK;
+			int slot = fingerprint & 0x3FF;
+			int depth = fingerprint >> 10; // zero for Saxon's reserved names
+			if (depth > depths[slot]) {
+				names += depth - depths[slot];
+				depths[slot] = depth;
+			}
+			return nameCode;
+		}
+		
+		synchronized int getNameCount() {
+			return names;
+		}
+	}
+	
+}
@@ -0,0 +1,825 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.NodeFactory;
+import nu.xom.Nodes;
+import nux.xom.binary.SubtreeFilter;
+import nux.xom.pool.XOMUtil;
+
+/**
+ * Streaming path filter node factory evaluating many location paths at once,
+ * in a single pass over very large or infinitely long XML input; each element
+ * matching a path is handed to the {@link StreamingTransform} associated with
+ * that path.
+ * <p>
+ * This is the multi-path counterpart of {@link StreamingPathFilter}, intended
+ * for routers and message queues evaluating hundreds of subscription paths
+ * against the same message stream, without re-parsing the stream per path.
+ * Rather than comparing each path step by step, all paths are compiled into a
+ * single nondeterministic finite automaton, with states shared among paths
+ * with common prefixes (as in the YFilter system). While parsing, the node
+ * factory maintains the set of active automaton states per nesting level, so
+ * the cost per element depends on the number of active states rather than on
+ * the number of paths.
+ * <p>
+ * <h4>Location Path Syntax</h4>
+ * 
+ * The syntax extends the one of {@link StreamingPathFilter} with the
+ * descendant axis ("//") and with simple attribute predicates:
+ * <pre>
+ * locationPath := {('/' | '//') step}...
+ * step := nameTest {'[' predicate ']'}...
+ * predicate := '@'nameTest ['=' literal]
+ * nameTest := [prefix':']localName  
+ * prefix := '*' | '' | XMLNamespacePrefix 
+ * localName := '*' | XMLLocalName
+ * literal := '"' chars '"' | "'" chars "'"
+ * </pre>
+ * 
+ * Name tests have the same meaning as with {@link StreamingPathFilter}. A
+ * predicate <code>[@name]</code> requires the element to have a matching
+ * attribute; <code>[@name='value']</code> additionally requires the attribute
+ * to have the given value. Example legal location paths are:
+ * <pre>
+ * /books/book
+ * //book
+ * /books//book[@lang='en']/title
+ * //bib:book[@bib:id][@year="2005"]
+ * /weblogs//*:entry
+ * </pre>
+ * 
+ * <h4>Semantics</h4>
+ * 
+ * As with {@link StreamingPathFilter}, each element matching a path is fully
+ * build (including its descendants) before it is passed to the path's
+ * transform, and the nodes returned by the transform replace the element in
+ * the document being build. Elements neither matching a path nor contained in
+ * a match are thrown away; ancestors of matches are retained as long as they
+ * have child elements. Further:
+ * <ul>
+ * <li>If matches are nested (e.g. <code>//item</code> with nested item
+ * elements, or <code>/a/b</code> along with <code>/a/b/c</code>), the inner
+ * match is transformed first, and the outer match sees the results of the
+ * inner transform as its content.</li>
+ * <li>If an element matches several paths, the transforms are called in the
+ * order of the paths, each with the same element, and the element is replaced
+ * with the concatenation of their results.</li>
+ * <li>The root element is never passed to a transform, since a document
+ * must have a root element. If it matches a path, it is retained along with
+ * all its descendants.</li>
+ * </ul>
+ * 
+ * <h4>Example Usage</h4>
+ * 
+ * <pre>
+ * String[] paths = { 
+ *     "/orders/order[@priority='high']", 
+ *     "//customer", 
+ *     "//sig:signature" };
+ * StreamingTransform[] transforms = { 
+ *     highPriorityRouter, customerRouter, signatureChecker };
+ * Map prefixes = new HashMap();
+ * prefixes.put("sig", "http://www.w3.org/2000/09/xmldsig#");
+ * 
+ * StreamingMultiPathFilter filter = new StreamingMultiPathFilter(paths, prefixes);
+ * Builder builder = new Builder(filter.createNodeFactory(null, transforms));
+ * builder.build(new File("/tmp/orders.xml"));
+ * </pre>
+ * 
+ * The node factory also works with
+ * {@link nux.xom.binary.BinaryXMLCodec#deserialize(java.io.InputStream, NodeFactory)},
+ * and implements {@link nux.xom.binary.SubtreeFilter}, so the codec skips
+ * subtrees that can't match any location path (attribute predicates aside,
+ * since attributes are decoded after the skip decision is made).
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/24 20:11:45 $
+ */
+public class StreamingMultiPathFilter {
+
+	/** The automaton states; the start state (i.e. the document) is at index 0 */
+	private final State[] states;
+	
+	/** The number of location paths */
+	private final int size;
+
+	/**
+	 * Constructs a compiled filter from the given location paths and prefix
+	 * --&gt; namespaceURI map.
+	 * 
+	 * @param locationPaths
+	 *            the path expressions to compile
+	 * @param prefixes
+	 *            a map of prefix --&gt; namespaceURI associations, each of type
+	 *            String --&gt; String.
+	 * 
+	 * @throws StreamingPathFilterException
+	 *             if a location path has a syntax error
+	 */
+	public StreamingMultiPathFilter(String[] locationPaths, Map prefixes) throws StreamingPathFilterException {
+		if (locationPaths == null) 
+			throw new StreamingPathFilterException("locationPaths must not be null");
+		
+		ArrayList list = new ArrayList();
+		list.add(new State(0, false));
+		for (int i = 0; i < locationPaths.length; i++) {
+			Step[] steps = parse(locationPaths[i], prefixes);
+			State state = (State) list.get(0);
+			for (int j = 0; j < steps.length; j++) {
+				if (steps[j].isDescendant) state = state.getLoop(list);
+				state = state.getTarget(steps[j], list);
+			}
+			state.addAccepting(i);
+		}
+		
+		this.states = new State[list.size()];
+		list.toArray(this.states);
+		for (int i = 0; i < states.length; i++) {
+			states[i].transitions = null; // help gc; only needed for compilation
+		}
+		this.size = locationPaths.length;
+	}
+
+	/**
+	 * Creates and returns a new node factory for this path filter, to be be passed
+	 * to a {@link nu.xom.Builder}.
+	 * <p>
+	 * Like a <code>Builder</code>, the node factory can be reused serially,
+	 * but is not thread-safe because it is stateful. If you need thread-safety,
+	 * call this method each time you need a new node factory for a new thread.
+	 * 
+	 * @param childFactory
+	 *            an optional factory to delegate calls to. All calls except
+	 *            <code>makeRootElement()</code>,
+	 *            <code>startMakingElement()</code> and
+	 *            <code>finishMakingElement()</code> are delegated to the child
+	 *            factory. If this parameter is <code>null</code> it defaults 
+	 *            to the factory returned by
+	 *            {@link XOMUtil#getIgnoreWhitespaceOnlyTextNodeFactory()}.
+	 * 
+	 * @param transforms
+	 *            the application-specific callbacks, one per location path,
+	 *            in the same order as the location paths given to the
+	 *            constructor. <code>transforms[i]</code> is called whenever
+	 *            an element matches the i-th location path. The array, as
+	 *            well as any of its entries, may be <code>null</code>, in which
+	 *            case the identity transformation is used, adding the
+	 *            matching element unchanged and "as is" to the document being
+	 *            build by a {@link nu.xom.Builder}.
+	 * @return a node factory for this path filter
+	 * @throws IllegalArgumentException
+	 *             if the number of transforms does not equal the number of
+	 *             location paths
+	 */
+	public NodeFactory createNodeFactory(NodeFactory childFactory, StreamingTransform[] transforms) {
+		if (transforms == null) transforms = new StreamingTransform[size];
+		if (transforms.length != size) 
+			throw new IllegalArgumentException("transforms.length must be " + size
+				+ ", but is " + transforms.length);
+		if (childFactory == null) 
+			childFactory = XOMUtil.getIgnoreWhitespaceOnlyTextNodeFactory();
+		return new MultiPathFilterNodeFactory(states, 
+			(StreamingTransform[]) transforms.clone(), childFactory);
+	}
+	
+	/** Parses the given location path into its steps */
+	private static Step[] parse(String locationPath, Map prefixes) {
+		if (locationPath == null) 
+			throw new StreamingPathFilterException("locationPath must not be null");
+		
+		String path = locationPath.trim();
+		if (path.endsWith("/") && !path.endsWith("//")) {
+			path = path.substring(0, path.length() - 1).trim();
+		}
+		if (path.equals("")) path = "*:*"; // fixup "match anything"
+		if (!path.startsWith("/")) path = "/" + path;
+		
+		ArrayList steps = new ArrayList();
+		int len = path.length();
+		int i = 0;
+		while (i < len) {
+			// axis
+			i++; // skip '/'
+			boolean isDescendant = i < len && path.charAt(i) == '/';
+			if (isDescendant) i++;
+			
+			// name test
+			int j = i;
+			while (j < len && path.charAt(j) != '/' && path.charAt(j) != '[') j++;
+			String[] name = parseName(path.substring(i, j), prefixes, path);
+			i = j;
+			
+			// predicates
+			ArrayList predicates = new ArrayList();
+			while (i < len && path.charAt(i) == '[') {
+				i = skipWhitespace(path, i + 1);
+				if (i >= len || path.charAt(i) != '@') 
+					throw new StreamingPathFilterException(
+						"Only attribute predicates are supported: path='" + path + "'");
+				j = i + 1;
+				while (j < len && path.charAt(j) != '=' && path.charAt(j) != ']') j++;
+				String[] attrName = parseName(path.substring(i + 1, j), prefixes, path);
+				String value = null;
+				i = j;
+				if (i < len && path.charAt(i) == '=') {
+					i = skipWhitespace(path, i + 1);
+					char quote = i < len ? path.charAt(i) : ' ';
+					j = path.indexOf(quote, i + 1);
+					if ((quote != '\'' && quote != '"') || j < 0) 
+						throw new StreamingPathFilterException(
+							"Missing quoted literal in predicate: path='" + path + "'");
+					value = path.substring(i + 1, j);
+					i = skipWhitespace(path, j + 1);
+				}
+				if (i >= len || path.charAt(i) != ']') 
+					throw new StreamingPathFilterException(
+						"Missing ']' in predicate: path='" + path + "'");
+				i++;
+				predicates.add(new Predicate(attrName[0], attrName[1], value));
+			}
+			
+			if (i < len && path.charAt(i) != '/') 
+				throw new StreamingPathFilterException(
+					"Unexpected character '" + path.charAt(i) + "' after predicate: path='" 
+					+ path + "'");
+			Predicate[] preds = new Predicate[predicates.size()];
+			predicates.toArray(preds);
+			steps.add(new Step(isDescendant, name[0], name[1], preds));
+		}
+		
+		Step[] results = new Step[steps.size()];
+		steps.toArray(results);
+		return results;
+	}
+	
+	/**
+	 * Parses the given prefix:localName pair and resolves the prefix to a
+	 * namespaceURI; returns {namespaceURI, localName}, with null meaning "any".
+	 */
+	private static String[] parseName(String qname, Map prefixes, String path) {
+		qname = qname.trim();
+		String namespaceURI;
+		int k = qname.indexOf(':');
+		if (k >= 0 && qname.indexOf(':', k+1) >= 0)
+			throw new StreamingPathFilterException(
+				"QName must not contain more than one colon: "
+				+ "qname='" + qname + "', path='" + path + "'");
+		if (k <= 0) {
+			namespaceURI = ""; // no namespace
+		} else {
+			String prefix = qname.substring(0, k).trim();
+			if (prefix.equals("*")) {
+				// namespace is irrelevant (does not matter)
+				namespaceURI = null;
+			} else {
+				// lookup namespace of uri
+				if (prefixes == null) 
+					throw new StreamingPathFilterException("prefixes must not be null");
+				Object uri = prefixes.get(prefix);
+				if (uri == null)
+					throw new StreamingPathFilterException(
+						"Missing namespace for prefix: "
+						+ "prefix='" + prefix + "', path='" + path
+						+ "', prefixes=" + prefixes);
+				namespaceURI = uri.toString().trim();
+			}
+		}
+		
+		String localName = qname.substring(k + 1).trim();
+		if (localName.length() == 0)
+			throw new StreamingPathFilterException(
+				"Missing localName: qname='" + qname + "', path='" + path + "'");
+		if (localName.equals("*")) {
+			// localName is irrelevant (does not matter)
+			localName = null;
+		}
+		return new String[] {namespaceURI, localName};
+	}
+	
+	private static int skipWhitespace(String str, int i) {
+		while (i < str.length() && Character.isWhitespace(str.charAt(i))) i++;
+		return i;
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+
+	/** A location step: an element name test along with attribute predicates */
+	private static final class Step {
+		
+		final boolean isDescendant; // axis preceding the step
+		final String namespaceURI; // null means any
+		final String localName; // null means any
+		final Predicate[] predicates;
+		
+		Step(boolean isDescendant, String namespaceURI, String localName, Predicate[] predicates) {
+			this.isDescendant = isDescendant;
+			this.namespaceURI = namespaceURI;
+			this.localName = localName;
+			this.predicates = predicates;
+		}
+		
+		boolean isNameMatch(Element elem) {
+			return (localName == null || localName.equals(elem.getLocalName()))
+				&& (namespaceURI == null || namespaceURI.equals(elem.getNamespaceURI()));
+		}
+		
+		boolean isPredicateMatch(Element elem) {
+			for (int i = 0; i < predicates.length; i++) {
+				if (!predicates[i].isMatch(elem)) return false;
+			}
+			return true;
+		}
+		
+		/** Returns a canonical key identifying equivalent steps (ignoring the axis) */
+		public String toString() {
+			StringBuffer buf = new StringBuffer();
+			buf.append(namespaceURI == null ? "*" : "{" + namespaceURI + "}");
+			buf.append(localName == null ? "*" : localName);
+			for (int i = 0; i < predicates.length; i++) {
+				buf.append(predicates[i]);
+			}
+			return buf.toString();
+		}
+	}
+	
+	/** An attribute predicate, testing for existence or value */
+	private static final class Predicate {
+		
+		final String namespaceURI; // null means any
+		final String localName; // null means any
+		final String value; // null means any
+		
+		Predicate(String namespaceURI, String localName, String value) {
+			this.namespaceURI = namespaceURI;
+			this.localName = localName;
+			this.value = value;
+		}
+		
+		boolean isMatch(Element elem) {
+			for (int i = elem.getAttributeCount(); --i >= 0; ) {
+				Attribute attr = elem.getAttribute(i);
+				if ((localName == null || localName.equals(attr.getLocalName()))
+						&& (namespaceURI == null || namespaceURI.equals(attr.getNamespaceURI()))
+						&& (value == null || value.equals(attr.getValue()))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public String toString() {
+			return "[@" + (namespaceURI == null ? "*" : "{" + namespaceURI + "}")
+				+ (localName == null ? "*" : localName) 
+				+ (value == null ? "" : "='" + value + "'") + "]";
+		}
+	}
+	
+	/** An automaton transition on an element matching a step */
+	private static final class Transition {
+		
+		final Step step;
+		final State target;
+		
+		Transition(Step step, State target) {
+			this.step = step;
+			this.target = target;
+		}
+	}
+	
+	/** An automaton state */
+	private static final class State {
+		
+		final int id;
+		
+		/** Whether this state remains active for all descendants (descendant axis) */
+		final boolean isLoop;
+		
+		/** Implicit (epsilon) transition to the state for a following "//", or null */
+		State loop;
+		
+		/** The indexes of the location paths fully matched in this state */
+		int[] accepting = new int[0];
+		
+		/** Transitions on named steps: Map from localName to Transition[] */
+		final HashMap byName = new HashMap();
+		
+		/** Transitions on steps with any localName */
+		Transition[] wildcards = new Transition[0];
+		
+		/** Map from step key to Transition; used during compilation only */
+		HashMap transitions = new HashMap();
+		
+		State(int id, boolean isLoop) {
+			this.id = id;
+			this.isLoop = isLoop;
+		}
+		
+		State getLoop(ArrayList states) {
+			if (loop == null) {
+				loop = new State(states.size(), true);
+				states.add(loop);
+			}
+			return loop;
+		}
+		
+		State getTarget(Step step, ArrayList states) {
+			String key = step.toString();
+			Transition transition = (Transition) transitions.get(key);
+			if (transition == null) {
+				State target = new State(states.size(), false);
+				states.add(target);
+				transition = new Transition(step, target);
+				transitions.put(key, transition);
+				if (step.localName == null) {
+					wildcards = append(wildcards, transition);
+				} else {
+					byName.put(step.localName, 
+						append((Transition[]) byName.get(step.localName), transition));
+				}
+			}
+			return transition.target;
+		}
+		
+		void addAccepting(int path) {
+			int[] tmp = new int[accepting.length + 1];
+			System.arraycopy(accepting, 0, tmp, 0, accepting.length);
+			tmp[accepting.length] = path;
+			accepting = tmp;
+		}
+		
+		private static Transition[] append(Transition[] array, Transition transition) {
+			if (array == null) return new Transition[] {transition};
+			Transition[] tmp = new Transition[array.length + 1];
+			System.arraycopy(array, 0, tmp, 0, array.length);
+			tmp[array.length] = transition;
+			return tmp;
+		}
+	}
+	
+	private static final class MultiPathFilterNodeFactory extends NodeFactory 
+			implements SubtreeFilter {
+
+		private final State[] states;
+		private final StreamingTransform[] transforms;
+		private final NodeFactory child;
+
+		// per nesting level; level 0 is the document, level 1 the root element
+		private int level; // current nesting level
+		private Element[] elements = new Element[16];
+		private int[][] active = new int[16][]; // ids of active automaton states
+		private int[] counts = new int[16]; // number of active states
+		private boolean[] isResolved = new boolean[16]; // predicates checked?
+		private boolean[] isInsideMatch = new boolean[16]; // matched or inside a match?
+		
+		private Element mismatch; // last element that can't match any path
+		
+		// scratch state for computing the next set of active states
+		private final int[] marks;
+		private int generation = 0;
+		private boolean hasPredicates;
+
+		private final Nodes NONE = new Nodes();
+		private static final int[] EMPTY = new int[0];
+
+		public MultiPathFilterNodeFactory(State[] states, 
+				StreamingTransform[] transforms, NodeFactory child) {
+			
+			this.states = states;
+			this.transforms = transforms;
+			this.child = child;
+			this.marks = new int[states.length];
+		}
+
+		public Document startMakingDocument() {
+			// reset state
+			level = 0;
+			mismatch = null;
+			Arrays.fill(elements, null); // help gc
+			if (active[0] == null) active[0] = new int[states.length];
+			generation++;
+			counts[0] = add(states[0], active[0], 0);
+			isResolved[0] = true;
+			isInsideMatch[0] = false;
+			return child.startMakingDocument();
+		}
+		
+		public Element startMakingElement(String qname, String namespaceURI) {
+			if (mismatch == null) resolve(); // parent's attributes are now known
+			if (mismatch != null) return null; // no need to build this element
+			
+			// build this element even if it can't match; 
+			// so we can reset state in finishMakingElement()
+			Element elem = super.startMakingElement(qname, namespaceURI);
+			push(elem);
+			
+			// attributes are not yet known; so first ignore attribute predicates
+			hasPredicates = false;
+			advance(false);
+			isResolved[level] = !hasPredicates;
+			updateMatch();
+			return elem;
+		}
+		
+		// can the codec jump over the subtree of this element?
+		public boolean isSkippable(Element elem) {
+			return elem == mismatch;
+		}
+		
+		public Nodes finishMakingElement(Element elem) {
+			resolve();
+			if (level == 1) {
+				// root element must always be present;
+				// a document without root element is illegal in XOM
+				mismatch = null; // help gc
+				elements[level--] = null;
+				return super.finishMakingElement(elem);
+			}
+			if (elem == mismatch) {
+				// reset state
+				mismatch = null;
+				elements[level--] = null;
+				return NONE;
+			}
+			
+			int[] matches = getMatches();
+			elements[level--] = null;
+			if (matches.length > 0) {
+				// we've found an element matching at least one path expression
+				return transformMatches(elem, matches);
+			}
+			if (!isInsideMatch[level] && !hasChildElements(elem)) {
+				// prune tree if mismatch or empty
+				return NONE;
+			}
+			return super.finishMakingElement(elem);
+		}
+		
+		private void push(Element elem) {
+			level++;
+			if (level == elements.length) { // grow
+				int capacity = 2 * level;
+				Element[] tmpElements = new Element[capacity];
+				System.arraycopy(elements, 0, tmpElements, 0, level);
+				elements = tmpElements;
+				int[][] tmpActive = new int[capacity][];
+				System.arraycopy(active, 0, tmpActive, 0, level);
+				active = tmpActive;
+				int[] tmpCounts = new int[capacity];
+				System.arraycopy(counts, 0, tmpCounts, 0, level);
+				counts = tmpCounts;
+				boolean[] tmpResolved = new boolean[capacity];
+				System.arraycopy(isResolved, 0, tmpResolved, 0, level);
+				isResolved = tmpResolved;
+				boolean[] tmpInside = new boolean[capacity];
+				System.arraycopy(isInsideMatch, 0, tmpInside, 0, level);
+				isInsideMatch = tmpInside;
+			}
+			if (active[level] == null) active[level] = new int[states.length];
+			elements[level] = elem;
+		}
+		
+		/** Checks the attribute predicates of the current element, if needed */
+		private void resolve() {
+			if (!isResolved[level]) {
+				isResolved[level] = true;
+				advance(true);
+				updateMatch();
+			}
+		}
+		
+		private void updateMatch() {
+			isInsideMatch[level] = isInsideMatch[level-1] 
+				|| (isResolved[level] && getMatches().length > 0);
+			if (counts[level] == 0 && !isInsideMatch[level-1]) {
+				mismatch = elements[level]; // can't match and isn't part of a match
+			}
+		}
+		
+		/**
+		 * Computes the active states of the current element from the active
+		 * states of its parent.
+		 */
+		private void advance(boolean checkPredicates) {
+			Element elem = elements[level];
+			String localName = elem.getLocalName();
+			int[] prev = active[level-1];
+			int[] next = active[level];
+			int count = 0;
+			generation++;
+			for (int i = counts[level-1]; --i >= 0; ) {
+				State state = states[prev[i]];
+				if (state.isLoop) count = add(state, next, count);
+				if (state.byName.size() > 0) {
+					Transition[] transitions = (Transition[]) state.byName.get(localName);
+					if (transitions != null) {
+						count = follow(transitions, elem, checkPredicates, next, count);
+					}
+				}
+				if (state.wildcards.length > 0) {
+					count = follow(state.wildcards, elem, checkPredicates, next, count);
+				}
+			}
+			counts[level] = count;
+		}
+		
+		private int follow(Transition[] transitions, Element elem, 
+				boolean checkPredicates, int[] next, int count) {
+			
+			for (int j = 0; j < transitions.length; j++) {
+				Step step = transitions[j].step;
+				if (step.isNameMatch(elem)) {
+					if (step.predicates.length > 0) {
+						if (!checkPredicates) {
+							hasPredicates = true;
+						} else if (!step.isPredicateMatch(elem)) {
+							continue;
+						}
+					}
+					count = add(transitions[j].target, next, count);
+				}
+			}
+			return count;
+		}
+		
+		/** Adds the given state and its implicit loop state, if not yet added */
+		private int add(State state, int[] next, int count) {
+			if (marks[state.id] != generation) {
+				marks[state.id] = generation;
+				next[count++] = state.id;
+			}
+			if (state.loop != null && marks[state.loop.id] != generation) {
+				marks[state.loop.id] = generation;
+				next[count++] = state.loop.id;
+			}
+			return count;
+		}
+		
+		/** Returns the indexes of the paths matched by the current element */
+		private int[] getMatches() {
+			int[] ids = active[level];
+			int n = 0;
+			for (int i = counts[level]; --i >= 0; ) {
+				n += states[ids[i]].accepting.length;
+			}
+			if (n == 0) return EMPTY;
+			
+			int[] matches = new int[n];
+			n = 0;
+			for (int i = counts[level]; --i >= 0; ) {
+				int[] accepting = states[ids[i]].accepting;
+				System.arraycopy(accepting, 0, matches, n, accepting.length);
+				n += accepting.length;
+			}
+			Arrays.sort(matches); // call transforms in the order of the paths
+			return matches;
+		}
+
+		private Nodes transformMatches(Element elem, int[] matches) {
+			Nodes results = null;
+			for (int i = 0; i < matches.length; i++) {
+				StreamingTransform transform = transforms[matches[i]];
+				Nodes nodes = transform == null ? null : transform.transform(elem);
+				if (matches.length == 1) {
+					if (nodes == null) return super.finishMakingElement(elem);
+					results = nodes;
+				} else {
+					// concatenate results, omitting duplicates
+					if (nodes == null) nodes = new Nodes(elem);
+					if (results == null) results = new Nodes();
+					for (int j = 0; j < nodes.size(); j++) {
+						if (!contains(results, nodes.get(j))) results.append(nodes.get(j));
+					}
+				}
+			}
+
+			// prevent potential nu.xom.MultipleParentException by detaching
+			for (int i = results.size(); --i >= 0; ) {
+				Node node = results.get(i);
+				if (node != elem) node.detach();
+			}
+			return results;
+		}
+		
+		private static boolean contains(Nodes nodes, Node node) {
+			for (int i = nodes.size(); --i >= 0; ) {
+				if (nodes.get(i) == node) return true;
+			}
+			return false;
+		}
+		
+		// is at least one child element present?
+		private static boolean hasChildElements(Element elem) {
+			for (int i = elem.getChildCount(); --i >= 0;) {
+				if (elem.getChild(i) instanceof Element) return true;
+			}
+			return false;
+		}
+
+		//
+		// delegating methods:
+		//
+		public Nodes makeComment(String data) {
+			if (mismatch == null) resolve();
+			return mismatch == null ? child.makeComment(data) : NONE;
+		}
+
+		public Nodes makeText(String data) {
+			if (mismatch == null) resolve();
+			if (mismatch == null) {
+				if (level == 1 && isWhitespaceOnly(data)) 
+					return NONE; // avoid accumulating whitespace garbage in root element (i.e. avoid hidden memory leak)
+				else 
+					return child.makeText(data);
+			}
+			return NONE;
+		}
+
+		public Nodes makeAttribute(String qname, String URI, String value, Attribute.Type type) {
+			return mismatch == null ? child.makeAttribute(qname, URI, value, type) : NONE;
+		}
+
+		public Nodes makeProcessingInstruction(String target, String data) {
+			if (mismatch == null) resolve();
+			return mismatch == null ? child.makeProcessingInstruction(target, data) : NONE;
+		}
+		
+		public Nodes makeDocType(String rootElementName, String publicID, String systemID) {
+			return child.makeDocType(rootElementName, publicID, systemID);
+		}
+
+		public void finishMakingDocument(Document document) {
+			child.finishMakingDocument(document);
+		}
+		
+		/** see XML spec */
+		private static boolean isWhitespaceOnly(String str) {
+			for (int i = str.length(); --i >= 0; ) {
+				switch (str.charAt(i)) {
+					case '\t': break;
+					case '\n': break;
+					case '\r': break;
+					case ' ' : break;
+					default  : return false;
+				}
+			}
+			return true;
+		}
+	    
+	}
+	
+}
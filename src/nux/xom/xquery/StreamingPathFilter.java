@@ -51,6 +51,7 @@ import nu.xom.Element;
 import nu.xom.Node;
 import nu.xom.NodeFactory;
 import nu.xom.Nodes;
+import nux.xom.binary.SubtreeFilter;
 import nux.xom.pool.XOMUtil;
 
 /**
@@ -147,7 +148,8 @@ import nux.xom.pool.XOMUtil;
  * For example, axes such as descendant ("//"), ancestors, following, preceding, as well as
  * predicates and other XPath features are not supported. Typically, this does not matter 
  * though, because a full XQuery can still be used on each element (subtree) matching the 
- * location path, as follows: 
+ * location path, as follows (to evaluate many paths with descendant axes and attribute
+ * predicates in a single pass, see {@link StreamingMultiPathFilter}): 
  * 
  * <h4>Example Usage</h4>
  * 
@@ -235,6 +237,16 @@ import nux.xom.pool.XOMUtil;
  * filters, transforms, routes and dispatches messages from infinitely long 
  * streams.
  * <p>
+ * The node factory also works with
+ * {@link nux.xom.binary.BinaryXMLCodec#deserialize(java.io.InputStream, NodeFactory)}.
+ * It implements {@link nux.xom.binary.SubtreeFilter}, so the codec skips
+ * subtrees that can't match the location path instead of decoding them. If
+ * the bnux data was serialized with
+ * {@link nux.xom.binary.BinaryXMLCodec#setSubtreeSizesEnabled(boolean)},
+ * the codec jumps over those subtrees at the byte level. Likewise,
+ * {@link nux.xom.io.StaxParser} skips such subtrees without reading their
+ * names, attributes and text.
+ * <p>
  * However, this class is less suited for classic database oriented use cases.
  * Here, scalability is limited as the input stream is sequentially scanned, without
  * exploiting the indexing and random access properties typical for (relational) database
@@ -354,18 +366,111 @@ public class StreamingPathFilter {
 	public NodeFactory createNodeFactory(NodeFactory childFactory, StreamingTransform transform) {
 		if (childFactory == null) 
 			childFactory = XOMUtil.getIgnoreWhitespaceOnlyTextNodeFactory();
-		return new StreamingPathFilterNodeFactory(_localNames, _namespaceURIs, childFactory, transform);
+		return new StreamingPathFilterNodeFactory(_localNames, _namespaceURIs, childFactory, transform, null);
+	}
+
+	/**
+	 * Creates and returns a new node factory for this path filter that runs
+	 * the given transform on a pool of worker threads (one per CPU), rather
+	 * than on the parsing thread. This pays off if the transform is CPU
+	 * intensive, for example if it runs an XQuery on each matching element.
+	 * <p>
+	 * Each matching element is detached from the document being build and
+	 * handed over to a worker thread. Hence, the element passed to the
+	 * transform has no ancestors, and the transform must be thread-safe. Up to
+	 * <code>maxPending</code> elements are in flight at any time; if that
+	 * bound is reached, the parsing thread waits, or transforms an element
+	 * itself. The nodes returned by the transform are spliced back into the
+	 * document being build on the parsing thread, either at the position of the
+	 * matching element (if <code>isOrdered</code> is true), or in the order
+	 * in which the transforms complete, after the preceding siblings parsed
+	 * by then. All matches are spliced before their parent element is finished,
+	 * so the resulting document is the same as with a sequential node factory
+	 * if <code>isOrdered</code> is true.
+	 * <p>
+	 * Results can also be emitted (e.g. printed or routed) in document order
+	 * via an <code>emitter</code>, a transform called on the parsing thread
+	 * with each element returned by the transform, in the same order as
+	 * splicing. The nodes returned by the emitter are spliced instead (return
+	 * an empty node list to keep memory consumption low).
+	 * <p>
+	 * Example usage:
+	 * <pre>
+	 * StreamingTransform myTransform = new StreamingTransform() {
+	 *     public Nodes transform(Element person) {
+	 *         return XQueryUtil.xquery(person, "name[../address/city = 'San Francisco']");
+	 *     }
+	 * };
+	 * StreamingTransform myEmitter = new StreamingTransform() {
+	 *     public Nodes transform(Element name) {
+	 *         System.out.println("name = " + name.getValue());
+	 *         return new Nodes(); // mark current element as subject to garbage collection
+	 *     }
+	 * };
+	 * 
+	 * // parse document with a filtering Builder
+	 * Builder builder = new Builder(new StreamingPathFilter("/persons/person", null)
+	 *     .createParallelNodeFactory(null, myTransform, myEmitter, 0, true));
+	 * builder.build(new File("/tmp/persons.xml"));
+	 * </pre>
+	 * 
+	 * @param childFactory
+	 *            an optional factory to delegate calls to, as with
+	 *            {@link #createNodeFactory(NodeFactory, StreamingTransform)}.
+	 * @param transform
+	 *            an application-specific, thread-safe callback called by a
+	 *            worker thread whenever an element matches the filter's
+	 *            entire location path. Must not be <code>null</code>.
+	 * @param emitter
+	 *            an optional application-specific callback called on the
+	 *            parsing thread with each element returned by the transform.
+	 *            May be <code>null</code> in which case the identity
+	 *            transformation is used.
+	 * @param maxPending
+	 *            the maximum number of matching elements in flight; a value
+	 *            &lt;= 0 selects a default proportional to the number of CPUs.
+	 * @param isOrdered
+	 *            whether to splice and emit results in document order, or in
+	 *            the order in which the transforms complete
+	 * @return a node factory for this path filter
+	 */
+	public NodeFactory createParallelNodeFactory(NodeFactory childFactory, 
+			StreamingTransform transform, StreamingTransform emitter, 
+			int maxPending, boolean isOrdered) {
+		
+		if (transform == null) 
+			throw new IllegalArgumentException("transform must not be null");
+		if (childFactory == null) 
+			childFactory = XOMUtil.getIgnoreWhitespaceOnlyTextNodeFactory();
+		ParallelTransformer parallel = new ParallelTransformer(
+				transform, emitter, maxPending, isOrdered);
+		return new StreamingPathFilterNodeFactory(_localNames, _namespaceURIs, childFactory, transform, parallel);
+	}
+
+	/** Returns the number of location steps. */
+	int getStepCount() {
+		return _localNames.length;
+	}
+	
+	/** Returns whether the given element name matches the given location step. */
+	boolean isMatch(int step, String localName, String namespaceURI) {
+		String name = _localNames[step];
+		String uri = _namespaceURIs[step];
+		return (name == null || name.equals(localName)) 
+			&& (uri == null || uri.equals(namespaceURI));
 	}
 
 	///////////////////////////////////////////////////////////////////////////////
 	// Nested classes:
 	///////////////////////////////////////////////////////////////////////////////
-	private static final class StreamingPathFilterNodeFactory extends NodeFactory {
+	private static final class StreamingPathFilterNodeFactory extends NodeFactory 
+			implements SubtreeFilter {
 
 		private final String[] namespaceURIs;
 		private final String[] localNames;
 		private final StreamingTransform transform;
 		private final NodeFactory child;
+		private final ParallelTransformer parallel; // null if transforming sequentially
 
 		private int level; // current nesting level = current location path step
 		private Element mismatch; // last element that did not match path
@@ -374,22 +479,25 @@ public class StreamingPathFilter {
 		private static final boolean DEBUG = false;
 
 		public StreamingPathFilterNodeFactory(String[] localNames, String[] namespaceURIs, 
-				NodeFactory child, StreamingTransform transform) {
+				NodeFactory child, StreamingTransform transform, ParallelTransformer parallel) {
 			
 			this.localNames = localNames;
 			this.namespaceURIs = namespaceURIs;
 			this.child = child;
 			this.transform = transform;
+			this.parallel = parallel;
 		}
 
 		public Document startMakingDocument() {
 			// reset state
 			level = -1;
 			mismatch = null;
+			if (parallel != null) parallel.reset();
 			return child.startMakingDocument();
 		}
 		
 		public Element startMakingElement(String qname, String namespaceURI) {
+			flush();
 			level++;
 //			if (DEBUG) System.err.println("startlevel=" + level + ", name="+ qname);
 			// check against path, if needed
@@ -411,6 +519,11 @@ public class StreamingPathFilter {
 			}
 		}
 
+		// can the codec jump over the subtree of this element?
+		public boolean isSkippable(Element elem) {
+			return elem == mismatch;
+		}
+		
 		// does element match current level/step within location path?
 		private boolean isMatch(String qname, String namespaceURI) {
 			int i = qname.indexOf(':') + 1;
@@ -427,6 +540,14 @@ public class StreamingPathFilter {
 		
 		public Nodes finishMakingElement(Element elem) {
 //			if (DEBUG) System.err.println("finishlevel=" + level + ", name="+ elem.getLocalName());
+			if (parallel != null) {
+				if (level == localNames.length - 2) {
+					// parent of matches: splice all matches before deciding on pruning
+					parallel.flushAll();
+				} else {
+					flush();
+				}
+			}
 			if (level == 0) {
 				// root element must always be present;
 				// a document without root element is illegal in XOM
@@ -458,6 +579,7 @@ public class StreamingPathFilter {
 //							+ XOMUtil.toPrettyXML(elem));
 			level--;
 			if (transform == null) return super.finishMakingElement(elem);
+			if (parallel != null) return parallel.submit(elem);
 			Nodes results = transform.transform(elem);
 
 			// prevent potential nu.xom.MultipleParentException by detaching
@@ -468,6 +590,15 @@ public class StreamingPathFilter {
 			return results;
 		}
 		
+		// hand over the previous match to the workers, and splice completed ones
+		private void flush() {
+			if (parallel != null) {
+				// results may only be appended to the parent of matches if 
+				// none of its child elements is open
+				parallel.flush(level == localNames.length - 2);
+			}
+		}
+		
 		// is at least one child element present?
 		private boolean hasChildElements(Element elem) {
 			for (int i = elem.getChildCount(); --i >= 0;) {
@@ -480,10 +611,12 @@ public class StreamingPathFilter {
 		// delegating methods:
 		//
 		public Nodes makeComment(String data) {
+			flush();
 			return mismatch == null ? child.makeComment(data) : NONE;
 		}
 
 		public Nodes makeText(String data) {
+			flush();
 //			return mismatch == null ? child.makeText(data) : NONE;
 			if (mismatch == null) {
 				if (level == 0 && isWhitespaceOnly(data)) 
@@ -495,10 +628,12 @@ public class StreamingPathFilter {
 		}
 
 		public Nodes makeAttribute(String qname, String URI, String value, Attribute.Type type) {
+			flush();
 			return mismatch == null ? child.makeAttribute(qname, URI, value, type) : NONE;
 		}
 
 		public Nodes makeProcessingInstruction(String target, String data) {
+			flush();
 			return mismatch == null ? child.makeProcessingInstruction(target, data) : NONE;
 		}
 		
@@ -507,6 +642,7 @@ public class StreamingPathFilter {
 		}
 
 		public void finishMakingDocument(Document document) {
+			if (parallel != null) parallel.flushAll();
 			child.finishMakingDocument(document);
 		}
 		
@@ -46,7 +46,7 @@ package nux.xom.xquery;
 
 /**
  * An exception indicating a syntax error in the location path of a
- * {@link StreamingPathFilter}.
+ * {@link StreamingPathFilter} or {@link StreamingMultiPathFilter}.
  * 
  * @author whoschek.AT.lbl.DOT.gov
  * @author $Author: hoschek3 $
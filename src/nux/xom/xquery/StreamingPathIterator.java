@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nu.xom.Element;
+import nu.xom.NodeFactory;
+import nu.xom.ParsingException;
+import nux.xom.io.StaxParser;
+import nux.xom.io.StaxUtil;
+import nux.xom.pool.XOMUtil;
+
+/**
+ * Pull iterator over the elements matching the location path of a
+ * {@link StreamingPathFilter}, reading from an underlying StAX pull parser;
+ * the demand driven counterpart of the callback driven
+ * {@link StreamingPathFilter#createNodeFactory(NodeFactory, StreamingTransform)}.
+ * <p>
+ * With a <code>Builder</code> and a {@link StreamingTransform}, the parser
+ * pushes matches into the application as fast as it can parse. A consumer
+ * that can't keep up (for example because it hands matches to a slower
+ * network sink, or consumes them asynchronously on another thread) has no
+ * way to slow the parser down, except by blocking inside the callback.
+ * <p>
+ * In contrast, this class parses on demand only: each call to
+ * {@link #next()} advances the StAX parser just far enough to build the next
+ * matching element, and the input is not read any further until the
+ * application asks for the next match. If the consumer lags, parsing is
+ * suspended, and memory consumption remains bounded by the size of a single
+ * match, even for infinitely long input. Subtrees that can't match the
+ * location path are skipped by counting start and end tags only, without
+ * building any nodes.
+ * <p>
+ * This works with any namespace aware StAX parser, for example one returned
+ * by {@link nux.xom.io.StaxUtil#createXMLStreamReader(java.io.InputStream, String)},
+ * as well as with the bnux pull parser returned by
+ * {@link nux.xom.binary.BinaryXMLCodec#createXMLStreamReader(java.io.InputStream)},
+ * which reads bnux pages lazily.
+ * <p>
+ * Each returned element is fully build (including its descendants) and is the
+ * root element of a new document of its own; unlike with a node factory, its
+ * ancestors are not build. The iterator uses the location path of the given
+ * filter in exactly the same manner as the filter's node factory, except
+ * that it also returns a matching root element.
+ * <p>
+ * An instance of this class is not thread-safe, but may be handed over from 
+ * one thread to another, for example to let a consumer thread pull matches
+ * at its own pace.
+ * <p>
+ * Example usage:
+ * <pre>
+ * InputStream in = new FileInputStream("/tmp/persons.xml");
+ * XMLStreamReader reader = StaxUtil.createXMLStreamReader(in, null);
+ * StreamingPathFilter filter = new StreamingPathFilter("/persons/person", null);
+ * StreamingPathIterator iter = new StreamingPathIterator(filter, reader, null);
+ * 
+ * Element person;
+ * while ((person = iter.next()) != null) { // parses just far enough
+ *     Nodes results = XQueryUtil.xquery(person, "name[../address/city = 'San Francisco']");
+ *     if (results.size() > 0) {
+ *         System.out.println("name = " + results.get(0).getValue());
+ *     }
+ * }
+ * in.close();
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/26 04:12:09 $
+ */
+public class StreamingPathIterator {
+	
+	private final StreamingPathFilter filter;
+	private final XMLStreamReader reader;
+	private final StaxParser parser;
+	
+	private int level = -1; // nesting level of current element; root element is 0
+	private boolean isStarted = false;
+	private boolean isClosed = false;
+	
+	/**
+	 * Constructs an iterator over the elements matching the given filter's
+	 * location path, in document order.
+	 * 
+	 * @param filter
+	 *            the path filter to apply
+	 * @param reader
+	 *            the underlying StAX pull parser to read from. Must be
+	 *            namespace aware, and positioned over a
+	 *            <code>START_DOCUMENT</code> event, or over the
+	 *            <code>START_ELEMENT</code> event of the root element.
+	 * @param childFactory
+	 *            the factory building the matching elements. If this
+	 *            parameter is <code>null</code> it defaults to the factory
+	 *            returned by
+	 *            {@link XOMUtil#getIgnoreWhitespaceOnlyTextNodeFactory()}.
+	 */
+	public StreamingPathIterator(StreamingPathFilter filter, XMLStreamReader reader, 
+			NodeFactory childFactory) {
+		
+		if (filter == null) 
+			throw new IllegalArgumentException("filter must not be null");
+		if (childFactory == null) 
+			childFactory = XOMUtil.getIgnoreWhitespaceOnlyTextNodeFactory();
+		this.filter = filter;
+		this.reader = reader;
+		this.parser = new StaxParser(reader, childFactory);
+	}
+	
+	/**
+	 * Returns the next element matching the location path, or
+	 * <code>null</code> if there are no more matches, because the end of the
+	 * document has been reached. In the latter case, the iterator closes 
+	 * itself.
+	 * 
+	 * @return the next match, or <code>null</code> if there are no more matches
+	 * @throws ParsingException
+	 *             if there is an error processing the underlying XML source
+	 */
+	public Element next() throws ParsingException {
+		if (isClosed) return null;
+		int last = filter.getStepCount() - 1;
+		try {
+			while (true) {
+				int event = isStarted ? reader.next() : reader.getEventType();
+				isStarted = true;
+				switch (event) {
+					case XMLStreamConstants.START_ELEMENT: {
+						level++;
+						String namespaceURI = reader.getNamespaceURI();
+						if (namespaceURI == null) namespaceURI = "";
+						if (!filter.isMatch(level, reader.getLocalName(), namespaceURI)) {
+							StaxUtil.skipElement(reader); // build nothing
+							level--;
+						} else if (level == last) {
+							// we've found an element matching the full path expression
+							Element elem = parser.buildFragment().getRootElement();
+							level--; // cursor is now over the corresponding END_ELEMENT
+							return elem;
+						}
+						break;
+					}
+					case XMLStreamConstants.END_ELEMENT: {
+						level--;
+						break;
+					}
+					case XMLStreamConstants.END_DOCUMENT: {
+						close();
+						return null;
+					}
+					default: {
+						break; // ignore
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw wrapException(e);
+		}
+	}
+	
+	/**
+	 * Releases resources associated with this iterator, including the
+	 * underlying StAX parser (but not its input stream). Subsequent calls to
+	 * {@link #next()} return <code>null</code>.
+	 * 
+	 * @throws ParsingException
+	 *             if the StAX parser fails to close
+	 */
+	public void close() throws ParsingException {
+		if (isClosed) return;
+		isClosed = true;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw wrapException(e);
+		}
+	}
+	
+	private static ParsingException wrapException(XMLStreamException ex) {
+		String systemID = null;
+		int lineNumber = -1;
+		int columnNumber = -1;
+		Location location = ex.getLocation();
+		if (location != null) {
+			lineNumber = location.getLineNumber();
+			columnNumber = location.getColumnNumber();
+			systemID = location.getSystemId();
+			if ("".equals(systemID)) systemID = null;
+		}
+		return new ParsingException(ex.getMessage(), 
+				systemID, lineNumber, columnNumber, ex);
+	}
+	
+}
@@ -48,8 +48,8 @@ import nu.xom.Nodes;
 
 /**
  * An application-specific callback called by the node factory of a
- * {@link StreamingPathFilter} whenever an element matches the filter's entire location
- * path.
+ * {@link StreamingPathFilter} (or {@link StreamingMultiPathFilter}) whenever an 
+ * element matches the filter's entire location path.
  * <p>
  * Can operate on the fully build element in arbitrary ways.
  * The underlying behaviour wrt. element/node-mutation and retaining/removing nodes 
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.style.StandardNames;
+import net.sf.saxon.tinytree.TinyBuilder;
+import net.sf.saxon.trans.XPathException;
+import nu.xom.ParsingException;
+import nux.xom.binary.BinaryXMLCodec;
+
+/**
+ * Loads bnux documents (or any other StAX event stream) straight into Saxon's
+ * native array based TinyTree, without ever building a XOM tree; the result
+ * can be queried via {@link XQuery#executeNative(NodeInfo, net.sf.saxon.query.DynamicQueryContext, java.util.Map)}.
+ * <p>
+ * Querying a XOM document requires each node visited to be wrapped into a
+ * Saxon <code>NodeInfo</code>, and each axis step to navigate the XOM tree
+ * via <code>ParentNode.indexOf()</code> and friends. A TinyTree is considerably
+ * faster to navigate, so for documents that are loaded once and queried many
+ * times, loading them with this class is preferable. For documents that are
+ * queried only once, or that need to be modified via the XOM API, wrapping
+ * a XOM document is preferable.
+ * <p>
+ * The tree is built with the NamePool of the given Saxon configuration. A
+ * query can only be executed against the tree if it has been compiled with a
+ * configuration using the same NamePool, for example the one returned by
+ * {@link XQuery#getConfiguration()}. XQuery objects constructed without an
+ * explicit context share Saxon's default NamePool, in which case the default
+ * configuration of this class can be used. DTD attribute types are retained
+ * as in Saxon's own parser, so the XQuery <code>id()</code> function works as
+ * expected.
+ * <p>
+ * Example usage:
+ * <pre>
+ *   XQuery xquery = XQueryPool.GLOBAL_POOL.getXQuery("//*:atom[@id = 'Ag']", null);
+ *   TinyTreeLoader loader = new TinyTreeLoader(xquery.getConfiguration());
+ *   NodeInfo doc = loader.load(new FileInputStream("/tmp/periodic.xml.bnux"));
+ *   for (int i=0; i &lt; 1000; i++) {
+ *       Nodes results = xquery.executeNative(doc, null, null).toNodes();
+ *       System.out.println(results.size());
+ *   }
+ * </pre>
+ * <p>
+ * This class is not thread-safe; the trees it returns are immutable and
+ * hence thread-safe.
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek $
+ * @version $Revision: 1.1 $, $Date: 2006/06/20 01:12:40 $
+ */
+public final class TinyTreeLoader {
+	
+	private final Configuration config;
+	private final BinaryXMLCodec codec = new BinaryXMLCodec();
+	
+	/**
+	 * Name and namespace codes allocated so far; codes never change for a
+	 * given NamePool, so they can be reused across documents.
+	 */
+	private final HashMap nameCodes = new HashMap();
+	private final HashMap namespaceCodes = new HashMap();
+	
+	/** Maximum number of cached codes; prevents unbounded growth on arbitrary names. */
+	private static final int MAX_CACHE_SIZE = 1024;
+	
+	/**
+	 * Constructs an instance building trees with the default NamePool shared
+	 * by all XQuery objects.
+	 */
+	public TinyTreeLoader() {
+		this(new Configuration());
+	}
+	
+	/**
+	 * Constructs an instance building trees with the NamePool of the given
+	 * configuration.
+	 * 
+	 * @param config
+	 *            the configuration of the queries to be executed against the
+	 *            trees loaded
+	 */
+	public TinyTreeLoader(Configuration config) {
+		if (config == null) 
+			throw new IllegalArgumentException("config must not be null");
+		this.config = config;
+	}
+	
+	/**
+	 * Loads the given bnux document into a new TinyTree.
+	 * 
+	 * @param bnuxDocument
+	 *            the bnux document to load
+	 * @return the document node of the new tree
+	 * @throws ParsingException
+	 *             if the input is not a bnux document, or corrupt
+	 */
+	public NodeInfo load(byte[] bnuxDocument) throws ParsingException {
+		try {
+			return load(codec.createXMLStreamReader(bnuxDocument));
+		} catch (XMLStreamException e) {
+			throw newParsingException(e);
+		}
+	}
+	
+	/**
+	 * Loads the next bnux document from the given stream into a new TinyTree.
+	 * The stream is not closed.
+	 * 
+	 * @param input
+	 *            the stream to read from
+	 * @return the document node of the new tree
+	 * @throws ParsingException
+	 *             if the input is not a bnux document, or corrupt
+	 * @throws IOException
+	 *             if an I/O error occurs while reading
+	 */
+	public NodeInfo load(InputStream input) throws ParsingException, IOException {
+		try {
+			return load(codec.createXMLStreamReader(input));
+		} catch (XMLStreamException e) {
+			if (e.getNestedException() instanceof IOException) {
+				throw (IOException) e.getNestedException();
+			}
+			throw newParsingException(e);
+		}
+	}
+	
+	/**
+	 * Pulls the events of the given reader, starting at its current
+	 * START_DOCUMENT event, into a new TinyTree. The reader is not closed.
+	 * 
+	 * @param reader
+	 *            the StAX reader to pull from
+	 * @return the document node of the new tree
+	 * @throws XMLStreamException
+	 *             if the reader fails
+	 */
+	public NodeInfo load(XMLStreamReader reader) throws XMLStreamException {
+		if (reader.getEventType() != XMLStreamReader.START_DOCUMENT) 
+			throw new IllegalStateException("reader must be positioned at START_DOCUMENT");
+		
+		TinyBuilder builder = new TinyBuilder();
+		builder.setPipelineConfiguration(config.makePipelineConfiguration());
+		String baseURI = reader.getLocation().getSystemId();
+		if (baseURI != null) builder.setSystemId(baseURI);
+		if (nameCodes.size() > MAX_CACHE_SIZE) nameCodes.clear();
+		if (namespaceCodes.size() > MAX_CACHE_SIZE) namespaceCodes.clear();
+		
+		try {
+			builder.open();
+			builder.startDocument(0);
+			while (true) {
+				switch (reader.next()) {
+					case XMLStreamReader.START_ELEMENT: {
+						int nameCode = getNameCode(reader.getPrefix(), 
+								reader.getNamespaceURI(), reader.getLocalName());
+						builder.startElement(nameCode, StandardNames.XDT_UNTYPED, 0, 0);
+						
+						for (int i=0, n=reader.getNamespaceCount(); i < n; i++) {
+							String prefix = reader.getNamespacePrefix(i);
+							String uri = reader.getNamespaceURI(i);
+							builder.namespace(getNamespaceCode(
+								prefix == null ? "" : prefix, uri == null ? "" : uri), 0);
+						}
+						
+						for (int i=0, n=reader.getAttributeCount(); i < n; i++) {
+							nameCode = getNameCode(reader.getAttributePrefix(i), 
+								reader.getAttributeNamespace(i),
+								reader.getAttributeLocalName(i));
+							builder.attribute(nameCode, getTypeCode(reader.getAttributeType(i)), 
+								reader.getAttributeValue(i), 0, 0);
+						}
+						builder.startContent();
+						break;
+					}
+					case XMLStreamReader.END_ELEMENT: {
+						builder.endElement();
+						break;
+					}
+					case XMLStreamReader.CHARACTERS: 
+					case XMLStreamReader.CDATA:
+					case XMLStreamReader.SPACE: {
+						builder.characters(reader.getText(), 0, 0);
+						break;
+					}
+					case XMLStreamReader.COMMENT: {
+						builder.comment(reader.getText(), 0, 0);
+						break;
+					}
+					case XMLStreamReader.PROCESSING_INSTRUCTION: {
+						builder.processingInstruction(
+							reader.getPITarget(), reader.getPIData(), 0, 0);
+						break;
+					}
+					case XMLStreamReader.END_DOCUMENT: {
+						builder.endDocument();
+						builder.close();
+						return builder.getCurrentRoot();
+					}
+					default: { // DTD and friends have no representation in the tree
+						break;
+					}
+				}
+			}
+		} catch (XPathException e) {
+			throw new XMLStreamException(e.getMessage(), reader.getLocation(), e);
+		}
+	}
+	
+	/** Returns the NamePool code of the given name, allocating it if necessary. */
+	private int getNameCode(String prefix, String uri, String localName) {
+		Code code = (Code) nameCodes.get(localName);
+		for (Code c = code; c != null; c = c.next) {
+			if (c.prefix.equals(prefix) && c.uri.equals(uri)) return c.code;
+		}
+		int nameCode = config.getNamePool().allocate(prefix, uri, localName);
+		nameCodes.put(localName, new Code(prefix, uri, nameCode, code));
+		return nameCode;
+	}
+	
+	/** Returns the NamePool code of the given namespace binding, allocating it if necessary. */
+	private int getNamespaceCode(String prefix, String uri) {
+		Code code = (Code) namespaceCodes.get(uri);
+		for (Code c = code; c != null; c = c.next) {
+			if (c.prefix.equals(prefix)) return c.code;
+		}
+		int nsCode = config.getNamePool().allocateNamespaceCode(prefix, uri);
+		namespaceCodes.put(uri, new Code(prefix, uri, nsCode, code));
+		return nsCode;
+	}
+	
+	/** Maps a StAX attribute type to a Saxon type annotation, ala Saxon's SAX parser. */
+	private static int getTypeCode(String type) {
+		if (type.equals("ID")) return StandardNames.XS_ID | NodeInfo.IS_DTD_TYPE;
+		if (type.equals("IDREF")) return StandardNames.XS_IDREF | NodeInfo.IS_DTD_TYPE;
+		if (type.equals("IDREFS")) return StandardNames.XS_IDREFS | NodeInfo.IS_DTD_TYPE;
+		return StandardNames.XDT_UNTYPED_ATOMIC;
+	}
+	
+	private static ParsingException newParsingException(XMLStreamException e) {
+		if (e.getNestedException() instanceof ParsingException) {
+			return (ParsingException) e.getNestedException();
+		}
+		return new ParsingException(e.getMessage(), e);
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/** A cached NamePool code; a linked list of names sharing the same hash key. */
+	private static final class Code {
+		
+		final String prefix;
+		final String uri;
+		final int code;
+		final Code next;
+		
+		Code(String prefix, String uri, int code, Code next) {
+			this.prefix = prefix;
+			this.uri = uri;
+			this.code = code;
+			this.next = next;
+		}
+	}
+	
+}
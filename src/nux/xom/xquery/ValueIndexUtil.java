@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2005, The Regents of the University of California, through
+ * Lawrence Berkeley National Laboratory (subject to receipt of any required
+ * approvals from the U.S. Dept. of Energy). All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * (3) Neither the name of the University of California, Lawrence Berkeley
+ * National Laboratory, U.S. Dept. of Energy nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * You are under no obligation whatsoever to provide any bug fixes, patches, or
+ * upgrades to the features, functionality or performance of the source code
+ * ("Enhancements") to anyone; however, if you choose to make your Enhancements
+ * available either publicly, or directly to Lawrence Berkeley National
+ * Laboratory, without imposing a separate written license agreement for such
+ * Enhancements, then you hereby grant the following license: a non-exclusive,
+ * royalty-free perpetual license to install, use, modify, prepare derivative
+ * works, incorporate into other computer software, distribute, and sublicense
+ * such enhancements or derivative works thereof, in binary and source code
+ * form.
+ */
+package nux.xom.xquery;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.sf.saxon.om.ArrayIterator;
+import net.sf.saxon.om.EmptyIterator;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.VirtualNode;
+import net.sf.saxon.xom.DocumentWrapper;
+import nu.xom.Document;
+import nu.xom.Node;
+import nu.xom.Nodes;
+import nux.xom.pool.XQueryPool;
+
+/**
+ * Declarable value indexes over read-only documents, answering equality and
+ * range lookups via hashing and binary search instead of linear scans;
+ * intended to be called from XQuery/XPath as extension functions.
+ * <p>
+ * An index is declared for a document under a name, along with a path
+ * selecting the nodes to index; each selected node is indexed under its
+ * string value. For example, the declaration
+ * <code>declare(doc, "person-ids", "/site/people/person/@id")</code>
+ * allows to rewrite the linear scan <code>/site/people/person[@id = $x]</code>
+ * into the hash lookup <code>index:lookup(., "person-ids", $x)/..</code>.
+ * <p>
+ * The index is built on the first lookup (by executing the path once), and
+ * is held softly, i.e. as long as memory permits; if the garbage collector
+ * reclaims it, it is transparently rebuilt on the next lookup. Since a built
+ * index references the indexed nodes, it keeps its document reachable until
+ * the garbage collector needs the memory, even once the application has
+ * dropped the document. Undeclare the index to release it right away.
+ * <p>
+ * A built index is a snapshot of the document as of the lookup that built
+ * it (or rebuilt it after reclamation). Hence, declaring an index declares
+ * that the document will not be modified while the index is declared.
+ * Lookups verify that each hit still belongs to the document and still has
+ * a matching value, so a modification never yields stale nodes; but nodes
+ * added or changed to match after the index has been built are not found.
+ * This is primarily intended for documents shared read-only among many
+ * queries, for example via a {@link nux.xom.pool.DocumentPool} with
+ * compression level -1. To reflect modifications, declare the index again.
+ * <p>
+ * Lookups return the indexed nodes in document order, and belong to the same
+ * Saxon tree as the context node, so they can be freely combined with other
+ * nodes of the query (e.g. via <code>union</code> or <code>is</code>).
+ * <p>
+ * Example Java usage:
+ * <pre>
+ * Document doc = DocumentPool.GLOBAL_POOL.getDocument(new File("samples/data/auction.xml"));
+ * ValueIndexUtil.declare(doc, "person-ids", "/site/people/person/@id");
+ * ValueIndexUtil.declare(doc, "prices", "/site/open_auctions/open_auction/current");
+ * </pre>
+ * 
+ * Example XQuery usage:
+ * <pre>
+ * declare namespace index = "java:nux.xom.xquery.ValueIndexUtil"; 
+ * declare variable $x external;
+ * 
+ * index:lookup(., "person-ids", $x)/..
+ * </pre>
+ * 
+ * Range lookups compare keys by Unicode codepoint, i.e. like the default
+ * collation of XPath string comparisons (numbers must be zero-padded to
+ * compare as expected):
+ * <pre>
+ * declare namespace index = "java:nux.xom.xquery.ValueIndexUtil"; 
+ * index:range(., "prices", "100.00", "199.99")/..
+ * </pre>
+ * 
+ * @author whoschek.AT.lbl.DOT.gov
+ * @author $Author: hoschek3 $
+ * @version $Revision: 1.1 $, $Date: 2006/06/22 01:40:02 $
+ */
+public final class ValueIndexUtil {
+	
+	/** Map from Document (held weakly) to Map from index name to Declaration */
+	private static final Map DECLARATIONS = new WeakHashMap();
+	
+	private ValueIndexUtil() {} // not instantiable
+	
+	/**
+	 * Declares (or redeclares) a value index with the given name for the
+	 * given document.
+	 * 
+	 * @param doc
+	 *            the document to index
+	 * @param name
+	 *            the name of the index, used to refer to it in lookups
+	 * @param path
+	 *            an XQuery or XPath selecting the nodes to index, relative to
+	 *            the document (e.g. "/site/people/person/@id" or "//book/title")
+	 */
+	public static void declare(Document doc, String name, String path) {
+		if (doc == null) 
+			throw new IllegalArgumentException("doc must not be null");
+		if (name == null) 
+			throw new IllegalArgumentException("name must not be null");
+		if (path == null) 
+			throw new IllegalArgumentException("path must not be null");
+		
+		synchronized (DECLARATIONS) {
+			Map indexes = (Map) DECLARATIONS.get(doc);
+			if (indexes == null) {
+				indexes = new HashMap();
+				DECLARATIONS.put(doc, indexes);
+			}
+			indexes.put(name, new Declaration(path));
+		}
+	}
+	
+	/**
+	 * Removes the value index with the given name from the given document,
+	 * if it exists.
+	 * 
+	 * @param doc
+	 *            the indexed document
+	 * @param name
+	 *            the name of the index
+	 */
+	public static void undeclare(Document doc, String name) {
+		synchronized (DECLARATIONS) {
+			Map indexes = (Map) DECLARATIONS.get(doc);
+			if (indexes != null) indexes.remove(name);
+		}
+	}
+	
+	/**
+	 * Returns the indexed nodes whose string value is equal to the given key,
+	 * in document order.
+	 * 
+	 * @param contextNode
+	 *            any node of the indexed document (typically ".")
+	 * @param name
+	 *            the name of the index
+	 * @param key
+	 *            the string value to look for
+	 * @return the matching nodes
+	 * @throws IllegalArgumentException
+	 *             if no such index has been declared for the document of the
+	 *             context node
+	 */
+	public static SequenceIterator lookup(NodeInfo contextNode, String name, String key) {
+		DocumentWrapper docWrapper = getDocumentWrapper(contextNode);
+		Index index = getIndex(docWrapper, name);
+		int[] positions = (int[]) index.entries.get(key);
+		if (positions == null) return EmptyIterator.getInstance();
+		return toIterator(docWrapper, index.nodes, positions, key, key);
+	}
+
+	/**
+	 * Returns the indexed nodes whose string value is within the given range
+	 * (inclusive), comparing by Unicode codepoint, in document order.
+	 * 
+	 * @param contextNode
+	 *            any node of the indexed document (typically ".")
+	 * @param name
+	 *            the name of the index
+	 * @param low
+	 *            the lower bound of the range
+	 * @param high
+	 *            the upper bound of the range
+	 * @return the matching nodes
+	 * @throws IllegalArgumentException
+	 *             if no such index has been declared for the document of the
+	 *             context node
+	 */
+	public static SequenceIterator range(NodeInfo contextNode, String name, String low, String high) {
+		DocumentWrapper docWrapper = getDocumentWrapper(contextNode);
+		Index index = getIndex(docWrapper, name);
+		String[] keys = index.sortedKeys;
+		int from = lowerBound(keys, low, false);
+		int to = lowerBound(keys, high, true);
+		if (from >= to) return EmptyIterator.getInstance();
+		
+		int size = 0;
+		for (int i = from; i < to; i++) {
+			size += ((int[]) index.entries.get(keys[i])).length;
+		}
+		int[] positions = new int[size];
+		size = 0;
+		for (int i = from; i < to; i++) {
+			int[] p = (int[]) index.entries.get(keys[i]);
+			System.arraycopy(p, 0, positions, size, p.length);
+			size += p.length;
+		}
+		Arrays.sort(positions); // nodes are stored in document order
+		return toIterator(docWrapper, index.nodes, positions, low, high);
+	}
+	
+	/**
+	 * Returns the index of the first key greater than (or equal to, unless
+	 * inclusive) the given key.
+	 */
+	private static int lowerBound(String[] keys, String key, boolean inclusive) {
+		int low = 0;
+		int high = keys.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = keys[mid].compareTo(key);
+			if (cmp < 0 || (inclusive && cmp == 0)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Wraps the nodes at the given positions, skipping nodes that have since
+	 * been detached from the document or whose value has since left the
+	 * given range.
+	 */
+	private static SequenceIterator toIterator(DocumentWrapper docWrapper, 
+			Node[] nodes, int[] positions, String low, String high) {
+		
+		Object root = ((VirtualNode) docWrapper).getUnderlyingNode();
+		NodeInfo[] items = new NodeInfo[positions.length];
+		int size = 0;
+		for (int i = 0; i < positions.length; i++) {
+			Node node = nodes[positions[i]];
+			String value = node.getValue();
+			if (node.getDocument() == root && value.compareTo(low) >= 0 
+					&& value.compareTo(high) <= 0) {
+				items[size++] = docWrapper.wrap(node);
+			}
+		}
+		return new ArrayIterator(items, 0, size);
+	}
+	
+	private static DocumentWrapper getDocumentWrapper(NodeInfo contextNode) {
+		if (contextNode == null) 
+			throw new IllegalArgumentException("contextNode must not be null");
+		NodeInfo root = contextNode.getRoot();
+		if (!(root instanceof DocumentWrapper)) 
+			throw new IllegalArgumentException(
+				"contextNode must be a XOM node, but is a " + contextNode.getClass().getName());
+		return (DocumentWrapper) root;
+	}
+	
+	private static Index getIndex(DocumentWrapper docWrapper, String name) {
+		Object root = ((VirtualNode) docWrapper).getUnderlyingNode();
+		Declaration declaration = null;
+		synchronized (DECLARATIONS) {
+			Map indexes = (Map) DECLARATIONS.get(root);
+			if (indexes != null) declaration = (Declaration) indexes.get(name);
+		}
+		if (declaration == null) 
+			throw new IllegalArgumentException("No value index named '" + name 
+				+ "' has been declared for the document of the context node");
+		return declaration.getIndex((Document) root);
+	}
+	
+	
+	///////////////////////////////////////////////////////////////////////////////
+	// Nested classes:
+	///////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * A declared index; holds the built index softly. The index strongly
+	 * references the document, which is hence collected only once the
+	 * index has been reclaimed.
+	 */
+	private static final class Declaration {
+		
+		private final String path;
+		private SoftReference index = new SoftReference(null);
+		
+		Declaration(String path) {
+			this.path = path;
+		}
+		
+		synchronized Index getIndex(Document doc) {
+			Index result = (Index) index.get();
+			if (result == null) {
+				result = new Index(doc, path);
+				index = new SoftReference(result);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * The indexed nodes in document order, a map from string value to the
+	 * positions of the nodes with that value, and the sorted keys of that
+	 * map.
+	 */
+	private static final class Index {
+		
+		final Node[] nodes;
+		final Map entries;
+		final String[] sortedKeys;
+		
+		Index(Document doc, String path) {
+			Nodes results;
+			try {
+				results = XQueryPool.GLOBAL_POOL.getXQuery(path, null).execute(doc).toNodes();
+			} catch (XQueryException e) { // part of the "convenience"
+				throw new RuntimeException(e);
+			}
+			
+			// count the nodes per key
+			int size = results.size();
+			this.nodes = new Node[size];
+			String[] values = new String[size];
+			HashMap counts = new HashMap();
+			for (int i = 0; i < size; i++) {
+				nodes[i] = results.get(i);
+				values[i] = nodes[i].getValue();
+				int[] count = (int[]) counts.get(values[i]);
+				if (count == null) {
+					count = new int[1];
+					counts.put(values[i], count);
+				}
+				count[0]++;
+			}
+			
+			// map each key to the positions of its nodes, in document order
+			this.entries = new HashMap(2 * counts.size());
+			for (int i = 0; i < size; i++) {
+				int[] positions = (int[]) entries.get(values[i]);
+				if (positions == null) {
+					int[] count = (int[]) counts.get(values[i]);
+					positions = new int[count[0]];
+					count[0] = 0; // from now on used as fill pointer
+					entries.put(values[i], positions);
+				}
+				int[] count = (int[]) counts.get(values[i]);
+				positions[count[0]++] = i;
+			}
+			
+			this.sortedKeys = new String[entries.size()];
+			Iterator iter = entries.keySet().iterator();
+			for (int i = 0; iter.hasNext(); i++) {
+				sortedKeys[i] = (String) iter.next();
+			}
+			Arrays.sort(sortedKeys);
+		}
+	}
+	
+}
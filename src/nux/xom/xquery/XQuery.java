@@ -74,6 +74,7 @@ import nu.xom.Builder;
 import nu.xom.DocType;
 import nu.xom.Document;
 import nu.xom.Node;
+import nu.xom.NodeFactory;
 import nu.xom.Nodes;
 import nu.xom.ParsingException;
 import nux.xom.pool.BuilderPool;
@@ -289,6 +290,12 @@ import org.xml.sax.InputSource;
 public class XQuery {
 	
 	private final XQueryExpression expression; // immutable hence implicitly thread-safe
+	
+	/** doc() resolver set on each dynamic context; null uses the configuration's */
+	private final URIResolver uriResolver;
+	
+	private QueryProjection projection; // lazily computed, guarded by expression
+	private boolean isProjectionAnalyzed = false;
 			
 	/** enable low-level Saxon instruction tracing output on System.err? */
 	private static final boolean TRACE = 
@@ -305,6 +312,17 @@ public class XQuery {
 	/** Use the same or separate name pools for each XQuery object? */
 	private static final boolean SHARE_NAMEPOOLS = 
 		XQueryUtil.getSystemProperty("nux.xom.xquery.XQuery.shareNamePools", true);
+	
+	/**
+	 * Reuse the DocumentWrapper (and its ID index) of any tree across
+	 * executions, rather than just of trees declared immutable?
+	 */
+	private static final boolean CACHE_DOCUMENT_WRAPPERS = 
+		XQueryUtil.getSystemProperty("nux.xom.xquery.XQuery.cacheDocumentWrappers", false);
+	
+	/** DocumentWrappers of recently queried trees; weakly keyed by root node */
+	private static final DocumentWrapperCache DOCUMENT_WRAPPERS = 
+		new DocumentWrapperCache(CACHE_DOCUMENT_WRAPPERS);
 		
 
 	/**
@@ -340,11 +358,13 @@ public class XQuery {
 	 *            working directory.
 	 * @param staticContext
 	 *            the context and configuration to use; per query (may be
-	 *            <code>null</code>).
+	 *            <code>null</code>). The configuration may be shared with
+	 *            other queries, typically via a {@link SharedConfiguration}.
 	 * @param resolver
 	 *            an object that is called by the XQuery processor to turn a URI
 	 *            passed to the XQuery <code>doc()</code> function into a XOM
 	 *            {@link Document}. May be <code>null</code> in which case
+	 *            the resolver of the {@link SharedConfiguration}, if any, or
 	 *            non-validating non-pooled default resolution is used.
 	 * 
 	 * @throws XQueryException
@@ -357,33 +377,24 @@ public class XQuery {
 				DocumentURIResolver resolver) throws XQueryException {
 		
 		if (query == null) throw new IllegalArgumentException("query must not be null");
-		if (staticContext == null) {
+		if (staticContext == null) { // our own configuration
 			staticContext = new StaticQueryContext(createConfiguration());
+			setDocumentURIResolver(staticContext.getConfiguration(), resolver);
+			this.uriResolver = null;
+		} else { // caller owned and possibly shared; never modify it
+			Configuration config = staticContext.getConfiguration();
+			if (resolver != null) {
+				this.uriResolver = new DocumentURIResolverAdapter(config, resolver);
+			} else if (config.getURIResolver() instanceof DocumentURIResolverAdapter) {
+				this.uriResolver = null; // e.g. the resolver of a SharedConfiguration
+			} else {
+				this.uriResolver = new DocumentURIResolverAdapter(
+					config, new DefaultDocumentURIResolver(config));
+			}
 		}
 		
 		if (baseURI != null) staticContext.setBaseURI(baseURI.toASCIIString());
 		
-		final Configuration config = staticContext.getConfiguration();
-		if (resolver == null) resolver = new DefaultDocumentURIResolver(config);
-		final DocumentURIResolver myResolver = resolver;
-		config.setURIResolver(
-			new URIResolver() {
-				public Source resolve(String href, String baseURI) throws TransformerException {
-					try {
-						Document doc = myResolver.resolve(href, baseURI);
-						if (doc == null) { // fallback to default mechanism
-							doc = new DefaultDocumentURIResolver(config).resolve(href, baseURI);
-						}
-						return wrap(doc, null);
-					} catch (ParsingException e) {
-						throw new TransformerException(e);
-					} catch (IOException e) {
-						throw new TransformerException(e);
-					}
-				}
-			}
-		);
-		
 		try { // generate Saxon's compiled query representation
 			this.expression = staticContext.compileQuery(query);
 		} catch (TransformerException e) {
@@ -477,6 +488,102 @@ public class XQuery {
 		return newResultSequence(this.expression, dynamicContext);
 	}
 	
+	/**
+	 * Executes (evaluates) the query against the given node of a Saxon native
+	 * tree, using the given dynamic context and external variables; otherwise
+	 * behaves exactly like {@link #execute(Node, DynamicQueryContext, Map)}.
+	 * <p>
+	 * This is typically used to repeatedly query a document that has been
+	 * loaded once into Saxon's native tree via a {@link TinyTreeLoader},
+	 * avoiding the overhead of navigating a wrapped XOM tree. The node must
+	 * have been built with the same NamePool as the configuration of this
+	 * query.
+	 * 
+	 * @param contextNode
+	 *            the context node to execute the query against. If this
+	 *            parameter is <code>null</code>, the context node will be
+	 *            undefined.
+	 * @param dynamicContext
+	 *            optional dynamic context of this execution (may be
+	 *            <code>null</code>).
+	 * @param variables
+	 *            optional external global variables to be bound on the dynamic
+	 *            context; per execution (may be <code>null</code>).
+	 * @return a result sequence iterator producing zero or more results
+	 * @throws XQueryException
+	 *             if an error occurs during execution
+	 */
+	public ResultSequence executeNative(NodeInfo contextNode, 
+			DynamicQueryContext dynamicContext, Map variables) throws XQueryException {
+		
+		Configuration config = getStaticContext().getConfiguration();
+		if (contextNode != null && contextNode.getNamePool() != config.getNamePool()) {
+			throw new IllegalArgumentException(
+				"contextNode must be built with the NamePool of the query's configuration");
+		}
+		if (dynamicContext == null) {
+			dynamicContext = new DynamicQueryContext(config);
+		}
+		
+		try {
+			setupDynamicContext(null, dynamicContext, variables);
+		} catch (TransformerException e) {
+			throw new XQueryException(e);
+		}
+		if (contextNode != null) dynamicContext.setContextItem(contextNode);
+		
+		return newResultSequence(this.expression, dynamicContext);
+	}
+	
+	/**
+	 * Returns a node factory that builds only those parts of a document that
+	 * this query can possibly access, discarding all other elements while the
+	 * document is being parsed (or deserialized from bnux). Executing this
+	 * query against the document built with the factory yields the same
+	 * results as executing it against the full document, typically at a
+	 * fraction of the parse time and main memory consumption.
+	 * <p>
+	 * This is determined by a conservative static analysis of the element
+	 * names occurring in the query's path expressions. If the query can
+	 * access elements whose names are not known statically, for example via
+	 * wildcards such as <code>//item/*</code>, the returned factory builds
+	 * the entire document. The result document must only be queried with
+	 * this query.
+	 * <p>
+	 * Example usage:
+	 * <pre>
+	 * XQuery xquery = new XQuery("/site/people/person[@id = 'person0']/name", null);
+	 * Builder builder = new Builder(xquery.createProjectingNodeFactory(null));
+	 * Document doc = builder.build(new File("samples/data/auction-0.01.xml"));
+	 * Nodes results = xquery.execute(doc).toNodes();
+	 * </pre>
+	 * 
+	 * @param childFactory
+	 *            the factory that creates the nodes that are kept (may be
+	 *            <code>null</code>, in which case a default XOM
+	 *            {@link NodeFactory} is used).
+	 * @return a new (stateful, hence not thread-safe) node factory
+	 */
+	public NodeFactory createProjectingNodeFactory(NodeFactory childFactory) {
+		QueryProjection projection = getProjection();
+		if (projection == null) {
+			return childFactory == null ? new NodeFactory() : childFactory;
+		}
+		return projection.createNodeFactory(childFactory);
+	}
+	
+	/** Lazily analyzes the query; returns null if it cannot be projected */
+	private QueryProjection getProjection() {
+		synchronized (expression) {
+			if (!isProjectionAnalyzed) {
+				projection = QueryProjection.analyze(
+					expression.getExpression(), getConfiguration().getNamePool());
+				isProjectionAnalyzed = true;
+			}
+			return projection;
+		}
+	}
+	
 	/**
 	 * Returns a description of the compiled and optimized expression tree;
 	 * useful for advanced performance diagnostics only.
@@ -599,7 +706,7 @@ public class XQuery {
 	}
 	
 	/** Creates and returns a default configuration object. */
-	private static Configuration createConfiguration() {
+	static Configuration createConfiguration() {
 		Configuration config = new Configuration(); 
 		config.setHostLanguage(Configuration.XQUERY);
 		config.setErrorListener(new DefaultErrorListener());
@@ -624,6 +731,19 @@ public class XQuery {
 		return config;
 	}
 	
+	/**
+	 * Makes the given configuration resolve <code>doc()</code> URIs via the
+	 * given resolver (which may be null).
+	 */
+	static void setDocumentURIResolver(Configuration config, DocumentURIResolver resolver) {
+		if (resolver == null) resolver = new DefaultDocumentURIResolver(config);
+		config.setURIResolver(new DocumentURIResolverAdapter(config, resolver));
+	}
+	
+	private NodeInfo wrap(Node node, HashMap docWrappers) throws TransformerException {
+		return wrap(node, docWrappers, getStaticContext().getConfiguration());
+	}
+	
 	/**
 	 * Returns a Node that saxon can read from.
 	 * 
@@ -633,10 +753,13 @@ public class XQuery {
 	 * document-less. This yields more meaningful inter document order sorts,
 	 * and improves performance for variables containing many nodes.
 	 * Note that for XOM, equality of node keys in a hash table means identity.
+	 * Across executions, DocWrappers are reused via DOCUMENT_WRAPPERS.
 	 * 
 	 * docWrappers == null disables the allocation minimization feature (not recommended).
 	 */
-	private NodeInfo wrap(Node node, HashMap docWrappers) throws TransformerException {
+	private static NodeInfo wrap(Node node, HashMap docWrappers, Configuration config) 
+			throws TransformerException {
+		
 		if (node == null) 
 			throw new TransformerException("node must not be null");
 		if (node instanceof DocType)
@@ -650,8 +773,8 @@ public class XQuery {
 		DocumentWrapper docWrapper = null;
 		if (docWrappers != null) docWrapper = (DocumentWrapper) docWrappers.get(root);
 		
-		if (docWrapper == null) { // root has not been seen before
-			docWrapper = new DocumentWrapper(root, root.getBaseURI(), getStaticContext().getConfiguration());
+		if (docWrapper == null) { // root has not been seen before in this execution
+			docWrapper = DOCUMENT_WRAPPERS.get(root, config);
 			
 			// remember the DocWrapper for the given root so we can reuse it later
 			if (docWrappers != null) docWrappers.put(root, docWrapper);
@@ -660,11 +783,27 @@ public class XQuery {
 		return docWrapper.wrap(node);
 	}
 	
+	/**
+	 * Enables or disables the element name index of the given tree for all
+	 * subsequent query executions.
+	 */
+	static void setNameIndexEnabled(Node root, boolean enabled) {
+		DOCUMENT_WRAPPERS.setNameIndexEnabled(root, enabled);
+	}
+	
 	/** Setup variables of context, if any */
 	private void setupDynamicContext(
 			Node contextNode, DynamicQueryContext dynamicContext, Map variables) 
 			throws TransformerException {
 		
+		// setup doc() resolver unless the caller has chosen one for this execution
+		if (uriResolver != null) {
+			URIResolver current = dynamicContext.getURIResolver();
+			if (current == null || current == getStaticContext().getConfiguration().getURIResolver()) {
+				dynamicContext.setURIResolver(uriResolver);
+			}
+		}
+		
 		// setup context node
 		HashMap docWrappers = null;
 		if (variables != null && variables.size() > 0) { 
@@ -760,6 +899,17 @@ public class XQuery {
 		}
 	}
 	
+	/**
+	 * Returns the Saxon configuration this query has been compiled against; for
+	 * example to create a {@link DynamicQueryContext}, or to load a tree with
+	 * the same NamePool via a {@link TinyTreeLoader}.
+	 * 
+	 * @return the configuration
+	 */
+	public Configuration getConfiguration() {
+		return getStaticContext().getConfiguration();
+	}
+	
 	private StaticContext getStaticContext() {
 	  return this.expression.getStaticContext();
 	}		
@@ -784,6 +934,35 @@ public class XQuery {
 		}
 	}
 	
+	/**
+	 * Adapts a DocumentURIResolver to Saxon; independent of any particular
+	 * query, so it can be installed on a shared configuration.
+	 */
+	private static final class DocumentURIResolverAdapter implements URIResolver {
+		
+		private final Configuration config;
+		private final DocumentURIResolver resolver;
+		
+		private DocumentURIResolverAdapter(Configuration config, DocumentURIResolver resolver) {
+			this.config = config;
+			this.resolver = resolver;
+		}
+		
+		public Source resolve(String href, String baseURI) throws TransformerException {
+			try {
+				Document doc = resolver.resolve(href, baseURI);
+				if (doc == null) { // fallback to default mechanism
+					doc = new DefaultDocumentURIResolver(config).resolve(href, baseURI);
+				}
+				return wrap(doc, null, config);
+			} catch (ParsingException e) {
+				throw new TransformerException(e);
+			} catch (IOException e) {
+				throw new TransformerException(e);
+			}
+		}
+	}
+	
 	/** Thread-safe yet efficient impl. using a non-validating XOM Builder */
 	private static final class DefaultDocumentURIResolver implements DocumentURIResolver {
 		
@@ -333,6 +333,35 @@ public class XQueryUtil {
 		update(nodes, xmorpher, null);
 	}
 	
+	/**
+	 * Enables or disables a structural index for the given document. While
+	 * enabled, queries build (once, on the first descendant axis step that
+	 * tests for an element name) and subsequently reuse an index mapping
+	 * element names to the elements of that name in document order. Steps
+	 * such as <code>//item[@id = $x]</code> then examine only the
+	 * <code>item</code> elements rather than every node of the document.
+	 * <p>
+	 * Enabling the index declares that the document will not be modified
+	 * until the index is disabled again; modifying it meanwhile yields
+	 * undefined query results. Hence, this is primarily intended for
+	 * documents shared read-only among many queries, for example via a
+	 * {@link nux.xom.pool.DocumentPool}. The index is held as long as memory
+	 * permits. The wrappers of other documents, and hence their ID indexes,
+	 * are reused across executions only if the system property
+	 * <code>nux.xom.xquery.XQuery.cacheDocumentWrappers</code> is
+	 * <code>true</code>.
+	 * 
+	 * @param doc
+	 *            the document to index
+	 * @param enabled
+	 *            whether or not to index the document
+	 */
+	public static void setStructuralIndexing(Document doc, boolean enabled) {
+		if (doc == null)
+			throw new IllegalArgumentException("doc must not be null");
+		XQuery.setNameIndexEnabled(doc, enabled);
+	}
+	
 	/** little helper for safe reading of boolean system properties */
 	static boolean getSystemProperty(String key, boolean defaults) {
 		try { 